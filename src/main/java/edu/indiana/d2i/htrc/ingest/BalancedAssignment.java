@@ -0,0 +1,338 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  BalancedAssignment.java
+# Description: This class assigns rsync points to ingest nodes so that every node holds about the same number of bytes
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class assigns rsync points to ingest nodes so that every node holds about the same number of bytes, instead of
+ * about the same number of branches. The branch sizes come from a manifest of <code>rsync point&lt;TAB&gt;bytes</code>
+ * lines, e.g. the concatenated output of BranchSizeScanner on every node; branches missing from it count as the mean size.
+ * <p>
+ * The assignment starts from the previous one, kept in an assignment file, or from the hash assignment if there is none.
+ * New branches go to the least loaded node, largest first. Then, as long as the bytes moved stay within a fraction of
+ * the total, the largest branch that narrows the gap between the most and the least loaded node is moved between them.
+ * Every tie is broken by path, so every node computes the same assignment from the same rsync points, manifest and
+ * assignment file
+ */
+public class BalancedAssignment {
+    private static Logger log = Logger.getLogger(BalancedAssignment.class);
+    private static final String EOL = System.getProperty("line.separator");
+    private static final String SEPARATOR = "\t";
+
+    public static final double DEFAULT_MAX_REBALANCE_FRACTION = 0.1;
+
+    private final int nodeCount;
+    private final double maxRebalanceFraction;
+    private final Map<String, Integer> assignmentMap;
+    private long movedBytes;
+
+    /**
+     * Constructor
+     * @param nodeCount the number of ingest nodes, i.e. the hash space
+     * @param maxRebalanceFraction the largest fraction of the total bytes moved between nodes to rebalance them
+     */
+    public BalancedAssignment(int nodeCount, double maxRebalanceFraction) {
+        this.nodeCount = nodeCount;
+        this.maxRebalanceFraction = maxRebalanceFraction;
+        this.assignmentMap = new LinkedHashMap<String, Integer>();
+        this.movedBytes = 0L;
+    }
+
+    /**
+     * Method to compute the assignment
+     * @param branches a List of all rsync points, in rsync points file order
+     * @param sizeMap a Map of rsync points to their sizes in bytes
+     * @param previousMap a Map of rsync points to the hash keys they were assigned to before. Branches not in it are new
+     */
+    public void assign(List<String> branches, Map<String, Long> sizeMap, Map<String, Integer> previousMap) {
+        final Map<String, Long> sizes = new HashMap<String, Long>();
+        long knownTotal = 0L;
+        int knownCount = 0;
+        for (String branch : branches) {
+            Long size = sizeMap.get(branch);
+            if (size != null) {
+                knownTotal += size.longValue();
+                knownCount++;
+            }
+        }
+        long meanSize = (knownCount > 0) ? knownTotal / knownCount : 1L;
+        for (String branch : branches) {
+            Long size = sizeMap.get(branch);
+            sizes.put(branch, (size != null) ? size : Long.valueOf(meanSize));
+        }
+
+        long[] loads = new long[nodeCount];
+        List<List<String>> nodeBranches = new ArrayList<List<String>>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            nodeBranches.add(new ArrayList<String>());
+        }
+
+        // largest first, ties by path, so the result does not depend on the order of the rsync points
+        Comparator<String> bySizeDescending = new Comparator<String>() {
+            public int compare(String branch1, String branch2) {
+                long size1 = sizes.get(branch1).longValue();
+                long size2 = sizes.get(branch2).longValue();
+                if (size1 != size2) {
+                    return size1 > size2 ? -1 : 1;
+                }
+                return branch1.compareTo(branch2);
+            }
+        };
+
+        List<String> newBranches = new ArrayList<String>();
+        long total = 0L;
+        for (String branch : branches) {
+            total += sizes.get(branch).longValue();
+            Integer previousNode = previousMap.get(branch);
+            if (previousNode != null && previousNode.intValue() >= 0 && previousNode.intValue() < nodeCount) {
+                loads[previousNode.intValue()] += sizes.get(branch).longValue();
+                nodeBranches.get(previousNode.intValue()).add(branch);
+            } else {
+                newBranches.add(branch);
+            }
+        }
+
+        Collections.sort(newBranches, bySizeDescending);
+        for (String branch : newBranches) {
+            int node = leastLoaded(loads);
+            loads[node] += sizes.get(branch).longValue();
+            nodeBranches.get(node).add(branch);
+        }
+        for (List<String> list : nodeBranches) {
+            Collections.sort(list, bySizeDescending);
+        }
+
+        long budget = (long) (total * maxRebalanceFraction);
+        movedBytes = 0L;
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int from = mostLoaded(loads);
+            int to = leastLoaded(loads);
+            long gap = loads[from] - loads[to];
+            for (String branch : nodeBranches.get(from)) {
+                long size = sizes.get(branch).longValue();
+                // moving a branch smaller than the gap always narrows it; the largest such branch narrows it the most
+                if (size > 0 && size < gap && movedBytes + size <= budget) {
+                    nodeBranches.get(from).remove(branch);
+                    List<String> toList = nodeBranches.get(to);
+                    int index = Collections.binarySearch(toList, branch, bySizeDescending);
+                    toList.add(-index - 1, branch);
+                    loads[from] -= size;
+                    loads[to] += size;
+                    movedBytes += size;
+                    improved = true;
+                    break;
+                }
+            }
+        }
+
+        Map<String, Integer> nodeMap = new HashMap<String, Integer>();
+        for (int i = 0; i < nodeCount; i++) {
+            for (String branch : nodeBranches.get(i)) {
+                nodeMap.put(branch, Integer.valueOf(i));
+            }
+        }
+        assignmentMap.clear();
+        for (String branch : branches) {
+            assignmentMap.put(branch, nodeMap.get(branch));
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < nodeCount; i++) {
+            builder.append(" ").append(i).append(":").append(loads[i]);
+        }
+        log.info("Balanced assignment of " + branches.size() + " branches (" + newBranches.size() + " new), " + movedBytes
+                + " of " + total + " bytes moved to rebalance. bytes per node:" + builder.toString());
+    }
+
+    /**
+     * Method to find the least loaded node
+     * @param loads the bytes assigned to each node
+     * @return the least loaded node, the lowest one on a tie
+     */
+    private static int leastLoaded(long[] loads) {
+        int node = 0;
+        for (int i = 1; i < loads.length; i++) {
+            if (loads[i] < loads[node]) {
+                node = i;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Method to find the most loaded node
+     * @param loads the bytes assigned to each node
+     * @return the most loaded node, the lowest one on a tie
+     */
+    private static int mostLoaded(long[] loads) {
+        int node = 0;
+        for (int i = 1; i < loads.length; i++) {
+            if (loads[i] > loads[node]) {
+                node = i;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Method to get the node an rsync point is assigned to
+     * @param branch an rsync point
+     * @return the hash key of the node, or -1 if the rsync point is not in the assignment
+     */
+    public int getNode(String branch) {
+        Integer node = assignmentMap.get(branch);
+        return (node != null) ? node.intValue() : -1;
+    }
+
+    /**
+     * Method to get the bytes moved between nodes to rebalance them
+     * @return the bytes moved by the last call to assign()
+     */
+    public long getMovedBytes() {
+        return movedBytes;
+    }
+
+    /**
+     * Method to get the assignment
+     * @return a Map of rsync points to hash keys, in rsync points file order
+     */
+    public Map<String, Integer> getAssignmentMap() {
+        return assignmentMap;
+    }
+
+    /**
+     * Method to load a branch size manifest. Malformed lines are skipped, and a branch listed more than once keeps its last size
+     * @param manifestPath path to the manifest file
+     * @return a Map of rsync points to sizes in bytes
+     * @throws IOException thrown if the manifest cannot be read
+     */
+    public static Map<String, Long> loadManifest(String manifestPath) throws IOException {
+        Map<String, Long> sizeMap = new HashMap<String, Long>();
+        for (String[] fields : readTabSeparated(manifestPath)) {
+            try {
+                sizeMap.put(fields[0], Long.valueOf(fields[1]));
+            } catch (NumberFormatException e) {
+                log.warn("Skipping malformed manifest line " + fields[0] + SEPARATOR + fields[1]);
+            }
+        }
+        log.info("Branch size manifest loaded for " + sizeMap.size() + " branches");
+        return sizeMap;
+    }
+
+    /**
+     * Method to load an assignment file
+     * @param assignmentPath path to the assignment file
+     * @return a Map of rsync points to hash keys, or <code>null</code> if the file does not exist
+     * @throws IOException thrown if the assignment file exists but cannot be read
+     */
+    public static Map<String, Integer> loadAssignment(String assignmentPath) throws IOException {
+        if (!new File(assignmentPath).exists()) {
+            return null;
+        }
+        Map<String, Integer> previousMap = new HashMap<String, Integer>();
+        for (String[] fields : readTabSeparated(assignmentPath)) {
+            try {
+                previousMap.put(fields[0], Integer.valueOf(fields[1]));
+            } catch (NumberFormatException e) {
+                log.warn("Skipping malformed assignment line " + fields[0] + SEPARATOR + fields[1]);
+            }
+        }
+        return previousMap;
+    }
+
+    /**
+     * Method to read a file of tab separated pairs, skipping comments and malformed lines
+     * @param path path to the file
+     * @return a List of two-element String arrays
+     * @throws IOException thrown if the file cannot be read
+     */
+    private static List<String[]> readTabSeparated(String path) throws IOException {
+        List<String[]> pairs = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line = null;
+            do {
+                line = reader.readLine();
+                if (line != null && !line.startsWith("#") && line.trim().length() > 0) {
+                    int index = line.lastIndexOf(SEPARATOR);
+                    if (index > 0) {
+                        pairs.add(new String[] {line.substring(0, index), line.substring(index + 1).trim()});
+                    } else {
+                        log.warn("Skipping malformed line in " + path + ": " + line);
+                    }
+                }
+            } while (line != null);
+        } finally {
+            reader.close();
+        }
+        return pairs;
+    }
+
+    /**
+     * Method to save the assignment. It is written to a temporary file first and then renamed
+     * @param assignmentPath path to the assignment file
+     * @throws IOException thrown if the assignment file cannot be written
+     */
+    public void save(String assignmentPath) throws IOException {
+        File assignmentFile = new File(assignmentPath);
+        File tempFile = new File(assignmentPath + ".tmp");
+        Writer writer = new FileWriter(tempFile);
+        try {
+            writer.write("# rsyncPoint" + SEPARATOR + "hashKey" + EOL);
+            for (Map.Entry<String, Integer> entry : assignmentMap.entrySet()) {
+                writer.write(entry.getKey() + SEPARATOR + entry.getValue() + EOL);
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(assignmentFile)) {
+            throw new IOException("Unable to rename " + tempFile.getPath() + " to " + assignmentFile.getPath());
+        }
+    }
+}
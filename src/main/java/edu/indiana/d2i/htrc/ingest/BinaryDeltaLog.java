@@ -0,0 +1,304 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  BinaryDeltaLog.java
+# Description: This class defines the binary delta log format and converts text delta logs to it
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import gov.loc.repository.pairtree.Pairtree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.Record;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.RecordHandler;
+
+/**
+ * This class defines the binary delta log format, and converts text delta logs to it. A binary delta log keeps the name
+ * of the text delta log it was converted from, so it goes through the same renames, and is told apart by its magic
+ * bytes; DeltaLogScanner reads both formats. All numbers are big-endian, and a var-length number is written 7 bits at a
+ * time, lowest first, with the high bit set on all but the last byte. A string is a var-length byte count followed by
+ * the UTF-8 bytes. The file is laid out as:
+ * <ul>
+ * <li>magic: the 4 bytes {@link #MAGIC}, then the version byte {@link #VERSION}</li>
+ * <li>header: a var-length count, then the header lines of the text delta log as strings, e.g. DEST_ROOT=, PREFIX=,
+ * COPYRIGHT=</li>
+ * <li>records: one per volume, in the order the volume first appears in the text delta log: the volume directory and
+ * the cleaned partial volumeID as strings, a var-length change count, then for each change its kind byte, its size + 1
+ * and its modification time in seconds + 1 as var-length numbers, 0 meaning unknown</li>
+ * <li>footer index: a var-length volume count, then for each volume, sorted by volumeID: the volumeID as a string, a
+ * byte of the VOLUME_ flags of its changes, and the var-length offset of its record; then the var-length number of
+ * attribute-only changes to files other than volume files</li>
+ * <li>trailer: the 8-byte offset of the footer index, then the 4-byte CRC32 of everything before it</li>
+ * </ul>
+ * The volumeIDs of the footer index are formed from the PREFIX= header line
+ */
+public class BinaryDeltaLog {
+    private static Logger log = Logger.getLogger(BinaryDeltaLog.class);
+
+    public static final byte[] MAGIC = {'H', 'T', 'D', 'L'};
+    public static final int VERSION = 1;
+
+    // bits of the kind byte of a change
+    public static final int KIND_ZIP = 1;
+    public static final int KIND_DELETION = 2;
+    public static final int KIND_ATTRIBUTE_ONLY = 4;
+
+    // bits of the flags byte of a volume in the footer index
+    public static final int VOLUME_ZIP_UPDATED = 1;
+    public static final int VOLUME_METS_UPDATED = 2;
+    public static final int VOLUME_DELETED = 4;
+    public static final int VOLUME_ATTRIBUTE_ONLY = 8;
+
+    static final int TRAILER_SIZE = 12;
+
+    /**
+     * This class holds the changes to one volume while a delta log is converted
+     */
+    private static class VolumeChanges {
+        private final String volumeDirectory;
+        private final String cleanedPartialVolumeID;
+        private final List<long[]> changes;
+        private int flags;
+
+        /**
+         * Constructor
+         * @param volumeDirectory the directory of the volume, with a trailing slash
+         * @param cleanedPartialVolumeID the cleaned partial volumeID
+         */
+        VolumeChanges(String volumeDirectory, String cleanedPartialVolumeID) {
+            this.volumeDirectory = volumeDirectory;
+            this.cleanedPartialVolumeID = cleanedPartialVolumeID;
+            this.changes = new ArrayList<long[]>(2);
+            this.flags = 0;
+        }
+    }
+
+    /**
+     * Method to check if a file is a binary delta log
+     * @param file a File object
+     * @return <code>true</code> if the file starts with the magic bytes, <code>false</code> otherwise
+     * @throws IOException thrown if the file could not be read
+     */
+    public static boolean isBinary(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[MAGIC.length];
+            int count = 0;
+            while (count < bytes.length) {
+                int read = inputStream.read(bytes, count, bytes.length - count);
+                if (read < 0) {
+                    return false;
+                }
+                count += read;
+            }
+            return Arrays.equals(bytes, MAGIC);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Method to convert a text delta log to a binary delta log. The changes of the text delta log are held in memory,
+     * grouped by volume, until the binary delta log is written
+     * @param textFile the text delta log file
+     * @param binaryFile the binary delta log file to write, which is synced to disk before this method returns
+     * @throws IOException thrown if the text delta log could not be read, or the binary delta log could not be written
+     */
+    public static void convert(File textFile, File binaryFile) throws IOException {
+        DeltaLogScanner scanner = new DeltaLogScanner(textFile);
+        if (scanner.isBinary()) {
+            throw new IOException(textFile.getPath() + " is already a binary delta log");
+        }
+
+        final Map<String, VolumeChanges> volumeMap = new LinkedHashMap<String, VolumeChanges>();
+        final int[] volumeAttributeOnlyCount = new int[1];
+        try {
+            scanner.scan(new RecordHandler() {
+                public void handleRecord(Record record) {
+                    String volumeDirectory = record.getVolumeDirectory();
+                    String cleanedPartialVolumeID = record.getCleanedPartialVolumeID();
+                    String key = volumeDirectory + cleanedPartialVolumeID;
+                    VolumeChanges volumeChanges = volumeMap.get(key);
+                    if (volumeChanges == null) {
+                        volumeChanges = new VolumeChanges(volumeDirectory, cleanedPartialVolumeID);
+                        volumeMap.put(key, volumeChanges);
+                    }
+
+                    int kind = (record.isZip() ? KIND_ZIP : 0) | (record.isDeletion() ? KIND_DELETION : 0) | (record.isAttributeOnly() ? KIND_ATTRIBUTE_ONLY : 0);
+                    volumeChanges.changes.add(new long[] {kind, record.getSize(), record.getModTime()});
+                    if (record.isDeletion()) {
+                        volumeChanges.flags |= VOLUME_DELETED;
+                    } else if (record.isAttributeOnly()) {
+                        volumeChanges.flags |= VOLUME_ATTRIBUTE_ONLY;
+                        volumeAttributeOnlyCount[0]++;
+                    } else {
+                        volumeChanges.flags |= record.isZip() ? VOLUME_ZIP_UPDATED : VOLUME_METS_UPDATED;
+                    }
+                }
+            }, 1);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while converting " + textFile.getPath() + ": " + e.toString());
+        }
+        int otherAttributeOnlyCount = scanner.getAttributeOnlyCount() - volumeAttributeOnlyCount[0];
+
+        String prefix = scanner.getHeader("PREFIX");
+        if (prefix == null) {
+            prefix = "";
+        }
+        Pairtree pairtree = new Pairtree();
+
+        FileOutputStream fileOutputStream = new FileOutputStream(binaryFile);
+        try {
+            CRC32 crc = new CRC32();
+            BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileOutputStream);
+            DataOutputStream outputStream = new DataOutputStream(new CheckedOutputStream(bufferedOutputStream, crc));
+
+            outputStream.write(MAGIC);
+            outputStream.writeByte(VERSION);
+            List<String> headerLines = scanner.getHeaderLines();
+            writeVarLong(outputStream, headerLines.size());
+            for (String headerLine : headerLines) {
+                writeString(outputStream, headerLine);
+            }
+
+            int volumeCount = volumeMap.size();
+            String[] volumeIDs = new String[volumeCount];
+            int[] flags = new int[volumeCount];
+            long[] offsets = new long[volumeCount];
+            int i = 0;
+            for (VolumeChanges volumeChanges : volumeMap.values()) {
+                volumeIDs[i] = prefix + pairtree.uncleanId(volumeChanges.cleanedPartialVolumeID);
+                flags[i] = volumeChanges.flags;
+                offsets[i] = outputStream.size();
+                writeString(outputStream, volumeChanges.volumeDirectory);
+                writeString(outputStream, volumeChanges.cleanedPartialVolumeID);
+                writeVarLong(outputStream, volumeChanges.changes.size());
+                for (long[] change : volumeChanges.changes) {
+                    outputStream.writeByte((int)change[0]);
+                    writeVarLong(outputStream, change[1] + 1);
+                    writeVarLong(outputStream, change[2] + 1);
+                }
+                i++;
+            }
+            volumeMap.clear();
+
+            long footerOffset = outputStream.size();
+            Integer[] order = new Integer[volumeCount];
+            for (i = 0; i < volumeCount; i++) {
+                order[i] = Integer.valueOf(i);
+            }
+            final String[] sortKeys = volumeIDs;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer o1, Integer o2) {
+                    return sortKeys[o1.intValue()].compareTo(sortKeys[o2.intValue()]);
+                }
+            });
+            writeVarLong(outputStream, volumeCount);
+            for (Integer index : order) {
+                writeString(outputStream, volumeIDs[index.intValue()]);
+                outputStream.writeByte(flags[index.intValue()]);
+                writeVarLong(outputStream, offsets[index.intValue()]);
+            }
+            writeVarLong(outputStream, otherAttributeOnlyCount);
+            outputStream.writeLong(footerOffset);
+            outputStream.flush();
+
+            // the CRC itself is left out of the CRC
+            new DataOutputStream(bufferedOutputStream).writeInt((int)crc.getValue());
+            bufferedOutputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        if (log.isTraceEnabled()) log.trace("Converted " + textFile.getPath() + " (" + textFile.length() + " bytes) to " + binaryFile.getPath() + " (" + binaryFile.length() + " bytes)");
+    }
+
+    /**
+     * Method to convert a text delta log to a binary delta log of the same name. The binary delta log is written next to
+     * it first, and then renamed over it, so a crash leaves either the text or the binary delta log behind
+     * @param deltaLogFile the text delta log file
+     * @throws IOException thrown if the conversion failed, in which case the text delta log is left as it was
+     */
+    public static void convertInPlace(File deltaLogFile) throws IOException {
+        File partialFile = new File(deltaLogFile.getParentFile(), deltaLogFile.getName() + ".partial");
+        try {
+            convert(deltaLogFile, partialFile);
+        } catch (IOException e) {
+            partialFile.delete();
+            throw e;
+        }
+        if (!partialFile.renameTo(deltaLogFile)) {
+            partialFile.delete();
+            throw new IOException("Failed to rename " + partialFile.getPath() + " to " + deltaLogFile.getPath());
+        }
+    }
+
+    /**
+     * Method to write a var-length number
+     * @param outputStream an OutputStream to write to
+     * @param value a non-negative number
+     * @throws IOException thrown if writing failed
+     */
+    static void writeVarLong(OutputStream outputStream, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            outputStream.write((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        outputStream.write((int)value);
+    }
+
+    /**
+     * Method to write a string as a var-length byte count followed by its UTF-8 bytes
+     * @param outputStream an OutputStream to write to
+     * @param string the String to write
+     * @throws IOException thrown if writing failed
+     */
+    static void writeString(OutputStream outputStream, String string) throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        writeVarLong(outputStream, bytes.length);
+        outputStream.write(bytes);
+    }
+}
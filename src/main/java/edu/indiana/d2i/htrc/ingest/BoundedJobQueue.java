@@ -0,0 +1,256 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  BoundedJobQueue.java
+# Description: This class is a bounded, multi-producer multi-consumer job queue with an end-of-stream signal
+#
+# -----------------------------------------------------------------
+# 
+*/
+
+
+
+/**
+ * 
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class is a bounded, multi-producer multi-consumer job queue with an end-of-stream signal. Producers block on
+ * put() when the queue is full, so a fast producer can no longer run arbitrarily far ahead of its consumers. Once all
+ * producers are finished, close() appends an end-of-stream marker behind the remaining jobs; consumers get
+ * <code>null</code> from take() or drainTo() returns 0 only after every job queued before close() has been handed out.
+ * Producers and consumers use separate locks of the underlying LinkedBlockingQueue, so they do not contend with each other.
+ *
+ * @param <T> type of the jobs in the queue
+ */
+public class BoundedJobQueue<T> {
+
+    private static Logger log = Logger.getLogger(BoundedJobQueue.class);
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // the end-of-stream marker. it is never handed out to consumers; whoever takes it puts it back so every consumer sees it
+    private static final Object END_OF_STREAM = new Object();
+
+    private final String queueName;
+    private final int capacity;
+    private final LinkedBlockingQueue<Object> queue;
+    private final AtomicBoolean closed;
+    // set once the end-of-stream marker is in the queue, where it stays until the end
+    private volatile boolean endMarked;
+
+    /**
+     * Constructor
+     * @param queueName a unique name for the job queue
+     * @param capacity maximum number of jobs the queue holds before put() blocks
+     */
+    public BoundedJobQueue(String queueName, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity of BoundedJobQueue " + queueName + " must be positive: " + capacity);
+        }
+        this.queueName = queueName;
+        this.capacity = capacity;
+        this.queue = new LinkedBlockingQueue<Object>(capacity);
+        this.closed = new AtomicBoolean(false);
+        this.endMarked = false;
+    }
+
+    /**
+     * Method to add a job to the queue, blocking while the queue is full
+     * @param job the job to be added to the queue. must not be <code>null</code>
+     * @throws InterruptedException thrown if interrupted while waiting for space
+     * @throws IllegalStateException thrown if the queue has already been closed
+     */
+    public void put(T job) throws InterruptedException, IllegalStateException {
+        checkNotClosed();
+        queue.put(job);
+    }
+
+    /**
+     * Method to add a job to the queue, waiting up to the specified time for space to become available
+     * @param job the job to be added to the queue. must not be <code>null</code>
+     * @param timeout how long to wait before giving up
+     * @param unit unit of the timeout
+     * @return <code>true</code> if the job was added, <code>false</code> if the queue stayed full for the whole timeout
+     * @throws InterruptedException thrown if interrupted while waiting for space
+     * @throws IllegalStateException thrown if the queue has already been closed
+     */
+    public boolean offer(T job, long timeout, TimeUnit unit) throws InterruptedException, IllegalStateException {
+        checkNotClosed();
+        return queue.offer(job, timeout, unit);
+    }
+
+    /**
+     * Method to remove a job from the queue, blocking until a job is available or the end of stream is reached
+     * @return a job from the queue, or <code>null</code> if the queue is closed and all jobs have been handed out
+     * @throws InterruptedException thrown if interrupted while waiting for a job
+     */
+    public T take() throws InterruptedException {
+        return unwrap(queue.take());
+    }
+
+    /**
+     * Method to remove a job from the queue, waiting up to the specified time for a job to become available
+     * @param timeout how long to wait before giving up
+     * @param unit unit of the timeout
+     * @return a job from the queue, or <code>null</code> if the timeout elapsed or the end of stream is reached. use isEndOfStream() to tell the two apart
+     * @throws InterruptedException thrown if interrupted while waiting for a job
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Object item = queue.poll(timeout, unit);
+        return (item == null) ? null : unwrap(item);
+    }
+
+    /**
+     * Method to remove a batch of jobs from the queue with one blocking wait. It blocks until at least one job is available
+     * or the end of stream is reached, and then moves up to maxJobs jobs into the specified collection
+     * @param batch the collection to which the jobs are added
+     * @param maxJobs the maximum number of jobs to remove
+     * @return the number of jobs added to the collection, or 0 if the queue is closed and all jobs have been handed out
+     * @throws InterruptedException thrown if interrupted while waiting for a job
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super T> batch, int maxJobs) throws InterruptedException {
+        if (maxJobs < 1) {
+            return 0;
+        }
+
+        T first = take();
+        if (first == null) {
+            return 0;
+        }
+        batch.add(first);
+        int count = 1;
+
+        if (maxJobs > 1) {
+            List<Object> items = new ArrayList<Object>(Math.min(maxJobs - 1, capacity));
+            queue.drainTo(items, maxJobs - 1);
+            for (Object item : items) {
+                if (item == END_OF_STREAM) {
+                    // the marker is always the last item put into the queue, so nothing follows it
+                    queue.offer(END_OF_STREAM);
+                    break;
+                }
+                batch.add((T)item);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Method to signal that no more jobs will be added to the queue. It must only be called after all producers have
+     * finished putting their jobs. Calling it more than once has no further effect. It may block while the queue is full
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            boolean interrupted = false;
+            boolean marked = false;
+            while (!marked) {
+                try {
+                    queue.put(END_OF_STREAM);
+                    marked = true;
+                    endMarked = true;
+                } catch (InterruptedException e) {
+                    log.warn("Interrupted while closing BoundedJobQueue " + queueName + ". Retrying", e);
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Method to check if the queue has been closed to producers
+     * @return <code>true</code> if close() has been called, <code>false</code> otherwise
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Method to check if consumers will get no more jobs from the queue
+     * @return <code>true</code> if the queue is closed and all jobs have been handed out, <code>false</code> otherwise
+     */
+    public boolean isEndOfStream() {
+        return closed.get() && queue.peek() == END_OF_STREAM;
+    }
+
+    /**
+     * Method to get the number of jobs currently waiting in the queue, not counting the end-of-stream marker
+     * @return the number of jobs currently waiting in the queue
+     */
+    public int size() {
+        int size = queue.size();
+        return endMarked ? Math.max(0, size - 1) : size;
+    }
+
+    /**
+     * Method to get the capacity of the queue
+     * @return the maximum number of jobs the queue holds before put() blocks
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Method to get the name of the queue
+     * @return the name of the queue
+     */
+    public String getName() {
+        return queueName;
+    }
+
+    /**
+     * Method to throw an IllegalStateException if the queue has been closed
+     * @throws IllegalStateException thrown if the queue has been closed
+     */
+    private void checkNotClosed() throws IllegalStateException {
+        if (closed.get()) {
+            throw new IllegalStateException("BoundedJobQueue " + queueName + " is closed. Cannot add more jobs");
+        }
+    }
+
+    /**
+     * Method to convert an item taken from the underlying queue to a job, putting the end-of-stream marker back if it was taken
+     * @param item an item taken from the underlying queue
+     * @return the job, or <code>null</code> if the item was the end-of-stream marker
+     */
+    @SuppressWarnings("unchecked")
+    private T unwrap(Object item) {
+        if (item == END_OF_STREAM) {
+            // put it back for the other consumers. producers are done by now and this consumer just freed a slot, so offer() cannot fail
+            queue.offer(END_OF_STREAM);
+            return null;
+        }
+        return (T)item;
+    }
+}
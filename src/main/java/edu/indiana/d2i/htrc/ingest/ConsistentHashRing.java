@@ -0,0 +1,160 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  ConsistentHashRing.java
+# Description: This class assigns rsync points to ingest nodes on a consistent hashing ring
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class assigns rsync points to ingest nodes on a consistent hashing ring. Each node is identified by its hash key
+ * (0 ~ n-1, as INGEST_MY_HASH_KEY) and placed on the ring at a number of virtual points proportional to its weight; an
+ * rsync point belongs to the node owning the first virtual point at or after the MD5 of the path. Unlike the modulo hash
+ * of Util.hashMD5Checksum(), adding a node only takes over the rsync points falling just before its own virtual points,
+ * so about 1/n of the branches move and the rest stay where they are. A node of weight 0 owns nothing
+ */
+public class ConsistentHashRing {
+    private static Logger log = Logger.getLogger(ConsistentHashRing.class);
+
+    public static final int DEFAULT_VIRTUAL_NODE_COUNT = 160;
+
+    private final TreeMap<Long, Integer> ring;
+
+    /**
+     * Constructor
+     * @param weights an int array of the node weights, indexed by hash key
+     * @param virtualNodeCount the number of virtual points per unit of weight
+     */
+    public ConsistentHashRing(int[] weights, int virtualNodeCount) {
+        this.ring = new TreeMap<Long, Integer>();
+        for (int key = 0; key < weights.length; key++) {
+            int pointCount = Math.max(0, weights[key]) * virtualNodeCount;
+            for (int i = 0; i < pointCount; i++) {
+                Long point = Long.valueOf(hash("node-" + key + "#" + i));
+                // on the rare collision the lower key keeps the point, so every node computes the same ring
+                if (!ring.containsKey(point)) {
+                    ring.put(point, Integer.valueOf(key));
+                }
+            }
+        }
+        if (ring.isEmpty()) {
+            throw new IllegalArgumentException("No node on the hash ring has a weight above 0");
+        }
+    }
+
+    /**
+     * Method to create a ConsistentHashRing from the properties file, if consistent hashing is enabled
+     * @param reader a PropertyReader object
+     * @param nodeCount the number of ingest nodes, i.e. the hash space
+     * @return a ConsistentHashRing object, or <code>null</code> if consistent hashing is not enabled and the modulo hash applies
+     */
+    public static ConsistentHashRing fromProperties(PropertyReader reader, int nodeCount) {
+        if (!Util.getBooleanProperty(reader.getProperty(Constants.PK_PERFORM_CONSISTENT_HASHING))) {
+            return null;
+        }
+        int[] weights = parseWeights(reader.getProperty(Constants.PK_INGEST_HASH_NODE_WEIGHTS), nodeCount);
+        int virtualNodeCount = Util.getIntProperty(reader.getProperty(Constants.PK_INGEST_HASH_VIRTUAL_NODE_COUNT), DEFAULT_VIRTUAL_NODE_COUNT);
+        return new ConsistentHashRing(weights, virtualNodeCount);
+    }
+
+    /**
+     * Method to parse a comma separated list of node weights
+     * @param weightsString a comma separated list of node weights, e.g. <code>1,1,2</code>, or <code>null</code>
+     * @param nodeCount the number of nodes
+     * @return an int array of the node weights; all 1 if no list is given or the list does not have one weight per node
+     */
+    public static int[] parseWeights(String weightsString, int nodeCount) {
+        int[] weights = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            weights[i] = 1;
+        }
+        if (weightsString == null || weightsString.trim().equals("")) {
+            return weights;
+        }
+        String[] tokens = weightsString.split(",");
+        if (tokens.length != nodeCount) {
+            log.warn("Expected " + nodeCount + " node weights but got " + tokens.length + ". Using equal weights");
+            return weights;
+        }
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                weights[i] = Integer.parseInt(tokens[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Invalid node weights " + weightsString + ". Using equal weights", e);
+            for (int i = 0; i < nodeCount; i++) {
+                weights[i] = 1;
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Method to get the node an rsync point is assigned to
+     * @param contents the rsync point path as listed in the rsync points file
+     * @return the hash key of the node
+     */
+    public int getNode(String contents) {
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(Long.valueOf(hash(contents)));
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry.getValue().intValue();
+    }
+
+    /**
+     * Method to hash a String onto the ring
+     * @param contents the String to hash
+     * @return the first 8 bytes of the MD5 checksum of the String as a long
+     */
+    static long hash(String contents) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] md5sum = digest.digest(contents.getBytes("UTF-8"));
+            long hash = 0L;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (md5sum[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException("MD5 not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            // every Java platform is required to support UTF-8
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+}
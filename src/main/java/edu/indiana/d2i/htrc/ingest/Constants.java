@@ -44,6 +44,7 @@ public class Constants {
     public static final String PK_PERFORM_NOSQL_PUSH = "PERFORM_NOSQL_PUSH";
     
     public static final String PK_DELTA_PROCESSOR_THREAD_COUNT = "DELTA_PROCESSOR_THREAD_COUNT";
+    public static final String PK_DELTA_LOG_SCANNER_THREAD_COUNT = "DELTA_LOG_SCANNER_THREAD_COUNT";
     
     public static final String PK_CASSANDRA_HOST = "CASSANDRA_HOST";
     public static final String PK_CASSANDRA_CLUSTER_NAME = "CASSANDRA_CLUSTER_NAME";
@@ -64,10 +65,52 @@ public class Constants {
     
     public static final String PK_INGEST_HASH_SPACE = "INGEST_HASH_SPACE";
     public static final String PK_INGEST_MY_HASH_KEY = "INGEST_MY_HASH_KEY";
+    public static final String PK_PERFORM_CONSISTENT_HASHING = "PERFORM_CONSISTENT_HASHING";
+    public static final String PK_INGEST_HASH_NODE_WEIGHTS = "INGEST_HASH_NODE_WEIGHTS";
+    public static final String PK_INGEST_HASH_VIRTUAL_NODE_COUNT = "INGEST_HASH_VIRTUAL_NODE_COUNT";
+    public static final String PK_PERFORM_BALANCED_ASSIGNMENT = "PERFORM_BALANCED_ASSIGNMENT";
+    public static final String PK_INGEST_BRANCH_SIZE_MANIFEST = "INGEST_BRANCH_SIZE_MANIFEST";
+    public static final String PK_INGEST_ASSIGNMENT_FILE = "INGEST_ASSIGNMENT_FILE";
+    public static final String PK_INGEST_MAX_REBALANCE_PERCENT = "INGEST_MAX_REBALANCE_PERCENT";
+    public static final String PK_PERFORM_LEASE_WORK_SHARING = "PERFORM_LEASE_WORK_SHARING";
+    public static final String PK_INGEST_LEASE_DIR = "INGEST_LEASE_DIR";
+    public static final String PK_INGEST_LEASE_TIMEOUT_IN_MS = "INGEST_LEASE_TIMEOUT_IN_MS";
+    public static final String PK_INGEST_LEASE_ROUND_ID = "INGEST_LEASE_ROUND_ID";
     
     public static final String PK_FORCE_INGEST_LIST_DIR = "FORCE_INGEST_LIST_DIR";
     public static final String PK_PERFORM_RSYNC = "PERFORM_RSYNC";
     
+    public static final String PK_JOB_QUEUE_CAPACITY = "JOB_QUEUE_CAPACITY";
+    public static final String PK_PERFORM_PIPELINED_INGEST = "PERFORM_PIPELINED_INGEST";
+    public static final String PK_PERFORM_STREAMING_DELTA_LOG_PARSING = "PERFORM_STREAMING_DELTA_LOG_PARSING";
+    public static final String PK_PERFORM_DELTA_LOG_COMPACTION = "PERFORM_DELTA_LOG_COMPACTION";
+    public static final String PK_INGEST_LEDGER_PATH = "INGEST_LEDGER_PATH";
+    public static final String PK_PERFORM_BOUNDED_MEMORY_DELTA_LOG_PARSING = "PERFORM_BOUNDED_MEMORY_DELTA_LOG_PARSING";
+    
+    public static final String PK_RSYNC_BRANCH_COST_FILE = "RSYNC_BRANCH_COST_FILE";
+    public static final String PK_RSYNC_SPLIT_BRANCH_THRESHOLD_IN_MS = "RSYNC_SPLIT_BRANCH_THRESHOLD_IN_MS";
+    public static final String PK_PERFORM_RSYNC_JOURNALING = "PERFORM_RSYNC_JOURNALING";
+    public static final String PK_PERFORM_RSYNC_OUTPUT_REDIRECTION = "PERFORM_RSYNC_OUTPUT_REDIRECTION";
+    public static final String PK_RSYNC_TRANSFER_ENGINE = "RSYNC_TRANSFER_ENGINE";
+    public static final String PK_RSYNC_LOCAL_SOURCE_ROOT = "RSYNC_LOCAL_SOURCE_ROOT";
+    public static final String PK_RSYNC_DAEMON_PORT = "RSYNC_DAEMON_PORT";
+    public static final String PK_RSYNC_DAEMON_MAX_CONNECTIONS = "RSYNC_DAEMON_MAX_CONNECTIONS";
+    public static final String PK_RSYNC_SOURCE_MIRRORS = "RSYNC_SOURCE_MIRRORS";
+    public static final String PK_RSYNC_JOB_TIMEOUT_IN_MS = "RSYNC_JOB_TIMEOUT_IN_MS";
+    public static final String PK_RSYNC_NO_PROGRESS_TIMEOUT_IN_MS = "RSYNC_NO_PROGRESS_TIMEOUT_IN_MS";
+    public static final String PK_RSYNC_TIMEOUT_MAX_RETRIES = "RSYNC_TIMEOUT_MAX_RETRIES";
+    public static final String PK_RSYNC_TIMEOUT_RETRY_BACKOFF_IN_MS = "RSYNC_TIMEOUT_RETRY_BACKOFF_IN_MS";
+    public static final String PK_RSYNC_LANDING_ROOT = "RSYNC_LANDING_ROOT";
+    public static final String PK_RSYNC_LANDING_MOVER_THREAD_COUNT = "RSYNC_LANDING_MOVER_THREAD_COUNT";
+    public static final String PK_RSYNC_BATCH_SIZE = "RSYNC_BATCH_SIZE";
+    public static final String PK_RSYNC_BATCH_THRESHOLD_IN_MS = "RSYNC_BATCH_THRESHOLD_IN_MS";
+    public static final String PK_PERFORM_ITEMIZED_DELTA_LOGGING = "PERFORM_ITEMIZED_DELTA_LOGGING";
+    
+    public static final String PK_PERFORM_ADAPTIVE_RSYNC_CONCURRENCY = "PERFORM_ADAPTIVE_RSYNC_CONCURRENCY";
+    public static final String PK_RSYNC_MIN_THREAD_COUNT = "RSYNC_MIN_THREAD_COUNT";
+    public static final String PK_RSYNC_MAX_THREAD_COUNT = "RSYNC_MAX_THREAD_COUNT";
+    public static final String PK_RSYNC_CONCURRENCY_SAMPLE_INTERVAL_IN_MS = "RSYNC_CONCURRENCY_SAMPLE_INTERVAL_IN_MS";
+    
     public static final String PK_UPDATE_FAILURE_MAX_ATTEMPTS = "UPDATE_FAILURE_MAX_ATTEMPTS";
     public static final String PK_UPDATE_FAILURE_BACK_OFF_INIT_DELAY_IN_MS = "UPDATE_FAILURE_BACK_OFF_INIT_DELAY_IN_MS";
     public static final String PK_UPDATE_FAILURE_BACK_OFF_MAX_DELAY_IN_MS = "UPDATE_FAILURE_BACK_OFF_MAX_DELAY_IN_MS";
@@ -75,6 +118,10 @@ public class Constants {
     public static final String PK_PERSIST_WAKEUP_INTERVAL_IN_MS = "PERSIST_WAKEUP_INTERVAL_IN_MS";
     public static final String PK_PERSIST_INGEST_INTERVAL_IN_HOUR = "PERSIST_INGEST_INTERVAL_IN_HOUR";
     public static final String PK_PERSIST_CONTROL_FILE_PATH = "PERSIST_CONTROL_FILE_PATH";
+    public static final String PK_PERSIST_PAIRTREE_SNAPSHOT_ROOT = "PERSIST_PAIRTREE_SNAPSHOT_ROOT";
+    public static final String PK_PERSIST_CHANGE_CAPTURE_STATE_DIR = "PERSIST_CHANGE_CAPTURE_STATE_DIR";
+    public static final String PK_PERSIST_CHANGE_CAPTURE_INTERVAL_IN_MS = "PERSIST_CHANGE_CAPTURE_INTERVAL_IN_MS";
+    public static final String PK_PERSIST_CHANGE_CAPTURE_THREAD_COUNT = "PERSIST_CHANGE_CAPTURE_THREAD_COUNT";
     
     public static final String PK_RSYNC_TREE_SOURCE_PATH = "RSYNC_TREE_SOURCE_PATH";
     public static final String PK_RSYNC_DEST_ROOT = "RSYNC_DEST_ROOT";
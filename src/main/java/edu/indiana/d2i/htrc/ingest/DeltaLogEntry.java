@@ -0,0 +1,147 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  DeltaLogEntry.java
+# Description: This class represents one line of an itemized delta log
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+/**
+ * This class represents one line of an itemized delta log, i.e. one written by rsync with
+ * <code>--out-format=</code>{@link #OUT_FORMAT}: the itemized change flags, the file size, the modification time and
+ * the path, separated by tabs. The path comes last so it may contain any character but a line break. The first flag
+ * tells how the item changed: <code>&gt;</code> if its content was received, <code>.</code> if only its attributes
+ * changed, <code>*deleting</code> if it was deleted; the second flag tells the type of item, <code>f</code> for a file
+ * and <code>d</code> for a directory. An itemized delta log has a FORMAT=ITEMIZED header line
+ */
+public class DeltaLogEntry {
+    public static final String FORMAT_PREFIX = "FORMAT=";
+    public static final String ITEMIZED_FORMAT = "ITEMIZED";
+    public static final String OUT_FORMAT = "%i\t%l\t%M\t%n";
+
+    private static final String SEPARATOR = "\t";
+    private static final String DELETING_FLAGS = "*deleting";
+
+    private final String itemFlags;
+    private final long size;
+    private final String modTime;
+    private final String path;
+
+    /**
+     * Constructor
+     * @param itemFlags the itemized change flags
+     * @param size the size of the file in bytes, or -1 if unknown
+     * @param modTime the modification time as printed by rsync, e.g. 2013/01/31-12:00:00
+     * @param path the path relative to the rsync source
+     */
+    public DeltaLogEntry(String itemFlags, long size, String modTime, String path) {
+        this.itemFlags = itemFlags;
+        this.size = size;
+        this.modTime = modTime;
+        this.path = path;
+    }
+
+    /**
+     * Method to parse a line of an itemized delta log
+     * @param line a line of an itemized delta log
+     * @return a DeltaLogEntry object, or <code>null</code> if the line is not an itemized line, e.g. a header line or the
+     * rsync summary
+     */
+    public static DeltaLogEntry parse(String line) {
+        if (line.indexOf('\t') < 0) {
+            return null;
+        }
+        String[] fields = line.split(SEPARATOR, 4);
+        if (fields.length < 4 || fields[0].length() < 2) {
+            return null;
+        }
+        long size = -1L;
+        try {
+            size = Long.parseLong(fields[1].trim());
+        } catch (NumberFormatException e) {
+            // rsync prints no meaningful size for some deletions
+        }
+        return new DeltaLogEntry(fields[0], size, fields[2], fields[3]);
+    }
+
+    /**
+     * Method to check if the item was deleted
+     * @return <code>true</code> if the item was deleted, <code>false</code> otherwise
+     */
+    public boolean isDeletion() {
+        return itemFlags.startsWith(DELETING_FLAGS);
+    }
+
+    /**
+     * Method to check if only the attributes of the item changed, so its content is the same as before
+     * @return <code>true</code> if only the attributes of the item changed, <code>false</code> otherwise
+     */
+    public boolean isAttributeOnly() {
+        return itemFlags.charAt(0) == '.';
+    }
+
+    /**
+     * Method to check if the item is a regular file
+     * @return <code>true</code> if the item is a regular file, <code>false</code> otherwise
+     */
+    public boolean isFile() {
+        return !isDeletion() && itemFlags.charAt(1) == 'f';
+    }
+
+    /**
+     * Method to get the itemized change flags
+     * @return the itemized change flags
+     */
+    public String getItemFlags() {
+        return itemFlags;
+    }
+
+    /**
+     * Method to get the size of the file
+     * @return the size of the file in bytes, or -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Method to get the modification time of the item
+     * @return the modification time as printed by rsync
+     */
+    public String getModTime() {
+        return modTime;
+    }
+
+    /**
+     * Method to get the path of the item
+     * @return the path relative to the rsync source
+     */
+    public String getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  DeltaLogListener.java
+# Description: This interface receives the lines of a delta log as they are produced
+#
+# -----------------------------------------------------------------
+# 
+*/
+
+
+
+/**
+ * 
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+/**
+ * This interface receives the lines of a delta log as they are produced, including the DEST_ROOT=, PREFIX= and COPYRIGHT=
+ * header lines, so the delta log can be processed without being read back from disk
+ */
+public interface DeltaLogListener {
+    
+    /**
+     * Method called before the first line of a delta log
+     * @param deltaLogPath path to the delta log file the lines are also written to
+     */
+    public void start(String deltaLogPath);
+    
+    /**
+     * Method called for each line of the delta log, in order
+     * @param line a line of the delta log
+     * @throws InterruptedException thrown if interrupted while handing over what was parsed from the line
+     */
+    public void line(String line) throws InterruptedException;
+    
+    /**
+     * Method called after the last line, once the delta log file has been completely written and closed
+     * @param successful <code>true</code> if all lines were delivered and written, <code>false</code> otherwise
+     * @throws InterruptedException thrown if interrupted while handing over what was parsed from the last lines
+     */
+    public void finish(boolean successful) throws InterruptedException;
+}
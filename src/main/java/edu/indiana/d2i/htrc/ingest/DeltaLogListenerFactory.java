@@ -0,0 +1,44 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  DeltaLogListenerFactory.java
+# Description: This interface creates a DeltaLogListener for each delta log
+#
+# -----------------------------------------------------------------
+# 
+*/
+
+
+
+/**
+ * 
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+/**
+ * This interface creates a DeltaLogListener for each delta log. It is called concurrently by multiple threads
+ */
+public interface DeltaLogListenerFactory {
+    
+    /**
+     * Method to create a new DeltaLogListener
+     * @return a new DeltaLogListener object for one delta log
+     */
+    public DeltaLogListener createListener();
+}
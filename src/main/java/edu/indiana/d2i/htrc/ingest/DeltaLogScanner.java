@@ -0,0 +1,1027 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  DeltaLogScanner.java
+# Description: This class scans a delta log file for the lines about volume files
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class scans a delta log file for the lines about volume files, i.e. .zip and .mets.xml files, without reading it
+ * line by line into Strings. The file is read with positional reads into heap buffers rather than memory-mapped, since a
+ * mapping is only released when it is garbage collected, and touching a mapped file that was truncated, e.g. on NFS, kills
+ * the JVM with SIGBUS. The header lines at its top, such as PREFIX= and FORMAT=, are read first, and the rest is read
+ * window by window, or split at line boundaries into chunks that are read and scanned by separate threads. Each line about a
+ * volume file is handed to a RecordHandler as a Record, in the order of the file, and the Strings of a Record are only
+ * created when asked for. Both plain delta logs and itemized delta logs (see {@link DeltaLogEntry}) are understood, as
+ * well as binary delta logs (see {@link BinaryDeltaLog}), whose CRC is checked when opened, and whose footer index can be
+ * read without scanning the records
+ */
+public class DeltaLogScanner {
+    private static Logger log = Logger.getLogger(DeltaLogScanner.class);
+
+    /**
+     * This interface receives the Records scanned from a delta log
+     */
+    public static interface RecordHandler {
+        /**
+         * Method to handle a Record. When scanned by a single thread, the Record object is reused for the next line, so it
+         * must not be kept after this method returns
+         * @param record a Record object
+         * @throws InterruptedException thrown if the handler was interrupted
+         */
+        public void handleRecord(Record record) throws InterruptedException;
+    }
+
+    /**
+     * This class represents a line of a delta log about a volume file, as a range of bytes of a buffer read from the file
+     */
+    public static final class Record {
+        private final ByteBuffer buffer;
+        // in a text delta log the directory ends where the cleaned partial volumeID starts
+        private int directoryStart;
+        private int directoryEnd;
+        private int idStart;
+        private int idEnd;
+        private boolean deletion;
+        private boolean attributeOnly;
+        private boolean zip;
+        private long size;
+        private long modTime;
+        private int modTimeStart;
+        private int modTimeEnd;
+
+        /**
+         * Constructor
+         * @param buffer the ByteBuffer holding the bytes of the line
+         */
+        Record(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Method to get a copy of this Record that stays valid after the RecordHandler returns
+         * @return a copy of this Record
+         */
+        Record copy() {
+            Record record = new Record(buffer);
+            record.directoryStart = directoryStart;
+            record.directoryEnd = directoryEnd;
+            record.idStart = idStart;
+            record.idEnd = idEnd;
+            record.deletion = deletion;
+            record.attributeOnly = attributeOnly;
+            record.zip = zip;
+            record.size = size;
+            record.modTime = modTime;
+            record.modTimeStart = modTimeStart;
+            record.modTimeEnd = modTimeEnd;
+            return record;
+        }
+
+        /**
+         * Method to check if the volume file was deleted
+         * @return <code>true</code> if the volume file was deleted, <code>false</code> otherwise
+         */
+        public boolean isDeletion() {
+            return deletion;
+        }
+
+        /**
+         * Method to check if only the attributes of the volume file changed. Only itemized delta logs tell
+         * @return <code>true</code> if only the attributes changed, <code>false</code> otherwise
+         */
+        public boolean isAttributeOnly() {
+            return attributeOnly;
+        }
+
+        /**
+         * Method to check if the volume file is the zip file of the volume
+         * @return <code>true</code> if it is the zip file, <code>false</code> if it is the METS file
+         */
+        public boolean isZip() {
+            return zip;
+        }
+
+        /**
+         * Method to get the size of the volume file
+         * @return the size in bytes, or -1 if unknown, e.g. from a plain delta log
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Method to get the modification time of the volume file
+         * @return the modification time in seconds since the epoch, or -1 if unknown, e.g. from a plain delta log
+         */
+        public long getModTime() {
+            if (modTimeStart < 0) {
+                return modTime;
+            }
+            // rsync prints the modification time in local time
+            try {
+                return MOD_TIME_FORMAT.get().parse(decode(modTimeStart, modTimeEnd)).getTime() / 1000L;
+            } catch (ParseException e) {
+                return -1L;
+            }
+        }
+
+        /**
+         * Method to get the path of the volume file
+         * @return the path of the volume file relative to the rsync source
+         */
+        public String getPath() {
+            if (directoryEnd == idStart) {
+                return decode(directoryStart, idEnd + (zip ? ZIP_SUFFIX.length : METS_SUFFIX.length));
+            }
+            return getVolumeDirectory() + getCleanedPartialVolumeID() + (zip ? ".zip" : ".mets.xml");
+        }
+
+        /**
+         * Method to get the directory of the volume file
+         * @return the directory part of the path, with a trailing slash
+         */
+        public String getVolumeDirectory() {
+            return decode(directoryStart, directoryEnd);
+        }
+
+        /**
+         * Method to get the cleaned partial volumeID, i.e. the filename of the volume file without its suffix
+         * @return the cleaned partial volumeID
+         */
+        public String getCleanedPartialVolumeID() {
+            return decode(idStart, idEnd);
+        }
+
+        /**
+         * Method to decode a range of the buffer
+         * @param start start of the range
+         * @param end end of the range, exclusive
+         * @return the decoded String
+         */
+        private String decode(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            // a duplicate has its own position, so Records of different threads can decode at the same time
+            ByteBuffer view = buffer.duplicate();
+            view.position(start);
+            view.get(bytes, 0, bytes.length);
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                // UTF-8 is always supported
+                return new String(bytes);
+            }
+        }
+    }
+
+    /**
+     * This class scans one chunk of the delta log in its own thread, keeping the Records for delivery in file order
+     */
+    private class ChunkScanner implements Runnable {
+        private final FileChannel channel;
+        private final long start;
+        private final int length;
+        private final List<Record> records;
+        private int attributeOnlyCount;
+        private IOException exception;
+
+        /**
+         * Constructor
+         * @param channel the FileChannel of the delta log file, which may be shared by the threads of other chunks
+         * @param start offset of the first line of the chunk
+         * @param end offset after the last line of the chunk
+         */
+        ChunkScanner(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.length = (int)(end - start);
+            this.records = new ArrayList<Record>();
+            this.attributeOnlyCount = 0;
+            this.exception = null;
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            try {
+                readFully(channel, buffer, start);
+            } catch (IOException e) {
+                exception = e;
+                return;
+            }
+            Record record = new Record(buffer);
+            int end = length;
+            int lineStart = 0;
+            while (lineStart < end) {
+                int lineEnd = findLineEnd(buffer, lineStart, end);
+                int result = scanLine(buffer, lineStart, lineEnd, record, itemized);
+                if (result == VOLUME_FILE_LINE) {
+                    records.add(record.copy());
+                }
+                if (result == ATTRIBUTE_ONLY_LINE || (result == VOLUME_FILE_LINE && record.attributeOnly)) {
+                    attributeOnlyCount++;
+                }
+                lineStart = lineEnd + 1;
+            }
+        }
+    }
+
+    private static final byte[] ZIP_SUFFIX = toBytes(".zip");
+    private static final byte[] METS_SUFFIX = toBytes(".mets.xml");
+    private static final byte[] DELETING_PREFIX = toBytes("deleting ");
+    private static final byte[] DELETING_FLAGS = toBytes("*deleting");
+
+    private static final int OTHER_LINE = 0;
+    private static final int VOLUME_FILE_LINE = 1;
+    private static final int ATTRIBUTE_ONLY_LINE = 2;
+
+    // SimpleDateFormat is not thread-safe, so each thread reading modification times gets its own
+    private static final ThreadLocal<SimpleDateFormat> MOD_TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss");
+        }
+    };
+
+    // files smaller than this are scanned by one thread
+    static final int MIN_CHUNK_SIZE = 1 << 20;
+    // the header lines are looked for in this many bytes at the top of a text delta log
+    private static final int HEADER_WINDOW_SIZE = 64 * 1024;
+    // a single thread reads a text delta log this many bytes at a time, or more for a longer line
+    static final int DEFAULT_WINDOW_SIZE = 1 << 20;
+
+    private final File deltaLogFile;
+    private final int windowSize;
+    private ByteBuffer buffer;
+    private int bodyStart;
+    private int bodyEnd;
+    private boolean binary;
+    private int otherAttributeOnlyCount;
+    private String[] indexedVolumeIDs;
+    private int[] indexedFlags;
+    private int[] indexedOffsets;
+    private final List<String> headerLines;
+    private final Map<String, String> headers;
+    private boolean itemized;
+    private int attributeOnlyCount;
+
+    /**
+     * Constructor
+     * @param deltaLogFile the delta log file
+     */
+    public DeltaLogScanner(File deltaLogFile) {
+        this(deltaLogFile, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor
+     * @param deltaLogFile the delta log file
+     * @param windowSize the number of bytes a single thread reads a text delta log at a time
+     */
+    DeltaLogScanner(File deltaLogFile, int windowSize) {
+        this.deltaLogFile = deltaLogFile;
+        this.windowSize = windowSize;
+        this.buffer = null;
+        this.bodyStart = 0;
+        this.bodyEnd = 0;
+        this.binary = false;
+        this.otherAttributeOnlyCount = 0;
+        this.indexedVolumeIDs = null;
+        this.indexedFlags = null;
+        this.indexedOffsets = null;
+        this.headerLines = new ArrayList<String>();
+        this.headers = new HashMap<String, String>();
+        this.itemized = false;
+        this.attributeOnlyCount = 0;
+    }
+
+    /**
+     * Method to read the header lines of the delta log file. A binary delta log, which is compact, is read as a whole and
+     * kept; of a text delta log only the top is read, and scan() reads the rest. It is called by scan() if not called before
+     * @throws IOException thrown if the delta log file could not be read, or is too large, or is a binary delta log that
+     * fails its CRC check
+     */
+    public void open() throws IOException {
+        if (buffer != null) {
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(deltaLogFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Delta log " + deltaLogFile.getPath() + " is too large to scan: " + size + " bytes");
+            }
+            ByteBuffer top = ByteBuffer.allocate((int)Math.min(size, HEADER_WINDOW_SIZE));
+            readFully(channel, top, 0L);
+            binary = startsWith(top, 0, top.limit(), BinaryDeltaLog.MAGIC);
+            if (binary) {
+                buffer = ByteBuffer.allocate((int)size);
+                readFully(channel, buffer, 0L);
+                readBinaryHeaders();
+            } else {
+                buffer = top;
+                readHeaders(top.limit() == size);
+                bodyEnd = (int)size;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Method to read a range of the delta log file into a buffer
+     * @param channel the FileChannel of the delta log file
+     * @param buffer a ByteBuffer to fill up to its limit
+     * @param position offset in the file to read from
+     * @throws IOException thrown if the file could not be read, or ends before the buffer is full
+     */
+    private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, offset);
+            if (count < 0) {
+                throw new IOException("Delta log " + deltaLogFile.getPath() + " ended at " + offset + " bytes while being scanned");
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Method to read the header lines at the top of the delta log, i.e. the lines of the form KEY=value, skipping blank lines
+     * @param atEnd <code>true</code> if the buffer holds the whole file, <code>false</code> if its last line may be cut off
+     */
+    private void readHeaders(boolean atEnd) {
+        int limit = buffer.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = findLineEnd(buffer, lineStart, limit);
+            if (lineEnd == limit && !atEnd) {
+                break;
+            }
+            int contentEnd = trimCarriageReturn(buffer, lineStart, lineEnd);
+            if (contentEnd > lineStart) {
+                int index = lineStart;
+                while (index < contentEnd && (isUpperCase(buffer.get(index)) || buffer.get(index) == '_')) {
+                    index++;
+                }
+                if (index == lineStart || index == contentEnd || buffer.get(index) != '=') {
+                    break;
+                }
+                Record record = new Record(buffer);
+                String line = record.decode(lineStart, contentEnd);
+                headerLines.add(line);
+                headers.put(line.substring(0, index - lineStart), line.substring(index - lineStart + 1));
+            }
+            lineStart = lineEnd + 1;
+        }
+        bodyStart = Math.min(lineStart, limit);
+        String format = headers.get(DeltaLogEntry.FORMAT_PREFIX.substring(0, DeltaLogEntry.FORMAT_PREFIX.length() - 1));
+        itemized = DeltaLogEntry.ITEMIZED_FORMAT.equals(format);
+    }
+
+    /**
+     * Method to read the header lines of a binary delta log, after checking its version and CRC, and to locate its records
+     * @throws IOException thrown if the binary delta log is truncated, of an unknown version, or fails its CRC check
+     */
+    private void readBinaryHeaders() throws IOException {
+        int limit = buffer.limit();
+        if (limit < BinaryDeltaLog.MAGIC.length + 1 + BinaryDeltaLog.TRAILER_SIZE) {
+            throw new IOException("Binary delta log " + deltaLogFile.getPath() + " is truncated");
+        }
+        int version = buffer.get(BinaryDeltaLog.MAGIC.length) & 0xFF;
+        if (version != BinaryDeltaLog.VERSION) {
+            throw new IOException("Binary delta log " + deltaLogFile.getPath() + " has unknown version " + version);
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        view.limit(limit - 4);
+        byte[] bytes = new byte[64 * 1024];
+        while (view.hasRemaining()) {
+            int length = Math.min(bytes.length, view.remaining());
+            view.get(bytes, 0, length);
+            crc.update(bytes, 0, length);
+        }
+        if ((int)crc.getValue() != buffer.getInt(limit - 4)) {
+            throw new IOException("Binary delta log " + deltaLogFile.getPath() + " fails its CRC check");
+        }
+
+        Record record = new Record(buffer);
+        int[] cursor = new int[] {BinaryDeltaLog.MAGIC.length + 1};
+        long headerCount = readVarLong(cursor);
+        for (long i = 0; i < headerCount; i++) {
+            int start = skipString(cursor);
+            String line = record.decode(start, cursor[0]);
+            headerLines.add(line);
+            int index = line.indexOf('=');
+            if (index > 0) {
+                headers.put(line.substring(0, index), line.substring(index + 1));
+            }
+        }
+        bodyStart = cursor[0];
+        bodyEnd = (int)buffer.getLong(limit - BinaryDeltaLog.TRAILER_SIZE);
+        String format = headers.get(DeltaLogEntry.FORMAT_PREFIX.substring(0, DeltaLogEntry.FORMAT_PREFIX.length() - 1));
+        itemized = DeltaLogEntry.ITEMIZED_FORMAT.equals(format);
+    }
+
+    /**
+     * Method to check if the delta log is a binary delta log
+     * @return <code>true</code> if the delta log is a binary delta log, <code>false</code> if it is a text delta log
+     * @throws IOException thrown if the delta log file could not be read
+     */
+    public boolean isBinary() throws IOException {
+        open();
+        return binary;
+    }
+
+    /**
+     * Method to get the volumeIDs from the footer index of a binary delta log, without scanning its records
+     * @param flagMask the VOLUME_ flags of BinaryDeltaLog, any of which a volume must have to be included
+     * @return a List of volumeIDs sorted in ascending order, or <code>null</code> if the delta log is not a binary delta log
+     * @throws IOException thrown if the delta log file could not be read
+     */
+    public List<String> getIndexedVolumeIDs(int flagMask) throws IOException {
+        open();
+        if (!binary) {
+            return null;
+        }
+        readIndex();
+        List<String> volumeIDs = new ArrayList<String>();
+        for (int i = 0; i < indexedVolumeIDs.length; i++) {
+            if ((indexedFlags[i] & flagMask) != 0) {
+                volumeIDs.add(indexedVolumeIDs[i]);
+            }
+        }
+        return volumeIDs;
+    }
+
+    /**
+     * Method to look up a volume in the footer index of a binary delta log, and hand its changes to a RecordHandler
+     * @param volumeID the volumeID of the volume
+     * @param recordHandler a RecordHandler object
+     * @return <code>true</code> if the volume is in the delta log, <code>false</code> if it is not, or if the delta log is
+     * not a binary delta log
+     * @throws IOException thrown if the delta log file could not be read
+     * @throws InterruptedException thrown if the RecordHandler was interrupted
+     */
+    public boolean scanVolume(String volumeID, RecordHandler recordHandler) throws IOException, InterruptedException {
+        open();
+        if (!binary) {
+            return false;
+        }
+        readIndex();
+        attributeOnlyCount = 0;
+        int index = Arrays.binarySearch(indexedVolumeIDs, volumeID);
+        if (index < 0) {
+            return false;
+        }
+        scanBinaryVolume(indexedOffsets[index], new Record(buffer), recordHandler);
+        return true;
+    }
+
+    /**
+     * Method to read the footer index of a binary delta log, if not read before
+     */
+    private void readIndex() {
+        if (indexedVolumeIDs != null) {
+            return;
+        }
+        Record record = new Record(buffer);
+        int[] cursor = new int[] {bodyEnd};
+        int volumeCount = (int)readVarLong(cursor);
+        String[] volumeIDs = new String[volumeCount];
+        indexedFlags = new int[volumeCount];
+        indexedOffsets = new int[volumeCount];
+        for (int i = 0; i < volumeCount; i++) {
+            int start = skipString(cursor);
+            volumeIDs[i] = record.decode(start, cursor[0]);
+            indexedFlags[i] = buffer.get(cursor[0]++) & 0xFF;
+            indexedOffsets[i] = (int)readVarLong(cursor);
+        }
+        otherAttributeOnlyCount = (int)readVarLong(cursor);
+        indexedVolumeIDs = volumeIDs;
+    }
+
+    /**
+     * Method to scan the records of a binary delta log, which hold the changes of one volume each
+     * @param recordHandler a RecordHandler object
+     * @throws InterruptedException thrown if the RecordHandler was interrupted
+     */
+    private void scanBinary(RecordHandler recordHandler) throws InterruptedException {
+        Record record = new Record(buffer);
+        int offset = bodyStart;
+        while (offset < bodyEnd) {
+            offset = scanBinaryVolume(offset, record, recordHandler);
+        }
+
+        // the footer index ends with the number of attribute-only changes to other files
+        int[] cursor = new int[] {bodyEnd};
+        long volumeCount = readVarLong(cursor);
+        for (long i = 0; i < volumeCount; i++) {
+            skipString(cursor);
+            cursor[0]++;
+            readVarLong(cursor);
+        }
+        otherAttributeOnlyCount = (int)readVarLong(cursor);
+        attributeOnlyCount += otherAttributeOnlyCount;
+    }
+
+    /**
+     * Method to hand the changes of one record of a binary delta log to a RecordHandler
+     * @param offset offset of the record
+     * @param record a Record object to fill in for each change
+     * @param recordHandler a RecordHandler object
+     * @return offset of the next record
+     * @throws InterruptedException thrown if the RecordHandler was interrupted
+     */
+    private int scanBinaryVolume(int offset, Record record, RecordHandler recordHandler) throws InterruptedException {
+        int[] cursor = new int[] {offset};
+        int directoryStart = skipString(cursor);
+        int directoryEnd = cursor[0];
+        int idStart = skipString(cursor);
+        int idEnd = cursor[0];
+        long changeCount = readVarLong(cursor);
+        for (long i = 0; i < changeCount; i++) {
+            int kind = buffer.get(cursor[0]++) & 0xFF;
+            record.directoryStart = directoryStart;
+            record.directoryEnd = directoryEnd;
+            record.idStart = idStart;
+            record.idEnd = idEnd;
+            record.zip = (kind & BinaryDeltaLog.KIND_ZIP) != 0;
+            record.deletion = (kind & BinaryDeltaLog.KIND_DELETION) != 0;
+            record.attributeOnly = (kind & BinaryDeltaLog.KIND_ATTRIBUTE_ONLY) != 0;
+            record.size = readVarLong(cursor) - 1;
+            record.modTime = readVarLong(cursor) - 1;
+            record.modTimeStart = -1;
+            record.modTimeEnd = -1;
+            recordHandler.handleRecord(record);
+            if (record.attributeOnly) {
+                attributeOnlyCount++;
+            }
+        }
+        return cursor[0];
+    }
+
+    /**
+     * Method to read a var-length number of a binary delta log
+     * @param cursor a one-element array holding the offset to read from, which is moved past the number
+     * @return the number
+     */
+    private long readVarLong(int[] cursor) {
+        long value = 0L;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(cursor[0]++);
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Method to skip a string of a binary delta log
+     * @param cursor a one-element array holding the offset of the string, which is moved past the string
+     * @return offset of the UTF-8 bytes of the string, which end at the moved offset
+     */
+    private int skipString(int[] cursor) {
+        int length = (int)readVarLong(cursor);
+        int start = cursor[0];
+        cursor[0] = start + length;
+        return start;
+    }
+
+    /**
+     * Method to get the header lines at the top of the delta log
+     * @return a List of header lines, e.g. PREFIX=mdp.
+     * @throws IOException thrown if the delta log file could not be read
+     */
+    public List<String> getHeaderLines() throws IOException {
+        open();
+        return headerLines;
+    }
+
+    /**
+     * Method to get the value of a header line
+     * @param key the key of the header line, e.g. PREFIX
+     * @return the value of the header line, or <code>null</code> if the delta log has no such header line
+     * @throws IOException thrown if the delta log file could not be read
+     */
+    public String getHeader(String key) throws IOException {
+        open();
+        return headers.get(key);
+    }
+
+    /**
+     * Method to check if the delta log is itemized
+     * @return <code>true</code> if the delta log has a FORMAT=ITEMIZED header line, <code>false</code> otherwise
+     * @throws IOException thrown if the delta log file could not be read
+     */
+    public boolean isItemized() throws IOException {
+        open();
+        return itemized;
+    }
+
+    /**
+     * Method to get the number of attribute-only changes to files seen by the last scan
+     * @return the number of attribute-only changes
+     */
+    public int getAttributeOnlyCount() {
+        return attributeOnlyCount;
+    }
+
+    /**
+     * Method to scan the delta log and hand each line about a volume file to a RecordHandler, in the order of the file.
+     * The changes of a binary delta log are handed over volume by volume, in the order the volumes first appeared
+     * @param recordHandler a RecordHandler object
+     * @param threadCount the number of threads to scan with. With more than one thread, each chunk is read into memory as a
+     * whole, and its Records are kept until the chunk before it has been handed over, so memory grows with the chunk size.
+     * One thread reads the delta log a window at a time. A binary delta log is always scanned by one thread
+     * @throws IOException thrown if the delta log file could not be read
+     * @throws InterruptedException thrown if the RecordHandler was interrupted, or if interrupted while waiting for a chunk
+     */
+    public void scan(RecordHandler recordHandler, int threadCount) throws IOException, InterruptedException {
+        open();
+        attributeOnlyCount = 0;
+        if (binary) {
+            scanBinary(recordHandler);
+            return;
+        }
+        int limit = bodyEnd;
+        int chunkCount = Math.min(threadCount, (limit - bodyStart) / MIN_CHUNK_SIZE);
+
+        RandomAccessFile file = new RandomAccessFile(deltaLogFile, "r");
+        try {
+            if (chunkCount <= 1) {
+                scanWindows(file.getChannel(), recordHandler);
+            } else {
+                scanChunks(file.getChannel(), recordHandler, chunkCount);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Method to scan the body of a text delta log in one thread, a window at a time. A window ends at the last line break
+     * in it, and grows if a single line does not fit
+     * @param channel the FileChannel of the delta log file
+     * @param recordHandler a RecordHandler object
+     * @throws IOException thrown if the delta log file could not be read
+     * @throws InterruptedException thrown if the RecordHandler was interrupted
+     */
+    private void scanWindows(FileChannel channel, RecordHandler recordHandler) throws IOException, InterruptedException {
+        ByteBuffer window = ByteBuffer.allocate((int)Math.min(windowSize, bodyEnd - bodyStart));
+        long position = bodyStart;
+        while (position < bodyEnd) {
+            window.clear();
+            window.limit((int)Math.min(window.capacity(), bodyEnd - position));
+            readFully(channel, window, position);
+            int limit = window.limit();
+            boolean atEnd = (position + limit == bodyEnd);
+            int scanEnd = atEnd ? limit : lastIndexOf(window, (byte)'\n', 0, limit) + 1;
+            if (scanEnd == 0) {
+                window = ByteBuffer.allocate(window.capacity() * 2);
+                continue;
+            }
+            Record record = new Record(window);
+            int lineStart = 0;
+            while (lineStart < scanEnd) {
+                int lineEnd = findLineEnd(window, lineStart, scanEnd);
+                int result = scanLine(window, lineStart, lineEnd, record, itemized);
+                if (result == VOLUME_FILE_LINE) {
+                    recordHandler.handleRecord(record);
+                }
+                if (result == ATTRIBUTE_ONLY_LINE || (result == VOLUME_FILE_LINE && record.attributeOnly)) {
+                    attributeOnlyCount++;
+                }
+                lineStart = lineEnd + 1;
+            }
+            position += scanEnd;
+        }
+    }
+
+    /**
+     * Method to scan the body of a text delta log in chunks, each read and scanned by a thread of its own
+     * @param channel the FileChannel of the delta log file, shared by the threads
+     * @param recordHandler a RecordHandler object
+     * @param chunkCount the number of chunks
+     * @throws IOException thrown if the delta log file could not be read
+     * @throws InterruptedException thrown if the RecordHandler was interrupted, or if interrupted while waiting for a chunk
+     */
+    private void scanChunks(FileChannel channel, RecordHandler recordHandler, int chunkCount) throws IOException, InterruptedException {
+        List<ChunkScanner> chunkScanners = new ArrayList<ChunkScanner>(chunkCount);
+        List<Thread> threads = new ArrayList<Thread>(chunkCount);
+        long chunkSize = (bodyEnd - bodyStart) / chunkCount;
+        long chunkStart = bodyStart;
+        try {
+            for (int i = 0; i < chunkCount && chunkStart < bodyEnd; i++) {
+                long chunkEnd = (i == chunkCount - 1) ? bodyEnd : findLineEnd(channel, chunkStart + chunkSize) + 1;
+                ChunkScanner chunkScanner = new ChunkScanner(channel, chunkStart, chunkEnd);
+                Thread thread = new Thread(chunkScanner, "DeltaLogScanner-" + i);
+                chunkScanners.add(chunkScanner);
+                threads.add(thread);
+                thread.start();
+                chunkStart = chunkEnd;
+            }
+
+            for (int i = 0; i < chunkScanners.size(); i++) {
+                threads.get(i).join();
+                ChunkScanner chunkScanner = chunkScanners.get(i);
+                if (chunkScanner.exception != null) {
+                    throw chunkScanner.exception;
+                }
+                attributeOnlyCount += chunkScanner.attributeOnlyCount;
+                for (Record record : chunkScanner.records) {
+                    recordHandler.handleRecord(record);
+                }
+                chunkScanner.records.clear();
+            }
+        } finally {
+            // the channel is closed once this returns, so no chunk may still be reading from it. The threads are not
+            // interrupted, since an interrupted read closes the channel for all of them
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        if (log.isTraceEnabled()) log.trace("Scanned " + deltaLogFile.getPath() + " in " + chunkScanners.size() + " chunks");
+    }
+
+    /**
+     * Method to find the end of the line a position of the delta log file falls in
+     * @param channel the FileChannel of the delta log file
+     * @param from offset to search from
+     * @return offset of the next line break, or of the last byte of the body if there is none
+     * @throws IOException thrown if the delta log file could not be read
+     */
+    private long findLineEnd(FileChannel channel, long from) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(8 * 1024);
+        long position = from;
+        while (position < bodyEnd) {
+            block.clear();
+            block.limit((int)Math.min(block.capacity(), bodyEnd - position));
+            readFully(channel, block, position);
+            int index = indexOf(block, (byte)'\n', 0, block.limit());
+            if (index >= 0) {
+                return position + index;
+            }
+            position += block.limit();
+        }
+        return bodyEnd - 1;
+    }
+
+    /**
+     * Method to scan a single line of a text delta log the way scan() does, e.g. a line of rsync output as it arrives
+     * @param line a line of a text delta log, without its line break
+     * @param itemized <code>true</code> if the line is from an itemized delta log
+     * @return a Record object if the line is about a volume file, or <code>null</code> otherwise
+     */
+    public static Record scanLine(String line, boolean itemized) {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(line.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            buffer = ByteBuffer.wrap(line.getBytes());
+        }
+        Record record = new Record(buffer);
+        return (scanLine(buffer, 0, buffer.limit(), record, itemized) == VOLUME_FILE_LINE) ? record : null;
+    }
+
+    /**
+     * Method to scan one line
+     * @param buffer a buffer holding bytes of the delta log
+     * @param lineStart offset of the line
+     * @param lineEnd offset of the line break ending the line, or the end of the file
+     * @param record a Record object to fill in if the line is about a volume file
+     * @param itemized <code>true</code> if the line is from an itemized delta log
+     * @return VOLUME_FILE_LINE if the line is about a volume file, whose Record tells if it is an attribute-only change,
+     * ATTRIBUTE_ONLY_LINE if it is about an attribute-only change to any other file, or OTHER_LINE otherwise
+     */
+    private static int scanLine(ByteBuffer buffer, int lineStart, int lineEnd, Record record, boolean itemized) {
+        int contentEnd = trimCarriageReturn(buffer, lineStart, lineEnd);
+        int pathStart = lineStart;
+        boolean deletion = false;
+        boolean attributeOnly = false;
+        long size = -1L;
+        boolean fromItemizedLine = false;
+
+        int firstTab = itemized ? indexOf(buffer, (byte)'\t', lineStart, contentEnd) : -1;
+        int secondTab = (firstTab >= 0) ? indexOf(buffer, (byte)'\t', firstTab + 1, contentEnd) : -1;
+        int thirdTab = (secondTab >= 0) ? indexOf(buffer, (byte)'\t', secondTab + 1, contentEnd) : -1;
+        if (thirdTab >= 0 && firstTab - lineStart >= 2) {
+            deletion = startsWith(buffer, lineStart, contentEnd, DELETING_FLAGS);
+            if (!deletion && buffer.get(lineStart + 1) != 'f') {
+                // not a file, e.g. a directory
+                return OTHER_LINE;
+            }
+            attributeOnly = !deletion && buffer.get(lineStart) == '.';
+            size = parseSize(buffer, firstTab + 1, secondTab);
+            pathStart = thirdTab + 1;
+            fromItemizedLine = !deletion;
+        } else if (startsWith(buffer, lineStart, contentEnd, DELETING_PREFIX)) {
+            deletion = true;
+            pathStart = lineStart + DELETING_PREFIX.length;
+        }
+
+        boolean zip = endsWith(buffer, pathStart, contentEnd, ZIP_SUFFIX);
+        if (!zip && !endsWith(buffer, pathStart, contentEnd, METS_SUFFIX)) {
+            return attributeOnly ? ATTRIBUTE_ONLY_LINE : OTHER_LINE;
+        }
+        int lastSlash = lastIndexOf(buffer, (byte)'/', pathStart, contentEnd);
+
+        record.directoryStart = pathStart;
+        record.directoryEnd = lastSlash + 1;
+        record.idStart = lastSlash + 1;
+        record.idEnd = contentEnd - (zip ? ZIP_SUFFIX.length : METS_SUFFIX.length);
+        record.deletion = deletion;
+        record.attributeOnly = attributeOnly;
+        record.zip = zip;
+        record.size = size;
+        record.modTime = -1L;
+        record.modTimeStart = fromItemizedLine ? secondTab + 1 : -1;
+        record.modTimeEnd = thirdTab;
+        return VOLUME_FILE_LINE;
+    }
+
+    /**
+     * Method to find the end of a line
+     * @param buffer a buffer holding bytes of the delta log
+     * @param from offset to search from
+     * @param limit offset to search up to
+     * @return offset of the next line break, or limit if there is none
+     */
+    private static int findLineEnd(ByteBuffer buffer, int from, int limit) {
+        int index = indexOf(buffer, (byte)'\n', from, limit);
+        return (index >= 0) ? index : limit;
+    }
+
+    /**
+     * Method to leave out a carriage return before a line break
+     * @param buffer a buffer holding bytes of the delta log
+     * @param lineStart offset of the line
+     * @param lineEnd offset of the line break
+     * @return offset of the end of the line contents
+     */
+    private static int trimCarriageReturn(ByteBuffer buffer, int lineStart, int lineEnd) {
+        return (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') ? lineEnd - 1 : lineEnd;
+    }
+
+    /**
+     * Method to find the first occurrence of a byte in a range
+     * @param buffer a buffer holding bytes of the delta log
+     * @param target the byte to find
+     * @param from start of the range
+     * @param to end of the range, exclusive
+     * @return offset of the byte, or -1 if not found
+     */
+    private static int indexOf(ByteBuffer buffer, byte target, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Method to find the last occurrence of a byte in a range
+     * @param buffer a buffer holding bytes of the delta log
+     * @param target the byte to find
+     * @param from start of the range
+     * @param to end of the range, exclusive
+     * @return offset of the byte, or from - 1 if not found
+     */
+    private static int lastIndexOf(ByteBuffer buffer, byte target, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer.get(i) == target) {
+                return i;
+            }
+        }
+        return from - 1;
+    }
+
+    /**
+     * Method to check if a range starts with a sequence of bytes
+     * @param buffer a buffer holding bytes of the delta log
+     * @param from start of the range
+     * @param to end of the range, exclusive
+     * @param prefix the sequence of bytes
+     * @return <code>true</code> if the range starts with the sequence, <code>false</code> otherwise
+     */
+    private static boolean startsWith(ByteBuffer buffer, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(from + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method to check if a range ends with a sequence of bytes
+     * @param buffer a buffer holding bytes of the delta log
+     * @param from start of the range
+     * @param to end of the range, exclusive
+     * @param suffix the sequence of bytes
+     * @return <code>true</code> if the range ends with the sequence, <code>false</code> otherwise
+     */
+    private static boolean endsWith(ByteBuffer buffer, int from, int to, byte[] suffix) {
+        return (to - from >= suffix.length) && startsWith(buffer, to - suffix.length, to, suffix);
+    }
+
+    /**
+     * Method to parse the size field of an itemized line, which rsync pads with spaces
+     * @param buffer a buffer holding bytes of the delta log
+     * @param from start of the field
+     * @param to end of the field, exclusive
+     * @return the size, or -1 if the field holds no number
+     */
+    private static long parseSize(ByteBuffer buffer, int from, int to) {
+        long size = 0L;
+        boolean seenDigit = false;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                size = size * 10 + (b - '0');
+                seenDigit = true;
+            } else if (b != ' ') {
+                return -1L;
+            }
+        }
+        return seenDigit ? size : -1L;
+    }
+
+    /**
+     * Method to check if a byte is an upper case ASCII letter
+     * @param b a byte
+     * @return <code>true</code> if the byte is an upper case letter, <code>false</code> otherwise
+     */
+    private static boolean isUpperCase(byte b) {
+        return b >= 'A' && b <= 'Z';
+    }
+
+    /**
+     * Method to get the bytes of an ASCII String
+     * @param string an ASCII String
+     * @return the bytes of the String
+     */
+    private static byte[] toBytes(String string) {
+        try {
+            return string.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            // US-ASCII is always supported
+            return string.getBytes();
+        }
+    }
+}
@@ -0,0 +1,620 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  IngestLedger.java
+# Description: This class keeps an append-only, checksummed record of the ingest state of delta logs and their volumes
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class keeps an append-only record of the ingest state of each delta log and of each volume in it, so a push or
+ * a verification that stopped part way through a delta log resumes with the volumes it had not done yet, rather than
+ * starting the delta log over. Every state transition is appended as one line, led by the CRC32 of the rest of the
+ * line; a line torn by a crash fails its checksum and is cut off, together with anything after it, when the ledger is
+ * opened. The ledger is compacted, i.e. rewritten with the latest state of each delta log and volume only, when it holds
+ * more than twice as many lines as live states. A record is applied only once it is written; a delta log or directory
+ * record is synced to disk first, while a volume record is not, as losing one in a crash only means the volume is pushed
+ * or verified again. A record that could not be written is cut off again and the failure is thrown to the caller.
+ * <p>
+ * A delta log is identified by the names of its directory and file without the state prefixes such as _PROCESSED_ and
+ * _PARSED_. Once a ledger is configured it takes the place of those renames: delta logs and their directories keep their
+ * raw names, and the stages and tools find the delta logs left to push or verify by their state in the ledger. A delta
+ * log directory also has a state of its own, recorded under its name followed by a slash once the push stage or the
+ * verification is done with it as a whole. A whole delta log directory is rewound with a single line. Directories
+ * renamed before the ledger was configured are not tracked by it
+ */
+public class IngestLedger {
+    private static Logger log = Logger.getLogger(IngestLedger.class);
+
+    /**
+     * This Enum represents the states recorded in the ledger
+     */
+    public static enum State {
+        /** a delta log is parsed and all of its volumes are pushed; a delta log directory is processed, or rewound to processed */
+        PARSED,
+        /** a volume is pushed to Cassandra */
+        PUSHED,
+        /** a volume, all volumes of a delta log, or a delta log directory, are verified */
+        VERIFIED,
+        /** a volume failed to be pushed or verified */
+        FAILED,
+        /** a delta log or directory is rewound to its raw state */
+        RAW
+    }
+
+    /**
+     * This class holds the state of a delta log and of its volumes
+     */
+    private static class DeltaLogState {
+        private State state;
+        private final Map<String, State> volumeStates;
+
+        /**
+         * Constructor
+         */
+        DeltaLogState() {
+            this.state = null;
+            this.volumeStates = new HashMap<String, State>();
+        }
+    }
+
+    private static final String SEPARATOR = "\t";
+    private static final String STATE_PREFIX_REGEX = "^(_[A-Z]+_)+";
+    private static final String DIR_KEY_SUFFIX = "/";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final int COMPACTION_CHECK_INTERVAL = 10000;
+
+    private static final Map<String, IngestLedger> instances = new HashMap<String, IngestLedger>();
+
+    private final File ledgerFile;
+    // delta log directory name -> delta log file name -> state
+    private final Map<String, Map<String, DeltaLogState>> deltaLogDirs;
+    // delta log directory name -> state of the directory as a whole
+    private final Map<String, State> deltaLogDirStates;
+    private FileOutputStream outputStream;
+    // length of the complete records in the ledger file
+    private long length;
+    private long recordCount;
+    private long nextCompactionCheck;
+
+    /**
+     * Method to get the ledger kept in a file, opening it on first use so all stages of the JVM share it
+     * @param ledgerPath path to the ledger file
+     * @return the IngestLedger object
+     * @throws IOException thrown if the ledger file could not be read or opened for appending
+     */
+    public static synchronized IngestLedger getInstance(String ledgerPath) throws IOException {
+        String key = new File(ledgerPath).getAbsolutePath();
+        IngestLedger ledger = instances.get(key);
+        if (ledger == null) {
+            ledger = new IngestLedger(new File(key));
+            instances.put(key, ledger);
+        }
+        return ledger;
+    }
+
+    /**
+     * Method to get the ledger configured by INGEST_LEDGER_PATH
+     * @return the IngestLedger object, or <code>null</code> if no ledger is configured or it could not be opened
+     */
+    public static IngestLedger getConfiguredInstance() {
+        String ledgerPath = PropertyReader.getInstance().getProperty(Constants.PK_INGEST_LEDGER_PATH);
+        if (ledgerPath == null || ledgerPath.trim().equals("")) {
+            return null;
+        }
+        try {
+            return getInstance(ledgerPath.trim());
+        } catch (IOException e) {
+            log.error("Unable to open ingest ledger " + ledgerPath + ". Going on without it", e);
+            return null;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param ledgerFile the ledger file
+     * @throws IOException thrown if the ledger file could not be read or opened for appending
+     */
+    IngestLedger(File ledgerFile) throws IOException {
+        this.ledgerFile = ledgerFile;
+        this.deltaLogDirs = new HashMap<String, Map<String, DeltaLogState>>();
+        this.deltaLogDirStates = new HashMap<String, State>();
+        this.recordCount = 0L;
+        load();
+        if (recordCount > 2 * getLiveCount()) {
+            compact();
+        } else {
+            openWriter();
+        }
+        this.nextCompactionCheck = recordCount + COMPACTION_CHECK_INTERVAL;
+    }
+
+    /**
+     * Method to get the key of a delta log: the names of its directory and file without state prefixes
+     * @param deltaLogPath path to a delta log file
+     * @return the key of the delta log, e.g. dlog-20130101-000000000/t-1-0.txt
+     */
+    public static String getDeltaLogKey(String deltaLogPath) {
+        File file = new File(deltaLogPath).getAbsoluteFile();
+        return getRawName(file.getParentFile().getName()) + "/" + getRawName(file.getName());
+    }
+
+    /**
+     * Method to strip the state prefixes off the name of a delta log file or directory
+     * @param name the name of a delta log file or directory
+     * @return the raw name
+     */
+    public static String getRawName(String name) {
+        return name.replaceFirst(STATE_PREFIX_REGEX, "");
+    }
+
+    /**
+     * Method to record the state of a volume of a delta log
+     * @param deltaLogPath path to the delta log file
+     * @param volumeID the volumeID
+     * @param state the new state of the volume
+     * @throws IOException thrown if the record could not be written, in which case the state is left as it was
+     */
+    public synchronized void recordVolume(String deltaLogPath, String volumeID, State state) throws IOException {
+        append(state, getDeltaLogKey(deltaLogPath), volumeID, false);
+    }
+
+    /**
+     * Method to record the state of a delta log
+     * @param deltaLogPath path to the delta log file
+     * @param state the new state of the delta log
+     * @throws IOException thrown if the record could not be written and synced, in which case the state is left as it was
+     */
+    public synchronized void recordDeltaLog(String deltaLogPath, State state) throws IOException {
+        append(state, getDeltaLogKey(deltaLogPath), "", true);
+    }
+
+    /**
+     * Method to record the state of a delta log directory as a whole. The states of its delta logs are left as they are
+     * @param deltaLogDirName the name of the delta log directory, with or without state prefixes
+     * @param state {@link State#PARSED} once the push stage is done with the directory, or {@link State#VERIFIED} once the verification is
+     * @throws IOException thrown if the record could not be written and synced, in which case the state is left as it was
+     */
+    public synchronized void recordDeltaLogDir(String deltaLogDirName, State state) throws IOException {
+        if (state != State.PARSED && state != State.VERIFIED) {
+            throw new IllegalArgumentException("Cannot record a delta log directory as " + state);
+        }
+        append(state, getRawName(deltaLogDirName) + DIR_KEY_SUFFIX, "", true);
+    }
+
+    /**
+     * Method to rewind all delta logs of a delta log directory
+     * @param deltaLogDirName the name of the delta log directory, with or without state prefixes
+     * @param state {@link State#RAW} to forget all progress, or {@link State#PARSED} to keep the pushes but forget the
+     * verification, leaving the directory processed
+     * @throws IOException thrown if the record could not be written and synced, in which case nothing is rewound
+     */
+    public synchronized void rewind(String deltaLogDirName, State state) throws IOException {
+        if (state != State.RAW && state != State.PARSED) {
+            throw new IllegalArgumentException("Cannot rewind to " + state);
+        }
+        append(state, getRawName(deltaLogDirName), "", true);
+    }
+
+    /**
+     * Method to check if a volume of a delta log has been pushed
+     * @param deltaLogPath path to the delta log file
+     * @param volumeID the volumeID
+     * @return <code>true</code> if the volume, or the whole delta log, has been pushed
+     */
+    public synchronized boolean isPushed(String deltaLogPath, String volumeID) {
+        DeltaLogState deltaLogState = getDeltaLogState(getDeltaLogKey(deltaLogPath), false);
+        if (deltaLogState == null) {
+            return false;
+        }
+        if (deltaLogState.state == State.PARSED || deltaLogState.state == State.VERIFIED) {
+            return true;
+        }
+        State volumeState = deltaLogState.volumeStates.get(volumeID);
+        return volumeState == State.PUSHED || volumeState == State.VERIFIED;
+    }
+
+    /**
+     * Method to check if a volume of a delta log has been verified
+     * @param deltaLogPath path to the delta log file
+     * @param volumeID the volumeID
+     * @return <code>true</code> if the volume, or the whole delta log, has been verified
+     */
+    public synchronized boolean isVerified(String deltaLogPath, String volumeID) {
+        DeltaLogState deltaLogState = getDeltaLogState(getDeltaLogKey(deltaLogPath), false);
+        if (deltaLogState == null) {
+            return false;
+        }
+        return deltaLogState.state == State.VERIFIED || deltaLogState.volumeStates.get(volumeID) == State.VERIFIED;
+    }
+
+    /**
+     * Method to get the recorded state of a delta log
+     * @param deltaLogPath path to the delta log file
+     * @return the state of the delta log, or <code>null</code> if it is not done with any stage
+     */
+    public synchronized State getDeltaLogState(String deltaLogPath) {
+        DeltaLogState deltaLogState = getDeltaLogState(getDeltaLogKey(deltaLogPath), false);
+        return (deltaLogState == null) ? null : deltaLogState.state;
+    }
+
+    /**
+     * Method to get the recorded state of a delta log directory as a whole
+     * @param deltaLogDirName the name of the delta log directory, with or without state prefixes
+     * @return the state of the directory, or <code>null</code> if the push stage is not done with it
+     */
+    public synchronized State getDeltaLogDirState(String deltaLogDirName) {
+        return deltaLogDirStates.get(getRawName(deltaLogDirName));
+    }
+
+    /**
+     * Method to get the names of the delta log directories in a state
+     * @param state the state of the directories as a whole
+     * @return a List of the raw directory names, in name order, i.e. in the order of their runs
+     */
+    public synchronized List<String> getDeltaLogDirNames(State state) {
+        List<String> dirNames = new ArrayList<String>();
+        for (Map.Entry<String, State> entry : deltaLogDirStates.entrySet()) {
+            if (entry.getValue() == state) {
+                dirNames.add(entry.getKey());
+            }
+        }
+        Collections.sort(dirNames);
+        return dirNames;
+    }
+
+    /**
+     * Method to get the delta logs in a state
+     * @param state the state of the delta logs
+     * @return a List of the keys of the delta logs, i.e. their paths relative to the delta log root, in name order
+     */
+    public synchronized List<String> getDeltaLogKeys(State state) {
+        List<String> keys = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, DeltaLogState>> dirEntry : deltaLogDirs.entrySet()) {
+            for (Map.Entry<String, DeltaLogState> entry : dirEntry.getValue().entrySet()) {
+                if (entry.getValue().state == state) {
+                    keys.add(dirEntry.getKey() + "/" + entry.getKey());
+                }
+            }
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Method to append a record to the ledger file and apply it once it is written
+     * @param state the state
+     * @param key the key of a delta log, or the name of a delta log directory
+     * @param volumeID the volumeID, or an empty String for a record about a delta log or directory
+     * @param sync <code>true</code> to sync the record to disk before it is applied
+     * @throws IOException thrown if the record could not be written or synced
+     */
+    private void append(State state, String key, String volumeID, boolean sync) throws IOException {
+        if (outputStream == null) {
+            throw new IOException("Ingest ledger " + ledgerFile.getPath() + " is closed");
+        }
+        String payload = state.toString() + SEPARATOR + key + SEPARATOR + volumeID;
+        byte[] bytes = (checksum(payload) + SEPARATOR + payload + "\n").getBytes("UTF-8");
+        try {
+            outputStream.write(bytes);
+            if (sync) {
+                outputStream.getFD().sync();
+            }
+        } catch (IOException e) {
+            cutOffRecord();
+            throw e;
+        }
+        length += bytes.length;
+        recordCount++;
+        apply(state, key, volumeID);
+        if (recordCount >= nextCompactionCheck) {
+            if (recordCount > 2 * getLiveCount()) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    log.error("Unable to compact ingest ledger " + ledgerFile.getPath(), e);
+                }
+            }
+            nextCompactionCheck = recordCount + COMPACTION_CHECK_INTERVAL;
+        }
+    }
+
+    /**
+     * Method to cut a record that could not be written off the ledger file, so later records are not taken for a torn
+     * tail when the ledger is opened. The ledger is closed if that fails too
+     */
+    private void cutOffRecord() {
+        try {
+            outputStream.getChannel().truncate(length);
+        } catch (IOException e) {
+            log.error("Unable to cut a failed record off ingest ledger " + ledgerFile.getPath() + ". Closing it", e);
+            close();
+        }
+    }
+
+    /**
+     * Method to apply a record to the in-memory state
+     * @param state the state
+     * @param key the key of a delta log, the name of a delta log directory to rewind, or that name followed by a slash
+     * for the state of the directory as a whole
+     * @param volumeID the volumeID, or an empty String for a record about a delta log or directory
+     */
+    private void apply(State state, String key, String volumeID) {
+        if (volumeID.length() > 0) {
+            getDeltaLogState(key, true).volumeStates.put(volumeID, state);
+        } else if (key.endsWith(DIR_KEY_SUFFIX)) {
+            deltaLogDirStates.put(key.substring(0, key.length() - DIR_KEY_SUFFIX.length()), state);
+        } else if (key.indexOf('/') < 0) {
+            if (state == State.RAW) {
+                deltaLogDirs.remove(key);
+                deltaLogDirStates.remove(key);
+            } else {
+                Map<String, DeltaLogState> deltaLogs = deltaLogDirs.get(key);
+                if (deltaLogs != null) {
+                    for (DeltaLogState deltaLogState : deltaLogs.values()) {
+                        applyToDeltaLog(deltaLogState, state);
+                    }
+                }
+                deltaLogDirStates.put(key, state);
+            }
+        } else if (state == State.RAW) {
+            Map<String, DeltaLogState> deltaLogs = deltaLogDirs.get(key.substring(0, key.indexOf('/')));
+            if (deltaLogs != null) {
+                deltaLogs.remove(key.substring(key.indexOf('/') + 1));
+            }
+        } else {
+            applyToDeltaLog(getDeltaLogState(key, true), state);
+        }
+    }
+
+    /**
+     * Method to apply the state of a delta log to it and its volumes
+     * @param deltaLogState a DeltaLogState object
+     * @param state the new state of the delta log
+     */
+    private static void applyToDeltaLog(DeltaLogState deltaLogState, State state) {
+        deltaLogState.state = state;
+        if (state == State.VERIFIED) {
+            // nothing is left to resume
+            deltaLogState.volumeStates.clear();
+        } else if (state == State.PARSED) {
+            Iterator<Map.Entry<String, State>> iterator = deltaLogState.volumeStates.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, State> entry = iterator.next();
+                if (entry.getValue() == State.VERIFIED) {
+                    entry.setValue(State.PUSHED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to get the DeltaLogState object of a delta log
+     * @param key the key of the delta log
+     * @param create <code>true</code> to create it if missing
+     * @return the DeltaLogState object, or <code>null</code> if missing and not created
+     */
+    private DeltaLogState getDeltaLogState(String key, boolean create) {
+        int index = key.indexOf('/');
+        String dirName = key.substring(0, index);
+        String fileName = key.substring(index + 1);
+        Map<String, DeltaLogState> deltaLogs = deltaLogDirs.get(dirName);
+        if (deltaLogs == null) {
+            if (!create) {
+                return null;
+            }
+            deltaLogs = new HashMap<String, DeltaLogState>();
+            deltaLogDirs.put(dirName, deltaLogs);
+        }
+        DeltaLogState deltaLogState = deltaLogs.get(fileName);
+        if (deltaLogState == null && create) {
+            deltaLogState = new DeltaLogState();
+            deltaLogs.put(fileName, deltaLogState);
+        }
+        return deltaLogState;
+    }
+
+    /**
+     * Method to count the live states, i.e. the lines a compacted ledger holds
+     * @return the number of live states
+     */
+    private long getLiveCount() {
+        long count = deltaLogDirStates.size();
+        for (Map<String, DeltaLogState> deltaLogs : deltaLogDirs.values()) {
+            for (DeltaLogState deltaLogState : deltaLogs.values()) {
+                count += deltaLogState.volumeStates.size() + ((deltaLogState.state != null) ? 1 : 0);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Method to read the ledger file, cutting off a torn tail
+     * @throws IOException thrown if the ledger file could not be read
+     */
+    private void load() throws IOException {
+        if (!ledgerFile.isFile()) {
+            return;
+        }
+        long validLength = 0L;
+        boolean torn = false;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(ledgerFile), "UTF-8"));
+        try {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                State state = null;
+                if (fields.length == 4 && fields[0].equals(checksum(line.substring(fields[0].length() + 1)))) {
+                    try {
+                        state = State.valueOf(fields[1]);
+                    } catch (IllegalArgumentException e) {
+                        state = null;
+                    }
+                }
+                if (state == null) {
+                    torn = true;
+                    break;
+                }
+                apply(state, fields[2], fields[3]);
+                recordCount++;
+                validLength += line.getBytes("UTF-8").length + 1;
+            }
+        } finally {
+            reader.close();
+        }
+        if (torn) {
+            log.warn("Ingest ledger " + ledgerFile.getPath() + " has a torn or corrupt record after " + recordCount + " records. Cutting it off");
+            RandomAccessFile file = new RandomAccessFile(ledgerFile, "rw");
+            try {
+                file.setLength(validLength);
+            } finally {
+                file.close();
+            }
+        } else if (validLength > ledgerFile.length()) {
+            // the last record is complete but its line break was lost
+            RandomAccessFile file = new RandomAccessFile(ledgerFile, "rw");
+            try {
+                file.seek(file.length());
+                file.write('\n');
+            } finally {
+                file.close();
+            }
+        }
+        log.info("Loaded " + recordCount + " records from ingest ledger " + ledgerFile.getPath());
+    }
+
+    /**
+     * Method to rewrite the ledger file with the live states only. The new file replaces the old one only once complete
+     * @throws IOException thrown if the compacted ledger could not be written
+     */
+    public synchronized void compact() throws IOException {
+        File partialFile = new File(ledgerFile.getPath() + PARTIAL_SUFFIX);
+        FileOutputStream partialStream = new FileOutputStream(partialFile);
+        Writer partialWriter = new OutputStreamWriter(partialStream, "UTF-8");
+        long count = 0L;
+        try {
+            for (Map.Entry<String, State> dirEntry : deltaLogDirStates.entrySet()) {
+                String payload = dirEntry.getValue().toString() + SEPARATOR + dirEntry.getKey() + DIR_KEY_SUFFIX + SEPARATOR;
+                partialWriter.write(checksum(payload) + SEPARATOR + payload + "\n");
+                count++;
+            }
+            for (Map.Entry<String, Map<String, DeltaLogState>> dirEntry : deltaLogDirs.entrySet()) {
+                for (Map.Entry<String, DeltaLogState> entry : dirEntry.getValue().entrySet()) {
+                    String key = dirEntry.getKey() + "/" + entry.getKey();
+                    DeltaLogState deltaLogState = entry.getValue();
+                    if (deltaLogState.state != null) {
+                        String payload = deltaLogState.state.toString() + SEPARATOR + key + SEPARATOR;
+                        partialWriter.write(checksum(payload) + SEPARATOR + payload + "\n");
+                        count++;
+                    }
+                    for (Map.Entry<String, State> volumeEntry : deltaLogState.volumeStates.entrySet()) {
+                        String payload = volumeEntry.getValue().toString() + SEPARATOR + key + SEPARATOR + volumeEntry.getKey();
+                        partialWriter.write(checksum(payload) + SEPARATOR + payload + "\n");
+                        count++;
+                    }
+                }
+            }
+            partialWriter.flush();
+            partialStream.getFD().sync();
+        } finally {
+            partialWriter.close();
+        }
+        if (outputStream != null) {
+            outputStream.close();
+        }
+        if (!partialFile.renameTo(ledgerFile)) {
+            openWriter();
+            throw new IOException("Unable to rename " + partialFile.getPath() + " to " + ledgerFile.getPath());
+        }
+        log.info("Compacted ingest ledger " + ledgerFile.getPath() + " from " + recordCount + " to " + count + " records");
+        recordCount = count;
+        openWriter();
+    }
+
+    /**
+     * Method to open the ledger file for appending
+     * @throws IOException thrown if the ledger file could not be opened
+     */
+    private void openWriter() throws IOException {
+        File parent = ledgerFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        outputStream = new FileOutputStream(ledgerFile, true);
+        length = ledgerFile.length();
+    }
+
+    /**
+     * Method to calculate the checksum of a record
+     * @param payload the record without its checksum
+     * @return the CRC32 of the record as 8 hexadecimal digits
+     */
+    private static String checksum(String payload) {
+        CRC32 crc32 = new CRC32();
+        try {
+            crc32.update(payload.getBytes("UTF-8"));
+        } catch (IOException e) {
+            // UTF-8 is always supported
+            crc32.update(payload.getBytes());
+        }
+        return Util.prepadString(Long.toHexString(crc32.getValue()), '0', 8);
+    }
+
+    /**
+     * Method to close the ledger file
+     */
+    public synchronized void close() {
+        try {
+            if (outputStream != null) {
+                outputStream.close();
+                outputStream = null;
+            }
+        } catch (IOException e) {
+            log.error("Unable to close ingest ledger " + ledgerFile.getPath(), e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  IngestPipeline.java
+# Description: This class runs rsync, Cassandra push and verification as overlapping pipeline stages
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.cassandra.PairtreeToCassandraDataSyncker;
+import edu.indiana.d2i.htrc.ingest.rsync.Ingester;
+import edu.indiana.d2i.htrc.ingest.verify.Verificationer;
+
+/**
+ * This class runs rsync, Cassandra push and verification as overlapping pipeline stages instead of one after another.
+ * Each delta log is handed to the push stage as soon as its rsync job finishes, and each pushed volume is handed to the
+ * verification stage right away. The stages are joined by BoundedJobQueue objects and keep their own thread counts
+ * (RSYNC_THREAD_COUNT, DELTA_PROCESSOR_THREAD_COUNT and VERIFICATION_THREAD_COUNT), so the wall-clock time of an ingest
+ * is bound by the slowest stage rather than the sum of all three. Delta log files and directories go through the same
+ * renames, or ingest ledger records, as in the non-pipelined mode, and whatever earlier runs left unprocessed or unverified is picked up as well.
+ * If PERFORM_STREAMING_DELTA_LOG_PARSING is true, the rsync output is parsed while it arrives and each volume is pushed
+ * without waiting for the delta log to be written and read back; the delta log files are still written as a record.
+ */
+public class IngestPipeline {
+    private static Logger log = Logger.getLogger(IngestPipeline.class);
+
+    /**
+     * Interface of a stage that runs in its own threads from start() until finish()
+     */
+    protected static interface Stage {
+        /**
+         * Method to start the stage
+         */
+        public void start();
+
+        /**
+         * Method to finish the stage. It drains whatever is queued to the stage and waits for its threads
+         * @param upstreamSucceeded a boolean flag indicating if the stages before this one ran to their end. If not, the
+         * stage still drains what it was handed, but must not mark the delta log directories of the run as done
+         */
+        public void finish(boolean upstreamSucceeded);
+    }
+
+    /**
+     * Interface of the rsync stage, which runs in the calling thread
+     */
+    protected static interface RsyncStage {
+        /**
+         * Method to run the rsync stage to its end
+         * @throws IngestException thrown if the rsync stage failed
+         */
+        public void ingest() throws IngestException;
+    }
+
+    private final boolean performVerification;
+    private final boolean streamDeltaLogs;
+    private final int jobQueueCapacity;
+
+    /**
+     * Constructor
+     * @param performVerification a boolean flag indicating if the verification stage should run
+     */
+    public IngestPipeline(boolean performVerification) {
+        this(performVerification,
+                Util.getBooleanProperty(PropertyReader.getInstance().getProperty(Constants.PK_PERFORM_STREAMING_DELTA_LOG_PARSING)),
+                Util.getIntProperty(PropertyReader.getInstance().getProperty(Constants.PK_JOB_QUEUE_CAPACITY), BoundedJobQueue.DEFAULT_CAPACITY));
+    }
+
+    /**
+     * Constructor
+     * @param performVerification a boolean flag indicating if the verification stage should run
+     * @param streamDeltaLogs a boolean flag indicating if the rsync output is parsed while it arrives
+     * @param jobQueueCapacity the capacity of the queues between the stages
+     */
+    protected IngestPipeline(boolean performVerification, boolean streamDeltaLogs, int jobQueueCapacity) {
+        this.performVerification = performVerification;
+        this.streamDeltaLogs = streamDeltaLogs;
+        this.jobQueueCapacity = jobQueueCapacity;
+    }
+
+    /**
+     * Method to run the pipelined ingest. Downstream stages are always drained and finished, even if the rsync stage failed
+     * @throws IngestException thrown if the rsync stage failed
+     */
+    public void run() throws IngestException {
+        BoundedJobQueue<String> deltaLogQueue = new BoundedJobQueue<String>("PipelinedDeltaLogQueue", jobQueueCapacity);
+        BoundedJobQueue<String> pushedVolumeQueue = null;
+        Stage verificationStage = null;
+
+        if (performVerification) {
+            pushedVolumeQueue = new BoundedJobQueue<String>("PipelinedPushedVolumeQueue", jobQueueCapacity);
+            final Verificationer verificationer = new Verificationer(pushedVolumeQueue);
+            verificationStage = new Stage() {
+                public void start() {
+                    verificationer.startPipelined();
+                }
+                public void finish(boolean upstreamSucceeded) {
+                    verificationer.finishPipelined(upstreamSucceeded);
+                }
+            };
+        }
+
+        final PairtreeToCassandraDataSyncker dataSyncker = new PairtreeToCassandraDataSyncker(deltaLogQueue, pushedVolumeQueue, streamDeltaLogs);
+        Stage pushStage = new Stage() {
+            public void start() {
+                dataSyncker.startPipelined();
+            }
+            public void finish(boolean upstreamSucceeded) {
+                dataSyncker.finishPipelined(upstreamSucceeded);
+            }
+        };
+
+        final Ingester ingester = streamDeltaLogs ? new Ingester(null, dataSyncker.getDeltaLogListenerFactory()) : new Ingester(deltaLogQueue);
+        RsyncStage rsyncStage = new RsyncStage() {
+            public void ingest() throws IngestException {
+                ingester.ingest();
+            }
+        };
+
+        runStages(rsyncStage, pushStage, verificationStage);
+    }
+
+    /**
+     * Method to run the stages. The downstream stages are started first so they are ready for what the rsync stage hands
+     * them, and are finished in the same order as the data flows, so each one drains what the stage before it left. The
+     * downstream stages are always finished, even if the rsync stage or the push stage failed, but are told so and then leave
+     * the delta log directories unmarked
+     * @param rsyncStage a RsyncStage object
+     * @param pushStage a Stage object for the Cassandra push stage
+     * @param verificationStage a Stage object for the verification stage, or <code>null</code> if no verification is performed
+     * @throws IngestException thrown if the rsync stage failed
+     */
+    protected void runStages(RsyncStage rsyncStage, Stage pushStage, Stage verificationStage) throws IngestException {
+        long startTime = System.currentTimeMillis();
+
+        if (verificationStage != null) {
+            log.info("Starting verification stage");
+            verificationStage.start();
+        }
+
+        log.info("Starting cassandra push stage");
+        pushStage.start();
+
+        boolean rsyncSucceeded = false;
+        try {
+            log.info("Starting rsync stage");
+            rsyncStage.ingest();
+            rsyncSucceeded = true;
+            log.info("Rsync stage finished. duration: " + (System.currentTimeMillis() - startTime));
+        } finally {
+            boolean pushSucceeded = false;
+            try {
+                pushStage.finish(rsyncSucceeded);
+                pushSucceeded = true;
+                log.info("Cassandra push stage finished. duration: " + (System.currentTimeMillis() - startTime));
+            } finally {
+                if (verificationStage != null) {
+                    verificationStage.finish(rsyncSucceeded && pushSucceeded);
+                    log.info("Verification stage finished. duration: " + (System.currentTimeMillis() - startTime));
+                }
+            }
+        }
+    }
+}
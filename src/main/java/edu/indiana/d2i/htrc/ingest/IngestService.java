@@ -62,42 +62,58 @@ public class IngestService {
         boolean performRsync = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_RSYNC));
         boolean performNosqlPush = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_NOSQL_PUSH));
         boolean performVerification = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_VERIFICATION));
+        boolean performPipelinedIngest = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_PIPELINED_INGEST));
         
         try {
             
             log.info("Ingest Service Started");
             
-            if (performRsync) {
+            if (performPipelinedIngest && performRsync && performNosqlPush) {
+                
+                log.info("Running rsync, noSQL push" + (performVerification ? " and data verification" : "") + " as a pipeline...");
+                IngestPipeline pipeline = new IngestPipeline(performVerification);
+                pipeline.run();
+                
+                log.info("Done with pipelined ingest");
+                
+            } else {
+            
+                if (performPipelinedIngest) {
+                    log.warn("Pipelined ingest requires both rsync and noSQL push. Running the phases one after another");
+                }
+            
+                if (performRsync) {
         
-                log.info("Rsyncking data from remote source to local pairtree...");
-                Ingester ingester = new Ingester();
-                ingester.ingest();
+                    log.info("Rsyncking data from remote source to local pairtree...");
+                    Ingester ingester = new Ingester();
+                    ingester.ingest();
             
-                log.info("Done rsyncking with remote source");
-            } else {
-                log.info ("Skip rysnc");
-            }
+                    log.info("Done rsyncking with remote source");
+                } else {
+                    log.info ("Skip rysnc");
+                }
             
-            if (performNosqlPush) {
+                if (performNosqlPush) {
             
-                log.info("Syncking data from local pairtree to cassandra...");
+                    log.info("Syncking data from local pairtree to cassandra...");
                 
-                PairtreeToCassandraDataSyncker dataSyncker = new PairtreeToCassandraDataSyncker();
-                dataSyncker.process();
+                    PairtreeToCassandraDataSyncker dataSyncker = new PairtreeToCassandraDataSyncker();
+                    dataSyncker.process();
                 
-                log.info("Done syncking data from local pairtree");
-            } else {
-                log.info ("Skip noSQL push");
-            }
+                    log.info("Done syncking data from local pairtree");
+                } else {
+                    log.info ("Skip noSQL push");
+                }
             
-            if (performVerification) {
-                log.info("Verifying data...");
-                Verificationer verificationer = new Verificationer();
-                verificationer.verify();
+                if (performVerification) {
+                    log.info("Verifying data...");
+                    Verificationer verificationer = new Verificationer();
+                    verificationer.verify();
                 
-                log.info("Done data verification");
-            } else {
-                log.info("Skip data verification");
+                    log.info("Done data verification");
+                } else {
+                    log.info("Skip data verification");
+                }
             }
         } catch (IngestException e) {
             log.error("Ingest service terminated abnormally due to exception", e);
@@ -37,7 +37,8 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 /**
- * This class is a generic job queue
+ * This class is a generic job queue. It is unbounded and consumers have to poll isDone(), so new code should use
+ * BoundedJobQueue instead
  * @author Yiming Sun
  *
  */
@@ -0,0 +1,605 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  PairtreeChangeCapture.java
+# Description: This class captures changes made to the local Pairtree by means other than rsync and writes them as delta logs
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+
+/**
+ * This class captures the changes made to the local Pairtree by means other than rsync, e.g. volumes copied in by hand
+ * after a failed rsync, and writes them as ordinary delta logs into a new delta log directory, so they take the normal
+ * push path instead of needing mimicked delta logs. Java 6 has no filesystem watch service, and a watch per Pairtree
+ * directory would not scale anyway, so the Pairtree is scanned instead: every branch, i.e. every child directory of a
+ * <code>pairtree_root</code> found under the destination root, is walked by one of a number of scanner threads, and the
+ * size and modification time of its <code>.zip</code> and <code>.mets.xml</code> files are compared with those recorded
+ * by the previous scan in a state file of the branch. The very first scan only records the state of the branches; a
+ * branch appearing later is logged in full.
+ * <p>
+ * Changes are coalesced per volume directory, and the delta log of a branch lists each changed volume once, its deleted
+ * files as <code>deleting</code> lines followed by its new or modified files. Files the rsync delta logs written since the
+ * previous scan already list are left out, so a volume rsync brought in is not pushed twice
+ */
+public class PairtreeChangeCapture {
+    private static Logger log = Logger.getLogger(PairtreeChangeCapture.class);
+
+    private static final String DELTA_LOG_DIR_PATTERN = "yyyyMMdd-HHmmssSSS";
+    private static final Pattern DELTA_LOG_DIR_NAME = Pattern.compile("(?:_[A-Z]+_)*dlog-(\\d{8}-\\d{9})");
+    private static final String DELTA_LOG_FILE_REGEX = "t-\\d+-\\d+\\.txt";
+    private static final String PAIRTREE_ROOT_SEGMENT = "pairtree_root";
+    private static final int MAX_PAIRTREE_ROOT_DEPTH = 4;
+    private static final String ZIP_SUFFIX = ".zip";
+    private static final String METS_SUFFIX = ".mets.xml";
+    private static final String DEST_ROOT_PREFIX = "DEST_ROOT=";
+    private static final String DELETING_PREFIX = "deleting ";
+    private static final String PAIRTREE_ROOT_PREFIX = "PAIRTREE_ROOT=";
+    private static final String BRANCH_PREFIX = "BRANCH=";
+    private static final String STATE_SUFFIX = ".state";
+    private static final String LAST_SCAN_FILENAME = "_LAST_SCAN_";
+    private static final String SEPARATOR = "\t";
+
+    /**
+     * This class holds a branch of the Pairtree to scan
+     */
+    private static class Branch {
+        private final File pairtreeRoot;
+        private final String name;
+        private final File stateFile;
+
+        /**
+         * Constructor
+         * @param pairtreeRoot the <code>pairtree_root</code> directory of the branch
+         * @param name the name of the branch directory
+         * @param stateFile the state file of the branch
+         */
+        Branch(File pairtreeRoot, String name, File stateFile) {
+            this.pairtreeRoot = pairtreeRoot;
+            this.name = name;
+            this.stateFile = stateFile;
+        }
+    }
+
+    private final File destRoot;
+    private final File deltaLogRoot;
+    private final File stateDir;
+    private final int threadCount;
+
+    private File deltaLogDir;
+    private Set<String> loggedPaths;
+    private boolean initialScan;
+    private int deltaLogCount;
+    private int changedVolumeCount;
+
+    /**
+     * Constructor
+     * @param destRoot the local destination root under which the <code>pairtree_root</code> directories are looked for
+     * @param deltaLogRoot the delta log root directory
+     * @param stateDir the directory holding the state files of the branches
+     * @param threadCount the number of scanner threads
+     */
+    public PairtreeChangeCapture(String destRoot, String deltaLogRoot, String stateDir, int threadCount) {
+        this.destRoot = new File(destRoot);
+        this.deltaLogRoot = new File(deltaLogRoot);
+        this.stateDir = new File(stateDir);
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Method to scan the Pairtree once and write the changes found into a new delta log directory. The directory is
+     * removed again if nothing changed
+     * @return the number of changed volumes written to delta logs
+     * @throws IngestException thrown if the state directory or the delta log directory cannot be created
+     */
+    public int capture() throws IngestException {
+        if (!stateDir.isDirectory() && !stateDir.mkdirs()) {
+            log.error("Unable to create change capture state directory " + stateDir.getPath());
+            throw new IngestException("Unable to create change capture state directory " + stateDir.getPath());
+        }
+        DateFormat dateFormat = new SimpleDateFormat(DELTA_LOG_DIR_PATTERN);
+        String scanTime = dateFormat.format(Calendar.getInstance().getTime());
+        String lastScanTime = readLastScanTime();
+        initialScan = (lastScanTime == null);
+        loggedPaths = initialScan ? new HashSet<String>() : readLoggedPaths(lastScanTime);
+        deltaLogDir = new File(deltaLogRoot, "dlog-" + scanTime);
+        if (!deltaLogDir.mkdirs()) {
+            log.error("Unable to create delta log directory " + deltaLogDir.getPath());
+            throw new IngestException("Unable to create delta log directory " + deltaLogDir.getPath());
+        }
+        deltaLogCount = 0;
+        changedVolumeCount = 0;
+
+        final BoundedJobQueue<Branch> branchQueue = new BoundedJobQueue<Branch>("ChangeCaptureBranchQueue", BoundedJobQueue.DEFAULT_CAPACITY);
+        List<Thread> threadList = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Branch branch = null;
+                        while ((branch = branchQueue.take()) != null) {
+                            scanBranch(branch);
+                        }
+                    } catch (InterruptedException e) {
+                        log.error("Change capture scanner interrupted while waiting for a branch", e);
+                    }
+                }
+            }, "ChangeCapture-" + i);
+            threadList.add(thread);
+            thread.start();
+        }
+        try {
+            for (Branch branch : listBranches()) {
+                branchQueue.put(branch);
+            }
+        } catch (InterruptedException e) {
+            log.error("Change capture interrupted while queueing branches", e);
+        } finally {
+            branchQueue.close();
+            for (Thread thread : threadList) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    log.error("Change capture interrupted while waiting for the scanner threads", e);
+                }
+            }
+        }
+        loggedPaths = null;
+
+        writeLastScanTime(scanTime);
+        if (deltaLogCount == 0) {
+            deltaLogDir.delete();
+            log.info("No changes captured in the local pairtree");
+        } else {
+            log.info("Captured changes to " + changedVolumeCount + " volumes in " + deltaLogCount + " delta logs in " + deltaLogDir.getPath());
+        }
+        return changedVolumeCount;
+    }
+
+    /**
+     * Method to list the branches to scan: the child directories of every <code>pairtree_root</code> under the
+     * destination root, plus the branches that have a state file but are gone, so their volumes are logged as deleted
+     * @return a List of Branch objects
+     */
+    private List<Branch> listBranches() {
+        List<Branch> branches = new ArrayList<Branch>();
+        Set<String> stateFilenames = new HashSet<String>();
+        List<File> pairtreeRoots = new ArrayList<File>();
+        findPairtreeRoots(destRoot, 0, pairtreeRoots);
+        for (File pairtreeRoot : pairtreeRoots) {
+            File[] children = pairtreeRoot.listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    File stateFile = getStateFile(pairtreeRoot, child.getName());
+                    stateFilenames.add(stateFile.getName());
+                    branches.add(new Branch(pairtreeRoot, child.getName(), stateFile));
+                }
+            }
+        }
+        File[] stateFiles = stateDir.listFiles();
+        if (stateFiles != null) {
+            for (File stateFile : stateFiles) {
+                if (stateFile.getName().endsWith(STATE_SUFFIX) && !stateFilenames.contains(stateFile.getName())) {
+                    Branch branch = readBranch(stateFile);
+                    if (branch != null) {
+                        branches.add(branch);
+                    }
+                }
+            }
+        }
+        return branches;
+    }
+
+    /**
+     * Method to find the <code>pairtree_root</code> directories under a directory
+     * @param dir a directory
+     * @param depth the depth of the directory below the destination root
+     * @param pairtreeRoots a List the <code>pairtree_root</code> directories found are added to
+     */
+    private void findPairtreeRoots(File dir, int depth, List<File> pairtreeRoots) {
+        if (dir.getName().equals(PAIRTREE_ROOT_SEGMENT)) {
+            pairtreeRoots.add(dir);
+            return;
+        }
+        if (depth >= MAX_PAIRTREE_ROOT_DEPTH) {
+            return;
+        }
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    findPairtreeRoots(child, depth + 1, pairtreeRoots);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to get the state file of a branch
+     * @param pairtreeRoot the <code>pairtree_root</code> directory of the branch
+     * @param name the name of the branch directory
+     * @return the state file, named after the path of the branch
+     */
+    private File getStateFile(File pairtreeRoot, String name) {
+        String path = new File(pairtreeRoot, name).getAbsolutePath();
+        return new File(stateDir, path.replace(File.separatorChar, '+') + STATE_SUFFIX);
+    }
+
+    /**
+     * Method to read the branch a state file belongs to from its header lines
+     * @param stateFile a state file
+     * @return a Branch object, or <code>null</code> if the state file could not be read
+     */
+    private Branch readBranch(File stateFile) {
+        String pairtreeRoot = null;
+        String name = null;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(stateFile));
+            try {
+                pairtreeRoot = readHeader(reader.readLine(), PAIRTREE_ROOT_PREFIX);
+                name = readHeader(reader.readLine(), BRANCH_PREFIX);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            log.error("Unable to read change capture state file " + stateFile.getPath(), e);
+        }
+        if (pairtreeRoot == null || name == null) {
+            log.warn("Ignoring change capture state file " + stateFile.getPath() + " without branch header");
+            return null;
+        }
+        return new Branch(new File(pairtreeRoot), name, stateFile);
+    }
+
+    /**
+     * Method to read the value of a header line
+     * @param line a line of a state file
+     * @param prefix the prefix of the header
+     * @return the value of the header, or <code>null</code> if the line is not the header
+     */
+    private static String readHeader(String line, String prefix) {
+        return (line != null && line.startsWith(prefix)) ? line.substring(prefix.length()) : null;
+    }
+
+    /**
+     * Method to scan a branch, log its changes and save its new state. A branch is logged and saved by the same thread, so
+     * a crash between the two only makes the next scan log the same changes again
+     * @param branch a Branch object
+     */
+    private void scanBranch(Branch branch) {
+        File branchDir = new File(branch.pairtreeRoot, branch.name);
+        try {
+            Map<String, String> oldState = readState(branch.stateFile);
+            if (oldState == null && !initialScan) {
+                // a branch that appeared since the previous scan
+                oldState = new TreeMap<String, String>();
+            }
+            Map<String, String> newState = new TreeMap<String, String>();
+            if (branchDir.isDirectory()) {
+                walk(branchDir, branch.name + "/", newState);
+            }
+            if (oldState != null) {
+                Map<String, List<String>> volumeLines = diff(branch, oldState, newState);
+                if (!volumeLines.isEmpty()) {
+                    writeDeltaLog(branch, volumeLines);
+                }
+            } else {
+                log.info("Recording the initial state of branch " + branchDir.getPath());
+            }
+            if (newState.isEmpty() && !branchDir.isDirectory()) {
+                branch.stateFile.delete();
+            } else {
+                writeState(branch, newState);
+            }
+        } catch (IOException e) {
+            log.error("Unable to capture the changes of branch " + branchDir.getPath(), e);
+        }
+    }
+
+    /**
+     * Method to record the size and modification time of the volume files under a directory
+     * @param dir a directory
+     * @param relativePath the path of the directory relative to its <code>pairtree_root</code>, with a trailing slash
+     * @param state a Map from the relative path of a volume file to its size and modification time
+     */
+    private void walk(File dir, String relativePath, Map<String, String> state) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory()) {
+                walk(child, relativePath + name + "/", state);
+            } else if (name.endsWith(ZIP_SUFFIX) || name.endsWith(METS_SUFFIX)) {
+                state.put(relativePath + name, child.length() + SEPARATOR + child.lastModified());
+            }
+        }
+    }
+
+    /**
+     * Method to compare the old and the new state of a branch
+     * @param branch a Branch object
+     * @param oldState the state recorded by the previous scan
+     * @param newState the state found by this scan
+     * @return a Map from each changed volume directory to its delta log lines, deletions first
+     */
+    private Map<String, List<String>> diff(Branch branch, Map<String, String> oldState, Map<String, String> newState) {
+        Map<String, List<String>> volumeLines = new TreeMap<String, List<String>>();
+        for (Map.Entry<String, String> entry : oldState.entrySet()) {
+            String path = entry.getKey();
+            if (!newState.containsKey(path) && !isLogged(branch, path)) {
+                getLines(volumeLines, path).add(DELETING_PREFIX + path);
+            }
+        }
+        for (Map.Entry<String, String> entry : newState.entrySet()) {
+            String path = entry.getKey();
+            if (!entry.getValue().equals(oldState.get(path)) && !isLogged(branch, path)) {
+                getLines(volumeLines, path).add(path);
+            }
+        }
+        return volumeLines;
+    }
+
+    /**
+     * Method to check if an rsync delta log written since the previous scan already lists a file
+     * @param branch the Branch object of the file
+     * @param path the path of the file relative to its <code>pairtree_root</code>
+     * @return <code>true</code> if the file is already logged, <code>false</code> otherwise
+     */
+    private boolean isLogged(Branch branch, String path) {
+        return loggedPaths.contains(new File(branch.pairtreeRoot, path).getAbsolutePath());
+    }
+
+    /**
+     * Method to get the delta log lines of the volume a file belongs to
+     * @param volumeLines a Map from each changed volume directory to its delta log lines
+     * @param path the path of a volume file
+     * @return the List of delta log lines of the volume
+     */
+    private static List<String> getLines(Map<String, List<String>> volumeLines, String path) {
+        String volumeDir = path.substring(0, path.lastIndexOf('/') + 1);
+        List<String> lines = volumeLines.get(volumeDir);
+        if (lines == null) {
+            lines = new ArrayList<String>();
+            volumeLines.put(volumeDir, lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Method to write the delta log of a branch
+     * @param branch a Branch object
+     * @param volumeLines a Map from each changed volume directory to its delta log lines
+     * @throws IOException thrown if the delta log could not be written
+     */
+    private void writeDeltaLog(Branch branch, Map<String, List<String>> volumeLines) throws IOException {
+        int index = 0;
+        synchronized (this) {
+            index = deltaLogCount++;
+            changedVolumeCount += volumeLines.size();
+        }
+        String prefix = branch.pairtreeRoot.getAbsoluteFile().getParentFile().getName();
+        File dlogFile = new File(deltaLogDir, "t-" + index + "-0.txt");
+        Writer writer = new FileWriter(dlogFile);
+        try {
+            writer.write(DEST_ROOT_PREFIX + Util.addTrailingSlash(branch.pairtreeRoot.getAbsolutePath()) + "\n");
+            writer.write("PREFIX=" + prefix + ".\n");
+            writer.write("COPYRIGHT=" + CopyrightEnum.PUBLIC_DOMAIN.toString() + "\n");
+            for (List<String> lines : volumeLines.values()) {
+                for (String line : lines) {
+                    writer.write(line + "\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (log.isDebugEnabled()) log.debug("Captured changes to " + volumeLines.size() + " volumes of branch " + branch.name + " in " + dlogFile.getPath());
+    }
+
+    /**
+     * Method to read the state of a branch recorded by the previous scan
+     * @param stateFile the state file of the branch
+     * @return a Map from the relative path of a volume file to its size and modification time, or <code>null</code> if the
+     * branch has not been scanned before
+     * @throws IOException thrown if the state file could not be read
+     */
+    private Map<String, String> readState(File stateFile) throws IOException {
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        Map<String, String> state = new TreeMap<String, String>();
+        BufferedReader reader = new BufferedReader(new FileReader(stateFile));
+        try {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                int index = line.indexOf(SEPARATOR);
+                if (index > 0 && !line.startsWith(PAIRTREE_ROOT_PREFIX) && !line.startsWith(BRANCH_PREFIX)) {
+                    state.put(line.substring(0, index), line.substring(index + 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return state;
+    }
+
+    /**
+     * Method to save the state of a branch, replacing its state file only once the new one is complete
+     * @param branch a Branch object
+     * @param state a Map from the relative path of a volume file to its size and modification time
+     * @throws IOException thrown if the state file could not be written
+     */
+    private void writeState(Branch branch, Map<String, String> state) throws IOException {
+        File partialFile = new File(branch.stateFile.getPath() + ".partial");
+        Writer writer = new FileWriter(partialFile);
+        try {
+            writer.write(PAIRTREE_ROOT_PREFIX + branch.pairtreeRoot.getAbsolutePath() + "\n");
+            writer.write(BRANCH_PREFIX + branch.name + "\n");
+            for (Map.Entry<String, String> entry : state.entrySet()) {
+                writer.write(entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!partialFile.renameTo(branch.stateFile)) {
+            throw new IOException("Unable to rename " + partialFile.getPath() + " to " + branch.stateFile.getPath());
+        }
+    }
+
+    /**
+     * Method to read the absolute paths of the volume files listed in the delta logs written since the previous scan
+     * @param lastScanTime the time of the previous scan, as in a delta log directory name
+     * @return a Set of absolute paths
+     */
+    private Set<String> readLoggedPaths(String lastScanTime) {
+        Set<String> paths = new HashSet<String>();
+        File[] dirs = deltaLogRoot.listFiles();
+        if (dirs == null) {
+            return paths;
+        }
+        for (File dir : dirs) {
+            Matcher matcher = DELTA_LOG_DIR_NAME.matcher(dir.getName());
+            if (!dir.isDirectory() || !matcher.matches() || matcher.group(1).compareTo(lastScanTime) <= 0) {
+                continue;
+            }
+            File[] dlogFiles = dir.listFiles();
+            if (dlogFiles == null) {
+                continue;
+            }
+            for (File dlogFile : dlogFiles) {
+                if (dlogFile.getName().matches(DELTA_LOG_FILE_REGEX)) {
+                    readLoggedPaths(dlogFile, paths);
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Method to read the absolute paths of the volume files listed in a delta log
+     * @param dlogFile a delta log file
+     * @param paths a Set the absolute paths are added to
+     */
+    private void readLoggedPaths(File dlogFile, Set<String> paths) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(dlogFile));
+            try {
+                String destRootPath = null;
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(DEST_ROOT_PREFIX)) {
+                        destRootPath = line.substring(DEST_ROOT_PREFIX.length());
+                        continue;
+                    }
+                    DeltaLogEntry entry = DeltaLogEntry.parse(line);
+                    String path = (entry != null) ? entry.getPath() : (line.startsWith(DELETING_PREFIX) ? line.substring(DELETING_PREFIX.length()) : line);
+                    if (destRootPath != null && (path.endsWith(ZIP_SUFFIX) || path.endsWith(METS_SUFFIX))) {
+                        paths.add(new File(destRootPath + path).getAbsolutePath());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            log.error("Unable to read delta log " + dlogFile.getPath() + " for the files it lists", e);
+        }
+    }
+
+    /**
+     * Method to read the time of the previous scan
+     * @return the time of the previous scan, as in a delta log directory name, or <code>null</code> if there was none
+     */
+    private String readLastScanTime() {
+        File file = new File(stateDir, LAST_SCAN_FILENAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                return (line == null) ? null : line.trim();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            log.error("Unable to read " + file.getPath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Method to save the time of this scan
+     * @param scanTime the time of this scan, as in a delta log directory name
+     */
+    private void writeLastScanTime(String scanTime) {
+        File file = new File(stateDir, LAST_SCAN_FILENAME);
+        try {
+            Writer writer = new FileWriter(file);
+            try {
+                writer.write(scanTime + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            log.error("Unable to write " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * Method to get the delta log directory of the last scan
+     * @return the delta log directory, which no longer exists if the scan captured no changes
+     */
+    public File getDeltaLogDir() {
+        return deltaLogDir;
+    }
+}
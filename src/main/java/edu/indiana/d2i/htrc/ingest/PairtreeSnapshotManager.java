@@ -0,0 +1,392 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  PairtreeSnapshotManager.java
+# Description: This class freezes the Pairtree state a delta log directory refers to in a snapshot of hard links
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class freezes the Pairtree state a delta log directory refers to, so the push of a run can read it while the next
+ * run rsyncs into the Pairtree. The snapshot of a delta log directory holds a hard link to every file of every volume
+ * directory its delta logs list as changed, under the same absolute path below the snapshot directory. rsync, the
+ * transfer engines and the landing movers replace a file by renaming a new file over it, so the linked inode, and the
+ * snapshot, keep the content of the run. The links are made by <code>cp -al</code>, so the snapshot root has to be on the
+ * same filesystem as the Pairtree.
+ * <p>
+ * Once a snapshot is complete, a marker file holding its path is written into the delta log directory; the delta log
+ * parser reads the volumes through it, and the push of a run only picks up delta log directories with a marker. A
+ * snapshot is deleted once its delta log directory reaches the final state of the run, e.g. _VERIFIED_
+ */
+public class PairtreeSnapshotManager {
+    private static Logger log = Logger.getLogger(PairtreeSnapshotManager.class);
+
+    public static final String SNAPSHOT_MARKER = "_SNAPSHOT_";
+
+    private static final String DELTA_LOG_DIR_REGEX = "dlog-\\d{8}-\\d{9}";
+    private static final String DELTA_LOG_FILE_REGEX = "t-\\d+-\\d+\\.txt";
+    private static final String DEST_ROOT_PREFIX = "DEST_ROOT=";
+    private static final String DELETING_PREFIX = "deleting ";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final int LINK_BATCH_SIZE = 256;
+
+    private final File snapshotRoot;
+
+    /**
+     * Constructor
+     * @param snapshotRoot the directory under which the snapshots are created, on the same filesystem as the Pairtree
+     */
+    public PairtreeSnapshotManager(String snapshotRoot) {
+        this.snapshotRoot = new File(snapshotRoot);
+    }
+
+    /**
+     * Method to check if a delta log directory has its snapshot
+     * @param deltaLogDir a delta log directory
+     * @return <code>true</code> if the snapshot of the directory is complete, <code>false</code> otherwise
+     */
+    public static boolean isSnapshotted(File deltaLogDir) {
+        return new File(deltaLogDir, SNAPSHOT_MARKER).isFile();
+    }
+
+    /**
+     * Method to read the path of the snapshot of a delta log directory from its marker file
+     * @param deltaLogDir a delta log directory
+     * @return the path of the snapshot directory, or <code>null</code> if the directory has no snapshot
+     */
+    public static String readSnapshotPath(File deltaLogDir) {
+        File marker = new File(deltaLogDir, SNAPSHOT_MARKER);
+        if (!marker.isFile()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(marker));
+            try {
+                String line = reader.readLine();
+                return (line == null || line.trim().equals("")) ? null : line.trim();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            log.error("Unable to read snapshot marker " + marker.getPath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Method to map a path to its place in a snapshot
+     * @param snapshotPath the path of the snapshot directory
+     * @param path a path in the Pairtree
+     * @return the path of the same file or directory in the snapshot
+     */
+    public static String getSnapshotPath(String snapshotPath, String path) {
+        return snapshotPath + new File(path).getAbsolutePath();
+    }
+
+    /**
+     * Method to snapshot every delta log directory under the delta log root that has no snapshot yet, i.e. those of the
+     * run just finished and of any earlier run that stopped before its snapshot
+     * @param deltaLogRoot the delta log root directory
+     */
+    public void snapshotPending(String deltaLogRoot) {
+        File[] dirs = new File(deltaLogRoot).listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (dir.isDirectory() && dir.getName().matches(DELTA_LOG_DIR_REGEX) && !isSnapshotted(dir)) {
+                snapshot(dir);
+            }
+        }
+    }
+
+    /**
+     * Method to snapshot the volume directories a delta log directory lists as changed. The snapshot is built under a
+     * temporary name and renamed into place once complete. If it cannot be built, the marker is written empty, so the
+     * delta logs are still pushed, from the Pairtree itself
+     * @param deltaLogDir a delta log directory
+     * @return <code>true</code> if the snapshot was built, <code>false</code> otherwise
+     */
+    public boolean snapshot(File deltaLogDir) {
+        String name = deltaLogDir.getName();
+        File snapshotDir = new File(snapshotRoot, name);
+        File partialDir = new File(snapshotRoot, "." + name + PARTIAL_SUFFIX);
+        boolean built = false;
+        try {
+            delete(partialDir);
+            if (!partialDir.mkdirs()) {
+                throw new IOException("Unable to create directory " + partialDir.getPath());
+            }
+            Set<String> volumeDirs = collectVolumeDirs(deltaLogDir);
+            List<String> batch = new ArrayList<String>(LINK_BATCH_SIZE);
+            for (String volumeDir : volumeDirs) {
+                batch.add(volumeDir);
+                if (batch.size() == LINK_BATCH_SIZE) {
+                    link(batch, partialDir);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                link(batch, partialDir);
+            }
+            delete(snapshotDir);
+            if (!partialDir.renameTo(snapshotDir)) {
+                throw new IOException("Unable to rename " + partialDir.getPath() + " to " + snapshotDir.getPath());
+            }
+            log.info("Snapshot of " + volumeDirs.size() + " volume directories for " + deltaLogDir.getPath() + " created in " + snapshotDir.getPath());
+            built = true;
+        } catch (IOException e) {
+            log.error("Failed to snapshot " + deltaLogDir.getPath() + ". Its delta logs are pushed from the Pairtree", e);
+        } catch (InterruptedException e) {
+            log.error("Interrupted while snapshotting " + deltaLogDir.getPath() + ". Its delta logs are pushed from the Pairtree", e);
+        } finally {
+            if (!built) {
+                delete(partialDir);
+            }
+        }
+        writeMarker(deltaLogDir, built ? snapshotDir.getAbsolutePath() : "");
+        return built;
+    }
+
+    /**
+     * Method to collect the volume directories the delta logs of a directory list as changed
+     * @param deltaLogDir a delta log directory
+     * @return a Set of absolute paths of volume directories, without the leading slash
+     * @throws IOException thrown if a delta log could not be read
+     */
+    protected Set<String> collectVolumeDirs(File deltaLogDir) throws IOException {
+        Set<String> volumeDirs = new TreeSet<String>();
+        File[] deltaLogs = deltaLogDir.listFiles();
+        if (deltaLogs == null) {
+            return volumeDirs;
+        }
+        for (File deltaLog : deltaLogs) {
+            if (!deltaLog.isFile() || !deltaLog.getName().matches(DELTA_LOG_FILE_REGEX)) {
+                continue;
+            }
+            BufferedReader reader = new BufferedReader(new FileReader(deltaLog));
+            try {
+                String destRoot = null;
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(DEST_ROOT_PREFIX)) {
+                        destRoot = line.substring(DEST_ROOT_PREFIX.length());
+                        continue;
+                    }
+                    if (destRoot == null || line.startsWith(DELETING_PREFIX) || line.endsWith("/")) {
+                        continue;
+                    }
+                    String path = line;
+                    DeltaLogEntry entry = DeltaLogEntry.parse(line);
+                    if (entry != null) {
+                        if (entry.isDeletion() || !entry.isFile()) {
+                            continue;
+                        }
+                        path = entry.getPath();
+                    }
+                    // summary and header lines name no file, so only existing files count
+                    File file = new File(destRoot, path);
+                    if (file.isFile()) {
+                        volumeDirs.add(file.getParentFile().getAbsolutePath().substring(1));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return volumeDirs;
+    }
+
+    /**
+     * Method to hard link directories into a snapshot under their absolute paths
+     * @param dirs a List of absolute paths of directories, without the leading slash
+     * @param targetDir the snapshot directory
+     * @throws IOException thrown if cp could not be run or failed
+     * @throws InterruptedException thrown if interrupted while waiting for cp
+     */
+    private void link(List<String> dirs, File targetDir) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add("cp");
+        command.add("-al");
+        command.add("--parents");
+        command.add("-t");
+        command.add(targetDir.getAbsolutePath());
+        command.add("--");
+        command.addAll(dirs);
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        // cp --parents resolves the paths against the working directory
+        processBuilder.directory(new File("/"));
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        StringBuilder output = new StringBuilder();
+        InputStream inputStream = process.getInputStream();
+        byte[] buffer = new byte[4096];
+        int count = 0;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            output.append(new String(buffer, 0, count));
+        }
+        inputStream.close();
+        int exitValue = process.waitFor();
+        if (exitValue != 0) {
+            throw new IOException("cp exited with " + exitValue + ": " + output.toString().trim());
+        }
+    }
+
+    /**
+     * Method to write the snapshot marker of a delta log directory
+     * @param deltaLogDir a delta log directory
+     * @param snapshotPath the path of the snapshot directory, or an empty String if there is no snapshot
+     */
+    private void writeMarker(File deltaLogDir, String snapshotPath) {
+        try {
+            Writer writer = new FileWriter(new File(deltaLogDir, SNAPSHOT_MARKER));
+            try {
+                writer.write(snapshotPath);
+                writer.write(System.getProperty("line.separator"));
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            log.error("Unable to write the snapshot marker of " + deltaLogDir.getPath(), e);
+        }
+    }
+
+    /**
+     * Method to delete the snapshots no longer needed: those whose delta log directory has reached the given state, or is gone
+     * @param deltaLogRoot the delta log root directory
+     * @param donePrefix the name prefix of delta log directories that are done with, e.g. _VERIFIED_
+     */
+    public void collect(String deltaLogRoot, String donePrefix) {
+        collect(deltaLogRoot, donePrefix, null, null);
+    }
+
+    /**
+     * Method to delete the snapshots no longer needed: those whose delta log directory has reached the given state, either
+     * by its name or by its state in the ingest ledger, or is gone
+     * @param deltaLogRoot the delta log root directory
+     * @param donePrefix the name prefix of delta log directories that are done with, e.g. _VERIFIED_
+     * @param ingestLedger an IngestLedger object the delta log directories are recorded in, or <code>null</code> if no ledger is kept
+     * @param doneState the state of delta log directories in the ledger that are done with, e.g. VERIFIED
+     */
+    public void collect(String deltaLogRoot, String donePrefix, IngestLedger ingestLedger, IngestLedger.State doneState) {
+        File[] snapshotDirs = snapshotRoot.listFiles();
+        if (snapshotDirs == null) {
+            return;
+        }
+        for (File snapshotDir : snapshotDirs) {
+            String name = snapshotDir.getName();
+            if (!name.matches(DELTA_LOG_DIR_REGEX)) {
+                continue;
+            }
+            File doneDir = new File(deltaLogRoot, donePrefix + name);
+            if (doneDir.isDirectory() || isDone(ingestLedger, name, doneState) || !hasDeltaLogDir(deltaLogRoot, name)) {
+                delete(snapshotDir);
+                log.info("Snapshot " + snapshotDir.getPath() + " deleted");
+            }
+        }
+    }
+
+    /**
+     * Method to check if the ingest ledger records a delta log directory as done with
+     * @param ingestLedger an IngestLedger object, or <code>null</code> if no ledger is kept
+     * @param name the name of the delta log directory without a state prefix
+     * @param doneState the state of delta log directories that are done with
+     * @return <code>true</code> if the directory has reached the state, or is verified, <code>false</code> otherwise
+     */
+    private static boolean isDone(IngestLedger ingestLedger, String name, IngestLedger.State doneState) {
+        if (ingestLedger == null) {
+            return false;
+        }
+        IngestLedger.State state = ingestLedger.getDeltaLogDirState(name);
+        return state != null && (state == doneState || state == IngestLedger.State.VERIFIED);
+    }
+
+    /**
+     * Method to check if a delta log directory exists in any state
+     * @param deltaLogRoot the delta log root directory
+     * @param name the name of the delta log directory without a state prefix
+     * @return <code>true</code> if it exists, <code>false</code> otherwise
+     */
+    private boolean hasDeltaLogDir(String deltaLogRoot, String name) {
+        File[] dirs = new File(deltaLogRoot).listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.isDirectory() && dir.getName().endsWith(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method to delete a file or a directory recursively. Only the links are removed; the Pairtree keeps its files
+     * @param file the File to delete
+     */
+    private void delete(File file) {
+        File[] children = isSymbolicLink(file) ? null : file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            log.warn("Unable to delete snapshot file " + file.getPath());
+        }
+    }
+
+    /**
+     * Method to check if a file is a symbolic link, which cp -a copies as is, so deleting never follows one into the Pairtree
+     * @param file a File object
+     * @return <code>true</code> if the file is a symbolic link, <code>false</code> otherwise
+     */
+    private boolean isSymbolicLink(File file) {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            File resolved = (parent == null) ? file.getAbsoluteFile() : new File(parent.getCanonicalFile(), file.getName());
+            return !resolved.getCanonicalFile().equals(resolved.getAbsoluteFile());
+        } catch (IOException e) {
+            log.warn("Unable to resolve " + file.getPath(), e);
+            return true;
+        }
+    }
+}
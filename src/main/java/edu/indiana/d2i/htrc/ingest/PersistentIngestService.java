@@ -158,8 +158,71 @@ public class PersistentIngestService {
         }
     }
     
+    /**
+     * This class runs the noSQL push and the verification of the snapshotted delta log directories in the background,
+     * then deletes the snapshots that are done with
+     * @author Yiming Sun
+     *
+     */
+    static class SnapshotPushRunner implements Runnable {
+        private static Logger log = Logger.getLogger(SnapshotPushRunner.class);
+        private final PairtreeSnapshotManager snapshotManager;
+        private final String deltaLogRoot;
+        private final boolean performVerification;
+        
+        /**
+         * Constructor
+         * @param snapshotManager the PairtreeSnapshotManager of the snapshots
+         * @param deltaLogRoot the delta log root directory
+         * @param performVerification <code>true</code> to verify the pushed data, <code>false</code> otherwise
+         */
+        SnapshotPushRunner(PairtreeSnapshotManager snapshotManager, String deltaLogRoot, boolean performVerification) {
+            this.snapshotManager = snapshotManager;
+            this.deltaLogRoot = deltaLogRoot;
+            this.performVerification = performVerification;
+        }
+        
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            log.info("Syncking data from pairtree snapshots to cassandra...");
+            PairtreeToCassandraDataSyncker dataSyncker = new PairtreeToCassandraDataSyncker();
+            dataSyncker.setSnapshottedOnly(true);
+            dataSyncker.process();
+            log.info("Done syncking data from pairtree snapshots");
+            
+            if (performVerification) {
+                log.info("Verifying data...");
+                Verificationer verificationer = new Verificationer();
+                verificationer.verify();
+                log.info("Done verifying data");
+            } else {
+                log.info("Skipping data verification");
+            }
+            
+            snapshotManager.collect(deltaLogRoot, performVerification ? "_VERIFIED_" : "_PROCESSED_", IngestLedger.getConfiguredInstance(),
+                    performVerification ? IngestLedger.State.VERIFIED : IngestLedger.State.PARSED);
+        }
+    }
+    
     private static Logger log = Logger.getLogger(PersistentIngestService.class);
     
+    /**
+     * Method to wait for the background push of the previous run, if any
+     * @param pushThread the Thread running the background push, or <code>null</code>
+     */
+    private static void joinPushThread(Thread pushThread) {
+        if (pushThread != null && pushThread.isAlive()) {
+            log.info("Waiting for the background push of the previous run...");
+            try {
+                pushThread.join();
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for the background push", e);
+            }
+        }
+    }
+    
     /**
      * Method to check for stop signal
      * @param controlFileBean a ControlFileBean object
@@ -187,8 +250,29 @@ public class PersistentIngestService {
         boolean performRsync = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_RSYNC));
         boolean performNosqlPush = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_NOSQL_PUSH));
         boolean performVerification = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_VERIFICATION));
+        boolean performPipelinedIngest = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_PIPELINED_INGEST));
+        
+        String deltaLogRoot = propertyReader.getProperty(Constants.PK_DELTA_LOG_ROOT);
+        String snapshotRoot = propertyReader.getProperty(Constants.PK_PERSIST_PAIRTREE_SNAPSHOT_ROOT);
+        PairtreeSnapshotManager snapshotManager = null;
+        if (snapshotRoot != null && !snapshotRoot.trim().equals("")) {
+            if (performPipelinedIngest) {
+                log.warn(Constants.PK_PERSIST_PAIRTREE_SNAPSHOT_ROOT + " does not apply to pipelined ingest");
+            } else {
+                snapshotManager = new PairtreeSnapshotManager(snapshotRoot.trim());
+            }
+        }
+        String changeCaptureStateDir = propertyReader.getProperty(Constants.PK_PERSIST_CHANGE_CAPTURE_STATE_DIR);
+        PairtreeChangeCapture changeCapture = null;
+        long changeCaptureInterval = Util.getIntProperty(propertyReader.getProperty(Constants.PK_PERSIST_CHANGE_CAPTURE_INTERVAL_IN_MS), 3600000);
+        if (changeCaptureStateDir != null && !changeCaptureStateDir.trim().equals("")) {
+            int changeCaptureThreadCount = Util.getIntProperty(propertyReader.getProperty(Constants.PK_PERSIST_CHANGE_CAPTURE_THREAD_COUNT), 4);
+            changeCapture = new PairtreeChangeCapture(propertyReader.getProperty(Constants.PK_RSYNC_DEST_ROOT), deltaLogRoot, changeCaptureStateDir.trim(), changeCaptureThreadCount);
+        }
+        Thread pushThread = null;
         
         long nextIngestTime = 0L;
+        long nextChangeCaptureTime = 0L;
         
         if (!performRsync || !performNosqlPush) {
             log.warn("Persistent Ingest Service must run rsync and nosql push. Exiting now...");
@@ -200,26 +284,45 @@ public class PersistentIngestService {
             do {
                 if (System.currentTimeMillis() >= nextIngestTime) {
                     try {
-                        log.info("Rsyncking data from remote source to local pairtree...");
-                        Ingester ingester = new Ingester();
-                        ingester.ingest();
+                        if (performPipelinedIngest) {
+                            log.info("Running rsync, noSQL push" + (performVerification ? " and data verification" : "") + " as a pipeline...");
+                            IngestPipeline pipeline = new IngestPipeline(performVerification);
+                            pipeline.run();
+                            log.info("Done with pipelined ingest");
+                        } else if (snapshotManager != null) {
+                            log.info("Rsyncking data from remote source to local pairtree...");
+                            Ingester ingester = new Ingester();
+                            ingester.ingest();
+                            log.info("Done rsyncking with remote source");
+                            
+                            log.info("Snapshotting the pairtree for the new delta logs...");
+                            snapshotManager.snapshotPending(deltaLogRoot);
+                            
+                            joinPushThread(pushThread);
+                            pushThread = new Thread(new SnapshotPushRunner(snapshotManager, deltaLogRoot, performVerification), "SnapshotPush");
+                            pushThread.start();
+                        } else {
+                            log.info("Rsyncking data from remote source to local pairtree...");
+                            Ingester ingester = new Ingester();
+                            ingester.ingest();
                     
-                        log.info("Done rsyncking with remote source");
+                            log.info("Done rsyncking with remote source");
                         
-                        log.info("Syncking data from local pairtree to cassandra...");
+                            log.info("Syncking data from local pairtree to cassandra...");
                         
-                        PairtreeToCassandraDataSyncker dataSyncker = new PairtreeToCassandraDataSyncker();
-                        dataSyncker.process();
+                            PairtreeToCassandraDataSyncker dataSyncker = new PairtreeToCassandraDataSyncker();
+                            dataSyncker.process();
         
-                        log.info("Done syncking data from local pairtree");
+                            log.info("Done syncking data from local pairtree");
                         
-                        if (performVerification) {
-                            log.info("Verifying data...");
-                            Verificationer verificationer = new Verificationer();
-                            verificationer.verify();
-                            log.info("Done verifying data");
-                        } else {
-                            log.info("Skipping data verification");
+                            if (performVerification) {
+                                log.info("Verifying data...");
+                                Verificationer verificationer = new Verificationer();
+                                verificationer.verify();
+                                log.info("Done verifying data");
+                            } else {
+                                log.info("Skipping data verification");
+                            }
                         }
     
                     } catch (IngestException e) {
@@ -230,6 +333,41 @@ public class PersistentIngestService {
                     log.info("Next ingest time: " + (new Date(nextIngestTime)).toString());
                 }
                 
+                if (changeCapture != null && System.currentTimeMillis() >= nextChangeCaptureTime) {
+                    try {
+                        log.info("Capturing changes made to local pairtree by other means than rsync...");
+                        int volumeCount = changeCapture.capture();
+                        log.info("Done capturing changes to " + volumeCount + " volumes");
+                        
+                        if (volumeCount == 0) {
+                            log.info("Nothing to push");
+                        } else if (snapshotManager != null) {
+                            log.info("Snapshotting the pairtree for the captured changes...");
+                            snapshotManager.snapshotPending(deltaLogRoot);
+                            
+                            joinPushThread(pushThread);
+                            pushThread = new Thread(new SnapshotPushRunner(snapshotManager, deltaLogRoot, performVerification), "SnapshotPush");
+                            pushThread.start();
+                        } else {
+                            log.info("Syncking captured changes from local pairtree to cassandra...");
+                            PairtreeToCassandraDataSyncker dataSyncker = new PairtreeToCassandraDataSyncker();
+                            dataSyncker.process();
+                            log.info("Done syncking captured changes");
+                            
+                            if (performVerification) {
+                                log.info("Verifying data...");
+                                Verificationer verificationer = new Verificationer();
+                                verificationer.verify();
+                                log.info("Done verifying data");
+                            }
+                        }
+                    } catch (IngestException e) {
+                        log.error("Change capture terminated abnormally due to exception", e);
+                    }
+                    
+                    nextChangeCaptureTime = System.currentTimeMillis() + changeCaptureInterval;
+                }
+                
                 stop = checkStopSignal(controlFileBean);
                 
                 if (!stop) {
@@ -241,6 +379,8 @@ public class PersistentIngestService {
                 }
             } while (!stop);
             
+            joinPushThread(pushThread);
+            
             log.info("Shutting down hector manager singleton");
             HectorManager.getInstance().shutdown();
             
@@ -209,5 +209,24 @@ public class Util {
         }
         return result;
     }
+
+    /**
+     * Method to convert a property value to an int, falling back to the specified default if the property is missing or malformed
+     * @param propertyValue a String to be converted to int
+     * @param defaultValue the value to return if the property value is <code>null</code>, blank, or not an int
+     * @return the int value of the property, or the default value
+     */
+    public static int getIntProperty(String propertyValue, int defaultValue) {
+        int result = defaultValue;
+        
+        if (propertyValue != null && !propertyValue.trim().equals("")) {
+            try {
+                result = Integer.parseInt(propertyValue.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Malformed int property value " + propertyValue + ". Using default " + defaultValue, e);
+            }
+        }
+        return result;
+    }
 }
 
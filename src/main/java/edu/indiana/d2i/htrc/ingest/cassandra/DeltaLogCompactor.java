@@ -0,0 +1,286 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  DeltaLogCompactor.java
+# Description: This class merges the volumes of all pending delta logs into one final action per volume
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.cassandra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeDeletionInfo;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeUpdateInfo;
+
+/**
+ * This class merges the volumes of all pending delta logs into one final action per volume, so a volume that appears in
+ * the delta logs of several runs is pushed once instead of once per run. The delta logs have to be added oldest first,
+ * and the volumes of each are merged by these rules:
+ * <ul>
+ * <li>a later update replaces an earlier one, so the volume is read from where the latest run left it</li>
+ * <li>a deletion of the volume drops any earlier update, while a deletion of the METS file only keeps it, as the update
+ * still has to push the zip file; either way the deletion is merged with any earlier deletion</li>
+ * <li>an update after a deletion keeps the deletion, so the volume is deleted and then re-created, just like a volume
+ * deleted and updated in the same delta log</li>
+ * </ul>
+ * A delta log is marked as parsed once every compacted volume it contributed to has been pushed without error. With an
+ * IngestLedger, the volumes a delta log has already had pushed are left out before merging, and each pushed volume is
+ * recorded for every delta log it was merged from
+ */
+class DeltaLogCompactor {
+    private static Logger log = Logger.getLogger(DeltaLogCompactor.class);
+
+    /**
+     * This class counts the outstanding volumes of a delta log
+     */
+    static class CompactedDeltaLog implements VolumeEvent.Source {
+        private final String deltaLogPath;
+        private final IngestLedger ingestLedger;
+        // number of published volumes not processed yet, plus 1 until all volumes are published
+        private final AtomicInteger outstandingCount;
+        private volatile boolean failed;
+
+        /**
+         * Constructor
+         * @param deltaLogPath path to the delta log file
+         * @param ingestLedger an IngestLedger object to record the pushed volumes in, or <code>null</code> if no ledger is kept
+         */
+        CompactedDeltaLog(String deltaLogPath, IngestLedger ingestLedger) {
+            this.deltaLogPath = deltaLogPath;
+            this.ingestLedger = ingestLedger;
+            this.outstandingCount = new AtomicInteger(1);
+            this.failed = false;
+        }
+
+        /**
+         * Method to count down the outstanding volumes of the delta log, and mark the delta log as parsed when the last one is done
+         * @param volumeID the volumeID of the volume, or <code>null</code> if the release is not for a volume
+         * @param successful <code>true</code> if the volume was pushed without error, <code>false</code> otherwise
+         */
+        public void release(String volumeID, boolean successful) {
+            if (!successful) {
+                failed = true;
+            }
+            if (ingestLedger != null && volumeID != null && !DeltaLogProcessor.recordVolume(ingestLedger, deltaLogPath, volumeID, successful)) {
+                failed = true;
+            }
+            if (outstandingCount.decrementAndGet() == 0) {
+                if (failed) {
+                    log.warn("Not all volumes from " + deltaLogPath + " were pushed. Leaving it unparsed");
+                } else {
+                    try {
+                        DeltaLogProcessor.markLogAsDone(deltaLogPath, ingestLedger);
+                    } catch (IOException e) {
+                        log.error("Unable to record " + deltaLogPath + " as parsed in the ingest ledger. Leaving it unparsed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This class holds the final action on a volume, and the delta logs it was merged from
+     */
+    static class CompactedVolume implements VolumeEvent.Source {
+        private VolumeDeletionInfo volumeDeletionInfo;
+        private VolumeUpdateInfo volumeUpdateInfo;
+        private final List<CompactedDeltaLog> deltaLogs;
+
+        /**
+         * Constructor
+         */
+        CompactedVolume() {
+            this.volumeDeletionInfo = null;
+            this.volumeUpdateInfo = null;
+            this.deltaLogs = new ArrayList<CompactedDeltaLog>(2);
+        }
+
+        /**
+         * Method to record a delta log the volume appears in
+         * @param deltaLog a CompactedDeltaLog object
+         */
+        void addDeltaLog(CompactedDeltaLog deltaLog) {
+            if (!deltaLogs.contains(deltaLog)) {
+                deltaLogs.add(deltaLog);
+                deltaLog.outstandingCount.incrementAndGet();
+            }
+        }
+
+        /**
+         * Method to get the VolumeDeletionInfo object
+         * @return the VolumeDeletionInfo object, or <code>null</code> if nothing of the volume is deleted
+         */
+        VolumeDeletionInfo getVolumeDeletionInfo() {
+            return volumeDeletionInfo;
+        }
+
+        /**
+         * Method to get the VolumeUpdateInfo object
+         * @return the VolumeUpdateInfo object, or <code>null</code> if the volume ends up deleted
+         */
+        VolumeUpdateInfo getVolumeUpdateInfo() {
+            return volumeUpdateInfo;
+        }
+
+        /**
+         * Method to release every delta log the volume appears in
+         * @param volumeID the volumeID of the volume
+         * @param successful <code>true</code> if the volume was pushed without error, <code>false</code> otherwise
+         */
+        public void release(String volumeID, boolean successful) {
+            for (CompactedDeltaLog deltaLog : deltaLogs) {
+                deltaLog.release(volumeID, successful);
+            }
+        }
+    }
+
+    private final Map<String, CompactedVolume> volumeMap;
+    private final List<CompactedDeltaLog> deltaLogs;
+    private final IngestLedger ingestLedger;
+    private int actionCount;
+
+    /**
+     * Constructor
+     */
+    DeltaLogCompactor() {
+        this(null);
+    }
+
+    /**
+     * Constructor
+     * @param ingestLedger an IngestLedger object to resume and record the pushes with, or <code>null</code> if no ledger is kept
+     */
+    DeltaLogCompactor(IngestLedger ingestLedger) {
+        this.ingestLedger = ingestLedger;
+        this.volumeMap = new LinkedHashMap<String, CompactedVolume>();
+        this.deltaLogs = new ArrayList<CompactedDeltaLog>();
+        this.actionCount = 0;
+    }
+
+    /**
+     * Method to merge the volumes of a delta log. Within a delta log, deletions are carried out before updates
+     * @param deltaLogPath path to the delta log file
+     * @param volumeDeletionList a List of VolumeDeletionInfo objects parsed from the delta log
+     * @param volumeUpdateList a List of VolumeUpdateInfo objects parsed from the delta log
+     */
+    void add(String deltaLogPath, List<VolumeDeletionInfo> volumeDeletionList, List<VolumeUpdateInfo> volumeUpdateList) {
+        CompactedDeltaLog deltaLog = new CompactedDeltaLog(deltaLogPath, ingestLedger);
+        deltaLogs.add(deltaLog);
+        for (VolumeDeletionInfo volumeDeletionInfo : volumeDeletionList) {
+            if (ingestLedger != null && ingestLedger.isPushed(deltaLogPath, volumeDeletionInfo.getVolumeID())) {
+                continue;
+            }
+            CompactedVolume volume = getVolume(volumeDeletionInfo.getVolumeID());
+            volume.addDeltaLog(deltaLog);
+            if (volumeDeletionInfo.getIsDeleteVolume()) {
+                volume.volumeUpdateInfo = null;
+            }
+            if (volume.volumeDeletionInfo == null) {
+                volume.volumeDeletionInfo = volumeDeletionInfo;
+            } else {
+                volume.volumeDeletionInfo.setIsDeleteVolume(volume.volumeDeletionInfo.getIsDeleteVolume() || volumeDeletionInfo.getIsDeleteVolume());
+                volume.volumeDeletionInfo.setIsDeleteMETS(volume.volumeDeletionInfo.getIsDeleteMETS() || volumeDeletionInfo.getIsDeleteMETS());
+                volume.volumeDeletionInfo.setCopyright(volumeDeletionInfo.getCopyright());
+            }
+            actionCount++;
+        }
+        for (VolumeUpdateInfo volumeUpdateInfo : volumeUpdateList) {
+            if (ingestLedger != null && ingestLedger.isPushed(deltaLogPath, volumeUpdateInfo.getVolumeID())) {
+                continue;
+            }
+            CompactedVolume volume = getVolume(volumeUpdateInfo.getVolumeID());
+            volume.addDeltaLog(deltaLog);
+            volume.volumeUpdateInfo = volumeUpdateInfo;
+            actionCount++;
+        }
+    }
+
+    /**
+     * Method to get the CompactedVolume object of a volume, creating it if the volume has not been seen yet
+     * @param volumeID the volumeID
+     * @return the CompactedVolume object
+     */
+    private CompactedVolume getVolume(String volumeID) {
+        CompactedVolume volume = volumeMap.get(volumeID);
+        if (volume == null) {
+            volume = new CompactedVolume();
+            volumeMap.put(volumeID, volume);
+        }
+        return volume;
+    }
+
+    /**
+     * Method to get the number of volumes left after compaction
+     * @return the number of volumes
+     */
+    int getVolumeCount() {
+        return volumeMap.size();
+    }
+
+    /**
+     * Method to get the number of volume actions merged, before compaction
+     * @return the number of volume actions
+     */
+    int getActionCount() {
+        return actionCount;
+    }
+
+    /**
+     * Method to get the compacted volumes, in the order they were first seen
+     * @return a List of CompactedVolume objects
+     */
+    List<CompactedVolume> getVolumes() {
+        return new ArrayList<CompactedVolume>(volumeMap.values());
+    }
+
+    /**
+     * Method to publish each compacted volume as a VolumeEvent. A delta log all of whose volumes are published and pushed
+     * is marked as parsed; a delta log with a volume left unpublished, e.g. when interrupted, is left for the next run
+     * @param volumeEventQueue a BoundedJobQueue to which the volumes are published
+     * @throws InterruptedException thrown if interrupted while waiting for room in the queue
+     */
+    void publish(BoundedJobQueue<VolumeEvent> volumeEventQueue) throws InterruptedException {
+        log.info("Compacted " + actionCount + " volume actions from " + deltaLogs.size() + " delta logs into " + volumeMap.size() + " volumes");
+        for (CompactedVolume volume : volumeMap.values()) {
+            volumeEventQueue.put(new VolumeEvent(volume, volume.volumeDeletionInfo, volume.volumeUpdateInfo));
+        }
+        volumeMap.clear();
+        for (CompactedDeltaLog deltaLog : deltaLogs) {
+            deltaLog.release(null, true);
+        }
+        deltaLogs.clear();
+    }
+}
@@ -31,12 +31,14 @@
  */
 package edu.indiana.d2i.htrc.ingest.cassandra;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -44,15 +46,37 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+import edu.indiana.d2i.htrc.ingest.DeltaLogEntry;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.Record;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.RecordHandler;
+import edu.indiana.d2i.htrc.ingest.PairtreeSnapshotManager;
 import gov.loc.repository.pairtree.Pairtree;
 
 /**
- * This class parses delta logs produced by rsync with verbose mode enabled
+ * This class parses delta logs produced by rsync with verbose mode enabled. A delta log with a FORMAT=ITEMIZED header is
+ * scanned for its itemized fields instead of by file name alone, so files whose content did not change are skipped and the
+ * bytes to push are counted
  * @author Yiming Sun
  *
  */
 public class DeltaLogParser {
     
+    /**
+     * This interface receives the volumes parsed from a delta log, one volume at a time
+     * @author Yiming Sun
+     *
+     */
+    static interface VolumeHandler {
+        /**
+         * Method to handle a volume parsed from a delta log
+         * @param volumeDeletionInfo a VolumeDeletionInfo object if the volume or its METS is deleted, or <code>null</code>
+         * @param volumeUpdateInfo a VolumeUpdateInfo object if the volume is new or updated, or <code>null</code>
+         * @throws InterruptedException thrown if interrupted while handling the volume
+         */
+        public void handleVolume(VolumeDeletionInfo volumeDeletionInfo, VolumeUpdateInfo volumeUpdateInfo) throws InterruptedException;
+    }
+    
     /**
      * This class holds information on a volume to be updated
      * @author Yiming Sun
@@ -64,6 +88,9 @@ public class DeltaLogParser {
         protected String volumeID;
         protected String cleanedPartialVolumeID;
         protected String volumePath;
+        protected String landingPath;
+        protected String snapshotPath;
+        protected long byteCount;
 
         protected CopyrightEnum copyright;
 
@@ -77,6 +104,9 @@ public class DeltaLogParser {
             this.volumeID = volumeID;
             this.cleanedPartialVolumeID = cleanedPartialVolumeID;
             this.volumePath = volumePath;
+            this.landingPath = null;
+            this.snapshotPath = null;
+            this.byteCount = 0L;
 
             copyright = CopyrightEnum.PUBLIC_DOMAIN;
   
@@ -88,6 +118,13 @@ public class DeltaLogParser {
         String getVolumeID() {
             return volumeID;
         }
+        /**
+         * Method to return the cleaned partial volumeID
+         * @return volumeID with prefix removed and the rest cleaned by Pairtree
+         */
+        String getCleanedPartialVolumeID() {
+            return cleanedPartialVolumeID;
+        }
         /**
          * Method to return the Pairtree path to the volume
          * @return the Pairtree path to the volume
@@ -102,6 +139,49 @@ public class DeltaLogParser {
         void setVolumePath(String volumePath) {
             this.volumePath = volumePath;
         }
+        /**
+         * Method to set the path to the volume in the local landing directory, where the files the rsync job changed landed
+         * @param landingPath the path to the volume in the landing directory, or <code>null</code> if the job did not land
+         */
+        void setLandingPath(String landingPath) {
+            this.landingPath = landingPath;
+        }
+        /**
+         * Method to return the path to the volume in the local landing directory
+         * @return the path to the volume in the landing directory, or <code>null</code> if the job did not land
+         */
+        String getLandingPath() {
+            return landingPath;
+        }
+        /**
+         * Method to set the path to the volume in the Pairtree snapshot of the delta log directory
+         * @param snapshotPath the path to the volume in the snapshot, or <code>null</code> if there is no snapshot
+         */
+        void setSnapshotPath(String snapshotPath) {
+            this.snapshotPath = snapshotPath;
+        }
+        /**
+         * Method to resolve a file of the volume. A file in the snapshot of the delta log directory is read from there, as
+         * the next run may already be rsyncing into the Pairtree; otherwise a file that landed is read from the landing
+         * directory, and any other file from the Pairtree, to which the landed files are migrated
+         * @param fileName the name of the file in the volume directory
+         * @return the File to read
+         */
+        File resolveFile(String fileName) {
+            if (snapshotPath != null) {
+                File snapshotFile = new File(snapshotPath, fileName);
+                if (snapshotFile.isFile()) {
+                    return snapshotFile;
+                }
+            }
+            if (landingPath != null) {
+                File landedFile = new File(landingPath, fileName);
+                if (landedFile.isFile()) {
+                    return landedFile;
+                }
+            }
+            return new File(volumePath, fileName);
+        }
         /**
          * Method to return the Pairtree cleaned volumeID with the prefix removed
          * @return the Pairtree cleaned volumeID with the prefix removed
@@ -110,6 +190,23 @@ public class DeltaLogParser {
             return cleanedPartialVolumeID;
         }
 
+        /**
+         * Method to add the size of an updated file of the volume
+         * @param size the size of the file in bytes
+         */
+        void addByteCount(long size) {
+            if (size > 0) {
+                byteCount += size;
+            }
+        }
+        /**
+         * Method to get the total size of the updated files of the volume, known only from an itemized delta log
+         * @return the total size of the updated files in bytes, or 0 if unknown
+         */
+        long getByteCount() {
+            return byteCount;
+        }
+
         /**
          * Method to set the copyright of the volume
          * @param copyright the copyright of the volume
@@ -219,32 +316,37 @@ public class DeltaLogParser {
     private static final String DEST_ROOT_PREFIX = "DEST_ROOT=";
     private static final int DEST_ROOT_PREFIX_SIZE = DEST_ROOT_PREFIX.length();
     
+    private static final String LANDING_ROOT_PREFIX = "LANDING_ROOT=";
+    private static final int LANDING_ROOT_PREFIX_SIZE = LANDING_ROOT_PREFIX.length();
+    
     private static final String PREFIX_PREFIX = "PREFIX=";
     private static final int PREFIX_PREFIX_SIZE = PREFIX_PREFIX.length();
     
     private static final String COPYRIGHT_PREFIX = "COPYRIGHT=";
     private static final int COPYRIGHT_PREFIX_SIZE = COPYRIGHT_PREFIX.length();
     
-    private static final String DELETING_PREFIX = "deleting ";
-    private static final int DELETING_PREFIX_SIZE = DELETING_PREFIX.length();
+    private static final String PAIRTREE_ROOT_SEGMENT = "pairtree_root";
     
-    private static final String METS_SUFFIX = ".mets.xml";
-    private static final int METS_SUFFIX_LENGTH = METS_SUFFIX.length();
+    // number of most recently seen volume directories whose volumes are held back when parsing in bounded memory
+    static final int VOLUME_WINDOW_SIZE = 4;
     
-    private static final String ZIP_SUFFIX = ".zip";
-    private static final int ZIP_SUFFIX_LENGTH = ZIP_SUFFIX.length();
     
-    private static final String PAIRTREE_ROOT_SEGMENT = "pairtree_root";
+    protected String deltaLogPath;
     
+    private final int scannerThreadCount;
     
-    private String deltaLogPath;
-    
+    // both maps are keyed by cleaned partial volumeID, so a volume is looked up without building its volumeID
     private HashMap<String, VolumeDeletionInfo> volumeDeletionMap;
     
     private HashMap<String, VolumeUpdateInfo> volumeUpdateMap;
     
     private String destRoot;
+    private String landingRoot;
+    private String snapshotPath;
     private String prefix;
+    private boolean itemized;
+    private long byteCount;
+    private int attributeOnlyCount;
     private CopyrightEnum copyright;  // XXX: here we assume copyrighted and public domain volumes have separate pairtrees... if they are to be mixed, need a way to determine if a particular volume is copyrighted or public
     
     private Pairtree pairtree;
@@ -261,13 +363,30 @@ public class DeltaLogParser {
      * @param deltaLogPath path to a delta log file
      */
     protected DeltaLogParser(String deltaLogPath) {
+        this(deltaLogPath, 1);
+    }
+    
+    /**
+     * Constructor
+     * @param deltaLogPath path to a delta log file
+     * @param scannerThreadCount the number of threads to scan the delta log file with in parse()
+     */
+    protected DeltaLogParser(String deltaLogPath, int scannerThreadCount) {
         this.deltaLogPath = deltaLogPath;
+        this.scannerThreadCount = scannerThreadCount;
         
         this.volumeDeletionMap = new HashMap<String, VolumeDeletionInfo>();
         this.volumeUpdateMap = new HashMap<String, VolumeUpdateInfo>();
         
+        // a streamed delta log has no path, and no snapshot yet
+        File deltaLogDir = (deltaLogPath != null) ? new File(deltaLogPath).getAbsoluteFile().getParentFile() : null;
+        this.snapshotPath = (deltaLogDir != null) ? PairtreeSnapshotManager.readSnapshotPath(deltaLogDir) : null;
+        
         this.pairtree = new Pairtree();
         this.seenALine = false;
+        this.itemized = false;
+        this.byteCount = 0L;
+        this.attributeOnlyCount = 0;
         
     }
     
@@ -277,56 +396,195 @@ public class DeltaLogParser {
      * @throws IOException thrown if reading of the delta log file failed
      */
     protected void parse() throws FileNotFoundException, IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(deltaLogPath));
-//        String destRoot = null;
-        String line = null;
+        DeltaLogScanner scanner = openScanner();
+        try {
+            scanner.scan(new RecordHandler() {
+                public void handleRecord(Record record) {
+                    parseRecord(record);
+                }
+            }, scannerThreadCount);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while scanning " + deltaLogPath + ": " + e.toString());
+        }
+        attributeOnlyCount += scanner.getAttributeOnlyCount();
         
-        do {
-            line = reader.readLine();
-            if (log.isTraceEnabled()) log.trace("line " + line);
-            
-            if (line != null) {
-                if (line.startsWith(DELETING_PREFIX)) {
-                    if (log.isTraceEnabled()) log.trace("got a delete line");
-                    // handling the delete case. 
-                    parseDeleteLine(line);
-                } else if (line.endsWith(ZIP_SUFFIX)) {
-                    if (log.isTraceEnabled()) log.trace("got a volume file line");
-                    if (!seenALine) {
-                        parsePrefixFromLine(line);
-                        seenALine = true;
-                    }
-                    parseNewVolumeLine(line, ZIP_SUFFIX, ZIP_SUFFIX_LENGTH);
-//                    parseNewZipLine(line);
+        if (itemized) {
+            log.info("Finished parsing " + deltaLogPath + " bytes: " + byteCount + " attribute-only changes skipped: " + attributeOnlyCount);
+        } else {
+            log.info("Finished parsing " + deltaLogPath);
+        }
+    }
+    
+    /**
+     * Method to parse the delta log file in bounded memory, handing each volume to a VolumeHandler as soon as the parser
+     * has moved past its directory. rsync lists the files of a volume directory together, so only the volumes of the last
+     * few directories seen are held back, in case rsync comes back to one of them, e.g. to delete a file; the rest of the
+     * delta log is never held in memory
+     * @param volumeHandler a VolumeHandler object
+     * @throws FileNotFoundException thrown if the delta log file does not exist
+     * @throws IOException thrown if reading of the delta log file failed
+     * @throws InterruptedException thrown if the VolumeHandler was interrupted
+     */
+    protected void parse(final VolumeHandler volumeHandler) throws FileNotFoundException, IOException, InterruptedException {
+        // volume directory -> cleaned partial volumeIDs parsed from it, least recently seen first
+        final LinkedHashMap<String, Set<String>> volumeWindow = new LinkedHashMap<String, Set<String>>(VOLUME_WINDOW_SIZE * 2, 0.75f, true);
+        DeltaLogScanner scanner = openScanner();
+        
+        // scanned by one thread, so no chunk of Records is held back
+        scanner.scan(new RecordHandler() {
+            public void handleRecord(Record record) throws InterruptedException {
+                parseRecord(record);
+                if (record.isAttributeOnly()) {
+                    return;
+                }
+                String volumeDirectory = record.getVolumeDirectory();
+                Set<String> cleanedPartialVolumeIDs = volumeWindow.get(volumeDirectory);
+                if (cleanedPartialVolumeIDs == null) {
+                    cleanedPartialVolumeIDs = new HashSet<String>(2);
+                    volumeWindow.put(volumeDirectory, cleanedPartialVolumeIDs);
+                }
+                cleanedPartialVolumeIDs.add(record.getCleanedPartialVolumeID());
                 
-                } else if (line.endsWith(METS_SUFFIX)) {
-                    if (log.isTraceEnabled()) log.trace("got a METS line");
-                    if (!seenALine) {
-                        parsePrefixFromLine(line);
-                        seenALine = true;
+                if (volumeWindow.size() > VOLUME_WINDOW_SIZE) {
+                    Iterator<Entry<String, Set<String>>> iterator = volumeWindow.entrySet().iterator();
+                    Set<String> eldest = iterator.next().getValue();
+                    iterator.remove();
+                    for (String cleanedPartialVolumeID : eldest) {
+                        flushVolume(volumeHandler, cleanedPartialVolumeID);
                     }
-                    parseNewVolumeLine(line, METS_SUFFIX, METS_SUFFIX_LENGTH);
-                    // handling the METS.  parse METS xml and check with cassandra for each page.
-//                    parseNewMETSLine(line);
-                    
-                } else if (line.startsWith(DEST_ROOT_PREFIX)) {
-                    if (log.isTraceEnabled()) log.trace("got DEST_ROOT_PREFIX");
-                    destRoot = line.substring(DEST_ROOT_PREFIX_SIZE);
-                } else if (line.startsWith(PREFIX_PREFIX)) {
-                    if (log.isTraceEnabled()) log.trace("got PREFIX_PREFIX");
-                    prefix = line.substring(PREFIX_PREFIX_SIZE);
-                } else if (line.startsWith(COPYRIGHT_PREFIX)) {
-                    if (log.isTraceEnabled()) log.trace("got COPYRIGHT_PREFIX");
-                    String copyrightString = line.substring(COPYRIGHT_PREFIX_SIZE);
-                    copyright = CopyrightEnum.valueOf(copyrightString);
                 }
-                
             }
-        } while (line != null);
+        }, 1);
+        attributeOnlyCount += scanner.getAttributeOnlyCount();
         
-        reader.close();
+        flushVolumes(volumeHandler);
         
-        log.info("Finished parsing " + deltaLogPath);
+        if (itemized) {
+            log.info("Finished parsing " + deltaLogPath + " in bounded memory. bytes: " + byteCount + " attribute-only changes skipped: " + attributeOnlyCount);
+        } else {
+            log.info("Finished parsing " + deltaLogPath + " in bounded memory");
+        }
+    }
+    
+    /**
+     * Method to open the delta log file and parse its header lines
+     * @return a DeltaLogScanner object for the delta log file
+     * @throws FileNotFoundException thrown if the delta log file does not exist
+     * @throws IOException thrown if reading of the delta log file failed
+     */
+    private DeltaLogScanner openScanner() throws FileNotFoundException, IOException {
+        File deltaLogFile = new File(deltaLogPath);
+        if (!deltaLogFile.isFile()) {
+            throw new FileNotFoundException(deltaLogPath);
+        }
+        DeltaLogScanner scanner = new DeltaLogScanner(deltaLogFile);
+        for (String headerLine : scanner.getHeaderLines()) {
+            parseHeaderLine(headerLine);
+        }
+        return scanner;
+    }
+    
+    /**
+     * Method to parse a line of a delta log about a volume file, as scanned by DeltaLogScanner. The Record is not kept
+     * @param record a Record object
+     */
+    protected void parseRecord(Record record) {
+        // the Record already knows where the filename and directory are, so only the cleaned partial volumeID is decoded
+        // for every line; the directory is decoded only for a volume not seen before
+        if (record.isDeletion()) {
+            if (log.isTraceEnabled()) log.trace("got a delete line");
+            VolumeDeletionInfo volumeDeletionInfo = getVolumeDeletionInfo(record.getCleanedPartialVolumeID());
+            if (record.isZip()) {
+                volumeDeletionInfo.setIsDeleteVolume(true);
+            } else {
+                volumeDeletionInfo.setIsDeleteMETS(true);
+            }
+        } else if (record.isAttributeOnly()) {
+            // same content, so there is nothing to push; counted by the scanner
+            if (log.isTraceEnabled()) log.trace("skipping attribute-only change " + record.getPath());
+        } else {
+            if (!seenALine) {
+                parsePrefixFromLine(record.getVolumeDirectory());
+                seenALine = true;
+            }
+            String cleanedPartialVolumeID = record.getCleanedPartialVolumeID();
+            VolumeUpdateInfo volumeUpdateInfo = volumeUpdateMap.get(cleanedPartialVolumeID);
+            if (volumeUpdateInfo == null) {
+                volumeUpdateInfo = addVolumeUpdateInfo(cleanedPartialVolumeID, record.getVolumeDirectory());
+            }
+            if (itemized) {
+                volumeUpdateInfo.addByteCount(record.getSize());
+                if (record.getSize() > 0) {
+                    byteCount += record.getSize();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Method to scan one line of rsync output or of a text delta log, e.g. as it is streamed, the way DeltaLogScanner scans
+     * a delta log file
+     * @param line a line without its line break
+     * @return a Record object if the line is about a volume file, or <code>null</code> otherwise
+     */
+    protected Record scanLine(String line) {
+        return DeltaLogScanner.scanLine(line, itemized);
+    }
+    
+    /**
+     * Method to parse a header line of a delta log, e.g. PREFIX=mdp. Any other line is ignored
+     * @param line a line from a delta log
+     */
+    protected void parseHeaderLine(String line) {
+        if (line.startsWith(DEST_ROOT_PREFIX)) {
+            if (log.isTraceEnabled()) log.trace("got DEST_ROOT_PREFIX");
+            destRoot = line.substring(DEST_ROOT_PREFIX_SIZE);
+        } else if (line.startsWith(LANDING_ROOT_PREFIX)) {
+            if (log.isTraceEnabled()) log.trace("got LANDING_ROOT_PREFIX");
+            landingRoot = line.substring(LANDING_ROOT_PREFIX_SIZE);
+        } else if (line.startsWith(PREFIX_PREFIX)) {
+            if (log.isTraceEnabled()) log.trace("got PREFIX_PREFIX");
+            prefix = line.substring(PREFIX_PREFIX_SIZE);
+        } else if (line.startsWith(COPYRIGHT_PREFIX)) {
+            if (log.isTraceEnabled()) log.trace("got COPYRIGHT_PREFIX");
+            String copyrightString = line.substring(COPYRIGHT_PREFIX_SIZE);
+            copyright = CopyrightEnum.valueOf(copyrightString);
+        } else if (line.startsWith(DeltaLogEntry.FORMAT_PREFIX)) {
+            if (log.isTraceEnabled()) log.trace("got FORMAT_PREFIX");
+            itemized = line.substring(DeltaLogEntry.FORMAT_PREFIX.length()).equals(DeltaLogEntry.ITEMIZED_FORMAT);
+        }
+    }
+    
+    /**
+     * Method to hand one volume parsed so far to a VolumeHandler and forget about it
+     * @param volumeHandler a VolumeHandler object
+     * @param cleanedPartialVolumeID the cleaned partial volumeID of the volume, i.e. its filename without suffix
+     * @throws InterruptedException thrown if the VolumeHandler was interrupted
+     */
+    private void flushVolume(VolumeHandler volumeHandler, String cleanedPartialVolumeID) throws InterruptedException {
+        VolumeUpdateInfo volumeUpdateInfo = volumeUpdateMap.remove(cleanedPartialVolumeID);
+        VolumeDeletionInfo volumeDeletionInfo = volumeDeletionMap.remove(cleanedPartialVolumeID);
+        if (volumeDeletionInfo != null || volumeUpdateInfo != null) {
+            volumeHandler.handleVolume(volumeDeletionInfo, volumeUpdateInfo);
+        }
+    }
+    
+    /**
+     * Method to hand all volumes parsed so far to a VolumeHandler and forget about them. A volume that is both deleted and
+     * updated is handed over in one call, so the deletion is always carried out before the update
+     * @param volumeHandler a VolumeHandler object
+     * @throws InterruptedException thrown if the VolumeHandler was interrupted
+     */
+    protected void flushVolumes(VolumeHandler volumeHandler) throws InterruptedException {
+        for (VolumeUpdateInfo volumeUpdateInfo : volumeUpdateMap.values()) {
+            VolumeDeletionInfo volumeDeletionInfo = volumeDeletionMap.remove(volumeUpdateInfo.getCleanedPartialVolumeID());
+            volumeHandler.handleVolume(volumeDeletionInfo, volumeUpdateInfo);
+        }
+        for (VolumeDeletionInfo volumeDeletionInfo : volumeDeletionMap.values()) {
+            volumeHandler.handleVolume(volumeDeletionInfo, null);
+        }
+        volumeUpdateMap.clear();
+        volumeDeletionMap.clear();
     }
     
     /**
@@ -350,105 +608,56 @@ public class DeltaLogParser {
     }
     
     /**
-     * Method to parse a line about deleting a volume
-     * @param line a line about deleting a volume
+     * Method to create the VolumeUpdateInfo object of a volume not encountered before
+     * @param cleanedPartialVolumeID the cleaned partial volumeID of the volume, i.e. its filename without suffix
+     * @param volumeDirectory the directory of the volume relative to the rsync source, with a trailing slash
+     * @return the VolumeUpdateInfo object of the volume
      */
-    private void parseDeleteLine(String line) {
-        // the line is deleting dd/yy/zz/.../yyzz...wwuu/????? where dd is the repeated last portion of destRoot
-        int index = line.indexOf("/");
-        String headlessLine = line.substring(index + 1);
-        // headlessLine = yy/zz/.../yyzz...wwuu/?????
-        if (log.isTraceEnabled()) log.trace("headlessLine: " + headlessLine);
+    private VolumeUpdateInfo addVolumeUpdateInfo(String cleanedPartialVolumeID, String volumeDirectory) {
+        String partialVolumeID = pairtree.uncleanId(cleanedPartialVolumeID);
+        // partialVolumeID = x:yy...wwuu
+        if (log.isTraceEnabled()) log.trace("partialVolumeID: " + partialVolumeID);
         
-
-        if (headlessLine.endsWith(ZIP_SUFFIX)) {
-            int lastIndex = headlessLine.lastIndexOf("/");
-            String volumeZipFilename = headlessLine.substring(lastIndex + 1);
-            // volumeZipFilename = yy+zz...wwuu.zip
-            if (log.isTraceEnabled()) log.trace("volumeZipFilename: " + volumeZipFilename);
-            String cleanedPartialVolumeID = volumeZipFilename.substring(0, volumeZipFilename.length() - ZIP_SUFFIX_LENGTH);
-            // cleanedPartialVolumeID = yy+zz...wwuu
-            if (log.isTraceEnabled()) log.trace("cleanedPartialVolumeID: " + cleanedPartialVolumeID);
-            String uncleanedPartialVolumeID = pairtree.uncleanId(cleanedPartialVolumeID);
-            // uncleanedPartialVolumeID = yy:zz...wwuu
-            if (log.isTraceEnabled()) log.trace("uncleanedPartialVolumeID: " + uncleanedPartialVolumeID);
-            String volumeID = prefix + uncleanedPartialVolumeID;
-            // volumeID = uc2.yy:zz...wwuu
-            if (log.isTraceEnabled()) log.trace("volumeID: " + volumeID);
-            VolumeDeletionInfo volumeDeletionInfo = volumeDeletionMap.get(volumeID);
-            if (volumeDeletionInfo == null) {
-                volumeDeletionInfo = new VolumeDeletionInfo(volumeID, copyright);
-                volumeDeletionMap.put(volumeID, volumeDeletionInfo);
-            }
-            volumeDeletionInfo.setIsDeleteVolume(true);
-            
-        } else if (headlessLine.endsWith(METS_SUFFIX)) {
-            // delete the mets?? makes no sense... maybe delete the whole volume?
-            int lastIndex = headlessLine.lastIndexOf("/");
-            String metsFilename = headlessLine.substring(lastIndex + 1);
-            // metsFilename = yy+zz...wwuu.mets.xml
-            if (log.isTraceEnabled()) log.trace("metsFilename: " + metsFilename);
-            
-            String cleanedPartialVolumeID = metsFilename.substring(0, metsFilename.length() - METS_SUFFIX_LENGTH);
-            // cleanedPartialVolumeID = yy+zz...wwuu
-            if (log.isTraceEnabled()) log.trace("cleanedPartialVolumeID: " + cleanedPartialVolumeID);
-            
-            String uncleanedPartialVolumeID = pairtree.uncleanId(cleanedPartialVolumeID);
-            // uncleanedPartialVolumeID = yy:zz...wwuu
-            if (log.isTraceEnabled()) log.trace("uncleanedPartialVolumeID: " + uncleanedPartialVolumeID);
-            
-            
-            String volumeID = prefix + uncleanedPartialVolumeID;
-            // volumeID = uc2.yy:zz...wwuu
-            if (log.isTraceEnabled()) log.trace("volumeID: " + volumeID);
-            
-            VolumeDeletionInfo volumeDeletionInfo = volumeDeletionMap.get(volumeID);
-            if (volumeDeletionInfo == null) {
-                volumeDeletionInfo = new VolumeDeletionInfo(volumeID, copyright);
-                volumeDeletionMap.put(volumeID, volumeDeletionInfo);
-            }
-            volumeDeletionInfo.setIsDeleteMETS(true);
-            
-
-        }
+        String volumeID = prefix + partialVolumeID;
+        // volumeID = <prefix>.x:yy...wwuu
+        if (log.isTraceEnabled()) log.trace("volumeID: " + volumeID);
         
+        String volumePath = destRoot + volumeDirectory;
+        // volumePath = x+/yy/.../x+yy...wwuu/
+        if (log.isTraceEnabled()) log.trace("volumePath: " + volumePath);
+        
+        VolumeUpdateInfo volumeUpdateInfo = new VolumeUpdateInfo(volumeID, cleanedPartialVolumeID, volumePath);
+        volumeUpdateInfo.setCopyright(copyright);
+        if (landingRoot != null) {
+            volumeUpdateInfo.setLandingPath(landingRoot + volumeDirectory);
+        }
+        if (snapshotPath != null) {
+            volumeUpdateInfo.setSnapshotPath(PairtreeSnapshotManager.getSnapshotPath(snapshotPath, volumePath));
+        }
+        volumeUpdateMap.put(cleanedPartialVolumeID, volumeUpdateInfo);
+        return volumeUpdateInfo;
     }
     
     /**
-     * Method to parse a line about a new/update volume
-     * @param line a line about a new/update volume
-     * @param suffix filename suffix to match
-     * @param suffixLength length of the filename suffix
+     * Method to get the VolumeDeletionInfo object of a volume, creating it if the volume was not encountered before
+     * @param cleanedPartialVolumeID the cleaned partial volumeID of the volume, i.e. its filename without suffix
+     * @return the VolumeDeletionInfo object of the volume
      */
-    private void parseNewVolumeLine(String line, String suffix, int suffixLength) {
-        // the line is escaped x+/yy/.../x+yy...wwuu/x+yy...wwuu.<suffix>
-        int lastSlashIndex = line.lastIndexOf('/');
-        
-        String cleanedPartialVolumeID = line.substring(lastSlashIndex + 1, line.length() - suffixLength);
-        if (log.isTraceEnabled()) log.trace("cleanedPartialVolumeID: " + cleanedPartialVolumeID);
-        
-        VolumeUpdateInfo volumeUpdateInfo = volumeUpdateMap.get(cleanedPartialVolumeID);
-        if (volumeUpdateInfo == null) {
-            
-            String partialVolumeID = pairtree.uncleanId(cleanedPartialVolumeID);
-            // partialVolumeID = x:yy...wwuu
-            if (log.isTraceEnabled()) log.trace("partialVolumeID: " + partialVolumeID);
+    private VolumeDeletionInfo getVolumeDeletionInfo(String cleanedPartialVolumeID) {
+        VolumeDeletionInfo volumeDeletionInfo = volumeDeletionMap.get(cleanedPartialVolumeID);
+        if (volumeDeletionInfo == null) {
+            String uncleanedPartialVolumeID = pairtree.uncleanId(cleanedPartialVolumeID);
+            // uncleanedPartialVolumeID = yy:zz...wwuu
+            if (log.isTraceEnabled()) log.trace("uncleanedPartialVolumeID: " + uncleanedPartialVolumeID);
             
-            String volumeID = prefix + partialVolumeID;
-            // volumeID = <prefix>.x:yy...wwuu
+            String volumeID = prefix + uncleanedPartialVolumeID;
+            // volumeID = uc2.yy:zz...wwuu
             if (log.isTraceEnabled()) log.trace("volumeID: " + volumeID);
             
-            String volumePath = destRoot + line.substring(0, lastSlashIndex + 1);
-            // volumePath = x+/yy/.../x+yy...wwuu/
-            if (log.isTraceEnabled()) log.trace("volumePath: " + volumePath);
-            
-            volumeUpdateInfo = new VolumeUpdateInfo(volumeID, cleanedPartialVolumeID, volumePath);
-            volumeUpdateInfo.setCopyright(copyright);
-            volumeUpdateMap.put(cleanedPartialVolumeID, volumeUpdateInfo);
-            
-        } else {
-            if (log.isTraceEnabled()) log.trace("cleanedPartialVolumeID already encountered: " + cleanedPartialVolumeID);
+            volumeDeletionInfo = new VolumeDeletionInfo(volumeID, copyright);
+            volumeDeletionMap.put(cleanedPartialVolumeID, volumeDeletionInfo);
         }
+        return volumeDeletionInfo;
     }
 
     /**
@@ -36,20 +36,25 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 
+import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.exceptions.HInvalidRequestException;
 import me.prettyprint.hector.api.exceptions.HTimedOutException;
 
 import org.apache.log4j.Logger;
 
 import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
-import edu.indiana.d2i.htrc.ingest.JobQueue;
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
 import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeDeletionInfo;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeHandler;
 import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeUpdateInfo;
 
 /**
@@ -368,19 +373,121 @@ public class DeltaLogProcessor implements Runnable {
         }
     }
     
+    /**
+     * This class collects the outcome of the volumes of a delta log parsed in bounded memory, so the delta log is marked
+     * as parsed only if all of its volumes were pushed
+     * @author Yiming Sun
+     *
+     */
+    static class DeltaLogOutcome implements VolumeEvent.Source {
+        private final String deltaLogPath;
+        private final IngestLedger ingestLedger;
+        private boolean failed;
+        
+        /**
+         * Constructor
+         * @param deltaLogPath path to the delta log file
+         * @param ingestLedger an IngestLedger object to record the pushed volumes in, or <code>null</code> if no ledger is kept
+         */
+        DeltaLogOutcome(String deltaLogPath, IngestLedger ingestLedger) {
+            this.deltaLogPath = deltaLogPath;
+            this.ingestLedger = ingestLedger;
+            this.failed = false;
+        }
+        
+        /**
+         * @see edu.indiana.d2i.htrc.ingest.cassandra.VolumeEvent.Source#release(java.lang.String, boolean)
+         */
+        public void release(String volumeID, boolean successful) {
+            if (!successful) {
+                failed = true;
+            }
+            if (ingestLedger != null && volumeID != null && !recordVolume(ingestLedger, deltaLogPath, volumeID, successful)) {
+                failed = true;
+            }
+        }
+        
+        /**
+         * Method to check if any volume of the delta log failed to be pushed
+         * @return <code>true</code> if a volume failed, <code>false</code> otherwise
+         */
+        boolean isFailed() {
+            return failed;
+        }
+    }
+    
     private static Logger log = Logger.getLogger(DeltaLogProcessor.class);
     
-    private JobQueue<String> jobQueue;
+    static final int VOLUME_EVENT_BATCH_SIZE = 32;
+    
+    private BoundedJobQueue<String> jobQueue;
+    private BoundedJobQueue<VolumeEvent> volumeEventQueue;
+    private BoundedJobQueue<String> pushedVolumeQueue;
+    private IngestLedger ingestLedger;
+    private boolean boundedParsing;
+    private int scannerThreadCount;
     private final int id;
 
     /**
      * Constructor
      * @param id an int to differentiate and identify instances
-     * @param jobQueue a JobQueue of String objects representing directory paths containing delta log files
+     * @param jobQueue a BoundedJobQueue of String objects representing paths to delta log files
+     */
+    protected DeltaLogProcessor(int id, BoundedJobQueue<String> jobQueue) {
+        this(id, jobQueue, null);
+    }
+    
+    /**
+     * Constructor
+     * @param id an int to differentiate and identify instances
+     * @param jobQueue a BoundedJobQueue of String objects representing paths to delta log files
+     * @param pushedVolumeQueue a BoundedJobQueue to which the volumeID of each volume is put after it is pushed to Cassandra, or <code>null</code> if no downstream stage is waiting for them
+     */
+    protected DeltaLogProcessor(int id, BoundedJobQueue<String> jobQueue, BoundedJobQueue<String> pushedVolumeQueue) {
+        this(id, jobQueue, null, pushedVolumeQueue);
+    }
+    
+    /**
+     * Constructor
+     * @param id an int to differentiate and identify instances
+     * @param jobQueue a BoundedJobQueue of String objects representing paths to delta log files
+     * @param volumeEventQueue a BoundedJobQueue of VolumeEvent objects parsed from rsync output, processed once jobQueue reaches its end, or <code>null</code> if there are none
+     * @param pushedVolumeQueue a BoundedJobQueue to which the volumeID of each volume is put after it is pushed to Cassandra, or <code>null</code> if no downstream stage is waiting for them
      */
-    protected DeltaLogProcessor(int id, JobQueue<String> jobQueue) {
+    protected DeltaLogProcessor(int id, BoundedJobQueue<String> jobQueue, BoundedJobQueue<VolumeEvent> volumeEventQueue, BoundedJobQueue<String> pushedVolumeQueue) {
         this.id = id;
         this.jobQueue = jobQueue;
+        this.volumeEventQueue = volumeEventQueue;
+        this.pushedVolumeQueue = pushedVolumeQueue;
+        this.ingestLedger = null;
+        this.boundedParsing = false;
+        this.scannerThreadCount = 1;
+    }
+    
+    /**
+     * Method to set the number of threads a delta log file is scanned with when it is parsed as a whole
+     * @param scannerThreadCount the number of threads
+     */
+    void setScannerThreadCount(int scannerThreadCount) {
+        this.scannerThreadCount = scannerThreadCount;
+    }
+    
+    /**
+     * Method to set whether delta logs are parsed in bounded memory, pushing each volume in batches while the rest of the
+     * delta log is still being parsed, instead of parsing the whole delta log before pushing any of it
+     * @param boundedParsing <code>true</code> to parse in bounded memory, <code>false</code> otherwise
+     */
+    void setBoundedParsing(boolean boundedParsing) {
+        this.boundedParsing = boundedParsing;
+    }
+    
+    /**
+     * Method to set the IngestLedger to resume and record the pushes with. Volumes a delta log has already had pushed
+     * are skipped, and each pushed volume is recorded as soon as it is pushed
+     * @param ingestLedger an IngestLedger object, or <code>null</code> if no ledger is kept
+     */
+    void setIngestLedger(IngestLedger ingestLedger) {
+        this.ingestLedger = ingestLedger;
     }
     
     /**
@@ -397,10 +504,13 @@ public class DeltaLogProcessor implements Runnable {
     /**
      * Method to initiate the update of a volume to Cassandra
      * @param volumeUpdateList a List of VolumeUpdateInfo objects representing volumes to be updated in Cassandra
+     * @param deltaLogPath path to the delta log file the volumes are from, to record them in the IngestLedger, or <code>null</code> if they are recorded by their VolumeEvent
      * @throws HInvalidRequestException thrown from Hector client
      * @throws HTimedOutException thrown from Hector client
+     * @throws InterruptedException thrown if interrupted while handing a pushed volume to the downstream stage
+     * @throws IOException thrown if a volume could not be recorded in the IngestLedger
      */
-    private void updateToCassandra(List<VolumeUpdateInfo> volumeUpdateList) throws HInvalidRequestException, HTimedOutException {
+    private void updateToCassandra(List<VolumeUpdateInfo> volumeUpdateList, String deltaLogPath) throws HInvalidRequestException, HTimedOutException, InterruptedException, IOException {
         HectorManager hectorManager = HectorManager.getInstance();
         
         XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
@@ -408,19 +518,20 @@ public class DeltaLogProcessor implements Runnable {
         for (VolumeUpdateInfo volumeUpdateInfo : volumeUpdateList) {
             String volumeID = volumeUpdateInfo.getVolumeID();
             String cleanedPartialVolumeID = volumeUpdateInfo.getCleanedPartialVoluemID();
-            String volumePath = volumeUpdateInfo.getVolumePath();
             CopyrightEnum copyright = volumeUpdateInfo.getCopyright();
             
             VolumeRecord volumeRecord = new VolumeRecord(volumeID);
             volumeRecord.setCopyright(copyright);
             
-            File metsFile = new File(volumePath, cleanedPartialVolumeID + ".mets.xml");
+            File metsFile = volumeUpdateInfo.resolveFile(cleanedPartialVolumeID + ".mets.xml");
             METSParser metsParser = new METSParser(metsFile, volumeRecord, xmlInputFactory);
+            IngestLedger.State state = IngestLedger.State.FAILED;
             try {
                 metsParser.parse();
                 volumeRecord = metsParser.getVolumeRecord();
                 
                 hectorManager.update(volumeUpdateInfo, volumeRecord);
+                state = IngestLedger.State.PUSHED;
                 
             } catch (FileNotFoundException e) {
                 log.error("mets file not found " + metsFile.getPath(), e);
@@ -429,14 +540,191 @@ public class DeltaLogProcessor implements Runnable {
             } catch (XMLStreamException e) {
                 log.error("XMLStreamException while parsing mets file " + metsFile.getPath(), e);
             }
+            
+            if (ingestLedger != null && deltaLogPath != null) {
+                ingestLedger.recordVolume(deltaLogPath, volumeID, state);
+            }
+            
+            // hand over even if the push failed, so the verification reports it just like the non-pipelined verification would
+            if (pushedVolumeQueue != null) {
+                pushedVolumeQueue.put(volumeID);
+            }
         }
         
     }
     /**
-     * Method to mark a delta log file as being parsed
+     * Method to push the volumes of a batch of VolumeEvent objects to Cassandra. Deletions of the whole batch go in one request
+     * and are carried out before any update, so a volume that is both deleted and updated ends up updated
+     * @param volumeEventList a List of VolumeEvent objects
+     * @throws InterruptedException thrown if interrupted while handing a pushed volume to the downstream stage
+     */
+    private void processVolumeEvents(List<VolumeEvent> volumeEventList) throws InterruptedException {
+        List<VolumeDeletionInfo> volumeDeletionList = new ArrayList<VolumeDeletionInfo>();
+        for (VolumeEvent volumeEvent : volumeEventList) {
+            if (volumeEvent.getVolumeDeletionInfo() != null) {
+                volumeDeletionList.add(volumeEvent.getVolumeDeletionInfo());
+            }
+        }
+        
+        boolean deleted = false;
+        try {
+            if (!volumeDeletionList.isEmpty()) {
+                deleteFromCassandra(volumeDeletionList);
+            }
+            deleted = true;
+        } catch (HInvalidRequestException e) {
+            log.error("Invalid request exception. Reason: " + e.getWhy(), e);
+        } catch (HTimedOutException e) {
+            log.error("Timed out exception", e);
+        } catch (HectorException e) {
+            log.error("Hector exception while deleting " + volumeDeletionList.size() + " volumes", e);
+        }
+        
+        for (VolumeEvent volumeEvent : volumeEventList) {
+            boolean successful = deleted || volumeEvent.getVolumeDeletionInfo() == null;
+            VolumeUpdateInfo volumeUpdateInfo = volumeEvent.getVolumeUpdateInfo();
+            try {
+                if (successful && volumeUpdateInfo != null) {
+                    successful = false;
+                    List<VolumeUpdateInfo> volumeUpdateList = new ArrayList<VolumeUpdateInfo>(1);
+                    volumeUpdateList.add(volumeUpdateInfo);
+                    updateToCassandra(volumeUpdateList, null);
+                    successful = true;
+                }
+            } catch (HInvalidRequestException e) {
+                log.error("Invalid request exception. Reason: " + e.getWhy(), e);
+            } catch (HTimedOutException e) {
+                log.error("Timed out exception", e);
+            } catch (HectorException e) {
+                log.error("Hector exception while updating volume " + volumeUpdateInfo.getVolumeID(), e);
+            } catch (IOException e) {
+                // not reached, as the volume is recorded by its VolumeEvent
+                log.error("IOException while updating volume " + volumeUpdateInfo.getVolumeID(), e);
+            } finally {
+                volumeEvent.done(successful);
+            }
+        }
+    }
+    
+    /**
+     * Method to parse a delta log in bounded memory and push its volumes in batches of VOLUME_EVENT_BATCH_SIZE as they are
+     * parsed. The delta log is marked as parsed if all of its volumes were pushed
+     * @param deltaLogPath path to the delta log file
+     * @throws FileNotFoundException thrown if the delta log file does not exist
+     * @throws IOException thrown if reading of the delta log file failed
+     * @throws InterruptedException thrown if interrupted while handing a pushed volume to the downstream stage
+     */
+    private void processDeltaLogInBoundedMemory(final String deltaLogPath) throws FileNotFoundException, IOException, InterruptedException {
+        final DeltaLogOutcome outcome = new DeltaLogOutcome(deltaLogPath, ingestLedger);
+        final List<VolumeEvent> volumeEventList = new ArrayList<VolumeEvent>(VOLUME_EVENT_BATCH_SIZE);
+        
+        DeltaLogParser deltaParser = new DeltaLogParser(deltaLogPath);
+        deltaParser.parse(new VolumeHandler() {
+            public void handleVolume(VolumeDeletionInfo volumeDeletionInfo, VolumeUpdateInfo volumeUpdateInfo) throws InterruptedException {
+                String volumeID = (volumeDeletionInfo != null) ? volumeDeletionInfo.getVolumeID() : volumeUpdateInfo.getVolumeID();
+                if (ingestLedger != null && ingestLedger.isPushed(deltaLogPath, volumeID)) {
+                    if (log.isTraceEnabled()) log.trace("skipping volume " + volumeID + " already pushed according to the ingest ledger");
+                    return;
+                }
+                volumeEventList.add(new VolumeEvent(outcome, volumeDeletionInfo, volumeUpdateInfo));
+                if (volumeEventList.size() >= VOLUME_EVENT_BATCH_SIZE) {
+                    processVolumeEvents(volumeEventList);
+                    volumeEventList.clear();
+                }
+            }
+        });
+        if (!volumeEventList.isEmpty()) {
+            processVolumeEvents(volumeEventList);
+        }
+        
+        if (outcome.isFailed()) {
+            log.warn("Not all volumes from " + deltaLogPath + " were pushed. Leaving it unparsed");
+        } else {
+            markLogAsDone(deltaLogPath, ingestLedger);
+        }
+    }
+    
+    /**
+     * Method to leave out the volumes of a delta log that the IngestLedger records as pushed already, so a delta log
+     * interrupted part way through resumes with the volumes it had not pushed yet
+     * @param deltaLogPath path to the delta log file
+     * @param volumeDeletionList a List of VolumeDeletionInfo objects parsed from the delta log
+     * @param volumeUpdateList a List of VolumeUpdateInfo objects parsed from the delta log
+     */
+    private void skipPushedVolumes(String deltaLogPath, List<VolumeDeletionInfo> volumeDeletionList, List<VolumeUpdateInfo> volumeUpdateList) {
+        int skippedCount = 0;
+        Iterator<VolumeDeletionInfo> deletionIterator = volumeDeletionList.iterator();
+        while (deletionIterator.hasNext()) {
+            if (ingestLedger.isPushed(deltaLogPath, deletionIterator.next().getVolumeID())) {
+                deletionIterator.remove();
+                skippedCount++;
+            }
+        }
+        Iterator<VolumeUpdateInfo> updateIterator = volumeUpdateList.iterator();
+        while (updateIterator.hasNext()) {
+            if (ingestLedger.isPushed(deltaLogPath, updateIterator.next().getVolumeID())) {
+                updateIterator.remove();
+                skippedCount++;
+            }
+        }
+        if (skippedCount > 0) {
+            log.info("Skipped " + skippedCount + " volume actions of " + deltaLogPath + " already pushed according to the ingest ledger");
+        }
+    }
+    
+    /**
+     * Method to record in the IngestLedger the deleted volumes that are not updated afterwards. Volumes that are also
+     * updated are recorded once their update is pushed
+     * @param deltaLogPath path to the delta log file
+     * @param volumeDeletionList a List of VolumeDeletionInfo objects deleted from Cassandra
+     * @param volumeUpdateList a List of VolumeUpdateInfo objects to be updated in Cassandra
+     * @throws IOException thrown if a volume could not be recorded in the IngestLedger
+     */
+    private void recordDeletedVolumes(String deltaLogPath, List<VolumeDeletionInfo> volumeDeletionList, List<VolumeUpdateInfo> volumeUpdateList) throws IOException {
+        Set<String> updatedVolumeIDs = new HashSet<String>();
+        for (VolumeUpdateInfo volumeUpdateInfo : volumeUpdateList) {
+            updatedVolumeIDs.add(volumeUpdateInfo.getVolumeID());
+        }
+        for (VolumeDeletionInfo volumeDeletionInfo : volumeDeletionList) {
+            if (!updatedVolumeIDs.contains(volumeDeletionInfo.getVolumeID())) {
+                ingestLedger.recordVolume(deltaLogPath, volumeDeletionInfo.getVolumeID(), IngestLedger.State.PUSHED);
+            }
+        }
+    }
+    
+    /**
+     * Method to record the outcome of a pushed volume in the IngestLedger
+     * @param ingestLedger an IngestLedger object
+     * @param deltaLogPath path to the delta log file the volume is from
+     * @param volumeID the volumeID
+     * @param successful <code>true</code> if the volume was pushed without error, <code>false</code> otherwise
+     * @return <code>true</code> if the outcome was recorded, <code>false</code> if it could not be, in which case the delta
+     * log must not be marked as parsed, so the volume is pushed again when the delta log is resumed
+     */
+    static boolean recordVolume(IngestLedger ingestLedger, String deltaLogPath, String volumeID, boolean successful) {
+        try {
+            ingestLedger.recordVolume(deltaLogPath, volumeID, successful ? IngestLedger.State.PUSHED : IngestLedger.State.FAILED);
+            return true;
+        } catch (IOException e) {
+            log.error("Unable to record volume " + volumeID + " of " + deltaLogPath + " in the ingest ledger", e);
+            return false;
+        }
+    }
+    
+    /**
+     * Method to mark a delta log file as being parsed, by recording it in the IngestLedger if one is kept, or else by
+     * renaming it
      * @param deltaLogPath path to a delta log file
+     * @param ingestLedger an IngestLedger object to record the delta log as parsed in, or <code>null</code> if no ledger is kept
+     * @throws IOException thrown if the delta log could not be recorded in the IngestLedger, in which case it is not marked
      */
-    private void markLogAsDone(String deltaLogPath) {
+    static void markLogAsDone(String deltaLogPath, IngestLedger ingestLedger) throws IOException {
+        if (ingestLedger != null) {
+            ingestLedger.recordDeltaLog(deltaLogPath, IngestLedger.State.PARSED);
+            log.info("deltaLog " + deltaLogPath + " recorded as parsed in the ingest ledger");
+            return;
+        }
+        
         File deltaLogFile = new File(deltaLogPath);
         
         String filename = deltaLogFile.getName();
@@ -461,14 +749,31 @@ public class DeltaLogProcessor implements Runnable {
     public void run() {
         
         String deltaLogPath = null;
-        boolean isAllDone = false;
         
         do {
-            deltaLogPath = jobQueue.dequeue();
+            try {
+                deltaLogPath = jobQueue.take();
+            } catch (InterruptedException e) {
+                log.error("DeltaLogProcessor " + id + " interrupted while waiting for a delta log", e);
+                return;
+            }
             if (log.isTraceEnabled()) log.trace("deltaLogPath dequeued: " + deltaLogPath);
             
-            if (deltaLogPath != null) {
-                DeltaLogParser deltaParser = new DeltaLogParser(deltaLogPath);
+            if (deltaLogPath != null && ingestLedger != null && ingestLedger.getDeltaLogState(deltaLogPath) != null) {
+                log.info("deltaLog " + deltaLogPath + " already recorded as " + ingestLedger.getDeltaLogState(deltaLogPath) + " in the ingest ledger. Skipping it");
+            } else if (deltaLogPath != null && boundedParsing) {
+                try {
+                    processDeltaLogInBoundedMemory(deltaLogPath);
+                } catch (FileNotFoundException e) {
+                    log.error("DeltaLog file not found: " + deltaLogPath, e);
+                } catch (IOException e) {
+                    log.error("Failed to parse deltaLog file " + deltaLogPath, e);
+                } catch (InterruptedException e) {
+                    log.error("DeltaLogProcessor " + id + " interrupted while handing over pushed volumes of " + deltaLogPath, e);
+                    return;
+                }
+            } else if (deltaLogPath != null) {
+                DeltaLogParser deltaParser = new DeltaLogParser(deltaLogPath, scannerThreadCount);
                 try {
                     deltaParser.parse();
                     log.info("Parsed " + deltaLogPath);
@@ -479,11 +784,18 @@ public class DeltaLogProcessor implements Runnable {
                     List<VolumeUpdateInfo> volumeUpdateList = deltaParser.getVolumeUpdateList();
                     if (log.isTraceEnabled()) log.trace("volumeUpdateList size " + volumeUpdateList.size());
                     
+                    if (ingestLedger != null) {
+                        skipPushedVolumes(deltaLogPath, volumeDeletionList, volumeUpdateList);
+                    }
+                    
                     deleteFromCassandra(volumeDeletionList);
-                    updateToCassandra(volumeUpdateList);
+                    if (ingestLedger != null) {
+                        recordDeletedVolumes(deltaLogPath, volumeDeletionList, volumeUpdateList);
+                    }
+                    updateToCassandra(volumeUpdateList, deltaLogPath);
                     
                     
-                    markLogAsDone(deltaLogPath);
+                    markLogAsDone(deltaLogPath, ingestLedger);
                     
                     
                 } catch (FileNotFoundException e) {
@@ -494,12 +806,31 @@ public class DeltaLogProcessor implements Runnable {
                     log.error("Invalid request exception. Reason: " + e.getWhy(), e);
                 } catch (HTimedOutException e) {
                     log.error("Timed out exception", e);
+                } catch (HectorException e) {
+                    // keep draining the queue; the lister blocks on a full queue if all processors are gone
+                    log.error("Hector exception while processing deltaLog file " + deltaLogPath, e);
+                } catch (InterruptedException e) {
+                    log.error("DeltaLogProcessor " + id + " interrupted while handing over pushed volumes of " + deltaLogPath, e);
+                    return;
                 }
             } else {
-                isAllDone = jobQueue.isDone();
-                if (log.isTraceEnabled()) log.trace("isAllDone: " + isAllDone);
+                if (log.isTraceEnabled()) log.trace("DeltaLogProcessor " + id + " reached end of delta log queue");
             }
-        } while (!isAllDone);
+        } while (deltaLogPath != null);
+        
+        if (volumeEventQueue != null) {
+            List<VolumeEvent> volumeEventList = new ArrayList<VolumeEvent>(VOLUME_EVENT_BATCH_SIZE);
+            try {
+                while (volumeEventQueue.drainTo(volumeEventList, VOLUME_EVENT_BATCH_SIZE) > 0) {
+                    if (log.isTraceEnabled()) log.trace("DeltaLogProcessor " + id + " took " + volumeEventList.size() + " volume events");
+                    processVolumeEvents(volumeEventList);
+                    volumeEventList.clear();
+                }
+                if (log.isTraceEnabled()) log.trace("DeltaLogProcessor " + id + " reached end of volume event queue");
+            } catch (InterruptedException e) {
+                log.error("DeltaLogProcessor " + id + " interrupted while processing volume events", e);
+            }
+        }
             
     }
 }
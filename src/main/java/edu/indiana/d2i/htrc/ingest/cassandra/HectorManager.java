@@ -263,10 +263,9 @@ public class HectorManager {
         
         String volumeID = volumeUpdateInfo.getVolumeID();
         String cleanedPartialVoluemID = volumeUpdateInfo.getCleanedPartialVoluemID();
-        String volumePath = volumeUpdateInfo.getVolumePath();
         CopyrightEnum copyright = volumeUpdateInfo.getCopyright();
         
-        String volumeZipPath = volumePath + cleanedPartialVoluemID + ".zip";
+        String volumeZipPath = volumeUpdateInfo.resolveFile(cleanedPartialVoluemID + ".zip").getPath();
         
         boolean volumeAdded = updateVolumeContents(volumeID, volumeZipPath, volumeRecord, volumeContentsCFTemplate);
         
@@ -94,12 +94,13 @@ public class HectorToolBridge {
          * 
          * @see edu.indiana.d2i.htrc.ingest.verify.Verifier#verify(java.lang.String)
          */
-        public void verify(String volumeID) {
+        public boolean verify(String volumeID) {
             try {
 
                 int pageCount = hectorAccessor.retrieveVolumePageCount(volumeID);
                 verifyPages(volumeID, pageCount);
                 System.out.println("volume " + volumeID + " verified at level " + verificationLevel.toString());
+                return true;
                 
             } catch (VerificationException e) {
                 e.printStackTrace(System.err);
@@ -110,7 +111,7 @@ public class HectorToolBridge {
             } catch (HTimedOutException e) {
                 e.printStackTrace(System.err);
             }
-            
+            return false;
 
         }
         
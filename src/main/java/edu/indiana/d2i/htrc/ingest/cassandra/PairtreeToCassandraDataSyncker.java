@@ -34,14 +34,23 @@ package edu.indiana.d2i.htrc.ingest.cassandra;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
 import edu.indiana.d2i.htrc.ingest.Constants;
-import edu.indiana.d2i.htrc.ingest.JobQueue;
+import edu.indiana.d2i.htrc.ingest.DeltaLogListener;
+import edu.indiana.d2i.htrc.ingest.DeltaLogListenerFactory;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
+import edu.indiana.d2i.htrc.ingest.PairtreeSnapshotManager;
 import edu.indiana.d2i.htrc.ingest.PropertyReader;
+import edu.indiana.d2i.htrc.ingest.Util;
+import edu.indiana.d2i.htrc.ingest.rsync.RsyncJobJournal;
 
 /**
  * This class drives the synchronization/ingest of corpus data from the Pairtree on filesystem to Cassandra 
@@ -105,9 +114,41 @@ public class PairtreeToCassandraDataSyncker {
         
     }
     
+    /**
+     * This implementation of DeltaLogListenerFactory creates a StreamingDeltaLogParser for each delta log
+     * @author Yiming Sun
+     *
+     */
+    static final class StreamingDeltaLogParserFactory implements DeltaLogListenerFactory {
+        private final BoundedJobQueue<VolumeEvent> volumeEventQueue;
+        private final IngestLedger ingestLedger;
+        
+        /**
+         * Constructor
+         * @param volumeEventQueue a BoundedJobQueue to which the created parsers publish the volumes
+         * @param ingestLedger an IngestLedger object to record the pushed volumes in, or <code>null</code> if no ledger is kept
+         */
+        StreamingDeltaLogParserFactory(BoundedJobQueue<VolumeEvent> volumeEventQueue, IngestLedger ingestLedger) {
+            this.volumeEventQueue = volumeEventQueue;
+            this.ingestLedger = ingestLedger;
+        }
+        
+        /**
+         * @see edu.indiana.d2i.htrc.ingest.DeltaLogListenerFactory#createListener()
+         */
+        @Override
+        public DeltaLogListener createListener() {
+            return new StreamingDeltaLogParser(volumeEventQueue, ingestLedger);
+        }
+    }
+    
     private static Logger log = Logger.getLogger(PairtreeToCassandraDataSyncker.class);
     
-    protected JobQueue<String> jobQueue;
+    protected BoundedJobQueue<String> jobQueue;
+    
+    protected BoundedJobQueue<VolumeEvent> volumeEventQueue;
+    
+    protected BoundedJobQueue<String> pushedVolumeQueue;
     
     protected int threadCount;
     
@@ -116,43 +157,180 @@ public class PairtreeToCassandraDataSyncker {
     
     protected File[] dlogDirList;
     
+    protected List<Thread> pipelinedThreadList;
+    protected boolean snapshottedOnly;
+    protected boolean compactDeltaLogs;
+    protected IngestLedger ingestLedger;
+    protected boolean boundedParsing;
+    protected int scannerThreadCount;
+    
     /**
      * Constructor
      */
     public PairtreeToCassandraDataSyncker() {
+        this(null, null);
+    }
+    
+    /**
+     * Constructor for the pipelined mode, where delta logs are handed over by the rsync stage as soon as they are written
+     * @param deltaLogQueue a BoundedJobQueue of paths to delta log files to process, or <code>null</code> to create an internal one
+     * @param pushedVolumeQueue a BoundedJobQueue to which the volumeID of each volume pushed to Cassandra is put, or <code>null</code> if no downstream stage is waiting for them
+     */
+    public PairtreeToCassandraDataSyncker(BoundedJobQueue<String> deltaLogQueue, BoundedJobQueue<String> pushedVolumeQueue) {
+        this(deltaLogQueue, pushedVolumeQueue, false);
+    }
+    
+    /**
+     * Constructor for the pipelined mode
+     * @param deltaLogQueue a BoundedJobQueue of paths to delta log files to process, or <code>null</code> to create an internal one
+     * @param pushedVolumeQueue a BoundedJobQueue to which the volumeID of each volume pushed to Cassandra is put, or <code>null</code> if no downstream stage is waiting for them
+     * @param streamDeltaLogs if <code>true</code>, the delta logs of the current run are not read from disk but parsed while rsync
+     * writes them, through the DeltaLogListenerFactory returned by getDeltaLogListenerFactory(). deltaLogQueue then only carries
+     * the delta logs left by earlier runs
+     */
+    public PairtreeToCassandraDataSyncker(BoundedJobQueue<String> deltaLogQueue, BoundedJobQueue<String> pushedVolumeQueue, boolean streamDeltaLogs) {
         PropertyReader propertyReader = PropertyReader.getInstance();
         
         deltaLogRoot = propertyReader.getProperty(Constants.PK_DELTA_LOG_ROOT);
 
         threadCount = Integer.parseInt(propertyReader.getProperty(Constants.PK_DELTA_PROCESSOR_THREAD_COUNT));
 
-        jobQueue = new JobQueue<String>("PT2NoSQLJobQueue");
-
+        int jobQueueCapacity = Util.getIntProperty(propertyReader.getProperty(Constants.PK_JOB_QUEUE_CAPACITY), BoundedJobQueue.DEFAULT_CAPACITY);
+        if (deltaLogQueue != null) {
+            jobQueue = deltaLogQueue;
+        } else {
+            jobQueue = new BoundedJobQueue<String>("PT2NoSQLJobQueue", jobQueueCapacity);
+        }
         
+        if (streamDeltaLogs) {
+            volumeEventQueue = new BoundedJobQueue<VolumeEvent>("PT2NoSQLVolumeEventQueue", jobQueueCapacity);
+        } else {
+            volumeEventQueue = null;
+        }
+        
+        this.pushedVolumeQueue = pushedVolumeQueue;
+        this.pipelinedThreadList = null;
+        this.snapshottedOnly = false;
+        this.compactDeltaLogs = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_DELTA_LOG_COMPACTION));
+        this.ingestLedger = IngestLedger.getConfiguredInstance();
+        this.boundedParsing = Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_BOUNDED_MEMORY_DELTA_LOG_PARSING));
+        this.scannerThreadCount = Util.getIntProperty(propertyReader.getProperty(Constants.PK_DELTA_LOG_SCANNER_THREAD_COUNT), 1);
+    }
+    
+    /**
+     * Method to set whether only delta log directories with a Pairtree snapshot are processed. With snapshots, the next
+     * run may be writing its delta log directory while this one is pushed, and that directory has no snapshot yet
+     * @param snapshottedOnly <code>true</code> to process only delta log directories with a snapshot, <code>false</code> to process all
+     */
+    public void setSnapshottedOnly(boolean snapshottedOnly) {
+        this.snapshottedOnly = snapshottedOnly;
+    }
+    
+    /**
+     * Method to get the DeltaLogListenerFactory through which rsync output is parsed as it is written
+     * @return a DeltaLogListenerFactory object, or <code>null</code> if delta logs are not streamed
+     */
+    public DeltaLogListenerFactory getDeltaLogListenerFactory() {
+        return (volumeEventQueue != null) ? new StreamingDeltaLogParserFactory(volumeEventQueue, ingestLedger) : null;
     }
     
     /**
-     * Method to list delta log files
+     * Method to list delta log files. The job queue is closed when this method returns
      */
     protected void listFiles() {
+        try {
+            queueDeltaLogFiles();
+        } catch (InterruptedException e) {
+            log.error("Interrupted while queuing delta log files. Remaining delta logs are left for the next run", e);
+        } finally {
+            jobQueue.close();
+        }
+    }
+    
+    /**
+     * Method to list the delta log directories under the delta log root that have not been processed yet
+     * @return an array of File objects representing the delta log directories
+     */
+    protected File[] listDeltaLogDirs() {
+        File[] dirs = listUnprocessedDeltaLogDirs(new File(deltaLogRoot), ingestLedger);
+        if (snapshottedOnly) {
+            List<File> snapshottedDirs = new ArrayList<File>();
+            for (File dir : dirs) {
+                if (PairtreeSnapshotManager.isSnapshotted(dir)) {
+                    snapshottedDirs.add(dir);
+                } else {
+                    log.info("deltaLog directory " + dir.getPath() + " has no snapshot yet. Leaving it for the next push");
+                }
+            }
+            dirs = snapshottedDirs.toArray(new File[0]);
+        }
+        return dirs;
+    }
+    
+    /**
+     * Method to list the delta log directories under a delta log root that have not been processed yet. Those are the
+     * directories with a raw name, less the ones the IngestLedger records as processed or verified if a ledger is kept
+     * @param deltaLogRootDir the delta log root directory
+     * @param ingestLedger an IngestLedger object the processed directories are recorded in, or <code>null</code> if they are renamed
+     * @return an array of File objects representing the delta log directories
+     */
+    public static File[] listUnprocessedDeltaLogDirs(File deltaLogRootDir, IngestLedger ingestLedger) {
+        File[] dirs = deltaLogRootDir.listFiles((FileFilter)new DeltaLogDirectoryFilter());
+        if (dirs == null) {
+            return new File[0];
+        }
+        if (ingestLedger == null) {
+            return dirs;
+        }
+        List<File> unprocessedDirs = new ArrayList<File>();
+        for (File dir : dirs) {
+            if (ingestLedger.getDeltaLogDirState(dir.getName()) == null) {
+                unprocessedDirs.add(dir);
+            }
+        }
+        return unprocessedDirs.toArray(new File[0]);
+    }
+    
+    /**
+     * Method to list the delta log files of a delta log directory that have not been parsed yet. Those are the files with
+     * a raw name, less the ones the IngestLedger records a state for if a ledger is kept
+     * @param dir a delta log directory
+     * @param ingestLedger an IngestLedger object the parsed delta logs are recorded in, or <code>null</code> if they are renamed
+     * @return an array of File objects representing the delta log files
+     */
+    public static File[] listUnparsedDeltaLogFiles(File dir, IngestLedger ingestLedger) {
+        File[] files = dir.listFiles((FileFilter)new DeltaLogFileFilter());
+        if (files == null) {
+            return new File[0];
+        }
+        if (ingestLedger == null) {
+            return files;
+        }
+        List<File> unparsedFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (ingestLedger.getDeltaLogState(file.getPath()) == null) {
+                unparsedFiles.add(file);
+            }
+        }
+        return unparsedFiles.toArray(new File[0]);
+    }
+    
+    /**
+     * Method to put the delta log files found in the unprocessed delta log directories into the job queue
+     * @throws InterruptedException thrown if interrupted while waiting for space in the job queue
+     */
+    protected void queueDeltaLogFiles() throws InterruptedException {
         
-        File deltaLogRootDir = new File(deltaLogRoot);
-        FileFilter dlogDirFileFilter = new DeltaLogDirectoryFilter();
-        
-        FileFilter dlogFilenameFilter = new DeltaLogFileFilter();
-        
-        dlogDirList = deltaLogRootDir.listFiles(dlogDirFileFilter);
+        dlogDirList = listDeltaLogDirs();
         
         for (File file : dlogDirList) {
-            File[] listFiles = file.listFiles(dlogFilenameFilter);
+            File[] listFiles = listUnparsedDeltaLogFiles(file, ingestLedger);
             for (File dlogFile : listFiles) {
                 String dlogFilePath = dlogFile.getPath();
                 if (log.isTraceEnabled()) log.trace("enqueue " + dlogFilePath);
-                jobQueue.enqueue(dlogFilePath);
+                jobQueue.put(dlogFilePath);
             }
         }
-        
-        jobQueue.markDone();
     }
 
     /**
@@ -164,7 +342,10 @@ public class PairtreeToCassandraDataSyncker {
         List<Thread> threadList = new ArrayList<Thread>();
         
         for (int i = 0; i < threadCount; i++) {
-            DeltaLogProcessor processor = new DeltaLogProcessor(i, jobQueue);
+            DeltaLogProcessor processor = new DeltaLogProcessor(i, jobQueue, volumeEventQueue, pushedVolumeQueue);
+            processor.setIngestLedger(ingestLedger);
+            processor.setBoundedParsing(boundedParsing);
+            processor.setScannerThreadCount(scannerThreadCount);
             Thread thread = new Thread(processor);
             if (log.isTraceEnabled()) log.trace("DeltaLogProcessor thread " + thread.getName() + " launched");
             threadList.add(thread);
@@ -200,10 +381,110 @@ public class PairtreeToCassandraDataSyncker {
     }
     
     /**
-     * Method to change the delta log directories names to signify they have been processed
+     * Method to run jobs with the pending delta logs compacted, so each volume is pushed at most once. The delta logs are
+     * parsed here, oldest first, and the compacted volumes are handed to the processor threads as VolumeEvent objects
+     */
+    protected void runCompactedJob() {
+        volumeEventQueue = new BoundedJobQueue<VolumeEvent>("PT2NoSQLVolumeEventQueue", jobQueue.getCapacity());
+        // no delta log goes through the job queue, so the processors move on to the volume events right away
+        jobQueue.close();
+        List<Thread> threadList = launchProcessorThreads();
+        try {
+            compactDeltaLogFiles().publish(volumeEventQueue);
+        } catch (InterruptedException e) {
+            log.error("Interrupted while publishing compacted volumes. Remaining delta logs are left for the next run", e);
+        } finally {
+            volumeEventQueue.close();
+        }
+        joinProcessorThreads(threadList);
+        volumeEventQueue = null;
+    }
+    
+    /**
+     * Method to parse the delta log files found in the unprocessed delta log directories and compact their volumes. The
+     * directories are taken in the order of their timestamps, and the delta logs within a directory in the order they
+     * were written, so a later run, or a retry of a job, wins
+     * @return a DeltaLogCompactor object holding the compacted volumes
+     */
+    protected DeltaLogCompactor compactDeltaLogFiles() {
+        Comparator<File> writtenOrder = new Comparator<File>() {
+            public int compare(File file1, File file2) {
+                long modified1 = file1.lastModified();
+                long modified2 = file2.lastModified();
+                if (modified1 != modified2) {
+                    return (modified1 < modified2) ? -1 : 1;
+                }
+                return file1.getName().compareTo(file2.getName());
+            }
+        };
+        
+        DeltaLogCompactor compactor = new DeltaLogCompactor(ingestLedger);
+        dlogDirList = listDeltaLogDirs();
+        File[] sortedDirs = dlogDirList.clone();
+        Arrays.sort(sortedDirs);
+        
+        for (File dir : sortedDirs) {
+            File[] listFiles = listUnparsedDeltaLogFiles(dir, ingestLedger);
+            Arrays.sort(listFiles, writtenOrder);
+            for (File dlogFile : listFiles) {
+                String dlogFilePath = dlogFile.getPath();
+                DeltaLogParser deltaParser = new DeltaLogParser(dlogFilePath, scannerThreadCount);
+                try {
+                    deltaParser.parse();
+                    compactor.add(dlogFilePath, deltaParser.getVolumeDeletionList(), deltaParser.getVolumeUpdateList());
+                } catch (IOException e) {
+                    log.error("Failed to parse deltaLog file " + dlogFilePath + ". Leaving it out of the compaction", e);
+                }
+            }
+        }
+        return compactor;
+    }
+    
+    /**
+     * Method to mark the delta log directories as processed
      */
     protected void markDlogDirsAsDone() {
-        for (File dir : dlogDirList) {
+        markDlogDirsAsDone(dlogDirList, ingestLedger);
+    }
+
+    /**
+     * Method to change the names of the given delta log directories to signify they have been processed. A directory whose
+     * rsync job journal has no RUN_COMPLETED entry is left as it is, so the Ingester can still resume its run
+     * @param dirs an array of File objects representing the delta log directories
+     */
+    public static void markDlogDirsAsDone(File[] dirs) {
+        markDlogDirsAsDone(dirs, null);
+    }
+
+    /**
+     * Method to mark the given delta log directories as processed, by recording them in the IngestLedger if one is kept,
+     * or else by renaming them. A directory whose rsync job journal has no RUN_COMPLETED entry is left as it is, so the
+     * Ingester can still resume its run
+     * @param dirs an array of File objects representing the delta log directories
+     * @param ingestLedger an IngestLedger object to record the directories in, or <code>null</code> if no ledger is kept
+     */
+    public static void markDlogDirsAsDone(File[] dirs, IngestLedger ingestLedger) {
+        for (File dir : dirs) {
+            try {
+                if (RsyncJobJournal.isIncompleteRun(dir)) {
+                    log.info("deltaLog directory " + dir.getPath() + " holds a run that did not complete. Leaving it to be resumed");
+                    continue;
+                }
+            } catch (IOException e) {
+                log.error("Unable to read the rsync job journal in " + dir.getPath() + ". Leaving the deltaLog directory as it is", e);
+                continue;
+            }
+            
+            if (ingestLedger != null) {
+                try {
+                    ingestLedger.recordDeltaLogDir(dir.getName(), IngestLedger.State.PARSED);
+                    log.info("deltaLog directory " + dir.getPath() + " recorded as processed in the ingest ledger");
+                } catch (IOException e) {
+                    log.error("Unable to record deltaLog directory " + dir.getPath() + " as processed in the ingest ledger", e);
+                }
+                continue;
+            }
+            
             String dirName = dir.getName();
             File parentFile = dir.getParentFile();
             
@@ -223,9 +504,54 @@ public class PairtreeToCassandraDataSyncker {
      * Method to initiate the process
      */
     public void process() {
-        runJob();
+        if (compactDeltaLogs) {
+            runCompactedJob();
+        } else {
+            runJob();
+        }
         markDlogDirsAsDone();
     }
+    
+    /**
+     * Method to start the process in pipelined mode. It launches the processor threads and queues the delta logs left
+     * unprocessed by earlier runs; the delta logs of the current run are put into the job queue by the rsync stage, or
+     * streamed in as volume events. finishPipelined() must be called once the rsync stage is done
+     */
+    public void startPipelined() {
+        pipelinedThreadList = launchProcessorThreads();
+        try {
+            queueDeltaLogFiles();
+        } catch (InterruptedException e) {
+            log.error("Interrupted while queuing leftover delta log files. They are left for the next run", e);
+        }
+        if (volumeEventQueue != null) {
+            // the processors move on to the volume events only after the delta log queue ends
+            jobQueue.close();
+        }
+    }
+    
+    /**
+     * Method to finish the process in pipelined mode. It closes the job queue, waits for the processor threads to drain
+     * it, and then marks all delta log directories as processed if the rsync stage finished. If the rsync stage failed,
+     * the directories are left as they are, so the delta log directory of the run can still be resumed
+     * @param rsyncSucceeded a boolean flag indicating if the rsync stage ran to its end
+     */
+    public void finishPipelined(boolean rsyncSucceeded) {
+        jobQueue.close();
+        if (volumeEventQueue != null) {
+            volumeEventQueue.close();
+        }
+        if (pipelinedThreadList != null) {
+            joinProcessorThreads(pipelinedThreadList);
+            pipelinedThreadList = null;
+        }
+        if (rsyncSucceeded) {
+            dlogDirList = listDeltaLogDirs();
+            markDlogDirsAsDone();
+        } else {
+            log.warn("Rsync stage did not finish. Leaving the deltaLog directories for the next run");
+        }
+    }
 
 }
 
@@ -0,0 +1,168 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  StreamingDeltaLogParser.java
+# Description: This class parses rsync output as it arrives and publishes the volumes to the Cassandra push stage
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.cassandra;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.DeltaLogListener;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.Record;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeHandler;
+
+/**
+ * This class parses rsync output as it arrives and publishes each volume to the Cassandra push stage as a VolumeEvent,
+ * instead of waiting for the delta log to be written and reading it back. rsync lists the files of a volume directory
+ * together, so a volume is published as soon as the output moves on to another directory. The delta log file itself is
+ * still written by the rsync stage; it is marked as parsed once it has been closed and all of its volumes have been
+ * pushed without error, just like DeltaLogProcessor does for delta logs read from disk
+ */
+class StreamingDeltaLogParser extends DeltaLogParser implements DeltaLogListener, VolumeHandler, VolumeEvent.Source {
+    private static Logger log = Logger.getLogger(StreamingDeltaLogParser.class);
+
+    private final BoundedJobQueue<VolumeEvent> eventQueue;
+    private final IngestLedger ingestLedger;
+
+    // number of published events not processed yet, plus 1 until finish() is called
+    private final AtomicInteger outstandingCount;
+    private volatile boolean failed;
+
+    private String currentVolumeDirectory;
+
+    /**
+     * Constructor
+     * @param eventQueue a BoundedJobQueue to which the parsed volumes are published
+     */
+    StreamingDeltaLogParser(BoundedJobQueue<VolumeEvent> eventQueue) {
+        this(eventQueue, null);
+    }
+
+    /**
+     * Constructor
+     * @param eventQueue a BoundedJobQueue to which the parsed volumes are published
+     * @param ingestLedger an IngestLedger object to record the pushed volumes in, or <code>null</code> if no ledger is kept
+     */
+    StreamingDeltaLogParser(BoundedJobQueue<VolumeEvent> eventQueue, IngestLedger ingestLedger) {
+        super(null);
+        this.eventQueue = eventQueue;
+        this.ingestLedger = ingestLedger;
+        this.outstandingCount = new AtomicInteger(1);
+        this.failed = false;
+        this.currentVolumeDirectory = null;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.DeltaLogListener#start(java.lang.String)
+     */
+    @Override
+    public void start(String deltaLogPath) {
+        this.deltaLogPath = deltaLogPath;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.DeltaLogListener#line(java.lang.String)
+     */
+    @Override
+    public void line(String line) throws InterruptedException {
+        Record record = scanLine(line);
+        if (record == null) {
+            parseHeaderLine(line);
+            return;
+        }
+        if (!record.isAttributeOnly()) {
+            String volumeDirectory = record.getVolumeDirectory();
+            if (currentVolumeDirectory != null && !volumeDirectory.equals(currentVolumeDirectory)) {
+                flushVolumes(this);
+            }
+            currentVolumeDirectory = volumeDirectory;
+        }
+        parseRecord(record);
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.DeltaLogListener#finish(boolean)
+     */
+    @Override
+    public void finish(boolean successful) throws InterruptedException {
+        try {
+            flushVolumes(this);
+            log.info("Finished streaming " + deltaLogPath);
+        } finally {
+            release(null, successful);
+        }
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeHandler#handleVolume(edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeDeletionInfo, edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeUpdateInfo)
+     */
+    @Override
+    public void handleVolume(VolumeDeletionInfo volumeDeletionInfo, VolumeUpdateInfo volumeUpdateInfo) throws InterruptedException {
+        outstandingCount.incrementAndGet();
+        boolean published = false;
+        try {
+            eventQueue.put(new VolumeEvent(this, volumeDeletionInfo, volumeUpdateInfo));
+            published = true;
+        } finally {
+            if (!published) {
+                release(null, false);
+            }
+        }
+    }
+
+    /**
+     * Method to count down the outstanding events of the delta log, and mark the delta log as parsed when the last one is done
+     * @param volumeID the volumeID of the event, or <code>null</code> if the release is not for a volume
+     * @param successful <code>true</code> if the event was processed without error, <code>false</code> otherwise
+     */
+    public void release(String volumeID, boolean successful) {
+        if (!successful) {
+            failed = true;
+        }
+        if (ingestLedger != null && volumeID != null && !DeltaLogProcessor.recordVolume(ingestLedger, deltaLogPath, volumeID, successful)) {
+            failed = true;
+        }
+        if (outstandingCount.decrementAndGet() == 0) {
+            if (failed) {
+                log.warn("Not all volumes from " + deltaLogPath + " were pushed. Leaving it unparsed");
+            } else {
+                try {
+                    DeltaLogProcessor.markLogAsDone(deltaLogPath, ingestLedger);
+                } catch (IOException e) {
+                    log.error("Unable to record " + deltaLogPath + " as parsed in the ingest ledger. Leaving it unparsed", e);
+                }
+            }
+        }
+    }
+}
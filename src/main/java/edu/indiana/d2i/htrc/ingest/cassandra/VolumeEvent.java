@@ -0,0 +1,93 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  VolumeEvent.java
+# Description: This class carries one volume parsed from rsync output to the Cassandra push stage
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.cassandra;
+
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeDeletionInfo;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeUpdateInfo;
+
+/**
+ * This class carries one volume parsed from rsync output to the Cassandra push stage
+ */
+class VolumeEvent {
+    
+    /**
+     * This interface is told when an event it published has been processed
+     */
+    static interface Source {
+        /**
+         * Method called once an event of the source has been processed
+         * @param volumeID the volumeID of the event, or <code>null</code> if the release is not for a volume
+         * @param successful <code>true</code> if the volume was pushed without error, <code>false</code> otherwise
+         */
+        public void release(String volumeID, boolean successful);
+    }
+    
+    private final Source source;
+    private final VolumeDeletionInfo volumeDeletionInfo;
+    private final VolumeUpdateInfo volumeUpdateInfo;
+
+    /**
+     * Constructor
+     * @param source the Source of the event, e.g. the StreamingDeltaLogParser that parsed the volume
+     * @param volumeDeletionInfo a VolumeDeletionInfo object, or <code>null</code> if nothing of the volume is deleted
+     * @param volumeUpdateInfo a VolumeUpdateInfo object, or <code>null</code> if the volume is not new or updated
+     */
+    VolumeEvent(Source source, VolumeDeletionInfo volumeDeletionInfo, VolumeUpdateInfo volumeUpdateInfo) {
+        this.source = source;
+        this.volumeDeletionInfo = volumeDeletionInfo;
+        this.volumeUpdateInfo = volumeUpdateInfo;
+    }
+
+    /**
+     * Method to get the VolumeDeletionInfo object
+     * @return the VolumeDeletionInfo object, or <code>null</code> if nothing of the volume is deleted
+     */
+    VolumeDeletionInfo getVolumeDeletionInfo() {
+        return volumeDeletionInfo;
+    }
+
+    /**
+     * Method to get the VolumeUpdateInfo object
+     * @return the VolumeUpdateInfo object, or <code>null</code> if the volume is not new or updated
+     */
+    VolumeUpdateInfo getVolumeUpdateInfo() {
+        return volumeUpdateInfo;
+    }
+
+    /**
+     * Method to report that the event has been processed, so the delta log it came from can be marked as parsed once all of its events are done
+     * @param successful <code>true</code> if the volume was pushed without error, <code>false</code> otherwise
+     */
+    void done(boolean successful) {
+        source.release((volumeDeletionInfo != null) ? volumeDeletionInfo.getVolumeID() : volumeUpdateInfo.getVolumeID(), successful);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  AdaptiveConcurrencyController.java
+# Description: This class adjusts the number of concurrent rsync processes to the observed throughput
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class adjusts the number of concurrent rsync processes to the observed throughput, AIMD style. The Ingester
+ * launches as many Rsyncker threads as the upper bound, and each one has to acquire a permit from this controller before
+ * it takes a job, so only <code>limit</code> rsync processes run at a time. Every sampling interval, the bytes received by
+ * the jobs that finished during the interval give the aggregate throughput, and their mean duration gives the per-job
+ * latency. As long as throughput holds or grows, the limit is raised by one (additive increase); once throughput drops
+ * while latency rises, the source host, network or NFS is saturated and the limit is halved (multiplicative decrease).
+ * A drop in throughput without a rise in latency is put down to smaller jobs and leaves the limit unchanged
+ */
+public class AdaptiveConcurrencyController implements Runnable {
+    private static Logger log = Logger.getLogger(AdaptiveConcurrencyController.class);
+
+    // relative change below which throughput and latency are considered unchanged
+    static final double TOLERANCE = 0.1;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long sampleInterval;
+
+    private final Object lock;
+    private int limit;
+    private int activeCount;
+    private boolean stopped;
+
+    private long windowBytes;
+    private long windowDuration;
+    private int windowJobCount;
+
+    private double previousThroughput;
+    private double previousLatency;
+
+    /**
+     * Constructor
+     * @param initialLimit the number of concurrent rsync processes to start with
+     * @param minLimit the lower bound of concurrent rsync processes
+     * @param maxLimit the upper bound of concurrent rsync processes
+     * @param sampleInterval the sampling interval in milliseconds
+     */
+    public AdaptiveConcurrencyController(int initialLimit, int minLimit, int maxLimit, long sampleInterval) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.sampleInterval = sampleInterval;
+        this.lock = new Object();
+        this.activeCount = 0;
+        this.stopped = false;
+        this.windowBytes = 0L;
+        this.windowDuration = 0L;
+        this.windowJobCount = 0;
+        this.previousThroughput = -1.0;
+        this.previousLatency = -1.0;
+    }
+
+    /**
+     * Method to wait for a permit to run an rsync process
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        synchronized (lock) {
+            while (activeCount >= limit) {
+                lock.wait();
+            }
+            activeCount++;
+        }
+    }
+
+    /**
+     * Method to return a permit, and take the job run under it into account
+     * @param stats a RsyncJobStats object of the job, or <code>null</code> if no job was run under the permit
+     */
+    public void release(RsyncJobStats stats) {
+        synchronized (lock) {
+            activeCount--;
+            if (stats != null) {
+                windowBytes += stats.getBytesReceived();
+                windowDuration += stats.getDuration();
+                windowJobCount++;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Method to get the current number of concurrent rsync processes allowed
+     * @return the current limit
+     */
+    public int getLimit() {
+        synchronized (lock) {
+            return limit;
+        }
+    }
+
+    /**
+     * Method to stop the sampling loop
+     */
+    public void stop() {
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        log.info("Adaptive rsync concurrency started. limit: " + getLimit() + " bounds: [" + minLimit + ", " + maxLimit + "]");
+        synchronized (lock) {
+            long nextSampleTime = System.currentTimeMillis() + sampleInterval;
+            while (!stopped) {
+                long now = System.currentTimeMillis();
+                if (now < nextSampleTime) {
+                    try {
+                        lock.wait(nextSampleTime - now);
+                    } catch (InterruptedException e) {
+                        log.warn("Adaptive rsync concurrency interrupted. Keeping limit " + limit);
+                        return;
+                    }
+                } else {
+                    sample();
+                    nextSampleTime = now + sampleInterval;
+                }
+            }
+        }
+        log.info("Adaptive rsync concurrency stopped. final limit: " + getLimit());
+    }
+
+    /**
+     * Method to take a sample of the jobs finished during the interval and adjust the limit. Must be called holding the lock
+     */
+    private void sample() {
+        if (windowJobCount == 0) {
+            if (log.isDebugEnabled()) log.debug("No rsync job finished during the interval. Keeping limit " + limit);
+            return;
+        }
+        double throughput = windowBytes * 1000.0 / sampleInterval;
+        double latency = (double) windowDuration / windowJobCount;
+        int oldLimit = limit;
+        limit = adjust(limit, minLimit, maxLimit, previousThroughput, previousLatency, throughput, latency);
+        log.info("rsync throughput: " + (long) throughput + " bytes/s, mean job latency: " + (long) latency + " ms, jobs: " + windowJobCount
+                + ". limit " + oldLimit + " -> " + limit);
+
+        previousThroughput = throughput;
+        previousLatency = latency;
+        windowBytes = 0L;
+        windowDuration = 0L;
+        windowJobCount = 0;
+        lock.notifyAll();
+    }
+
+    /**
+     * Method to compute the new limit from two consecutive samples
+     * @param limit the current limit
+     * @param minLimit the lower bound
+     * @param maxLimit the upper bound
+     * @param previousThroughput the throughput of the previous sample, or a negative number if there is none
+     * @param previousLatency the latency of the previous sample, or a negative number if there is none
+     * @param throughput the throughput of the current sample
+     * @param latency the latency of the current sample
+     * @return the new limit
+     */
+    static int adjust(int limit, int minLimit, int maxLimit, double previousThroughput, double previousLatency, double throughput, double latency) {
+        if (previousThroughput < 0) {
+            return Math.min(maxLimit, limit + 1);
+        }
+        boolean throughputDropped = throughput < previousThroughput * (1.0 - TOLERANCE);
+        boolean latencyRose = latency > previousLatency * (1.0 + TOLERANCE);
+        if (throughputDropped && latencyRose) {
+            return Math.max(minLimit, limit / 2);
+        } else if (throughputDropped) {
+            return limit;
+        } else {
+            return Math.min(maxLimit, limit + 1);
+        }
+    }
+}
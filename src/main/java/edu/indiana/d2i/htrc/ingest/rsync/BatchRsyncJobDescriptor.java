@@ -0,0 +1,79 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  BatchRsyncJobDescriptor.java
+# Description: This class stores information regarding one rsync of several small sibling branches
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class stores information regarding one rsync of several small sibling branches. The branches share their parent
+ * directory, which becomes the rsync source, and are named relative to it in a <code>--files-from</code> list, so one
+ * rsync process and one daemon handshake cover them all. The branches of a batch also share the PREFIX= and COPYRIGHT=,
+ * so the single delta log header attributes every volume in the output to the right namespace, and the relative paths
+ * rsync prints resolve against the parent destination directory given as DEST_ROOT=
+ */
+public class BatchRsyncJobDescriptor extends RsyncJobDescriptor {
+    protected final List<RsyncJobDescriptor> branchJobs;
+    protected final List<String> relativePaths;
+
+    /**
+     * Constructor
+     * @param parentSourceRoot the source directory the branches have in common, with a trailing slash
+     * @param parentDestRoot the destination directory the branches have in common, with a trailing slash
+     * @param branchJobs a List of RsyncJobDescriptor objects of the branches, all directly under the parent directory and with the same prefix and copyright
+     */
+    protected BatchRsyncJobDescriptor(String parentSourceRoot, String parentDestRoot, List<RsyncJobDescriptor> branchJobs) {
+        super(parentSourceRoot, parentDestRoot, branchJobs.get(0).getPrefix(), branchJobs.get(0).getCopyright(), branchJobs.get(0).getUsername(),
+                branchJobs.get(0).getPassword(), branchJobs.get(0).getHost(), branchJobs.get(0).getSeparator(), branchJobs.get(0).getDeltaLogDir(), branchJobs.get(0).isDryRun());
+        this.branchJobs = branchJobs;
+        this.relativePaths = new ArrayList<String>(branchJobs.size());
+        for (RsyncJobDescriptor branchJob : branchJobs) {
+            relativePaths.add(branchJob.getSourceRoot().substring(parentSourceRoot.length()));
+        }
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.RsyncJobDescriptor#getBranchJobs()
+     */
+    @Override
+    protected List<RsyncJobDescriptor> getBranchJobs() {
+        return branchJobs;
+    }
+
+    /**
+     * Method to get the paths of the branches relative to the parent source directory, as listed in <code>--files-from</code>
+     * @return a List of relative paths
+     */
+    protected List<String> getRelativePaths() {
+        return relativePaths;
+    }
+}
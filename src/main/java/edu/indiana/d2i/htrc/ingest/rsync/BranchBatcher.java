@@ -0,0 +1,155 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  BranchBatcher.java
+# Description: This class groups small sibling pairtree branches into batch rsync jobs
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class groups small sibling pairtree branches into batch rsync jobs, so that the per-process and per-connection
+ * overhead of rsync is paid once per batch instead of once per branch. Branches are siblings if they have the same parent
+ * directory on both the source and the destination side, and they are only batched together if they also have the same
+ * prefix and copyright, so the one delta log header of the batch holds for every line of its output. If a branch cost
+ * history and a threshold are given, only branches with a recorded duration below the threshold are batched; otherwise
+ * every branch is. Branches that are not batched, and batches that would hold a single branch, are returned as they are
+ */
+public class BranchBatcher {
+    private static Logger log = Logger.getLogger(BranchBatcher.class);
+
+    private final int batchSize;
+    private final long threshold;
+    private final BranchCostHistory costHistory;
+
+    /**
+     * Constructor
+     * @param batchSize the maximum number of branches in a batch
+     * @param threshold the recorded duration in milliseconds below which a branch is batched, or 0 to batch every branch
+     * @param costHistory a BranchCostHistory object, or <code>null</code> to batch every branch
+     */
+    public BranchBatcher(int batchSize, long threshold, BranchCostHistory costHistory) {
+        this.batchSize = batchSize;
+        this.threshold = threshold;
+        this.costHistory = costHistory;
+    }
+
+    /**
+     * Method to group branch jobs into batch jobs
+     * @param jobs a List of RsyncJobDescriptor objects, one per branch
+     * @return a List of RsyncJobDescriptor objects, holding the batch jobs followed by the branches that were not batched
+     */
+    public List<RsyncJobDescriptor> batch(List<RsyncJobDescriptor> jobs) {
+        List<RsyncJobDescriptor> batchedJobs = new ArrayList<RsyncJobDescriptor>();
+        List<RsyncJobDescriptor> singleJobs = new ArrayList<RsyncJobDescriptor>();
+        if (batchSize <= 1) {
+            batchedJobs.addAll(jobs);
+            return batchedJobs;
+        }
+
+        // keyed by parent source, parent destination, prefix and copyright, in tree list order
+        Map<String, List<RsyncJobDescriptor>> groupMap = new LinkedHashMap<String, List<RsyncJobDescriptor>>();
+        for (RsyncJobDescriptor job : jobs) {
+            String parentSourceRoot = getParent(job.getSourceRoot());
+            String parentDestRoot = getParent(job.getDestRoot());
+            if (!isBatchable(job) || parentSourceRoot == null || parentDestRoot == null
+                    || !job.getSourceRoot().substring(parentSourceRoot.length()).equals(job.getDestRoot().substring(parentDestRoot.length()))) {
+                singleJobs.add(job);
+                continue;
+            }
+            String key = parentSourceRoot + "\t" + parentDestRoot + "\t" + job.getPrefix() + "\t" + job.getCopyright().toString();
+            List<RsyncJobDescriptor> group = groupMap.get(key);
+            if (group == null) {
+                group = new ArrayList<RsyncJobDescriptor>();
+                groupMap.put(key, group);
+            }
+            group.add(job);
+        }
+
+        int batchCount = 0;
+        int branchCount = 0;
+        for (List<RsyncJobDescriptor> group : groupMap.values()) {
+            String parentSourceRoot = getParent(group.get(0).getSourceRoot());
+            String parentDestRoot = getParent(group.get(0).getDestRoot());
+            for (int i = 0; i < group.size(); i += batchSize) {
+                List<RsyncJobDescriptor> branchJobs = new ArrayList<RsyncJobDescriptor>(group.subList(i, Math.min(group.size(), i + batchSize)));
+                if (branchJobs.size() == 1) {
+                    singleJobs.add(branchJobs.get(0));
+                } else {
+                    batchedJobs.add(new BatchRsyncJobDescriptor(parentSourceRoot, parentDestRoot, branchJobs));
+                    batchCount++;
+                    branchCount += branchJobs.size();
+                }
+            }
+        }
+        if (batchCount > 0) {
+            log.info("Batched " + branchCount + " branches into " + batchCount + " rsync jobs");
+        }
+
+        batchedJobs.addAll(singleJobs);
+        return batchedJobs;
+    }
+
+    /**
+     * Method to check if a branch job may be batched
+     * @param job a RsyncJobDescriptor object
+     * @return <code>true</code> if the job may be batched, <code>false</code> otherwise
+     */
+    protected boolean isBatchable(RsyncJobDescriptor job) {
+        if (!job.getExcludes().isEmpty()) {
+            return false;
+        }
+        if (threshold <= 0 || costHistory == null) {
+            return true;
+        }
+        BranchCostHistory.BranchCost cost = costHistory.getCost(job.getSourceRoot());
+        return cost != null && cost.getDuration() < threshold;
+    }
+
+    /**
+     * Method to get the parent directory of a branch
+     * @param path the path to a branch, with a trailing slash
+     * @return the path to the parent directory with a trailing slash, or <code>null</code> if the path has no parent directory
+     */
+    static String getParent(String path) {
+        if (!path.endsWith("/")) {
+            return null;
+        }
+        int index = path.lastIndexOf('/', path.length() - 2);
+        if (index < 0) {
+            return null;
+        }
+        return path.substring(0, index + 1);
+    }
+}
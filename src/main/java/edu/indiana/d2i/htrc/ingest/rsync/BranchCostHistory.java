@@ -0,0 +1,302 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  BranchCostHistory.java
+# Description: This class keeps the rsync cost of each branch from earlier runs in a persistent file
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class keeps the rsync cost of each branch (duration, bytes received and number of files) from earlier runs in a
+ * persistent tab-separated file, one branch per line keyed by its rsync source path. The Ingester uses the recorded
+ * durations to queue the longest branches first (LPT scheduling), so a huge branch is not picked up last while the other
+ * rsync threads sit idle. Branches without history are expected to cost the mean of the known branches
+ */
+public class BranchCostHistory {
+    private static Logger log = Logger.getLogger(BranchCostHistory.class);
+    private static final String EOL = System.getProperty("line.separator");
+    private static final String SEPARATOR = "\t";
+
+    /**
+     * This class holds the cost of one branch
+     */
+    public static class BranchCost {
+        private final long duration;
+        private final long bytes;
+        private final long fileCount;
+
+        /**
+         * Constructor
+         * @param duration the rsync duration in milliseconds
+         * @param bytes the number of bytes received
+         * @param fileCount the number of files transferred
+         */
+        public BranchCost(long duration, long bytes, long fileCount) {
+            this.duration = duration;
+            this.bytes = bytes;
+            this.fileCount = fileCount;
+        }
+
+        /**
+         * Method to get the rsync duration
+         * @return the rsync duration in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Method to get the number of bytes received
+         * @return the number of bytes received
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Method to get the number of files transferred
+         * @return the number of files transferred
+         */
+        public long getFileCount() {
+            return fileCount;
+        }
+    }
+
+    private final String costFilePath;
+    private final TreeMap<String, BranchCost> costMap;
+
+    /**
+     * Constructor
+     * @param costFilePath path to the cost file. it does not need to exist yet
+     */
+    public BranchCostHistory(String costFilePath) {
+        this.costFilePath = costFilePath;
+        this.costMap = new TreeMap<String, BranchCost>();
+    }
+
+    /**
+     * Method to load the cost file. A missing file is treated as an empty history, and malformed lines are skipped
+     * @throws IOException thrown if the cost file exists but cannot be read
+     */
+    public synchronized void load() throws IOException {
+        File costFile = new File(costFilePath);
+        if (!costFile.exists()) {
+            log.info("No branch cost history at " + costFilePath + ". Queuing branches in tree list order");
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(costFile));
+        try {
+            String line = null;
+            do {
+                line = reader.readLine();
+                if (line != null && !line.startsWith("#") && line.trim().length() > 0) {
+                    String[] fields = line.split(SEPARATOR);
+                    if (fields.length == 4) {
+                        try {
+                            costMap.put(fields[0], new BranchCost(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                        } catch (NumberFormatException e) {
+                            log.warn("Skipping malformed branch cost line: " + line);
+                        }
+                    } else {
+                        log.warn("Skipping malformed branch cost line: " + line);
+                    }
+                }
+            } while (line != null);
+        } finally {
+            reader.close();
+        }
+        log.info("Branch cost history loaded for " + costMap.size() + " branches");
+    }
+
+    /**
+     * Method to save the history to the cost file. It is written to a temporary file first and then renamed, so a crash
+     * while saving does not lose the earlier history
+     * @throws IOException thrown if the cost file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        File costFile = new File(costFilePath);
+        File tempFile = new File(costFilePath + ".tmp");
+        Writer writer = new FileWriter(tempFile);
+        try {
+            writer.write("# sourcePath" + SEPARATOR + "durationInMs" + SEPARATOR + "bytesReceived" + SEPARATOR + "fileCount" + EOL);
+            // the TreeMap keeps the file sorted so it is easy to diff between runs
+            for (Map.Entry<String, BranchCost> entry : costMap.entrySet()) {
+                BranchCost cost = entry.getValue();
+                writer.write(entry.getKey() + SEPARATOR + cost.getDuration() + SEPARATOR + cost.getBytes() + SEPARATOR + cost.getFileCount() + EOL);
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(costFile)) {
+            throw new IOException("Unable to rename " + tempFile.getPath() + " to " + costFile.getPath());
+        }
+        log.info("Branch cost history saved for " + costMap.size() + " branches");
+    }
+
+    /**
+     * Method to record the cost of a branch from the current run, replacing its earlier cost
+     * @param sourcePath the rsync source path of the branch
+     * @param stats a RsyncJobStats object holding the cost of the branch
+     */
+    public synchronized void record(String sourcePath, RsyncJobStats stats) {
+        costMap.put(sourcePath, new BranchCost(stats.getDuration(), stats.getBytesReceived(), stats.getFileCount()));
+    }
+
+    /**
+     * Method to get the recorded cost of a branch
+     * @param sourcePath the rsync source path of the branch
+     * @return the recorded BranchCost, or <code>null</code> if the branch has no history
+     */
+    public synchronized BranchCost getCost(String sourcePath) {
+        return costMap.get(sourcePath);
+    }
+
+    /**
+     * Method to get the total recorded rsync duration of a branch and all of its sub-branches. A branch that was split into
+     * sub-branches on an earlier run is recorded as a parent job plus one job per child, so its own entry alone understates it
+     * @param sourcePath the rsync source path of the branch, with a trailing slash
+     * @return the total recorded duration in milliseconds, or 0 if neither the branch nor its sub-branches have history
+     */
+    public synchronized long getSubtreeDuration(String sourcePath) {
+        long total = 0L;
+        for (BranchCost cost : costMap.subMap(sourcePath, sourcePath + Character.MAX_VALUE).values()) {
+            total += cost.getDuration();
+        }
+        return total;
+    }
+
+    /**
+     * Method to get the expected rsync duration of a branch
+     * @param sourcePath the rsync source path of the branch
+     * @return the recorded duration in milliseconds, or the mean duration of all recorded branches if the branch has no history
+     */
+    public synchronized long getExpectedDuration(String sourcePath) {
+        return getExpectedDuration(sourcePath, getMeanDuration());
+    }
+
+    /**
+     * Method to get the expected rsync duration of a branch
+     * @param sourcePath the rsync source path of the branch
+     * @param meanDuration the duration to expect if the branch has no history
+     * @return the recorded duration in milliseconds, or the mean duration if the branch has no history
+     */
+    private long getExpectedDuration(String sourcePath, long meanDuration) {
+        BranchCost cost = costMap.get(sourcePath);
+        return cost != null ? cost.getDuration() : meanDuration;
+    }
+
+    /**
+     * Method to get the mean duration of all recorded branches
+     * @return the mean duration in milliseconds, or 0 if no branch has been recorded
+     */
+    private long getMeanDuration() {
+        if (costMap.isEmpty()) {
+            return 0L;
+        }
+        long total = 0L;
+        for (BranchCost cost : costMap.values()) {
+            total += cost.getDuration();
+        }
+        return total / costMap.size();
+    }
+
+    /**
+     * Method to get the expected durations of a List of jobs. The expected duration of a batch job is the sum over its branches
+     * @param jobs a List of RsyncJobDescriptor objects
+     * @return a List of the expected durations in milliseconds, in the same order as the jobs
+     */
+    public synchronized List<Long> getExpectedDurations(List<RsyncJobDescriptor> jobs) {
+        long meanDuration = getMeanDuration();
+        List<Long> durations = new ArrayList<Long>(jobs.size());
+        for (RsyncJobDescriptor job : jobs) {
+            long duration = 0L;
+            for (RsyncJobDescriptor branchJob : job.getBranchJobs()) {
+                duration += getExpectedDuration(branchJob.getSourceRoot(), meanDuration);
+            }
+            durations.add(duration);
+        }
+        return durations;
+    }
+
+    /**
+     * Method to order rsync jobs by descending expected duration. The sort is stable, so jobs of equal expected duration
+     * keep their original order
+     * @param jobs a List of RsyncJobDescriptor objects, sorted in place
+     */
+    public void sortByDescendingCost(List<RsyncJobDescriptor> jobs) {
+        List<Long> durations = getExpectedDurations(jobs);
+        final Map<RsyncJobDescriptor, Long> expectedDurations = new HashMap<RsyncJobDescriptor, Long>();
+        for (int i = 0; i < jobs.size(); i++) {
+            expectedDurations.put(jobs.get(i), durations.get(i));
+        }
+        Collections.sort(jobs, new Comparator<RsyncJobDescriptor>() {
+            public int compare(RsyncJobDescriptor job1, RsyncJobDescriptor job2) {
+                long duration1 = expectedDurations.get(job1);
+                long duration2 = expectedDurations.get(job2);
+                return duration1 > duration2 ? -1 : (duration1 < duration2 ? 1 : 0);
+            }
+        });
+    }
+
+    /**
+     * Method to predict the makespan of running jobs in the given order, each one picked up by whichever thread is free first
+     * @param durations a List of expected job durations in milliseconds, in queue order
+     * @param threadCount the number of threads running the jobs
+     * @return the predicted makespan in milliseconds
+     */
+    public static long predictMakespan(List<Long> durations, int threadCount) {
+        PriorityQueue<Long> threadLoads = new PriorityQueue<Long>();
+        for (int i = 0; i < threadCount; i++) {
+            threadLoads.add(0L);
+        }
+        long makespan = 0L;
+        for (Long duration : durations) {
+            long load = threadLoads.poll() + duration;
+            threadLoads.add(load);
+            makespan = Math.max(makespan, load);
+        }
+        return makespan;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  BranchLeaseManager.java
+# Description: This class lets ingest nodes share the rsync of branches by claiming them through lease files
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.Util;
+
+/**
+ * This class lets ingest nodes share the rsync of branches without a coordinator, by claiming them through lease files
+ * in a directory shared by all nodes. A branch is claimed by creating its lease file, which only one node can do; the
+ * holder keeps touching the lease while rsync runs, and a lease that has not been touched for the lease timeout belongs
+ * to a dead node and may be stolen. Each lease file names its owner, and a node only touches or deletes a lease it still
+ * owns, so a node that was too slow to keep its lease alive finds out and leaves the branch to the node that stole it.
+ * A branch rsynced successfully gets a done marker holding the round id, and is skipped by every node of the same round,
+ * so the nodes of one round do not rsync it twice. The round id is shared by the nodes rather than derived from their
+ * clocks, which need not agree with each other or with the shared file system.
+ * <p>
+ * Every node queues all branches, its own hash-assigned ones first, so it works on its own share while that lasts and
+ * then helps the slower nodes with theirs. The node id is the JVM name, <code>pid@host</code>, so several processes on
+ * one machine sharing a local directory behave like several nodes
+ */
+public class BranchLeaseManager implements Runnable {
+    private static Logger log = Logger.getLogger(BranchLeaseManager.class);
+
+    static final String LEASE_SUFFIX = ".lease";
+    static final String DONE_SUFFIX = ".done";
+
+    private final File leaseDir;
+    private final long leaseTimeout;
+    private String roundId;
+    private final String nodeId;
+    private final Set<File> heldLeases;
+    private final Set<File> lostLeases;
+    private final Set<String> sharedSourceRoots;
+    private boolean stopped;
+
+    /**
+     * Constructor
+     * @param leaseDir the lease directory shared by all nodes
+     * @param leaseTimeout the time in milliseconds after which an untouched lease may be stolen
+     */
+    public BranchLeaseManager(String leaseDir, long leaseTimeout) {
+        this(leaseDir, leaseTimeout, ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    /**
+     * Constructor
+     * @param leaseDir the lease directory shared by all nodes
+     * @param leaseTimeout the time in milliseconds after which an untouched lease may be stolen
+     * @param nodeId a String identifying this node
+     */
+    public BranchLeaseManager(String leaseDir, long leaseTimeout, String nodeId) {
+        this.leaseDir = new File(leaseDir);
+        this.leaseTimeout = leaseTimeout;
+        this.roundId = null;
+        this.nodeId = nodeId;
+        this.heldLeases = new HashSet<File>();
+        this.lostLeases = new HashSet<File>();
+        this.sharedSourceRoots = new HashSet<String>();
+        this.stopped = false;
+        if (!this.leaseDir.exists() && !this.leaseDir.mkdirs()) {
+            log.warn("Unable to create lease directory " + leaseDir);
+        }
+    }
+
+    /**
+     * Method to set the id of the round this run belongs to. It must be set before jobs are claimed; until then no branch is
+     * skipped as done
+     * @param roundId a String shared by all nodes of the round
+     */
+    public void setRoundId(String roundId) {
+        this.roundId = roundId;
+    }
+
+    /**
+     * Method to mark a branch as shared between the nodes. Jobs of other source roots, such as the extra files, are run by every node
+     * @param sourceRoot the rsync source root of the branch
+     */
+    public void share(String sourceRoot) {
+        sharedSourceRoots.add(sourceRoot);
+    }
+
+    /**
+     * Method to check if a job is shared between the nodes
+     * @param job a RsyncJobDescriptor object
+     * @return <code>true</code> if the job must be claimed before it is run, <code>false</code> otherwise
+     */
+    public boolean isShared(RsyncJobDescriptor job) {
+        return sharedSourceRoots.contains(job.getSourceRoot());
+    }
+
+    /**
+     * Method to claim a job. A job already done in this round, or leased by a live node, cannot be claimed; a job not
+     * shared between the nodes is always claimed
+     * @param job a RsyncJobDescriptor object
+     * @return <code>true</code> if this node now holds the lease of the job and should rsync it, <code>false</code> otherwise
+     */
+    public boolean claim(RsyncJobDescriptor job) {
+        if (!isShared(job)) {
+            return true;
+        }
+        String key = getKey(job);
+        File doneFile = new File(leaseDir, key + DONE_SUFFIX);
+        if (roundId != null && roundId.equals(readFirstLine(doneFile))) {
+            if (log.isDebugEnabled()) log.debug(job.getSourceRoot() + " already done in this round");
+            return false;
+        }
+        File leaseFile = new File(leaseDir, key + LEASE_SUFFIX);
+        try {
+            if (!leaseFile.createNewFile()) {
+                if (System.currentTimeMillis() - leaseFile.lastModified() <= leaseTimeout) {
+                    if (log.isDebugEnabled()) log.debug(job.getSourceRoot() + " is leased by another node");
+                    return false;
+                }
+                // only one of the nodes trying to steal the expired lease gets to rename it away
+                File stolenFile = new File(leaseDir, key + ".stolen-" + nodeId.replace('/', '_') + "-" + System.currentTimeMillis());
+                if (!leaseFile.renameTo(stolenFile)) {
+                    return false;
+                }
+                log.warn("Stealing expired lease of " + job.getSourceRoot());
+                stolenFile.delete();
+                if (!leaseFile.createNewFile()) {
+                    return false;
+                }
+            }
+            writeOwner(leaseFile, job);
+        } catch (IOException e) {
+            log.error("Unable to create lease " + leaseFile.getPath() + ". Leaving " + job.getSourceRoot() + " to other nodes", e);
+            return false;
+        }
+        synchronized (heldLeases) {
+            heldLeases.add(leaseFile);
+            lostLeases.remove(leaseFile);
+        }
+        if (log.isInfoEnabled()) log.info("Claimed " + job.getSourceRoot());
+        return true;
+    }
+
+    /**
+     * Method to give up the lease of a job once it is finished. A lease that expired and was stolen by another node while
+     * the job ran now belongs to that node, so it is neither deleted nor marked as done, and the job counts as failed
+     * @param job a RsyncJobDescriptor object
+     * @param successful <code>true</code> if rsync succeeded and the job should be marked as done for this round, <code>false</code> otherwise
+     * @return <code>true</code> if this node still held the lease, <code>false</code> if the lease was lost to another node
+     */
+    public boolean release(RsyncJobDescriptor job, boolean successful) {
+        if (!isShared(job)) {
+            return true;
+        }
+        String key = getKey(job);
+        File leaseFile = new File(leaseDir, key + LEASE_SUFFIX);
+        boolean lost = false;
+        synchronized (heldLeases) {
+            heldLeases.remove(leaseFile);
+            lost = lostLeases.remove(leaseFile);
+        }
+        if (lost || !isOwner(leaseFile)) {
+            log.error("Lease of " + job.getSourceRoot() + " expired and was taken over by another node. Leaving the branch to that node");
+            return false;
+        }
+        if (successful) {
+            File doneFile = new File(leaseDir, key + DONE_SUFFIX);
+            try {
+                Writer writer = new FileWriter(doneFile);
+                try {
+                    writer.write(roundId + System.getProperty("line.separator"));
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                log.error("Unable to mark " + job.getSourceRoot() + " as done. Other nodes may rsync it again", e);
+            }
+        }
+        if (!leaseFile.delete()) {
+            log.warn("Unable to delete lease " + leaseFile.getPath());
+        }
+        return true;
+    }
+
+    /**
+     * Method to write the owner of a lease into the lease file, for whoever inspects the lease directory
+     * @param leaseFile the lease file
+     * @param job a RsyncJobDescriptor object
+     * @throws IOException thrown if the lease file cannot be written
+     */
+    private void writeOwner(File leaseFile, RsyncJobDescriptor job) throws IOException {
+        Writer writer = new FileWriter(leaseFile);
+        try {
+            writer.write(nodeId + "\t" + job.getSourceRoot() + System.getProperty("line.separator"));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Method to check if this node still owns a lease, i.e. if the lease file names this node as its owner
+     * @param leaseFile the lease file
+     * @return <code>true</code> if this node owns the lease, <code>false</code> if the lease file is gone, cannot be read,
+     * or names another node
+     */
+    private boolean isOwner(File leaseFile) {
+        String line = readFirstLine(leaseFile);
+        // a stealing node has created the lease file but not written its name yet if the line is missing
+        return line != null && line.split("\t")[0].equals(nodeId);
+    }
+
+    /**
+     * Method to read the first line of a lease file or done marker
+     * @param file the lease file or done marker
+     * @return the first line, or <code>null</code> if the file is gone, empty or cannot be read
+     */
+    private static String readFirstLine(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Method to get the name under which a job is leased
+     * @param job a RsyncJobDescriptor object
+     * @return the MD5 checksum of the source root of the job
+     */
+    static String getKey(RsyncJobDescriptor job) {
+        return Util.calculateMD5(job.getSourceRoot());
+    }
+
+    /**
+     * Method to stop the heartbeat
+     */
+    public void stop() {
+        synchronized (heldLeases) {
+            stopped = true;
+            heldLeases.notifyAll();
+        }
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        // touch the held leases often enough that a slow file system cannot make them look expired
+        long heartbeatInterval = Math.max(1L, leaseTimeout / 3);
+        synchronized (heldLeases) {
+            while (!stopped) {
+                long now = System.currentTimeMillis();
+                Iterator<File> iterator = heldLeases.iterator();
+                while (iterator.hasNext()) {
+                    File leaseFile = iterator.next();
+                    if (!isOwner(leaseFile)) {
+                        // keeping a stolen lease alive would let the thief's lease look live after the thief died
+                        log.error("Lost lease " + leaseFile.getPath() + " to another node. It is no longer touched");
+                        iterator.remove();
+                        lostLeases.add(leaseFile);
+                    } else if (!leaseFile.setLastModified(now)) {
+                        log.warn("Unable to touch lease " + leaseFile.getPath());
+                    }
+                }
+                try {
+                    heldLeases.wait(heartbeatInterval);
+                } catch (InterruptedException e) {
+                    log.warn("Lease heartbeat interrupted. Held leases will expire");
+                    return;
+                }
+            }
+        }
+    }
+}
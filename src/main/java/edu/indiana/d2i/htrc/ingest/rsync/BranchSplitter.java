@@ -0,0 +1,169 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  BranchSplitter.java
+# Description: This class splits an oversized pairtree branch into one rsync job per child directory
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * This class splits an oversized pairtree branch into one rsync job per child directory, so the branch is spread over
+ * several rsync threads instead of being serialized onto one. The child directories are taken from a remote
+ * <code>rsync --list-only</code> of the branch. Each child job rsyncs its child directory into the matching destination
+ * directory, so the DEST_ROOT= header of its delta log together with the relative paths rsync prints still resolve to
+ * the volume directories, and it keeps the PREFIX= of the branch. A parent job rsyncs the branch itself with every child
+ * excluded; it picks up files directly under the branch, and still deletes children that are gone from the source since
+ * those are not in the listing and so not excluded
+ */
+public class BranchSplitter {
+    private static Logger log = Logger.getLogger(BranchSplitter.class);
+
+    /**
+     * Method to split a branch job into a parent job and one job per child directory
+     * @param job a RsyncJobDescriptor object for the whole branch
+     * @return a List of RsyncJobDescriptor objects, or a List containing only the original job if the branch has no child
+     * directories or the remote listing failed
+     * @throws InterruptedException thrown if interrupted while waiting for the remote listing
+     */
+    public List<RsyncJobDescriptor> split(RsyncJobDescriptor job) throws InterruptedException {
+        List<RsyncJobDescriptor> jobs = new ArrayList<RsyncJobDescriptor>();
+        List<String> children = null;
+        try {
+            children = listChildDirectories(job);
+        } catch (IOException e) {
+            log.error("Unable to list child directories of " + job.getSourceRoot() + ". Not splitting it", e);
+        }
+
+        if (children == null || children.isEmpty()) {
+            jobs.add(job);
+            return jobs;
+        }
+
+        List<String> excludes = new ArrayList<String>(children.size());
+        for (String child : children) {
+            // anchored to the source root so only the child itself is excluded, not same-named directories further down
+            excludes.add("/" + child + "/");
+            jobs.add(new RsyncJobDescriptor(job.getSourceRoot() + child + "/", job.getDestRoot() + child + "/", job.getPrefix(), job.getCopyright(),
+                    job.getUsername(), job.getPassword(), job.getHost(), job.getSeparator(), job.getDeltaLogDir(), job.isDryRun()));
+        }
+        jobs.add(new RsyncJobDescriptor(job.getSourceRoot(), job.getDestRoot(), job.getPrefix(), job.getCopyright(),
+                job.getUsername(), job.getPassword(), job.getHost(), job.getSeparator(), job.getDeltaLogDir(), job.isDryRun(), excludes));
+
+        log.info("Split " + job.getSourceRoot() + " into " + children.size() + " child jobs and a parent job");
+        return jobs;
+    }
+
+    /**
+     * Method to list the child directories of a branch on the remote rsync host
+     * @param job a RsyncJobDescriptor object for the branch
+     * @return a List of child directory names
+     * @throws IOException thrown if rsync could not be launched or its output could not be read, or if rsync failed
+     * @throws InterruptedException thrown if interrupted while waiting for rsync
+     */
+    protected List<String> listChildDirectories(RsyncJobDescriptor job) throws IOException, InterruptedException {
+        List<String> children = new ArrayList<String>();
+        Process process = Runtime.getRuntime().exec(buildListCommandArray(job));
+
+        Thread errorCatcherThread = Rsyncker.OutputCatcherFactory.getOutputLogger(log, process.getErrorStream(), Level.ERROR);
+        errorCatcherThread.start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line = null;
+            do {
+                line = reader.readLine();
+                if (line != null) {
+                    String child = parseChildDirectory(line);
+                    if (child != null) {
+                        children.add(child);
+                    }
+                }
+            } while (line != null);
+        } finally {
+            reader.close();
+        }
+
+        int exitValue = process.waitFor();
+        errorCatcherThread.join();
+        if (exitValue != 0) {
+            throw new IOException("rsync --list-only of " + job.getSourceRoot() + " returned exitValue " + exitValue);
+        }
+        return children;
+    }
+
+    /**
+     * Method to build the rsync commandline command that lists the top level of a branch
+     * @param job a RsyncJobDescriptor object for the branch
+     * @return a String array containing the command with arguments
+     */
+    protected String[] buildListCommandArray(RsyncJobDescriptor job) {
+        List<String> strings = new ArrayList<String>();
+        strings.add("rsync");
+        strings.add("--list-only");
+
+        String password = job.getPassword();
+        if (password != null && !password.equals("")) {
+            strings.add("--password-file=" + password);
+        }
+
+        String username = job.getUsername();
+        String userPart = (username != null && !username.equals("")) ? username + "@" : "";
+        strings.add(userPart + job.getHost() + job.getSeparator() + job.getSourceRoot());
+
+        return strings.toArray(new String[0]);
+    }
+
+    /**
+     * Method to parse a line of <code>rsync --list-only</code> output
+     * @param line a line of <code>rsync --list-only</code> output, e.g. <code>drwxr-xr-x 4,096 2013/01/31 12:00:00 ab</code>
+     * @return the name of the directory the line is about, or <code>null</code> if the line is not about a child directory
+     */
+    static String parseChildDirectory(String line) {
+        if (!line.startsWith("d")) {
+            return null;
+        }
+        String[] fields = line.trim().split("\\s+", 5);
+        if (fields.length < 5) {
+            return null;
+        }
+        String name = fields[4];
+        if (name.equals(".") || name.equals("..")) {
+            return null;
+        }
+        return name;
+    }
+}
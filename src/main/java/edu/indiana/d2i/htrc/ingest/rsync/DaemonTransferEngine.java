@@ -0,0 +1,392 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  DaemonTransferEngine.java
+# Description: This class transfers rsync jobs from an rsync daemon with the rsync protocol client of the JVM
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.DeltaLogEntry;
+import edu.indiana.d2i.htrc.ingest.rsync.protocol.RsyncDaemonClient;
+import edu.indiana.d2i.htrc.ingest.rsync.protocol.RsyncDaemonConnectionPool;
+
+/**
+ * This class transfers rsync jobs from an rsync daemon with RsyncDaemonClient, in the JVM, instead of forking rsync. The
+ * daemon is the host of the job, and the module is the first component of its rsync source root; the password is read
+ * from the password file of the job, as rsync <code>--password-file</code> does. A batch job pulls all of its branches in
+ * one session, each under its relative path. The connections to each daemon are drawn from a shared
+ * RsyncDaemonConnectionPool.
+ * <p>
+ * Like LocalTransferEngine, it prints what rsync <code>--verbose</code> prints, plain or itemized, from the typed changes
+ * the client reports, so the delta logs are parsed like those of rsync. Permissions are not copied
+ */
+public class DaemonTransferEngine implements TransferEngine {
+    private static Logger log = Logger.getLogger(DaemonTransferEngine.class);
+
+    public static final String NAME = "daemon";
+    public static final String DAEMON_SEPARATOR = "::";
+    public static final int EXIT_PROTOCOL_ERROR = 12;
+
+    private static final int PIPE_SIZE = 65536;
+
+    private final int port;
+    private final RsyncDaemonConnectionPool connectionPool;
+
+    /**
+     * Constructor
+     * @param port the port of the rsync daemons
+     * @param connectionPool the RsyncDaemonConnectionPool the connections are drawn from
+     */
+    public DaemonTransferEngine(int port, RsyncDaemonConnectionPool connectionPool) {
+        this.port = port;
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#start(edu.indiana.d2i.htrc.ingest.rsync.RsyncJobDescriptor, java.lang.String[], boolean)
+     */
+    public Process start(RsyncJobDescriptor job, String[] commandArray, boolean itemizeChanges) throws IOException {
+        if (!DAEMON_SEPARATOR.equals(job.getSeparator())) {
+            throw new IOException("The daemon transfer engine requires the separator " + DAEMON_SEPARATOR + ", not " + job.getSeparator());
+        }
+        DaemonTransfer transfer = new DaemonTransfer(job, itemizeChanges);
+        transfer.begin();
+        return transfer;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#isOutputRedirectable()
+     */
+    public boolean isOutputRedirectable() {
+        return false;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#startRedirected(edu.indiana.d2i.htrc.ingest.rsync.RsyncJobDescriptor, java.lang.String[], java.io.File, java.io.File)
+     */
+    public Process startRedirected(RsyncJobDescriptor job, String[] commandArray, File outputFile, File errorFile) throws IOException {
+        throw new UnsupportedOperationException("DaemonTransferEngine does not redirect its output");
+    }
+
+    /**
+     * Method to read the password out of a password file, i.e. its first line
+     * @param passwordFile the path of the password file, or <code>null</code>
+     * @return the password, or <code>null</code> if there is no password file
+     * @throws IOException thrown if the password file could not be read
+     */
+    static String readPassword(String passwordFile) throws IOException {
+        if (passwordFile == null || passwordFile.equals("")) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(new File(passwordFile)));
+        try {
+            String line = reader.readLine();
+            return (line == null) ? "" : line.trim();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Method to get the source paths of a job relative to the module. The branches of a batch job are marked relative
+     * with a "/./", so they are transferred under their relative paths
+     * @param job a RsyncJobDescriptor object
+     * @param modulePath the source root of the job without the module
+     * @return a List of source paths
+     */
+    static List<String> getSourcePaths(RsyncJobDescriptor job, String modulePath) {
+        List<String> sourcePaths = new ArrayList<String>();
+        if (job instanceof BatchRsyncJobDescriptor) {
+            String parent = modulePath.endsWith("/") ? modulePath : modulePath + "/";
+            for (String relativePath : ((BatchRsyncJobDescriptor)job).getRelativePaths()) {
+                sourcePaths.add(parent + "./" + (relativePath.endsWith("/") ? relativePath.substring(0, relativePath.length() - 1) : relativePath));
+            }
+        } else {
+            sourcePaths.add(modulePath);
+        }
+        return sourcePaths;
+    }
+
+    /**
+     * This class runs the transfer of one job in its own thread and presents it as a Process, with the output and the errors
+     * of the transfer readable from piped streams
+     */
+    protected class DaemonTransfer extends Process implements Runnable, RsyncDaemonClient.TransferListener {
+        private final String EOL = System.getProperty("line.separator");
+        private final RsyncJobDescriptor job;
+        private final boolean itemizeChanges;
+        private final PipedInputStream inputStream;
+        private final PipedInputStream errorStream;
+        private final Writer outputWriter;
+        private final Writer errorWriter;
+        private final Thread thread;
+        private volatile boolean destroyed;
+        private volatile RsyncDaemonClient client;
+        private int exitValue;
+
+        /**
+         * Constructor
+         * @param job a RsyncJobDescriptor object
+         * @param itemizeChanges <code>true</code> to print each change itemized, <code>false</code> to print paths only
+         * @throws IOException thrown if the pipes could not be connected
+         */
+        DaemonTransfer(RsyncJobDescriptor job, boolean itemizeChanges) throws IOException {
+            this.job = job;
+            this.itemizeChanges = itemizeChanges;
+            this.inputStream = new PipedInputStream(PIPE_SIZE);
+            this.errorStream = new PipedInputStream(PIPE_SIZE);
+            this.outputWriter = new BufferedWriter(new OutputStreamWriter(new PipedOutputStream(inputStream)));
+            this.errorWriter = new BufferedWriter(new OutputStreamWriter(new PipedOutputStream(errorStream)));
+            this.thread = new Thread(this, "DaemonTransfer-" + job.getSourceRoot());
+            this.destroyed = false;
+            this.client = null;
+            this.exitValue = -1;
+        }
+
+        /**
+         * Method to start the transfer thread
+         */
+        void begin() {
+            thread.start();
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            int value = 0;
+            String host = job.getHost();
+            Socket socket = null;
+            try {
+                String sourceRoot = job.getSourceRoot();
+                int index = sourceRoot.indexOf('/');
+                String module = (index < 0) ? sourceRoot : sourceRoot.substring(0, index);
+                String modulePath = (index < 0) ? "" : sourceRoot.substring(index + 1);
+                String username = job.getUsername();
+                String password = readPassword(job.getPassword());
+
+                socket = connectionPool.acquire(host, port);
+                client = new RsyncDaemonClient(socket, job.getExcludes(), job.isDryRun());
+                if (destroyed) {
+                    client.close();
+                }
+                printOutput("receiving incremental file list");
+                boolean complete = client.transfer(module, (username == null || username.equals("")) ? null : username, password,
+                        getSourcePaths(job, modulePath), new File(job.getDestRoot()), this);
+                printOutput("");
+                printOutput("sent 0 bytes  received " + client.getBytesReceived() + " bytes");
+                printOutput("total size is " + client.getTotalSize());
+                if (!complete) {
+                    printError("rsync error: some files could not be transferred (code " + LocalTransferEngine.EXIT_PARTIAL_TRANSFER + ")");
+                    value = LocalTransferEngine.EXIT_PARTIAL_TRANSFER;
+                }
+            } catch (IOException e) {
+                if (!destroyed) {
+                    log.error("Daemon transfer of " + host + DAEMON_SEPARATOR + job.getSourceRoot() + " failed", e);
+                    printErrorQuietly("rsync error: " + e.getMessage() + " (code " + EXIT_PROTOCOL_ERROR + ")");
+                }
+                value = EXIT_PROTOCOL_ERROR;
+            } catch (InterruptedException e) {
+                if (!destroyed) {
+                    log.error("Daemon transfer of " + host + DAEMON_SEPARATOR + job.getSourceRoot() + " interrupted", e);
+                }
+                value = LocalTransferEngine.EXIT_SIGNALLED;
+            } finally {
+                if (socket != null) {
+                    if (client == null) {
+                        closeSocket(socket);
+                    }
+                    connectionPool.release(host, port);
+                }
+                closeQuietly(outputWriter);
+                closeQuietly(errorWriter);
+                synchronized (this) {
+                    exitValue = destroyed ? LocalTransferEngine.EXIT_SIGNALLED : value;
+                }
+            }
+        }
+
+        /**
+         * @see edu.indiana.d2i.htrc.ingest.rsync.protocol.RsyncDaemonClient.TransferListener#changed(edu.indiana.d2i.htrc.ingest.DeltaLogEntry)
+         */
+        public void changed(DeltaLogEntry entry) throws IOException {
+            if (itemizeChanges) {
+                printOutput(entry.getItemFlags() + "\t" + entry.getSize() + "\t" + entry.getModTime() + "\t" + entry.getPath());
+            } else if (entry.isDeletion()) {
+                printOutput("deleting " + entry.getPath());
+            } else {
+                printOutput(entry.getPath());
+            }
+        }
+
+        /**
+         * @see edu.indiana.d2i.htrc.ingest.rsync.protocol.RsyncDaemonClient.TransferListener#message(java.lang.String, boolean)
+         */
+        public void message(String text, boolean error) {
+            if (error) {
+                printErrorQuietly(text);
+            } else if (log.isDebugEnabled()) {
+                log.debug(job.getHost() + DAEMON_SEPARATOR + job.getSourceRoot() + ": " + text);
+            }
+        }
+
+        /**
+         * Method to write a line to the output of the transfer
+         * @param line the line
+         * @throws IOException thrown if the line could not be written
+         */
+        private void printOutput(String line) throws IOException {
+            outputWriter.write(line);
+            outputWriter.write(EOL);
+        }
+
+        /**
+         * Method to write a line to the error stream of the transfer
+         * @param line the line
+         * @throws IOException thrown if the line could not be written
+         */
+        private void printError(String line) throws IOException {
+            errorWriter.write(line);
+            errorWriter.write(EOL);
+            errorWriter.flush();
+        }
+
+        /**
+         * Method to write a line to the error stream of the transfer, logging any failure
+         * @param line the line
+         */
+        private void printErrorQuietly(String line) {
+            try {
+                printError(line);
+            } catch (IOException e) {
+                log.error("Unable to write the errors of the daemon transfer of " + job.getSourceRoot(), e);
+            }
+        }
+
+        /**
+         * Method to close a Writer, logging any failure
+         * @param writer a Writer object
+         */
+        private void closeQuietly(Writer writer) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.error("Unable to close the output of the daemon transfer of " + job.getSourceRoot(), e);
+            }
+        }
+
+        /**
+         * Method to close a Socket, logging any failure
+         * @param socket a Socket object
+         */
+        private void closeSocket(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.error("Unable to close the connection of the daemon transfer of " + job.getSourceRoot(), e);
+            }
+        }
+
+        /**
+         * @see java.lang.Process#getOutputStream()
+         */
+        @Override
+        public OutputStream getOutputStream() {
+            // nothing is read from the standard input of a daemon transfer
+            return new ByteArrayOutputStream();
+        }
+
+        /**
+         * @see java.lang.Process#getInputStream()
+         */
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        /**
+         * @see java.lang.Process#getErrorStream()
+         */
+        @Override
+        public InputStream getErrorStream() {
+            return errorStream;
+        }
+
+        /**
+         * @see java.lang.Process#waitFor()
+         */
+        @Override
+        public int waitFor() throws InterruptedException {
+            thread.join();
+            return exitValue();
+        }
+
+        /**
+         * @see java.lang.Process#exitValue()
+         */
+        @Override
+        public synchronized int exitValue() {
+            if (thread.isAlive()) {
+                throw new IllegalThreadStateException("Daemon transfer of " + job.getSourceRoot() + " has not exited");
+            }
+            return exitValue;
+        }
+
+        /**
+         * @see java.lang.Process#destroy()
+         */
+        @Override
+        public void destroy() {
+            destroyed = true;
+            RsyncDaemonClient currentClient = client;
+            if (currentClient != null) {
+                // closing the connection makes the client fail out of any blocking read
+                currentClient.close();
+            }
+            thread.interrupt();
+        }
+    }
+}
@@ -41,16 +41,27 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import edu.indiana.d2i.htrc.ingest.BalancedAssignment;
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.ConsistentHashRing;
 import edu.indiana.d2i.htrc.ingest.Constants;
 import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+import edu.indiana.d2i.htrc.ingest.DeltaLogListenerFactory;
 import edu.indiana.d2i.htrc.ingest.IngestException;
-import edu.indiana.d2i.htrc.ingest.JobQueue;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
 import edu.indiana.d2i.htrc.ingest.PropertyReader;
 import edu.indiana.d2i.htrc.ingest.Util;
+import edu.indiana.d2i.htrc.ingest.rsync.protocol.RsyncDaemonClient;
+import edu.indiana.d2i.htrc.ingest.rsync.protocol.RsyncDaemonConnectionPool;
 
 /**
  * This class prepares and initiates the rsync process of corpus data
@@ -81,21 +92,89 @@ public class Ingester {
     
     private BigInteger hashSpace = null;
     private int myHashKey = 0;
+    private ConsistentHashRing hashRing = null;
+    
+    private boolean balancedAssignment;
+    private String branchSizeManifestPath;
+    private String assignmentPath;
+    private int maxRebalancePercent;
+    
+    private BranchLeaseManager leaseManager;
+    private String leaseRoundId;
+    private Set<String> ownSourcePaths;
     
     private List<String> sourcePaths;
     private List<String> destPaths;
     
     private List<String> extraFilePaths;
    
-    private JobQueue<RsyncJobDescriptor> jobQueue;
+    private int jobQueueCapacity;
+
+    private BoundedJobQueue<RsyncJobDescriptor> jobQueue;
+    
+    private BoundedJobQueue<String> deltaLogQueue;
+    
+    private DeltaLogListenerFactory listenerFactory;
+    
+    private BranchCostHistory costHistory;
+    private long predictedMakespan;
+    
+    private long splitThreshold;
+    private BranchSplitter branchSplitter;
+    
+    private BranchBatcher branchBatcher;
+    
+    private boolean performJournaling;
+    private RsyncJobJournal journal;
+    
+    private AdaptiveConcurrencyController concurrencyController;
+    private int maxThreadCount;
+    
+    private boolean redirectOutput;
+    private boolean itemizeChanges;
+    private TransferEngine transferEngine;
+    private SourceMirrorPool mirrorPool;
     
+    private long jobTimeout;
+    private long noProgressTimeout;
+    private int timeoutMaxRetries;
+    private long timeoutRetryBackoff;
+    private JobRetryTracker retryTracker;
+    private LandingMover landingMover;
+
     /**
      * Constructor
      */
     public Ingester() {
-        jobQueue = new JobQueue<RsyncJobDescriptor>("RsyncJobQueue");
-        
+        this(null);
+    }
+    
+    /**
+     * Constructor
+     * @param deltaLogQueue a BoundedJobQueue to which the path of each delta log file is put as soon as its rsync job finishes,
+     * or <code>null</code> if the delta logs are picked up from the delta log root after the ingest. The queue is not closed by this class
+     */
+    public Ingester(BoundedJobQueue<String> deltaLogQueue) {
+        this(deltaLogQueue, null);
+    }
+    
+    /**
+     * Constructor
+     * @param deltaLogQueue a BoundedJobQueue to which the path of each delta log file is put as soon as its rsync job finishes,
+     * or <code>null</code> if the delta logs are picked up from the delta log root after the ingest. The queue is not closed by this class
+     * @param listenerFactory a DeltaLogListenerFactory whose listeners get the output of each rsync job as it arrives, or <code>null</code> if none
+     */
+    public Ingester(BoundedJobQueue<String> deltaLogQueue, DeltaLogListenerFactory listenerFactory) {
         readConfiguration();
+
+        jobQueue = new BoundedJobQueue<RsyncJobDescriptor>("RsyncJobQueue", jobQueueCapacity);
+        if (jobTimeout > 0 || noProgressTimeout > 0) {
+            retryTracker = new JobRetryTracker(jobQueue, timeoutMaxRetries, timeoutRetryBackoff);
+        } else {
+            retryTracker = null;
+        }
+        this.deltaLogQueue = deltaLogQueue;
+        this.listenerFactory = listenerFactory;
     }
     
     /**
@@ -158,6 +237,122 @@ public class Ingester {
         myHashKey = Integer.parseInt(reader.getProperty(Constants.PK_INGEST_MY_HASH_KEY));
         myHashKey = (myHashKey >= 0 && myHashKey < hashSpaceInt) ? myHashKey : 0;
         
+        hashRing = ConsistentHashRing.fromProperties(reader, hashSpaceInt);
+        
+        balancedAssignment = Util.getBooleanProperty(reader.getProperty(Constants.PK_PERFORM_BALANCED_ASSIGNMENT));
+        branchSizeManifestPath = reader.getProperty(Constants.PK_INGEST_BRANCH_SIZE_MANIFEST);
+        assignmentPath = reader.getProperty(Constants.PK_INGEST_ASSIGNMENT_FILE);
+        maxRebalancePercent = Util.getIntProperty(reader.getProperty(Constants.PK_INGEST_MAX_REBALANCE_PERCENT), (int) (BalancedAssignment.DEFAULT_MAX_REBALANCE_FRACTION * 100));
+        if (balancedAssignment && (branchSizeManifestPath == null || assignmentPath == null)) {
+            log.warn(Constants.PK_PERFORM_BALANCED_ASSIGNMENT + " requires " + Constants.PK_INGEST_BRANCH_SIZE_MANIFEST + " and " + Constants.PK_INGEST_ASSIGNMENT_FILE + ". Assigning branches by hash");
+            balancedAssignment = false;
+        }
+        
+        leaseRoundId = null;
+        if (Util.getBooleanProperty(reader.getProperty(Constants.PK_PERFORM_LEASE_WORK_SHARING))) {
+            String leaseDir = reader.getProperty(Constants.PK_INGEST_LEASE_DIR);
+            if (leaseDir == null || leaseDir.trim().equals("")) {
+                log.warn(Constants.PK_PERFORM_LEASE_WORK_SHARING + " requires " + Constants.PK_INGEST_LEASE_DIR + ". Branches will not be shared");
+                leaseManager = null;
+            } else {
+                long leaseTimeout = Util.getIntProperty(reader.getProperty(Constants.PK_INGEST_LEASE_TIMEOUT_IN_MS), 600000);
+                leaseManager = new BranchLeaseManager(leaseDir.trim(), leaseTimeout);
+                leaseRoundId = reader.getProperty(Constants.PK_INGEST_LEASE_ROUND_ID);
+            }
+        } else {
+            leaseManager = null;
+        }
+        ownSourcePaths = new HashSet<String>();
+        
+        jobQueueCapacity = Util.getIntProperty(reader.getProperty(Constants.PK_JOB_QUEUE_CAPACITY), BoundedJobQueue.DEFAULT_CAPACITY);
+        
+        String costFilePath = reader.getProperty(Constants.PK_RSYNC_BRANCH_COST_FILE);
+        if (costFilePath != null && !costFilePath.trim().equals("")) {
+            costHistory = new BranchCostHistory(costFilePath.trim());
+        } else {
+            costHistory = null;
+        }
+        predictedMakespan = -1L;
+        
+        splitThreshold = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_SPLIT_BRANCH_THRESHOLD_IN_MS), 0);
+        if (splitThreshold > 0 && costHistory == null) {
+            log.warn(Constants.PK_RSYNC_SPLIT_BRANCH_THRESHOLD_IN_MS + " requires " + Constants.PK_RSYNC_BRANCH_COST_FILE + ". Branches will not be split");
+        }
+        branchSplitter = new BranchSplitter();
+        
+        int batchSize = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_BATCH_SIZE), 0);
+        int batchThreshold = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_BATCH_THRESHOLD_IN_MS), 0);
+        if (leaseManager != null && (splitThreshold > 0 || batchSize > 0)) {
+            // a split or batched job would be leased under a different name on each node
+            log.warn("Branches are not split or batched when shared between nodes through " + Constants.PK_PERFORM_LEASE_WORK_SHARING);
+            splitThreshold = 0;
+            batchSize = 0;
+        }
+        branchBatcher = new BranchBatcher(batchSize, batchThreshold, costHistory);
+        
+        redirectOutput = Util.getBooleanProperty(reader.getProperty(Constants.PK_PERFORM_RSYNC_OUTPUT_REDIRECTION));
+        itemizeChanges = Util.getBooleanProperty(reader.getProperty(Constants.PK_PERFORM_ITEMIZED_DELTA_LOGGING));
+        
+        String engineName = reader.getProperty(Constants.PK_RSYNC_TRANSFER_ENGINE);
+        String localSourceRoot = reader.getProperty(Constants.PK_RSYNC_LOCAL_SOURCE_ROOT);
+        if (LocalTransferEngine.NAME.equalsIgnoreCase(engineName == null ? "" : engineName.trim())) {
+            if (localSourceRoot == null || localSourceRoot.trim().equals("")) {
+                log.warn(Constants.PK_RSYNC_TRANSFER_ENGINE + "=" + LocalTransferEngine.NAME + " requires " + Constants.PK_RSYNC_LOCAL_SOURCE_ROOT + ". Running rsync");
+                transferEngine = new RsyncTransferEngine();
+            } else {
+                log.info("Transferring from local source root " + localSourceRoot.trim() + " without rsync");
+                transferEngine = new LocalTransferEngine(localSourceRoot.trim());
+            }
+        } else if (DaemonTransferEngine.NAME.equalsIgnoreCase(engineName == null ? "" : engineName.trim())) {
+            int daemonPort = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_DAEMON_PORT), RsyncDaemonClient.DEFAULT_PORT);
+            int maxConnections = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_DAEMON_MAX_CONNECTIONS), 8);
+            log.info("Transferring from rsync daemons on port " + daemonPort + " without rsync, " + maxConnections + " connections per daemon");
+            transferEngine = new DaemonTransferEngine(daemonPort, new RsyncDaemonConnectionPool(maxConnections, RsyncDaemonConnectionPool.DEFAULT_CONNECT_TIMEOUT_IN_MS));
+        } else {
+            transferEngine = new RsyncTransferEngine();
+        }
+        
+        mirrorPool = SourceMirrorPool.parse(reader.getProperty(Constants.PK_RSYNC_SOURCE_MIRRORS), Integer.MAX_VALUE);
+        if (mirrorPool != null && !transferEngine.isOutputRedirectable()) {
+            log.warn(Constants.PK_RSYNC_SOURCE_MIRRORS + " only applies to the rsync transfer engine");
+            mirrorPool = null;
+        }
+        if (mirrorPool != null) {
+            log.info("Spreading jobs across " + mirrorPool.size() + " source mirrors");
+        }
+        
+        String landingRoot = reader.getProperty(Constants.PK_RSYNC_LANDING_ROOT);
+        landingMover = null;
+        if (landingRoot != null && !landingRoot.trim().equals("")) {
+            if (!transferEngine.isOutputRedirectable()) {
+                // landing relies on rsync --compare-dest
+                log.warn(Constants.PK_RSYNC_LANDING_ROOT + " only applies to the rsync transfer engine");
+            } else {
+                int moverThreadCount = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_LANDING_MOVER_THREAD_COUNT), 2);
+                landingMover = new LandingMover(landingRoot.trim(), destRoot, moverThreadCount);
+                log.info("Landing jobs in " + landingRoot.trim() + " with " + moverThreadCount + " mover threads");
+            }
+        }
+        
+        jobTimeout = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_JOB_TIMEOUT_IN_MS), 0);
+        noProgressTimeout = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_NO_PROGRESS_TIMEOUT_IN_MS), 0);
+        timeoutMaxRetries = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_TIMEOUT_MAX_RETRIES), 2);
+        timeoutRetryBackoff = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_TIMEOUT_RETRY_BACKOFF_IN_MS), 60000);
+        
+        performJournaling = Util.getBooleanProperty(reader.getProperty(Constants.PK_PERFORM_RSYNC_JOURNALING));
+        journal = null;
+        
+        if (Util.getBooleanProperty(reader.getProperty(Constants.PK_PERFORM_ADAPTIVE_RSYNC_CONCURRENCY))) {
+            int minThreadCount = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_MIN_THREAD_COUNT), 1);
+            maxThreadCount = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_MAX_THREAD_COUNT), threadCount);
+            int sampleInterval = Util.getIntProperty(reader.getProperty(Constants.PK_RSYNC_CONCURRENCY_SAMPLE_INTERVAL_IN_MS), 60000);
+            concurrencyController = new AdaptiveConcurrencyController(threadCount, minThreadCount, maxThreadCount, sampleInterval);
+            maxThreadCount = Math.max(maxThreadCount, concurrencyController.getLimit());
+        } else {
+            concurrencyController = null;
+            maxThreadCount = threadCount;
+        }
+        
     }
     
     /**
@@ -196,23 +391,121 @@ public class Ingester {
     }
     
     /**
-     * Method to added the rsync of extra files to the queue
+     * Method to add the rsync of extra files to a List of jobs
+     * @param jobs a List of RsyncJobDescriptor objects
      */
-    private void queueExtraFileJobs() {
-        log.info("queuing extra file jobs");
+    private void createExtraFileJobs(List<RsyncJobDescriptor> jobs) {
         for (String extraFilePath : extraFilePaths) {
             RsyncJobDescriptor rsyncExtraFileJob = new RsyncJobDescriptor(extraFilePath, destRoot, "", CopyrightEnum.PUBLIC_DOMAIN, username, password, sourceHost, separator, deltaLogDir, dryRun);
-            jobQueue.enqueue(rsyncExtraFileJob);
+            jobs.add(rsyncExtraFileJob);
         }
     }
 
     /**
-     * Method to queue jobs to the job queue
+     * Method to queue jobs to the job queue. The job queue is closed when this method returns, even if it was interrupted
+     * @throws InterruptedException thrown if interrupted while waiting for space in the job queue
+     */
+    private void queueJobs() throws InterruptedException {
+        try {
+            queueAllJobs();
+            if (retryTracker != null) {
+                // jobs that time out are requeued, so the queue stays open until every job is settled
+                retryTracker.awaitSettled();
+            }
+        } finally {
+            jobQueue.close();
+        }
+    }
+    
+    /**
+     * Method to put the extra file jobs and the branch jobs into the job queue. Small sibling branches are batched into one
+     * job if batching is configured. If a branch cost history is configured, the jobs are queued longest first
+     * @throws InterruptedException thrown if interrupted while waiting for space in the job queue
      */
-    private void queueJobs() {
+    private void queueAllJobs() throws InterruptedException {
+        List<RsyncJobDescriptor> jobs = new ArrayList<RsyncJobDescriptor>();
+        List<RsyncJobDescriptor> branchJobs = new ArrayList<RsyncJobDescriptor>();
+        
+        createExtraFileJobs(jobs);
+        createBranchJobs(jobs, branchJobs);
+        
+        if (journal != null) {
+            int skipped = skipCompletedJobs(jobs) + skipCompletedJobs(branchJobs);
+            if (skipped > 0) {
+                log.info("Skipped " + skipped + " jobs completed before the run was resumed");
+            }
+        }
         
-        queueExtraFileJobs();
+        jobs.addAll(branchBatcher.batch(branchJobs));
         
+        if (costHistory != null) {
+            costHistory.sortByDescendingCost(jobs);
+            predictedMakespan = BranchCostHistory.predictMakespan(costHistory.getExpectedDurations(jobs), threadCount);
+            log.info("Jobs queued longest first. predicted makespan: " + predictedMakespan);
+        }
+        
+        if (leaseManager != null) {
+            queueOwnJobsFirst(jobs);
+        }
+        
+        log.info("queuing " + jobs.size() + " jobs");
+        for (RsyncJobDescriptor job : jobs) {
+            if (journal != null) {
+                journal.queued(job);
+            }
+            if (retryTracker != null) {
+                retryTracker.queued();
+            }
+            jobQueue.put(job);
+        }
+    }
+    
+    /**
+     * Method to move the jobs of the branches assigned to this node ahead of the branches of the other nodes, keeping the
+     * order within each group, so this node helps the other nodes only once its own share is queued
+     * @param jobs a List of RsyncJobDescriptor objects, modified in place
+     */
+    private void queueOwnJobsFirst(List<RsyncJobDescriptor> jobs) {
+        List<RsyncJobDescriptor> otherJobs = new ArrayList<RsyncJobDescriptor>();
+        Iterator<RsyncJobDescriptor> iterator = jobs.iterator();
+        while (iterator.hasNext()) {
+            RsyncJobDescriptor job = iterator.next();
+            if (leaseManager.isShared(job) && !ownSourcePaths.contains(job.getSourceRoot())) {
+                iterator.remove();
+                otherJobs.add(job);
+            }
+        }
+        jobs.addAll(otherJobs);
+    }
+    
+    /**
+     * Method to remove the jobs that completed before the run was resumed from a List of jobs
+     * @param jobs a List of RsyncJobDescriptor objects, modified in place
+     * @return the number of jobs removed
+     */
+    private int skipCompletedJobs(List<RsyncJobDescriptor> jobs) {
+        int skipped = 0;
+        Iterator<RsyncJobDescriptor> iterator = jobs.iterator();
+        while (iterator.hasNext()) {
+            RsyncJobDescriptor job = iterator.next();
+            if (journal.isCompleted(job)) {
+                if (log.isTraceEnabled()) log.trace("Skipping " + job.getSourceRoot() + " completed before the run was resumed");
+                iterator.remove();
+                skipped++;
+            }
+        }
+        return skipped;
+    }
+    
+    /**
+     * Method to add the rsync of each branch to Lists of jobs. A branch whose recorded duration exceeds the split threshold
+     * is added to the List of jobs as one job per child directory plus a parent job; any other branch is added to the List
+     * of branch jobs, which may be batched
+     * @param jobs a List of RsyncJobDescriptor objects
+     * @param branchJobs a List of RsyncJobDescriptor objects of whole branches
+     * @throws InterruptedException thrown if interrupted while listing the child directories of a branch
+     */
+    private void createBranchJobs(List<RsyncJobDescriptor> jobs, List<RsyncJobDescriptor> branchJobs) throws InterruptedException {
         int size = sourcePaths.size();
         
         for (int i = 0; i < size; i++) {
@@ -225,20 +518,55 @@ public class Ingester {
             }
             
             RsyncJobDescriptor job = new RsyncJobDescriptor(sourcePath, destPath, prefix, CopyrightEnum.PUBLIC_DOMAIN, username, password, sourceHost, separator, deltaLogDir, dryRun);
-            jobQueue.enqueue(job);
+            if (isOversized(sourcePath)) {
+                jobs.addAll(branchSplitter.split(job));
+            } else {
+                branchJobs.add(job);
+            }
         }
-        
-        jobQueue.markDone();
     }
     
     /**
-     * Method to launch the rsync threads
+     * Method to check if a branch is expected to take longer than the split threshold
+     * @param sourcePath the rsync source path of the branch
+     * @return <code>true</code> if the branch should be split, <code>false</code> otherwise
+     */
+    private boolean isOversized(String sourcePath) {
+        if (splitThreshold <= 0 || costHistory == null) {
+            return false;
+        }
+        long expectedDuration = costHistory.getSubtreeDuration(sourcePath);
+        if (expectedDuration > splitThreshold) {
+            if (log.isInfoEnabled()) log.info("Branch " + sourcePath + " expected duration " + expectedDuration + " exceeds split threshold " + splitThreshold);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Method to launch the rsync threads. With adaptive concurrency, as many threads as the upper bound are launched, and
+     * the AdaptiveConcurrencyController decides how many of them run rsync at a time
      * @return a List of Thread objects
      */
     private List<Thread> launchRsyncThreads() {
         List<Thread> threadList = new ArrayList<Thread>();
-        for (int i = 0; i < threadCount; i++) {
-            Rsyncker rsyncker = new Rsyncker("t-" + i, jobQueue);
+        TransferEngine branchTransferEngine = (landingMover != null) ? new LandingTransferEngine(transferEngine, landingMover) : transferEngine;
+        RsynckerSettings settings = new RsynckerSettings();
+        settings.setDeltaLogQueue(deltaLogQueue);
+        settings.setListenerFactory(listenerFactory);
+        settings.setCostHistory(costHistory);
+        settings.setJournal(journal);
+        settings.setConcurrencyController(concurrencyController);
+        settings.setRedirectOutput(redirectOutput);
+        settings.setItemizeChanges(itemizeChanges);
+        settings.setLeaseManager(leaseManager);
+        settings.setTransferEngine(branchTransferEngine);
+        settings.setMirrorPool(mirrorPool);
+        settings.setTimeouts(jobTimeout, noProgressTimeout);
+        settings.setRetryTracker(retryTracker);
+        settings.setLandingMover(landingMover);
+        for (int i = 0; i < maxThreadCount; i++) {
+            Rsyncker rsyncker = new Rsyncker("t-" + i, jobQueue, settings);
             Thread thread = new Thread(rsyncker);
             
             threadList.add(thread);
@@ -253,7 +581,7 @@ public class Ingester {
      * @param threadList a List of Thread objects
      */
     private void joinRsyncThreads(List<Thread> threadList) {
-        for (int i = 0; i < threadCount; i++) {
+        for (int i = 0; i < maxThreadCount; i++) {
             try {
                 Thread thread = threadList.get(i);
                 thread.join();
@@ -261,7 +589,7 @@ public class Ingester {
                 log.error("Interrupted while waiting for thread " + i, e);
             }
         }
-        for (int i = 0; i < threadCount; i++) {
+        for (int i = 0; i < maxThreadCount; i++) {
             threadList.remove(0);
         }
         
@@ -274,13 +602,18 @@ public class Ingester {
     private void retrieveTreeList() throws InterruptedException {
         log.info("Retrieving remote tree list");
         RsyncJobDescriptor rsyncTreeJob = new RsyncJobDescriptor(treeSourcePath, destRoot, "", CopyrightEnum.PUBLIC_DOMAIN, username, password, sourceHost, separator, deltaLogDir, dryRun);
-        jobQueue.enqueue(rsyncTreeJob);
-        Rsyncker rsyncker = new Rsyncker("x-0", jobQueue);
+        BoundedJobQueue<RsyncJobDescriptor> treeJobQueue = new BoundedJobQueue<RsyncJobDescriptor>("RsyncTreeJobQueue", 1);
+        treeJobQueue.put(rsyncTreeJob);
+        RsynckerSettings settings = new RsynckerSettings();
+        settings.setRedirectOutput(redirectOutput);
+        settings.setTransferEngine(transferEngine);
+        settings.setMirrorPool(mirrorPool);
+        settings.setTimeouts(jobTimeout, noProgressTimeout);
+        Rsyncker rsyncker = new Rsyncker("x-0", treeJobQueue, settings);
         Thread thread = new Thread(rsyncker);
         thread.start();
-        jobQueue.markDone();
+        treeJobQueue.close();
         thread.join();
-        jobQueue.reset();
     }
     
     /**
@@ -298,64 +631,199 @@ public class Ingester {
             
         if (log.isTraceEnabled()) log.trace("local treePath is: " + treePath);
         BufferedReader bufferedReader = new BufferedReader(new FileReader(treePath));
+        List<String> lines = new ArrayList<String>();
         String line = null;
-        sourceCount = 0;
         do {
             line = bufferedReader.readLine();
             if (log.isTraceEnabled()) log.trace("line read: " + line);
             if (line != null) {
-                int hash = Util.hashMD5Checksum(line, hashSpace);
-                if (hash == myHashKey) {
-                    if (log.isInfoEnabled()) log.info("Accepted path: " + line + " hash: " + hash);
-                    String cleanedSource = Util.addTrailingSlash(Util.cleanseSource(line, sourceCleanseTarget, sourceCleanseReplacement));
-                    sourcePaths.add(cleanedSource);
-                
-                    destPaths.add(destRoot + cleanedSource.substring(index));
-                    sourceCount++;
-                } else {
-                    if (log.isTraceEnabled()) log.trace("Not my responsibility hash: " + hash + " path: " + line);
-                }
+                lines.add(line);
             }
         } while (line != null);
-        
         bufferedReader.close();
+        
+        BalancedAssignment assignment = balancedAssignment ? prepareBalancedAssignment(lines) : null;
+        
+        sourceCount = 0;
+        for (String treeLine : lines) {
+            int hash = (assignment != null) ? assignment.getNode(treeLine) : getHashKey(treeLine);
+            if (hash == myHashKey || leaseManager != null) {
+                if (log.isInfoEnabled()) log.info("Accepted path: " + treeLine + " hash: " + hash);
+                String cleanedSource = Util.addTrailingSlash(Util.cleanseSource(treeLine, sourceCleanseTarget, sourceCleanseReplacement));
+                sourcePaths.add(cleanedSource);
+            
+                destPaths.add(destRoot + cleanedSource.substring(index));
+                sourceCount++;
+                if (leaseManager != null) {
+                    leaseManager.share(cleanedSource);
+                    if (hash == myHashKey) {
+                        ownSourcePaths.add(cleanedSource);
+                    }
+                }
+            } else {
+                if (log.isTraceEnabled()) log.trace("Not my responsibility hash: " + hash + " path: " + treeLine);
+            }
+        }
+        
         log.info("Branches read: " + sourceCount);
+        if (leaseManager != null) {
+            log.info("Branches shared with other nodes through leases, " + ownSourcePaths.size() + " of them assigned to this node");
+        }
         
     }
+    
+    /**
+     * Method to get the hash key a branch is assigned to by hashing its path
+     * @param line a line from the list of Pairtree structures
+     * @return the hash key, from the consistent hashing ring if enabled, or the modulo hash otherwise
+     */
+    private int getHashKey(String line) {
+        return (hashRing != null) ? hashRing.getNode(line) : Util.hashMD5Checksum(line, hashSpace);
+    }
+    
+    /**
+     * Method to compute the balanced assignment of the branches to the ingest nodes, starting from the previous one, and save it
+     * for the next run and for PairtreeTrimmer. Without a previous assignment, it starts from the hash assignment
+     * @param lines a List of all lines from the list of Pairtree structures
+     * @return a BalancedAssignment object
+     * @throws IOException thrown if the manifest or the assignment file cannot be read, or the assignment file cannot be written
+     */
+    private BalancedAssignment prepareBalancedAssignment(List<String> lines) throws IOException {
+        Map<String, Long> sizeMap = BalancedAssignment.loadManifest(branchSizeManifestPath);
+        Map<String, Integer> previousMap = BalancedAssignment.loadAssignment(assignmentPath);
+        if (previousMap == null) {
+            log.info("No previous assignment at " + assignmentPath + ". Rebalancing from the hash assignment");
+            previousMap = new HashMap<String, Integer>();
+            for (String line : lines) {
+                previousMap.put(line, Integer.valueOf(getHashKey(line)));
+            }
+        }
+        BalancedAssignment assignment = new BalancedAssignment(hashSpace.intValue(), maxRebalancePercent / 100.0);
+        assignment.assign(lines, sizeMap, previousMap);
+        assignment.save(assignmentPath);
+        return assignment;
+    }
 
     /**
      * Method to run jobs
+     * @throws InterruptedException thrown if interrupted while queuing jobs
      */
-    private void runJobs() {
+    private void runJobs() throws InterruptedException {
         log.info("** Thread count: " + threadCount);
         log.info("** Source count: " + sourceCount);
         long startTime = System.currentTimeMillis();
         log.info("time start: " + startTime);
 
+        Thread controllerThread = null;
+        if (concurrencyController != null) {
+            controllerThread = new Thread(concurrencyController);
+            controllerThread.start();
+        }
+        
+        Thread heartbeatThread = null;
+        if (leaseManager != null) {
+            heartbeatThread = new Thread(leaseManager);
+            heartbeatThread.start();
+        }
+        
+        if (landingMover != null) {
+            // the push of the previous run is over, so what it landed can go
+            landingMover.purge();
+            landingMover.start();
+        }
+        
         List<Thread> rsyncThreadList = launchRsyncThreads();
         queueJobs();
         joinRsyncThreads(rsyncThreadList);
         
+        if (landingMover != null) {
+            landingMover.finish();
+        }
+        
+        if (heartbeatThread != null) {
+            leaseManager.stop();
+            heartbeatThread.join();
+        }
+        
+        if (controllerThread != null) {
+            concurrencyController.stop();
+            controllerThread.join();
+        }
+        
+        if (journal != null) {
+            journal.runCompleted();
+        }
+        
         long endTime = System.currentTimeMillis();
         log.info("time end: " + endTime);
         log.info("threadCount: " + threadCount + " duration: " + (endTime - startTime));
+        if (predictedMakespan >= 0) {
+            log.info("predicted makespan: " + predictedMakespan + " actual makespan: " + (endTime - startTime));
+        }
+        if (mirrorPool != null) {
+            mirrorPool.logSummary();
+        }
+        if (retryTracker != null) {
+            retryTracker.logSummary();
+        }
+        if (landingMover != null) {
+            landingMover.logSummary();
+        }
         log.info("Ingest finished");
+        
+        saveCostHistory();
 
         rsyncThreadList = null;
 
     }
     
+    /**
+     * Method to save the branch cost history, if configured. A failure is logged but does not fail the ingest
+     */
+    private void saveCostHistory() {
+        if (costHistory != null) {
+            try {
+                costHistory.save();
+            } catch (IOException e) {
+                log.error("Unable to save branch cost history", e);
+            }
+        }
+    }
+    
+    /**
+     * Method to load the branch cost history, if configured. A failure is logged and the branches are queued in tree list order
+     */
+    private void loadCostHistory() {
+        if (costHistory != null) {
+            try {
+                costHistory.load();
+            } catch (IOException e) {
+                log.error("Unable to load branch cost history. Queuing branches in tree list order", e);
+            }
+        }
+    }
+    
     /**
      * Method to initiate the ingest process 
      * @throws IngestException thrown if something failed
      */
     public void ingest() throws IngestException {
         
-        prepareDeltaLogDir();
+        if (performJournaling) {
+            prepareJournal();
+        } else {
+            prepareDeltaLogDir();
+        }
+        
+        if (leaseManager != null) {
+            // a resumed run reuses its delta log directory, so by default it still skips what it finished before the crash
+            leaseManager.setRoundId((leaseRoundId != null) ? leaseRoundId.trim() : new File(deltaLogDir).getName());
+        }
         
         try {
             retrieveTreeList();
             readTreeList();
+            loadCostHistory();
             prepareDestination();
             runJobs();
         } catch (InterruptedException e) {
@@ -364,8 +832,37 @@ public class Ingester {
             throw new IngestException(e);
         } catch (IOException e) {
             throw new IngestException(e);
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
         }
         
     }
+    
+    /**
+     * Method to prepare the rsync job journal. If a journaled run did not complete, the delta log directory of the oldest
+     * such run is reused and its journal is loaded, so only the jobs that did not complete are run again; otherwise a new
+     * delta log directory is prepared
+     * @throws IngestException thrown if the journal cannot be read or opened, or if the delta log directory cannot be created
+     */
+    private void prepareJournal() throws IngestException {
+        try {
+            String incompleteRunDir = RsyncJobJournal.findIncompleteRun(deltaLogRoot, IngestLedger.getConfiguredInstance());
+            if (incompleteRunDir != null) {
+                deltaLogDir = incompleteRunDir;
+                journal = new RsyncJobJournal(deltaLogDir);
+                journal.load();
+                log.info("Resuming incomplete run in delta log directory " + deltaLogDir);
+            } else {
+                prepareDeltaLogDir();
+                journal = new RsyncJobJournal(deltaLogDir);
+            }
+            journal.open();
+        } catch (IOException e) {
+            log.error("Unable to prepare rsync job journal", e);
+            throw new IngestException(e);
+        }
+    }
 }
 
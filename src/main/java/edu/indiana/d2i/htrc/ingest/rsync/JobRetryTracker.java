@@ -0,0 +1,184 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  JobRetryTracker.java
+# Description: This class requeues rsync jobs that timed out and keeps the job queue open until every job is settled
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+
+/**
+ * This class requeues rsync jobs that timed out, up to a number of retries, each after a backoff that doubles with every
+ * retry. Since a requeued job goes back into the job queue, the queue may only be closed once every queued job is settled,
+ * i.e. finished or out of retries; the producer calls awaitSettled() before closing it. Each retry runs in a new
+ * iteration of whichever rsync thread takes it, and so writes a fresh delta log
+ */
+public class JobRetryTracker {
+    private static Logger log = Logger.getLogger(JobRetryTracker.class);
+
+    private final BoundedJobQueue<RsyncJobDescriptor> jobQueue;
+    private final int maxRetries;
+    private final long initialBackoff;
+    private final Timer timer;
+    private final Map<RsyncJobDescriptor, Integer> timeoutCounts;
+    private final Map<String, String> timedOutBranches;
+    private int outstandingCount;
+
+    /**
+     * Constructor
+     * @param jobQueue the BoundedJobQueue the jobs are requeued to
+     * @param maxRetries the most times a job is requeued after timing out
+     * @param initialBackoff the time in milliseconds before the first retry, doubled for every further retry
+     */
+    public JobRetryTracker(BoundedJobQueue<RsyncJobDescriptor> jobQueue, int maxRetries, long initialBackoff) {
+        this.jobQueue = jobQueue;
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.timer = new Timer("JobRetryTimer", true);
+        this.timeoutCounts = new HashMap<RsyncJobDescriptor, Integer>();
+        this.timedOutBranches = new LinkedHashMap<String, String>();
+        this.outstandingCount = 0;
+    }
+
+    /**
+     * Method to count a job put into the job queue by the producer
+     */
+    public synchronized void queued() {
+        outstandingCount++;
+    }
+
+    /**
+     * Method to settle a job taken from the job queue, or requeue it after a backoff if it timed out and has retries left
+     * @param job a RsyncJobDescriptor object
+     * @param timedOut <code>true</code> if the job failed because it timed out, <code>false</code> otherwise
+     * @return <code>true</code> if the job will be requeued, <code>false</code> if it is settled
+     */
+    public synchronized boolean finished(final RsyncJobDescriptor job, boolean timedOut) {
+        Integer count = timeoutCounts.get(job);
+        int timeoutCount = (count != null) ? count.intValue() : 0;
+        if (timedOut) {
+            timeoutCount++;
+            timeoutCounts.put(job, Integer.valueOf(timeoutCount));
+            if (timeoutCount <= maxRetries) {
+                long backoff = initialBackoff << (timeoutCount - 1);
+                log.warn(job.getSourceRoot() + " timed out. Requeuing it in " + backoff + " ms, retry " + timeoutCount + " of " + maxRetries);
+                timedOutBranches.put(job.getSourceRoot(), "timed out " + timeoutCount + " times, retry pending");
+                timer.schedule(new TimerTask() {
+                    public void run() {
+                        requeue(job);
+                    }
+                }, backoff);
+                return true;
+            }
+            log.error(job.getSourceRoot() + " timed out " + timeoutCount + " times. Giving up");
+            timedOutBranches.put(job.getSourceRoot(), "timed out " + timeoutCount + " times, given up");
+        } else if (timeoutCount > 0) {
+            timedOutBranches.put(job.getSourceRoot(), "timed out " + timeoutCount + " times, then finished");
+        }
+        settle();
+        return false;
+    }
+
+    /**
+     * Method to put a job back into the job queue
+     * @param job a RsyncJobDescriptor object
+     */
+    private void requeue(RsyncJobDescriptor job) {
+        boolean requeued = false;
+        try {
+            jobQueue.put(job);
+            requeued = true;
+        } catch (InterruptedException e) {
+            log.error("Interrupted while requeuing " + job.getSourceRoot(), e);
+        } catch (IllegalStateException e) {
+            log.error("Job queue closed before " + job.getSourceRoot() + " could be requeued", e);
+        }
+        if (!requeued) {
+            synchronized (this) {
+                timedOutBranches.put(job.getSourceRoot(), "timed out, requeue failed");
+                settle();
+            }
+        }
+    }
+
+    /**
+     * Method to count one job as settled
+     */
+    private void settle() {
+        outstandingCount--;
+        notifyAll();
+    }
+
+    /**
+     * Method to wait until every queued job is settled, after which the job queue may be closed. The retry timer is
+     * cancelled once it returns
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    public void awaitSettled() throws InterruptedException {
+        try {
+            synchronized (this) {
+                while (outstandingCount > 0) {
+                    wait();
+                }
+            }
+        } finally {
+            timer.cancel();
+        }
+    }
+
+    /**
+     * Method to log the branches that timed out, and what became of them
+     */
+    public synchronized void logSummary() {
+        if (timedOutBranches.isEmpty()) {
+            log.info("No job timed out");
+            return;
+        }
+        log.warn(timedOutBranches.size() + " jobs timed out:");
+        for (Map.Entry<String, String> entry : timedOutBranches.entrySet()) {
+            log.warn("  " + entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    /**
+     * Method to get the branches that timed out
+     * @return a Map of the source roots of the jobs that timed out to what became of them
+     */
+    public synchronized Map<String, String> getTimedOutBranches() {
+        return new LinkedHashMap<String, String>(timedOutBranches);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  LandingMover.java
+# Description: This class migrates the files rsynced into the local landing directory into the Pairtree
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.Util;
+
+/**
+ * This class migrates the files rsynced into the local landing directory into the Pairtree on the destination root. The
+ * landing directory mirrors the destination root, and only holds the files an rsync job changed, so each landed file is
+ * copied to the same relative path under the destination root, into a temporary file renamed into place with the
+ * modification time of the landed file. The branches are migrated in the background by a fixed number of mover threads
+ * as their jobs finish.
+ * <p>
+ * The landed files are kept after they are migrated, so the push stage reads them from local disk while they are likely
+ * still in the page cache; a reader falls back to the destination root for a file that was not landed. purge() migrates
+ * whatever is left from an earlier run and removes the landed files, and is to be called at the start of a run, before any
+ * job lands. Files whose names start with a dot are rsync temporary files left by a killed transfer, and are not migrated
+ */
+public class LandingMover {
+    private static Logger log = Logger.getLogger(LandingMover.class);
+
+    private final String landingRoot;
+    private final String destRoot;
+    private final int threadCount;
+    private final BoundedJobQueue<File> migrationQueue;
+    private final List<Thread> threadList;
+    private long migratedFileCount;
+    private long migratedByteCount;
+    private int failedBranchCount;
+
+    /**
+     * Constructor
+     * @param landingRoot the local landing directory
+     * @param destRoot the destination root the landing directory mirrors
+     * @param threadCount the number of mover threads
+     */
+    public LandingMover(String landingRoot, String destRoot, int threadCount) {
+        this.landingRoot = Util.addTrailingSlash(landingRoot);
+        this.destRoot = Util.addTrailingSlash(destRoot);
+        this.threadCount = Math.max(1, threadCount);
+        this.migrationQueue = new BoundedJobQueue<File>("LandingMigrationQueue", BoundedJobQueue.DEFAULT_CAPACITY);
+        this.threadList = new ArrayList<Thread>();
+        this.migratedFileCount = 0L;
+        this.migratedByteCount = 0L;
+        this.failedBranchCount = 0;
+    }
+
+    /**
+     * Method to map a path under the destination root to the landing directory
+     * @param destPath a path under the destination root
+     * @return the same relative path under the landing directory, or <code>null</code> if the path is not under the destination root
+     */
+    public String getLandingPath(String destPath) {
+        if (destPath.startsWith(destRoot)) {
+            return landingRoot + destPath.substring(destRoot.length());
+        } else if (destPath.equals(destRoot.substring(0, destRoot.length() - 1))) {
+            return landingRoot;
+        }
+        return null;
+    }
+
+    /**
+     * Method to launch the mover threads
+     */
+    public void start() {
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        File landingDir = null;
+                        while ((landingDir = migrationQueue.take()) != null) {
+                            migrateBranch(landingDir);
+                        }
+                    } catch (InterruptedException e) {
+                        log.error("Landing mover interrupted while waiting for a branch", e);
+                    }
+                }
+            }, "LandingMover-" + i);
+            threadList.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Method to queue the landed branches of a finished job for migration. A batch job queues each of its branches
+     * @param job a RsyncJobDescriptor object
+     * @throws InterruptedException thrown if interrupted while waiting for room in the migration queue
+     */
+    public void landed(RsyncJobDescriptor job) throws InterruptedException {
+        String landingPath = getLandingPath(job.getDestRoot());
+        if (landingPath == null) {
+            return;
+        }
+        if (job instanceof BatchRsyncJobDescriptor) {
+            for (String relativePath : ((BatchRsyncJobDescriptor)job).getRelativePaths()) {
+                migrationQueue.put(new File(landingPath, relativePath));
+            }
+        } else {
+            migrationQueue.put(new File(landingPath));
+        }
+    }
+
+    /**
+     * Method to wait until every queued branch is migrated, and stop the mover threads
+     * @throws InterruptedException thrown if interrupted while waiting for the mover threads
+     */
+    public void finish() throws InterruptedException {
+        migrationQueue.close();
+        for (Thread thread : threadList) {
+            thread.join();
+        }
+        threadList.clear();
+    }
+
+    /**
+     * Method to migrate whatever an earlier run left in the landing directory, then remove the landed files. The landing
+     * directory is kept if anything failed to migrate, so nothing is lost and the next purge tries again
+     */
+    public void purge() {
+        File landingDir = new File(landingRoot);
+        if (!landingDir.isDirectory()) {
+            return;
+        }
+        if (migrateBranch(landingDir)) {
+            File[] children = landingDir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    delete(child);
+                }
+            }
+            log.info("Landing directory " + landingRoot + " purged");
+        } else {
+            log.error("Landing directory " + landingRoot + " not purged as some of its files failed to migrate");
+        }
+    }
+
+    /**
+     * Method to migrate one landed branch
+     * @param landingDir the landed directory or file of the branch
+     * @return <code>true</code> if everything migrated, <code>false</code> otherwise
+     */
+    protected boolean migrateBranch(File landingDir) {
+        if (!landingDir.exists()) {
+            // nothing changed in the branch, or the job failed before landing anything
+            return true;
+        }
+        String landingPath = landingDir.getPath();
+        File destFile = new File(destRoot + landingPath.substring(Math.min(landingPath.length(), landingRoot.length())));
+        try {
+            migrate(landingDir, destFile);
+            if (log.isTraceEnabled()) log.trace("migrated " + landingPath + " to " + destFile.getPath());
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to migrate " + landingPath + " to " + destFile.getPath(), e);
+            synchronized (this) {
+                failedBranchCount++;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Method to migrate a landed file or directory recursively
+     * @param landed the landed File
+     * @param dest the File it is migrated to
+     * @throws IOException thrown if a file could not be copied
+     */
+    private void migrate(File landed, File dest) throws IOException {
+        if (landed.isDirectory()) {
+            if (!dest.isDirectory() && !dest.mkdirs()) {
+                throw new IOException("Unable to create directory " + dest.getPath());
+            }
+            File[] children = landed.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (!child.getName().startsWith(".")) {
+                        migrate(child, new File(dest, child.getName()));
+                    }
+                }
+            }
+        } else if (landed.isFile()) {
+            if (dest.isFile() && dest.length() == landed.length() && dest.lastModified() / 1000 == landed.lastModified() / 1000) {
+                return;
+            }
+            copy(landed, dest);
+        }
+    }
+
+    /**
+     * Method to copy a file into a temporary file next to the target, renamed into place
+     * @param source the source File
+     * @param target the target File
+     * @throws IOException thrown if the file could not be copied
+     */
+    private void copy(File source, File target) throws IOException {
+        File tempFile = File.createTempFile("." + target.getName() + ".", ".landing", target.getParentFile());
+        boolean copied = false;
+        try {
+            FileInputStream inputStream = new FileInputStream(source);
+            try {
+                FileOutputStream outputStream = new FileOutputStream(tempFile);
+                try {
+                    FileChannel in = inputStream.getChannel();
+                    FileChannel out = outputStream.getChannel();
+                    long size = in.size();
+                    long position = 0L;
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                } finally {
+                    outputStream.close();
+                }
+            } finally {
+                inputStream.close();
+            }
+            tempFile.setLastModified(source.lastModified());
+            if (!tempFile.renameTo(target) && !(target.delete() && tempFile.renameTo(target))) {
+                throw new IOException("Unable to rename " + tempFile.getPath() + " to " + target.getPath());
+            }
+            copied = true;
+        } finally {
+            if (!copied) {
+                tempFile.delete();
+            }
+        }
+        synchronized (this) {
+            migratedFileCount++;
+            migratedByteCount += source.length();
+        }
+    }
+
+    /**
+     * Method to delete a file or a directory recursively
+     * @param file the File to delete
+     */
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            log.warn("Unable to delete landed file " + file.getPath());
+        }
+    }
+
+    /**
+     * Method to log how much was migrated
+     */
+    public synchronized void logSummary() {
+        log.info("landing mover migrated files: " + migratedFileCount + " bytes: " + migratedByteCount + " failed branches: " + failedBranchCount);
+    }
+
+    /**
+     * Method to get the number of files migrated
+     * @return the number of files migrated
+     */
+    public synchronized long getMigratedFileCount() {
+        return migratedFileCount;
+    }
+}
@@ -0,0 +1,378 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  LandingTransferEngine.java
+# Description: This class rsyncs jobs into the local landing directory instead of the destination root
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+
+/**
+ * This class rsyncs jobs into the local landing directory instead of the destination root, in two passes run one after
+ * the other through the engine it wraps. The first pass applies the deletions to the destination root only, with
+ * <code>--existing --ignore-existing</code> so nothing is transferred; the second transfers the changes into the landing
+ * directory with <code>--compare-dest</code> pointing at the destination root, so only the files that changed land there,
+ * and without <code>--delete</code>. The output of both passes is relayed as the output of one transfer, and the exit value
+ * is that of the first pass that failed, so the delta log lists the deletions and the landed files as one rsync would.
+ * A job whose destination is not under the destination root is run unchanged
+ */
+public class LandingTransferEngine implements TransferEngine {
+    private static Logger log = Logger.getLogger(LandingTransferEngine.class);
+
+    private static final int PIPE_SIZE = 65536;
+
+    private final TransferEngine engine;
+    private final LandingMover landingMover;
+
+    /**
+     * Constructor
+     * @param engine the TransferEngine that runs the rsync commands
+     * @param landingMover the LandingMover that maps the destination root to the landing directory
+     */
+    public LandingTransferEngine(TransferEngine engine, LandingMover landingMover) {
+        this.engine = engine;
+        this.landingMover = landingMover;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#start(edu.indiana.d2i.htrc.ingest.rsync.RsyncJobDescriptor, java.lang.String[], boolean)
+     */
+    public Process start(RsyncJobDescriptor job, String[] commandArray, boolean itemizeChanges) throws IOException {
+        String landingPath = landingMover.getLandingPath(job.getDestRoot());
+        if (landingPath == null || commandArray.length < 2) {
+            return engine.start(job, commandArray, itemizeChanges);
+        }
+        File landingParent = new File(landingPath).getParentFile();
+        if (landingParent != null && !landingParent.isDirectory() && !landingParent.mkdirs()) {
+            throw new IOException("Unable to create landing directory " + landingParent.getPath());
+        }
+        List<String[]> passes = new ArrayList<String[]>();
+        passes.add(buildDeletionCommandArray(commandArray));
+        passes.add(buildLandingCommandArray(commandArray, job.getDestRoot(), landingPath));
+        LandingTransfer transfer = new LandingTransfer(job, passes, itemizeChanges);
+        transfer.begin();
+        return transfer;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#isOutputRedirectable()
+     */
+    public boolean isOutputRedirectable() {
+        return false;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#startRedirected(edu.indiana.d2i.htrc.ingest.rsync.RsyncJobDescriptor, java.lang.String[], java.io.File, java.io.File)
+     */
+    public Process startRedirected(RsyncJobDescriptor job, String[] commandArray, File outputFile, File errorFile) throws IOException {
+        throw new UnsupportedOperationException("LandingTransferEngine does not redirect its output");
+    }
+
+    /**
+     * Method to build the command of the pass that only applies the deletions to the destination root
+     * @param commandArray the rsync command built for the job
+     * @return a String array containing the command with arguments
+     */
+    protected String[] buildDeletionCommandArray(String[] commandArray) {
+        List<String> strings = new ArrayList<String>();
+        strings.add(commandArray[0]);
+        strings.add("--existing");
+        strings.add("--ignore-existing");
+        for (int i = 1; i < commandArray.length; i++) {
+            strings.add(commandArray[i]);
+        }
+        return strings.toArray(new String[0]);
+    }
+
+    /**
+     * Method to build the command of the pass that transfers the changed files into the landing directory
+     * @param commandArray the rsync command built for the job
+     * @param destRoot the destination of the job, compared against
+     * @param landingPath the destination of the job in the landing directory
+     * @return a String array containing the command with arguments
+     */
+    protected String[] buildLandingCommandArray(String[] commandArray, String destRoot, String landingPath) {
+        List<String> strings = new ArrayList<String>();
+        strings.add(commandArray[0]);
+        // a relative --compare-dest is taken relative to the landing directory
+        String compareDest = new File(destRoot).getAbsolutePath();
+        strings.add("--compare-dest=" + (destRoot.endsWith("/") ? compareDest + "/" : compareDest));
+        strings.add("--prune-empty-dirs");
+        for (int i = 1; i < commandArray.length - 1; i++) {
+            if (!commandArray[i].equals("--delete")) {
+                strings.add(commandArray[i]);
+            }
+        }
+        strings.add(landingPath);
+        return strings.toArray(new String[0]);
+    }
+
+    /**
+     * This class runs the passes of one job one after the other in its own thread and presents them as one Process,
+     * with their output and errors relayed to piped streams
+     */
+    protected class LandingTransfer extends Process implements Runnable {
+        private final RsyncJobDescriptor job;
+        private final List<String[]> passes;
+        private final boolean itemizeChanges;
+        private final PipedInputStream inputStream;
+        private final PipedInputStream errorStream;
+        private final OutputStream outputPipe;
+        private final OutputStream errorPipe;
+        private final Thread thread;
+        private Process currentProcess;
+        private boolean destroyed;
+        private boolean exited;
+        private int exitValue;
+
+        /**
+         * Constructor
+         * @param job a RsyncJobDescriptor object
+         * @param passes a List of the commands to run, in order
+         * @param itemizeChanges <code>true</code> if each change is printed itemized, <code>false</code> otherwise
+         * @throws IOException thrown if the pipes could not be connected
+         */
+        LandingTransfer(RsyncJobDescriptor job, List<String[]> passes, boolean itemizeChanges) throws IOException {
+            this.job = job;
+            this.passes = passes;
+            this.itemizeChanges = itemizeChanges;
+            this.inputStream = new PipedInputStream(PIPE_SIZE);
+            this.errorStream = new PipedInputStream(PIPE_SIZE);
+            this.outputPipe = new PipedOutputStream(inputStream);
+            this.errorPipe = new PipedOutputStream(errorStream);
+            this.thread = new Thread(this, "LandingTransfer-" + job.getSourceRoot());
+            this.currentProcess = null;
+            this.destroyed = false;
+            this.exited = false;
+            this.exitValue = -1;
+        }
+
+        /**
+         * Method to start the transfer thread
+         */
+        void begin() {
+            thread.start();
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            int value = 0;
+            // a piped stream breaks once the thread that last wrote to it is gone, so each pipe is written by one thread
+            // that lives as long as the transfer: the output by this one, the errors by the error relay
+            BoundedJobQueue<InputStream> errorStreamQueue = new BoundedJobQueue<InputStream>("LandingErrorStreamQueue", passes.size());
+            Thread errorRelayThread = new Thread(new ErrorRelay(errorStreamQueue, errorPipe), "LandingErrorRelay-" + job.getSourceRoot());
+            errorRelayThread.start();
+            try {
+                for (String[] pass : passes) {
+                    Process process = null;
+                    synchronized (this) {
+                        if (destroyed) {
+                            break;
+                        }
+                        process = engine.start(job, pass, itemizeChanges);
+                        currentProcess = process;
+                    }
+                    errorStreamQueue.put(process.getErrorStream());
+                    relay(process.getInputStream(), outputPipe);
+                    int passValue = process.waitFor();
+                    if (passValue != 0 && value == 0) {
+                        value = passValue;
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Landing transfer of " + job.getSourceRoot() + " failed", e);
+                value = LocalTransferEngine.EXIT_PARTIAL_TRANSFER;
+            } catch (InterruptedException e) {
+                log.error("Landing transfer of " + job.getSourceRoot() + " interrupted", e);
+                value = LocalTransferEngine.EXIT_SIGNALLED;
+            } finally {
+                closeQuietly(outputPipe);
+                errorStreamQueue.close();
+                try {
+                    errorRelayThread.join();
+                } catch (InterruptedException e) {
+                    log.error("Interrupted while waiting for the error relay of " + job.getSourceRoot(), e);
+                }
+                synchronized (this) {
+                    exitValue = destroyed ? LocalTransferEngine.EXIT_SIGNALLED : value;
+                    exited = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Method to close a stream, logging a failure
+         * @param stream an OutputStream object
+         */
+        private void closeQuietly(OutputStream stream) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.warn("Unable to close pipe of landing transfer " + job.getSourceRoot(), e);
+            }
+        }
+
+        /**
+         * @see java.lang.Process#getOutputStream()
+         */
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("Landing transfer takes no input");
+                }
+            };
+        }
+
+        /**
+         * @see java.lang.Process#getInputStream()
+         */
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        /**
+         * @see java.lang.Process#getErrorStream()
+         */
+        @Override
+        public InputStream getErrorStream() {
+            return errorStream;
+        }
+
+        /**
+         * @see java.lang.Process#waitFor()
+         */
+        @Override
+        public synchronized int waitFor() throws InterruptedException {
+            while (!exited) {
+                wait();
+            }
+            return exitValue;
+        }
+
+        /**
+         * @see java.lang.Process#exitValue()
+         */
+        @Override
+        public synchronized int exitValue() {
+            if (!exited) {
+                throw new IllegalThreadStateException("Landing transfer of " + job.getSourceRoot() + " has not exited");
+            }
+            return exitValue;
+        }
+
+        /**
+         * @see java.lang.Process#destroy()
+         */
+        @Override
+        public synchronized void destroy() {
+            destroyed = true;
+            if (currentProcess != null) {
+                currentProcess.destroy();
+            }
+        }
+    }
+
+    /**
+     * Method to copy the output of a pass to a pipe, without closing the pipe. A failure to write to the pipe is thrown,
+     * as the reader is gone
+     * @param inputStream the InputStream of the pass
+     * @param outputStream the OutputStream of the pipe
+     * @throws IOException thrown if the pipe could not be written
+     */
+    protected static void relay(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        try {
+            int count = 0;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+            outputStream.flush();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * This class copies the error streams of the passes of a transfer, in order, to the error pipe of the transfer, and
+     * closes the pipe once the passes are done
+     */
+    protected static class ErrorRelay implements Runnable {
+        private final BoundedJobQueue<InputStream> errorStreamQueue;
+        private final OutputStream errorPipe;
+
+        /**
+         * Constructor
+         * @param errorStreamQueue a BoundedJobQueue to which the error stream of each pass is put, closed after the last pass
+         * @param errorPipe the OutputStream of the error pipe
+         */
+        ErrorRelay(BoundedJobQueue<InputStream> errorStreamQueue, OutputStream errorPipe) {
+            this.errorStreamQueue = errorStreamQueue;
+            this.errorPipe = errorPipe;
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                InputStream errorStream = null;
+                while ((errorStream = errorStreamQueue.take()) != null) {
+                    relay(errorStream, errorPipe);
+                }
+            } catch (IOException e) {
+                log.error("Relaying the errors of a landing transfer failed", e);
+            } catch (InterruptedException e) {
+                log.error("Error relay of a landing transfer interrupted", e);
+            } finally {
+                try {
+                    errorPipe.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close the error pipe of a landing transfer", e);
+                }
+            }
+        }
+    }
+}
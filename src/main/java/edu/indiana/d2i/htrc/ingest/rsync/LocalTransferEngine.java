@@ -0,0 +1,574 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  LocalTransferEngine.java
+# Description: This class transfers rsync jobs from a locally mounted source tree without running rsync
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class transfers rsync jobs from a locally mounted copy of the rsync source, e.g. a mirror, without running rsync.
+ * The source of a job is its rsync source root resolved against the local source root. Like rsync with the options
+ * Rsyncker uses, it mirrors the source into the destination recursively, deletes what is gone from the source, and uses
+ * size and modification time to tell which files changed; changed files are copied with FileChannel.transferTo() so the
+ * content does not pass through the JVM, into a temporary file renamed into place.
+ * <p>
+ * It prints what rsync <code>--verbose</code> prints, plain or itemized, including the closing summary, so the delta logs it
+ * produces are parsed like those of rsync. Exclude patterns are matched as literal paths, anchored with a leading slash,
+ * as BranchSplitter writes them; permissions are not copied. Per-file failures are reported on the error stream and end
+ * the transfer with the rsync exit code for a partial transfer
+ */
+public class LocalTransferEngine implements TransferEngine {
+    private static Logger log = Logger.getLogger(LocalTransferEngine.class);
+
+    public static final String NAME = "local";
+    public static final int EXIT_PARTIAL_TRANSFER = 23;
+    public static final int EXIT_SIGNALLED = 20;
+
+    private static final int PIPE_SIZE = 65536;
+    private static final String NEW_FILE_FLAGS = ">f+++++++++";
+    private static final String SIZE_CHANGED_FLAGS = ">f.st......";
+    private static final String TIME_CHANGED_FLAGS = ">f..t......";
+    private static final String NEW_DIRECTORY_FLAGS = "cd+++++++++";
+    private static final String DELETING_FLAGS = "*deleting  ";
+
+    private final File localSourceRoot;
+
+    /**
+     * Constructor
+     * @param localSourceRoot the local directory against which the rsync source roots of the jobs are resolved
+     */
+    public LocalTransferEngine(String localSourceRoot) {
+        this.localSourceRoot = new File(localSourceRoot);
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#start(edu.indiana.d2i.htrc.ingest.rsync.RsyncJobDescriptor, java.lang.String[], boolean)
+     */
+    public Process start(RsyncJobDescriptor job, String[] commandArray, boolean itemizeChanges) throws IOException {
+        LocalTransfer transfer = new LocalTransfer(job, itemizeChanges);
+        transfer.begin();
+        return transfer;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#isOutputRedirectable()
+     */
+    public boolean isOutputRedirectable() {
+        return false;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#startRedirected(edu.indiana.d2i.htrc.ingest.rsync.RsyncJobDescriptor, java.lang.String[], java.io.File, java.io.File)
+     */
+    public Process startRedirected(RsyncJobDescriptor job, String[] commandArray, File outputFile, File errorFile) throws IOException {
+        throw new UnsupportedOperationException("LocalTransferEngine does not redirect its output");
+    }
+
+    /**
+     * This class runs the transfer of one job in its own thread and presents it as a Process, with the output and the errors
+     * of the transfer readable from piped streams
+     */
+    protected class LocalTransfer extends Process implements Runnable {
+        private final String EOL = System.getProperty("line.separator");
+        private final RsyncJobDescriptor job;
+        private final boolean itemizeChanges;
+        private final PipedInputStream inputStream;
+        private final PipedInputStream errorStream;
+        private final Writer outputWriter;
+        private final Writer errorWriter;
+        private final SimpleDateFormat dateFormat;
+        private final Thread thread;
+        private volatile boolean destroyed;
+        private int exitValue;
+        private int errorCount;
+        private long bytesReceived;
+        private long totalSize;
+
+        /**
+         * Constructor
+         * @param job a RsyncJobDescriptor object
+         * @param itemizeChanges <code>true</code> to print each change itemized, <code>false</code> to print paths only
+         * @throws IOException thrown if the pipes could not be connected
+         */
+        LocalTransfer(RsyncJobDescriptor job, boolean itemizeChanges) throws IOException {
+            this.job = job;
+            this.itemizeChanges = itemizeChanges;
+            this.inputStream = new PipedInputStream(PIPE_SIZE);
+            this.errorStream = new PipedInputStream(PIPE_SIZE);
+            this.outputWriter = new BufferedWriter(new OutputStreamWriter(new PipedOutputStream(inputStream)));
+            this.errorWriter = new BufferedWriter(new OutputStreamWriter(new PipedOutputStream(errorStream)));
+            this.dateFormat = new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss");
+            this.thread = new Thread(this, "LocalTransfer-" + job.getSourceRoot());
+            this.destroyed = false;
+            this.exitValue = -1;
+            this.errorCount = 0;
+            this.bytesReceived = 0L;
+            this.totalSize = 0L;
+        }
+
+        /**
+         * Method to start the transfer thread
+         */
+        void begin() {
+            thread.start();
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            int value = 0;
+            try {
+                printOutput("receiving incremental file list");
+                transfer();
+                printOutput("");
+                printOutput("sent 0 bytes  received " + bytesReceived + " bytes");
+                printOutput("total size is " + totalSize);
+                if (errorCount > 0) {
+                    printError("rsync error: some files could not be transferred (code " + EXIT_PARTIAL_TRANSFER + ")");
+                    value = EXIT_PARTIAL_TRANSFER;
+                }
+            } catch (IOException e) {
+                if (!destroyed) {
+                    log.error("Local transfer of " + job.getSourceRoot() + " failed", e);
+                }
+                value = EXIT_PARTIAL_TRANSFER;
+            } finally {
+                closeQuietly(outputWriter);
+                closeQuietly(errorWriter);
+                synchronized (this) {
+                    exitValue = destroyed ? EXIT_SIGNALLED : value;
+                }
+            }
+        }
+
+        /**
+         * Method to transfer the job. A batch job transfers each of its branches under the same relative path in the
+         * destination; a source directory with a trailing slash is mirrored into the destination, and any other source
+         * is copied into it by name
+         * @throws IOException thrown if the output could not be written or the transfer was destroyed
+         */
+        private void transfer() throws IOException {
+            String sourceRoot = job.getSourceRoot();
+            File source = new File(localSourceRoot, sourceRoot);
+            File dest = new File(job.getDestRoot());
+            if (job instanceof BatchRsyncJobDescriptor) {
+                for (String relativePath : ((BatchRsyncJobDescriptor)job).getRelativePaths()) {
+                    String path = stripTrailingSlash(relativePath);
+                    transferItem(new File(source, path), new File(dest, path), path);
+                }
+            } else if (source.isDirectory()) {
+                if (sourceRoot.endsWith("/")) {
+                    ensureDirectory(source, dest, null);
+                    mirrorDirectory(source, dest, "");
+                } else {
+                    transferItem(source, new File(dest, source.getName()), source.getName());
+                }
+            } else if (source.isFile()) {
+                if (dest.isDirectory() || job.getDestRoot().endsWith("/")) {
+                    ensureDirectory(source.getParentFile(), dest, null);
+                    transferFile(source, new File(dest, source.getName()), source.getName());
+                } else {
+                    transferFile(source, dest, source.getName());
+                }
+            } else {
+                reportError("link_stat \"" + source.getPath() + "\" failed: No such file or directory");
+            }
+        }
+
+        /**
+         * Method to transfer a file or a directory
+         * @param source the source File
+         * @param target the destination File
+         * @param path the path relative to the rsync source, as printed
+         * @throws IOException thrown if the output could not be written or the transfer was destroyed
+         */
+        private void transferItem(File source, File target, String path) throws IOException {
+            if (source.isDirectory()) {
+                ensureDirectory(source, target, path);
+                mirrorDirectory(source, target, path + "/");
+            } else if (source.isFile()) {
+                transferFile(source, target, path);
+            } else {
+                reportError("link_stat \"" + source.getPath() + "\" failed: No such file or directory");
+            }
+        }
+
+        /**
+         * Method to mirror the content of a source directory into a destination directory. What is gone from the source
+         * is deleted first, then every entry is transferred in name order, and the modification time is copied last
+         * @param sourceDir the source directory
+         * @param destDir the destination directory
+         * @param pathPrefix the path of the directory relative to the rsync source, with a trailing slash, or empty for the source itself
+         * @throws IOException thrown if the output could not be written or the transfer was destroyed
+         */
+        private void mirrorDirectory(File sourceDir, File destDir, String pathPrefix) throws IOException {
+            checkDestroyed();
+            String[] names = sourceDir.list();
+            if (names == null) {
+                reportError("opendir \"" + sourceDir.getPath() + "\" failed");
+                return;
+            }
+            Arrays.sort(names);
+            Set<String> sourceNames = new HashSet<String>(Arrays.asList(names));
+
+            String[] destNames = destDir.list();
+            if (destNames != null) {
+                Arrays.sort(destNames);
+                for (String name : destNames) {
+                    File destFile = new File(destDir, name);
+                    if (!sourceNames.contains(name) && !isExcluded(pathPrefix + name, destFile.isDirectory())) {
+                        delete(destFile, pathPrefix + name);
+                    }
+                }
+            }
+
+            for (String name : names) {
+                File source = new File(sourceDir, name);
+                String path = pathPrefix + name;
+                boolean directory = source.isDirectory();
+                if (isExcluded(path, directory)) {
+                    continue;
+                }
+                if (directory) {
+                    File target = new File(destDir, name);
+                    ensureDirectory(source, target, path);
+                    mirrorDirectory(source, target, path + "/");
+                } else {
+                    transferFile(source, new File(destDir, name), path);
+                }
+            }
+
+            if (!job.isDryRun() && destDir.isDirectory()) {
+                destDir.setLastModified(sourceDir.lastModified());
+            }
+        }
+
+        /**
+         * Method to make sure a destination directory exists, replacing a file of the same name
+         * @param source the source directory
+         * @param target the destination directory
+         * @param path the path relative to the rsync source, as printed, or <code>null</code> if the directory is not printed
+         * @throws IOException thrown if the output could not be written or the transfer was destroyed
+         */
+        private void ensureDirectory(File source, File target, String path) throws IOException {
+            if (target.isDirectory()) {
+                return;
+            }
+            if (target.exists() && path != null) {
+                delete(target, path);
+            }
+            if (!job.isDryRun() && !target.mkdirs()) {
+                reportError("mkdir \"" + target.getPath() + "\" failed");
+                return;
+            }
+            if (path != null) {
+                printChange(NEW_DIRECTORY_FLAGS, source.length(), source.lastModified(), path + "/");
+            }
+        }
+
+        /**
+         * Method to transfer a file if it is new, or differs from the destination in size or modification time
+         * @param source the source file
+         * @param target the destination file
+         * @param path the path relative to the rsync source, as printed
+         * @throws IOException thrown if the output could not be written or the transfer was destroyed
+         */
+        private void transferFile(File source, File target, String path) throws IOException {
+            checkDestroyed();
+            long size = source.length();
+            long modTime = source.lastModified();
+            totalSize += size;
+            if (target.isDirectory()) {
+                delete(target, path);
+            }
+            boolean exists = target.isFile();
+            // rsync compares modification times in whole seconds
+            if (exists && target.length() == size && target.lastModified() / 1000 == modTime / 1000) {
+                return;
+            }
+            String flags = !exists ? NEW_FILE_FLAGS : (target.length() != size ? SIZE_CHANGED_FLAGS : TIME_CHANGED_FLAGS);
+            if (!job.isDryRun()) {
+                try {
+                    copy(source, target, size, modTime);
+                } catch (IOException e) {
+                    reportError("failed to copy \"" + path + "\": " + e.getMessage());
+                    return;
+                }
+            }
+            bytesReceived += size;
+            printChange(flags, size, modTime, path);
+        }
+
+        /**
+         * Method to copy a file into a temporary file next to the target, and rename it into place
+         * @param source the source file
+         * @param target the destination file
+         * @param size the size of the source file
+         * @param modTime the modification time of the source file
+         * @throws IOException thrown if the file could not be copied
+         */
+        private void copy(File source, File target, long size, long modTime) throws IOException {
+            File tempFile = new File(target.getParentFile(), "." + target.getName() + "." + Long.toHexString(System.nanoTime()));
+            FileInputStream in = new FileInputStream(source);
+            try {
+                FileOutputStream out = new FileOutputStream(tempFile);
+                try {
+                    FileChannel inChannel = in.getChannel();
+                    FileChannel outChannel = out.getChannel();
+                    long position = 0L;
+                    while (position < size) {
+                        long transferred = inChannel.transferTo(position, size - position, outChannel);
+                        if (transferred <= 0) {
+                            break;
+                        }
+                        position += transferred;
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                tempFile.delete();
+                throw e;
+            } finally {
+                in.close();
+            }
+            tempFile.setLastModified(modTime);
+            if (!tempFile.renameTo(target) && !(target.delete() && tempFile.renameTo(target))) {
+                tempFile.delete();
+                throw new IOException("Unable to rename " + tempFile.getPath() + " to " + target.getPath());
+            }
+        }
+
+        /**
+         * Method to delete a file, or a directory with its content deepest first, printing each deleted path
+         * @param file the File to delete
+         * @param path the path relative to the rsync source, as printed
+         * @throws IOException thrown if the output could not be written
+         */
+        private void delete(File file, String path) throws IOException {
+            long modTime = file.lastModified();
+            if (file.isDirectory()) {
+                String[] names = file.list();
+                if (names != null) {
+                    Arrays.sort(names);
+                    for (String name : names) {
+                        delete(new File(file, name), path + "/" + name);
+                    }
+                }
+                path = path + "/";
+            }
+            if (!job.isDryRun() && !file.delete()) {
+                reportError("delete_file: unlink \"" + path + "\" failed");
+                return;
+            }
+            if (itemizeChanges) {
+                printOutput(DELETING_FLAGS + "\t0\t" + dateFormat.format(new Date(modTime)) + "\t" + path);
+            } else {
+                printOutput("deleting " + path);
+            }
+        }
+
+        /**
+         * Method to check if a path matches an exclude pattern of the job
+         * @param path the path relative to the rsync source
+         * @param directory <code>true</code> if the path is a directory
+         * @return <code>true</code> if the path is excluded, <code>false</code> otherwise
+         */
+        private boolean isExcluded(String path, boolean directory) {
+            for (String exclude : job.getExcludes()) {
+                if (exclude.endsWith("/") && !directory) {
+                    continue;
+                }
+                String pattern = stripTrailingSlash(exclude);
+                if (pattern.startsWith("/")) {
+                    if (path.equals(pattern.substring(1))) {
+                        return true;
+                    }
+                } else if (path.equals(pattern) || path.endsWith("/" + pattern)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Method to print a change, plain or itemized
+         * @param flags the itemized change flags
+         * @param size the size of the item
+         * @param modTime the modification time of the item
+         * @param path the path relative to the rsync source
+         * @throws IOException thrown if the output could not be written
+         */
+        private void printChange(String flags, long size, long modTime, String path) throws IOException {
+            if (itemizeChanges) {
+                printOutput(flags + "\t" + size + "\t" + dateFormat.format(new Date(modTime)) + "\t" + path);
+            } else {
+                printOutput(path);
+            }
+        }
+
+        /**
+         * Method to report a failure that leaves the transfer partial
+         * @param message the error message
+         * @throws IOException thrown if the error could not be written
+         */
+        private void reportError(String message) throws IOException {
+            errorCount++;
+            printError("rsync: " + message);
+        }
+
+        /**
+         * Method to write a line to the output of the transfer
+         * @param line the line
+         * @throws IOException thrown if the line could not be written
+         */
+        private void printOutput(String line) throws IOException {
+            outputWriter.write(line);
+            outputWriter.write(EOL);
+        }
+
+        /**
+         * Method to write a line to the error stream of the transfer
+         * @param line the line
+         * @throws IOException thrown if the line could not be written
+         */
+        private void printError(String line) throws IOException {
+            errorWriter.write(line);
+            errorWriter.write(EOL);
+            errorWriter.flush();
+        }
+
+        /**
+         * Method to stop the transfer once it is destroyed
+         * @throws IOException thrown if the transfer was destroyed
+         */
+        private void checkDestroyed() throws IOException {
+            if (destroyed) {
+                throw new IOException("Local transfer of " + job.getSourceRoot() + " destroyed");
+            }
+        }
+
+        /**
+         * Method to close a Writer, logging any failure
+         * @param writer a Writer object
+         */
+        private void closeQuietly(Writer writer) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.error("Unable to close the output of the local transfer of " + job.getSourceRoot(), e);
+            }
+        }
+
+        /**
+         * @see java.lang.Process#getOutputStream()
+         */
+        @Override
+        public OutputStream getOutputStream() {
+            // nothing is read from the standard input of a local transfer
+            return new ByteArrayOutputStream();
+        }
+
+        /**
+         * @see java.lang.Process#getInputStream()
+         */
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        /**
+         * @see java.lang.Process#getErrorStream()
+         */
+        @Override
+        public InputStream getErrorStream() {
+            return errorStream;
+        }
+
+        /**
+         * @see java.lang.Process#waitFor()
+         */
+        @Override
+        public int waitFor() throws InterruptedException {
+            thread.join();
+            return exitValue();
+        }
+
+        /**
+         * @see java.lang.Process#exitValue()
+         */
+        @Override
+        public synchronized int exitValue() {
+            if (thread.isAlive()) {
+                throw new IllegalThreadStateException("Local transfer of " + job.getSourceRoot() + " has not exited");
+            }
+            return exitValue;
+        }
+
+        /**
+         * @see java.lang.Process#destroy()
+         */
+        @Override
+        public void destroy() {
+            destroyed = true;
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Method to strip the trailing slash off a path
+     * @param path a path
+     * @return the path without a trailing slash
+     */
+    private static String stripTrailingSlash(String path) {
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+}
@@ -31,6 +31,9 @@
  */
 package edu.indiana.d2i.htrc.ingest.rsync;
 
+import java.util.Collections;
+import java.util.List;
+
 import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
 
 /**
@@ -49,6 +52,7 @@ public class RsyncJobDescriptor {
     protected final String separator;
     protected final String deltaLogDir;
     protected final boolean dryRun;
+    protected final List<String> excludes;
     
     /**
      * Constructor
@@ -64,6 +68,24 @@ public class RsyncJobDescriptor {
      * @param dryRun a boolean flag indicating if the rsync is a dry run
      */
     protected RsyncJobDescriptor(String sourceRoot, String destRoot, String prefix, CopyrightEnum copyright, String username, String password, String host, String separator, String deltaLogDir, boolean dryRun) {
+        this(sourceRoot, destRoot, prefix, copyright, username, password, host, separator, deltaLogDir, dryRun, Collections.<String>emptyList());
+    }
+    
+    /**
+     * Constructor
+     * @param sourceRoot root directory of rsync source
+     * @param destRoot destination root directory
+     * @param prefix the prefix/namespace of a Pairtree
+     * @param copyright copyright information
+     * @param username username for the rsync
+     * @param password password for the rsync
+     * @param host rsync remote host
+     * @param separator rsync separator symbol
+     * @param deltaLogDir delta log directory
+     * @param dryRun a boolean flag indicating if the rsync is a dry run
+     * @param excludes a List of rsync exclude patterns, relative to the source root
+     */
+    protected RsyncJobDescriptor(String sourceRoot, String destRoot, String prefix, CopyrightEnum copyright, String username, String password, String host, String separator, String deltaLogDir, boolean dryRun, List<String> excludes) {
         this.sourceRoot = sourceRoot;
         this.destRoot = destRoot;
         this.prefix = prefix;
@@ -74,6 +96,7 @@ public class RsyncJobDescriptor {
         this.separator = separator;
         this.deltaLogDir = deltaLogDir;
         this.dryRun = dryRun;
+        this.excludes = excludes;
     }
     
     /**
@@ -151,5 +174,19 @@ public class RsyncJobDescriptor {
     protected boolean isDryRun() {
         return dryRun;
     }
+    /**
+     * Method to get the rsync exclude patterns
+     * @return a List of rsync exclude patterns, relative to the source root
+     */
+    protected List<String> getExcludes() {
+        return excludes;
+    }
+    /**
+     * Method to get the branches this job rsyncs, for journaling and cost history
+     * @return a List containing only this job; a batch job returns the branches batched into it
+     */
+    protected List<RsyncJobDescriptor> getBranchJobs() {
+        return Collections.singletonList(this);
+    }
 }
 
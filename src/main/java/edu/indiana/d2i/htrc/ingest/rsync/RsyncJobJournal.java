@@ -0,0 +1,305 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  RsyncJobJournal.java
+# Description: This class keeps an append-only on-disk journal of the rsync jobs of a run so a crashed run can be resumed
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
+
+/**
+ * This class keeps an append-only on-disk journal of the rsync jobs of a run, stored in the delta log directory of the
+ * run. Every job is journaled when it is queued, when an rsync thread starts it, and when rsync exits; each entry is
+ * synced to disk before the job moves on. If the JVM dies halfway through a run, the journal has no RUN_COMPLETED entry,
+ * and the next run resumes into the same delta log directory, rerunning only the jobs that did not complete with exit
+ * value 0. The delta logs written by the crashed run are kept, since rsync will not list the files it already transferred
+ * a second time, and the resumed run numbers its delta logs after the last journaled iteration so none is overwritten
+ */
+public class RsyncJobJournal {
+    private static Logger log = Logger.getLogger(RsyncJobJournal.class);
+    private static final String EOL = System.getProperty("line.separator");
+    private static final String SEPARATOR = "\t";
+
+    static final String JOURNAL_FILENAME = "rsync-journal.txt";
+    static final String DELTA_LOG_DIR_REGEX = "dlog-\\d{8}-\\d{9}";
+
+    static final String QUEUED = "QUEUED";
+    static final String RUNNING = "RUNNING";
+    static final String COMPLETED = "COMPLETED";
+    static final String RUN_COMPLETED = "RUN_COMPLETED";
+
+    private final File journalFile;
+    private final Set<String> completedSources;
+    private int lastIteration;
+    private boolean runCompleted;
+    private FileOutputStream outputStream;
+    private Writer writer;
+
+    /**
+     * Constructor
+     * @param deltaLogDir the delta log directory of the run
+     */
+    public RsyncJobJournal(String deltaLogDir) {
+        this.journalFile = new File(deltaLogDir, JOURNAL_FILENAME);
+        this.completedSources = new HashSet<String>();
+        this.lastIteration = -1;
+        this.runCompleted = false;
+        this.outputStream = null;
+        this.writer = null;
+    }
+
+    /**
+     * Method to find the delta log directory of the oldest run that did not complete. Every journaled directory is checked,
+     * so a run left incomplete is still resumed if a later run failed as well, or completed after it
+     * @param deltaLogRoot the delta log root directory
+     * @return the path to the delta log directory of the oldest run whose journal has no RUN_COMPLETED entry, or
+     * <code>null</code> if every journaled run completed or there is none
+     * @throws IOException thrown if a journal cannot be read
+     */
+    public static String findIncompleteRun(String deltaLogRoot) throws IOException {
+        return findIncompleteRun(deltaLogRoot, null);
+    }
+
+    /**
+     * Method to find the delta log directory of the oldest run that did not complete, leaving out the directories the
+     * ingest ledger records as processed or verified, which keep their raw names once a ledger is kept
+     * @param deltaLogRoot the delta log root directory
+     * @param ingestLedger an IngestLedger object the delta log directories are recorded in, or <code>null</code> if no ledger is kept
+     * @return the path to the delta log directory of the oldest run whose journal has no RUN_COMPLETED entry, or
+     * <code>null</code> if every journaled run completed or there is none
+     * @throws IOException thrown if a journal cannot be read
+     */
+    public static String findIncompleteRun(String deltaLogRoot, final IngestLedger ingestLedger) throws IOException {
+        File[] dirs = new File(deltaLogRoot).listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory() && file.getName().matches(DELTA_LOG_DIR_REGEX) && new File(file, JOURNAL_FILENAME).exists()
+                        && (ingestLedger == null || ingestLedger.getDeltaLogDirState(file.getName()) == null);
+            }
+        });
+        if (dirs == null || dirs.length == 0) {
+            return null;
+        }
+        // the directory names carry the timestamp, so name order is run order
+        Arrays.sort(dirs);
+        File oldestDir = null;
+        int incompleteCount = 0;
+        for (File dir : dirs) {
+            if (isIncompleteRun(dir)) {
+                if (oldestDir == null) {
+                    oldestDir = dir;
+                }
+                incompleteCount++;
+            }
+        }
+        if (incompleteCount > 1) {
+            log.warn(incompleteCount + " journaled runs did not complete. Resuming the oldest one, " + oldestDir.getPath() + ", first");
+        }
+        return (oldestDir != null) ? oldestDir.getPath() : null;
+    }
+
+    /**
+     * Method to check if a delta log directory holds a journaled run that did not complete
+     * @param deltaLogDir a delta log directory
+     * @return <code>true</code> if the directory has a journal without a RUN_COMPLETED entry, <code>false</code> if the
+     * journal has one or there is no journal
+     * @throws IOException thrown if the journal cannot be read
+     */
+    public static boolean isIncompleteRun(File deltaLogDir) throws IOException {
+        if (!new File(deltaLogDir, JOURNAL_FILENAME).exists()) {
+            return false;
+        }
+        RsyncJobJournal journal = new RsyncJobJournal(deltaLogDir.getPath());
+        journal.load();
+        return !journal.isRunCompleted();
+    }
+
+    /**
+     * Method to read the journal of an earlier, crashed attempt at the run. A torn last line is ignored
+     * @throws IOException thrown if the journal cannot be read
+     */
+    public synchronized void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+        try {
+            String line = null;
+            do {
+                line = reader.readLine();
+                if (line != null) {
+                    loadEntry(line.split(SEPARATOR));
+                }
+            } while (line != null);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Method to apply one journal entry
+     * @param fields the fields of the journal entry
+     */
+    private void loadEntry(String[] fields) {
+        if (fields[0].equals(RUN_COMPLETED)) {
+            runCompleted = true;
+        } else if (fields[0].equals(RUNNING) && fields.length == 4) {
+            try {
+                lastIteration = Math.max(lastIteration, Integer.parseInt(fields[2]));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring malformed journal entry " + Arrays.toString(fields));
+            }
+        } else if (fields[0].equals(COMPLETED) && fields.length == 3) {
+            if (fields[2].equals("0")) {
+                completedSources.add(fields[1]);
+            } else {
+                // a later attempt may have failed after an earlier one succeeded
+                completedSources.remove(fields[1]);
+            }
+        }
+    }
+
+    /**
+     * Method to open the journal for appending
+     * @throws IOException thrown if the journal cannot be opened
+     */
+    public synchronized void open() throws IOException {
+        outputStream = new FileOutputStream(journalFile, true);
+        writer = new OutputStreamWriter(outputStream, "UTF-8");
+    }
+
+    /**
+     * Method to close the journal
+     */
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.error("Unable to close rsync job journal " + journalFile.getPath(), e);
+            }
+            writer = null;
+            outputStream = null;
+        }
+    }
+
+    /**
+     * Method to append an entry and sync it to disk. A failure is logged but does not stop the rsync; at worst the entry is
+     * missing and the job is rerun if the run has to be resumed
+     * @param entry the journal entry
+     */
+    private synchronized void append(String entry) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(entry);
+            writer.write(EOL);
+            writer.flush();
+            outputStream.getFD().sync();
+        } catch (IOException e) {
+            log.error("Unable to write rsync job journal entry " + entry, e);
+        }
+    }
+
+    /**
+     * Method to journal that a job was queued. A batch job is journaled one entry per branch
+     * @param job a RsyncJobDescriptor object
+     */
+    public void queued(RsyncJobDescriptor job) {
+        for (RsyncJobDescriptor branchJob : job.getBranchJobs()) {
+            append(QUEUED + SEPARATOR + branchJob.getSourceRoot());
+        }
+    }
+
+    /**
+     * Method to journal that a job was started by an rsync thread
+     * @param id the id of the rsync thread
+     * @param iteration the iteration of the rsync thread, which numbers the delta log of this attempt at the job
+     * @param job a RsyncJobDescriptor object
+     */
+    public void running(String id, int iteration, RsyncJobDescriptor job) {
+        for (RsyncJobDescriptor branchJob : job.getBranchJobs()) {
+            append(RUNNING + SEPARATOR + id + SEPARATOR + iteration + SEPARATOR + branchJob.getSourceRoot());
+        }
+    }
+
+    /**
+     * Method to journal that rsync exited for a job
+     * @param job a RsyncJobDescriptor object
+     * @param exitValue the exit value of rsync, or -1 if rsync could not be run or waited for
+     */
+    public void completed(RsyncJobDescriptor job, int exitValue) {
+        for (RsyncJobDescriptor branchJob : job.getBranchJobs()) {
+            append(COMPLETED + SEPARATOR + branchJob.getSourceRoot() + SEPARATOR + exitValue);
+        }
+    }
+
+    /**
+     * Method to journal that all jobs of the run are done, so the run is not resumed
+     */
+    public void runCompleted() {
+        append(RUN_COMPLETED);
+    }
+
+    /**
+     * Method to check if a job completed successfully in an earlier attempt at the run
+     * @param job a RsyncJobDescriptor object
+     * @return <code>true</code> if rsync exited with 0 for the job, <code>false</code> otherwise
+     */
+    public synchronized boolean isCompleted(RsyncJobDescriptor job) {
+        return completedSources.contains(job.getSourceRoot());
+    }
+
+    /**
+     * Method to check if the journal records that the run completed
+     * @return <code>true</code> if the run completed, <code>false</code> otherwise
+     */
+    public synchronized boolean isRunCompleted() {
+        return runCompleted;
+    }
+
+    /**
+     * Method to get the iteration at which the rsync threads should start numbering their delta logs
+     * @return one past the last journaled iteration, or 0 if nothing was journaled
+     */
+    public synchronized int getFirstIteration() {
+        return lastIteration + 1;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  RsyncJobStats.java
+# Description: This class collects the transfer statistics of one rsync job from its verbose output
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.indiana.d2i.htrc.ingest.DeltaLogEntry;
+
+/**
+ * This class collects the transfer statistics of one rsync job from its verbose or itemized output: the number of files
+ * listed as transferred and the number of bytes received, taken from the summary line rsync prints at the end. An instance is fed by a
+ * single output catcher thread and should only be read after that thread has been joined, except for the time of the
+ * latest line, which a TransferWatchdog reads while the job runs
+ */
+public class RsyncJobStats {
+    // e.g. "sent 1,234 bytes  received 5,678 bytes  1,234.50 bytes/sec". older rsync versions print no commas
+    private static final Pattern SUMMARY_PATTERN = Pattern.compile("^sent ([\\d,]+) bytes\\s+received ([\\d,]+) bytes.*");
+    // e.g. "Number of regular files transferred: 1,234" printed with --stats, or "Number of files transferred: 1234" by rsync before 3.1
+    private static final Pattern FILES_TRANSFERRED_PATTERN = Pattern.compile("^Number of (?:regular )?files transferred: ([\\d,]+)$");
+
+    private long fileCount;
+    private long bytesReceived;
+    private long duration;
+    private volatile long lastActivityTime;
+
+    /**
+     * Constructor
+     */
+    public RsyncJobStats() {
+        this.fileCount = 0L;
+        this.bytesReceived = 0L;
+        this.duration = 0L;
+        this.lastActivityTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Method to take one line of rsync verbose output into account
+     * @param line a line of rsync verbose output
+     */
+    public void observe(String line) {
+        lastActivityTime = System.currentTimeMillis();
+        if (line.length() == 0 || line.endsWith("/")) {
+            return;
+        }
+        DeltaLogEntry entry = DeltaLogEntry.parse(line);
+        if (entry != null) {
+            if (entry.isFile() && !entry.isAttributeOnly()) {
+                fileCount++;
+            }
+            return;
+        }
+        Matcher matcher = SUMMARY_PATTERN.matcher(line);
+        if (matcher.matches()) {
+            bytesReceived = Long.parseLong(matcher.group(2).replace(",", ""));
+        } else if (!line.startsWith("receiving ") && !line.startsWith("sending ") && !line.startsWith("total size is ")
+                && !line.startsWith("deleting ") && !line.startsWith("created directory ")) {
+            fileCount++;
+        }
+    }
+
+    /**
+     * Method to take one line of the statistics rsync prints with <code>--stats</code> into account, in place of the file
+     * list they sum up. Lines other than the number of files transferred and the summary line are ignored
+     * @param line a line from the end of rsync output
+     */
+    public void observeStats(String line) {
+        Matcher matcher = FILES_TRANSFERRED_PATTERN.matcher(line);
+        if (matcher.matches()) {
+            fileCount = Long.parseLong(matcher.group(1).replace(",", ""));
+            return;
+        }
+        matcher = SUMMARY_PATTERN.matcher(line);
+        if (matcher.matches()) {
+            bytesReceived = Long.parseLong(matcher.group(2).replace(",", ""));
+        }
+    }
+
+    /**
+     * Method to get the number of files rsync listed as transferred
+     * @return the number of files rsync listed as transferred
+     */
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Method to get the number of bytes rsync reported as received
+     * @return the number of bytes rsync reported as received, or 0 if rsync did not print its summary
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Method to get the wall-clock duration of the job
+     * @return the wall-clock duration of the job in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Method to set the wall-clock duration of the job
+     * @param duration the wall-clock duration of the job in milliseconds
+     */
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * Method to get the time the latest line of output was taken into account
+     * @return the time of the latest line in milliseconds, or the creation time of this object if there was none
+     */
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  RsyncTransferEngine.java
+# Description: This class transfers rsync jobs by forking the rsync binary
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class transfers rsync jobs by forking the rsync binary with the command built by Rsyncker. It is the default engine
+ */
+public class RsyncTransferEngine implements TransferEngine {
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#start(edu.indiana.d2i.htrc.ingest.rsync.RsyncJobDescriptor, java.lang.String[], boolean)
+     */
+    public Process start(RsyncJobDescriptor job, String[] commandArray, boolean itemizeChanges) throws IOException {
+        return Runtime.getRuntime().exec(commandArray);
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#isOutputRedirectable()
+     */
+    public boolean isOutputRedirectable() {
+        return true;
+    }
+
+    /**
+     * @see edu.indiana.d2i.htrc.ingest.rsync.TransferEngine#startRedirected(edu.indiana.d2i.htrc.ingest.rsync.RsyncJobDescriptor, java.lang.String[], java.io.File, java.io.File)
+     */
+    public Process startRedirected(RsyncJobDescriptor job, String[] commandArray, File outputFile, File errorFile) throws IOException {
+        return Runtime.getRuntime().exec(buildRedirectedCommandArray(commandArray, outputFile, errorFile));
+    }
+
+    /**
+     * Method to build the command that runs rsync with its stdout appended to the output file and its stderr written to
+     * the error file by the shell. The paths and the rsync arguments are passed as positional parameters, so nothing needs quoting
+     * @param commandArray the rsync command built for the job
+     * @param outputFile the file to which rsync stdout is appended
+     * @param errorFile the file to which rsync stderr is written
+     * @return a String array containing the command with arguments
+     */
+    protected String[] buildRedirectedCommandArray(String[] commandArray, File outputFile, File errorFile) {
+        List<String> strings = new ArrayList<String>();
+        strings.add("sh");
+        strings.add("-c");
+        strings.add("dlog=\"$1\"; err=\"$2\"; shift 2; exec \"$@\" >> \"$dlog\" 2> \"$err\"");
+        strings.add("rsync-redirected");
+        strings.add(outputFile.getPath());
+        strings.add(errorFile.getPath());
+        for (String string : commandArray) {
+            strings.add(string);
+        }
+        return strings.toArray(new String[0]);
+    }
+}
@@ -33,19 +33,26 @@ package edu.indiana.d2i.htrc.ingest.rsync;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.Priority;
 
-import edu.indiana.d2i.htrc.ingest.JobQueue;
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.DeltaLogEntry;
+import edu.indiana.d2i.htrc.ingest.DeltaLogListener;
+import edu.indiana.d2i.htrc.ingest.DeltaLogListenerFactory;
 
 
 /**
@@ -72,17 +79,20 @@ public class Rsyncker implements Runnable {
     		private final Logger oLog;
     		private final InputStream inputStream;
     		private final Priority priority;
+    		private final RsyncJobStats stats;
     		
     		/**
     		 * Constructor
     		 * @param oLog a Log4j Logger
     		 * @param inputStream an InputStream to read from
     		 * @param priority the log level to write the log message
+    		 * @param stats a RsyncJobStats object to collect transfer statistics, or <code>null</code> if none
     		 */
-    		OutputLogger(Logger oLog, InputStream inputStream, Priority priority) {
+    		OutputLogger(Logger oLog, InputStream inputStream, Priority priority, RsyncJobStats stats) {
     			this.oLog = oLog;
     			this.inputStream = inputStream;
     			this.priority = priority;
+    			this.stats = stats;
     		}
     		
     		/**
@@ -97,6 +107,9 @@ public class Rsyncker implements Runnable {
     					line = reader.readLine();
     					if (line != null) {
     						oLog.log(priority, line);
+    						if (stats != null) {
+    							stats.observe(line);
+    						}
     					}
     				} while (line != null);
     				reader.close();
@@ -118,15 +131,18 @@ public class Rsyncker implements Runnable {
     		private static Logger log = Logger.getLogger(OutputWriter.class);
     		private final InputStream inputStream;
     		private final Writer writer;
+    		private final RsyncJobStats stats;
     		
     		/**
     		 * Constructor
     		 * @param writer a Writer object to which to write the captured output
     		 * @param inputStream an InputStream from which to read information
+    		 * @param stats a RsyncJobStats object to collect transfer statistics, or <code>null</code> if none
     		 */
-    		OutputWriter(Writer writer, InputStream inputStream) {
+    		OutputWriter(Writer writer, InputStream inputStream, RsyncJobStats stats) {
     			this.writer = writer;
     			this.inputStream = inputStream;
+    			this.stats = stats;
     		}
     		
     		/**
@@ -143,6 +159,9 @@ public class Rsyncker implements Runnable {
     					if (line != null) {
     						writer.write(line);
     						writer.write(EOL);
+    						if (stats != null) {
+    							stats.observe(line);
+    						}
     					}
     				} while (line != null);
     				reader.close();
@@ -153,6 +172,167 @@ public class Rsyncker implements Runnable {
     		
     	}
     	
+    	/**
+    	 * This class reads the output from an InputStream, hands each line to a DeltaLogListener as it arrives, and queues it
+    	 * for a QueuedOutputWriter so writing the delta log file does not hold up the parsing. It keeps reading until the end
+    	 * of the stream even if the listener or the queue fail, so the process is never blocked on a full pipe
+    	 * @author Yiming Sun
+    	 *
+    	 */
+    	protected static class OutputParser implements Runnable {
+    		private static Logger log = Logger.getLogger(OutputParser.class);
+    		private final DeltaLogListener listener;
+    		private final List<String> headerLines;
+    		private final BoundedJobQueue<String> lineQueue;
+    		private final InputStream inputStream;
+    		private final RsyncJobStats stats;
+    		private volatile boolean successful;
+    		
+    		/**
+    		 * Constructor
+    		 * @param listener a DeltaLogListener to which each line is handed
+    		 * @param headerLines a List of lines already written to the delta log file, handed to the listener before the output
+    		 * @param lineQueue a BoundedJobQueue to which each line is put for writing. it is closed at the end of the stream
+    		 * @param inputStream an InputStream from which to read the output
+    		 * @param stats a RsyncJobStats object to collect transfer statistics, or <code>null</code> if none
+    		 */
+    		OutputParser(DeltaLogListener listener, List<String> headerLines, BoundedJobQueue<String> lineQueue, InputStream inputStream, RsyncJobStats stats) {
+    			this.listener = listener;
+    			this.headerLines = headerLines;
+    			this.lineQueue = lineQueue;
+    			this.inputStream = inputStream;
+    			this.stats = stats;
+    			this.successful = false;
+    		}
+    		
+    		/**
+    		 * 
+    		 * @see java.lang.Runnable#run()
+    		 */
+    		public void run() {
+    			boolean listening = true;
+    			boolean queuing = true;
+    			String line = null;
+    			BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+    			try {
+    				for (String headerLine : headerLines) {
+    					listening = deliver(headerLine, listening);
+    				}
+    				do {
+    					line = reader.readLine();
+    					if (line != null) {
+    						if (stats != null) {
+    							stats.observe(line);
+    						}
+    						if (queuing) {
+    							try {
+    								lineQueue.put(line);
+    							} catch (InterruptedException e) {
+    								log.error("Interrupted while queuing a line for the delta log writer", e);
+    								queuing = false;
+    							}
+    						}
+    						listening = deliver(line, listening);
+    					}
+    				} while (line != null);
+    				reader.close();
+    				successful = listening && queuing;
+    			} catch (IOException e) {
+    				log.error("IOException: ", e);
+    			} finally {
+    				lineQueue.close();
+    			}
+    		}
+    		
+    		/**
+    		 * Method to hand a line to the listener
+    		 * @param line a line of output
+    		 * @param listening <code>false</code> if the listener failed on an earlier line
+    		 * @return <code>true</code> if the line was handed to the listener, <code>false</code> otherwise
+    		 */
+    		private boolean deliver(String line, boolean listening) {
+    			if (listening) {
+    				try {
+    					listener.line(line);
+    				} catch (InterruptedException e) {
+    					log.error("Interrupted while handing a line to the delta log listener", e);
+    					return false;
+    				}
+    			}
+    			return listening;
+    		}
+    		
+    		/**
+    		 * Method to check if all lines were handed to the listener and queued for writing
+    		 * @return <code>true</code> if all lines were handed over, <code>false</code> otherwise
+    		 */
+    		boolean isSuccessful() {
+    			return successful;
+    		}
+    	}
+    	
+    	/**
+    	 * This class takes lines from a BoundedJobQueue in batches and writes them to the provided Writer object
+    	 * @author Yiming Sun
+    	 *
+    	 */
+    	protected static class QueuedOutputWriter implements Runnable {
+    		private static final String EOL = System.getProperty("line.separator");
+    		private static final int BATCH_SIZE = 256;
+    		private static Logger log = Logger.getLogger(QueuedOutputWriter.class);
+    		private final Writer writer;
+    		private final BoundedJobQueue<String> lineQueue;
+    		private volatile boolean successful;
+    		
+    		/**
+    		 * Constructor
+    		 * @param writer a Writer object to which to write the lines
+    		 * @param lineQueue a BoundedJobQueue from which to take the lines
+    		 */
+    		QueuedOutputWriter(Writer writer, BoundedJobQueue<String> lineQueue) {
+    			this.writer = writer;
+    			this.lineQueue = lineQueue;
+    			this.successful = false;
+    		}
+    		
+    		/**
+    		 * 
+    		 * @see java.lang.Runnable#run()
+    		 */
+    		public void run() {
+    			boolean writing = true;
+    			List<String> batch = new ArrayList<String>(BATCH_SIZE);
+    			try {
+    				while (lineQueue.drainTo(batch, BATCH_SIZE) > 0) {
+    					// keep draining after a write error so the parser is not blocked on a full queue
+    					if (writing) {
+    						try {
+    							for (String line : batch) {
+    								writer.write(line);
+    								writer.write(EOL);
+    							}
+    						} catch (IOException e) {
+    							log.error("IOException: ", e);
+    							writing = false;
+    						}
+    					}
+    					batch.clear();
+    				}
+    				successful = writing;
+    			} catch (InterruptedException e) {
+    				log.error("Interrupted while waiting for lines to write", e);
+    			}
+    		}
+    		
+    		/**
+    		 * Method to check if all lines were written
+    		 * @return <code>true</code> if all lines were written, <code>false</code> otherwise
+    		 */
+    		boolean isSuccessful() {
+    			return successful;
+    		}
+    	}
+    	
     	/**
     	 * Method to get a new Thread that runs the OutputLogger 
     	 * @param log a Log4j logger
@@ -161,7 +341,19 @@ public class Rsyncker implements Runnable {
     	 * @return a Thread with an OutputLogger Runnable object
     	 */
     	static Thread getOutputLogger(Logger log, InputStream inputStream, Priority priority) {
-    		OutputLogger outputLogger = new OutputLogger(log, inputStream, priority);
+    		return getOutputLogger(log, inputStream, priority, null);
+    	}
+    	
+    	/**
+    	 * Method to get a new Thread that runs the OutputLogger 
+    	 * @param log a Log4j logger
+    	 * @param inputStream an InputStream to read
+    	 * @param priority log level
+    	 * @param stats a RsyncJobStats object to collect transfer statistics, or <code>null</code> if none
+    	 * @return a Thread with an OutputLogger Runnable object
+    	 */
+    	static Thread getOutputLogger(Logger log, InputStream inputStream, Priority priority, RsyncJobStats stats) {
+    		OutputLogger outputLogger = new OutputLogger(log, inputStream, priority, stats);
     		Thread thread = new Thread(outputLogger);
     		return thread;
     	}
@@ -170,10 +362,11 @@ public class Rsyncker implements Runnable {
     	 * Method to get a new Thread that runs the OutputWriter
     	 * @param writer a Writer object
     	 * @param inputStream an InputStream to read
+    	 * @param stats a RsyncJobStats object to collect transfer statistics, or <code>null</code> if none
     	 * @return a Thread with an OutputWriter Runnable object
     	 */
-    	static Thread getOutputWriter(Writer writer, InputStream inputStream) {
-    		OutputWriter outputWriter = new OutputWriter(writer, inputStream);
+    	static Thread getOutputWriter(Writer writer, InputStream inputStream, RsyncJobStats stats) {
+    		OutputWriter outputWriter = new OutputWriter(writer, inputStream, stats);
     		Thread thread = new Thread(outputWriter);
     		return thread;
     	}
@@ -183,23 +376,83 @@ public class Rsyncker implements Runnable {
 
     private static Logger log = Logger.getLogger(Rsyncker.class);
     
+    static final int LINE_QUEUE_CAPACITY = 1024;
+    
+    // the rsync exit value for a timeout in data send/receive
+    public static final int EXIT_TIMEOUT = 30;
+    
+    // the number of bytes at the end of a redirected delta log that hold the statistics printed with --stats
+    static final int STATS_TAIL_SIZE = 8192;
+    
     protected final String id;
   
     protected String deltaLogDir;
     protected boolean writeLog;
     
-    protected JobQueue<RsyncJobDescriptor> jobQueue;
+    protected final BoundedJobQueue<RsyncJobDescriptor> jobQueue;
+    protected final BoundedJobQueue<String> deltaLogQueue;
+    protected final DeltaLogListenerFactory listenerFactory;
+    protected final BranchCostHistory costHistory;
+    protected final RsyncJobJournal journal;
+    protected final AdaptiveConcurrencyController concurrencyController;
+    protected String deltaLogPath;
+    protected final List<String> deltaLogPaths;
+    protected int nextIteration;
+    protected RsyncJobStats jobStats;
+    protected final boolean redirectOutput;
+    protected File filesFromFile;
+    protected final boolean itemizeChanges;
+    protected final BranchLeaseManager leaseManager;
+    protected final TransferEngine transferEngine;
+    protected final SourceMirrorPool mirrorPool;
+    protected SourceMirrorPool.Mirror currentMirror;
+    protected final long jobTimeout;
+    protected final long noProgressTimeout;
+    protected final JobRetryTracker retryTracker;
+    protected boolean timedOut;
+    protected final LandingMover landingMover;
 
     /**
      * Constructor
      * @param id an int to differentiate and identify instances
-     * @param jobQueue a JobQueue of RsyncJobDescriptor objects
+     * @param jobQueue a BoundedJobQueue of RsyncJobDescriptor objects
      */
-    protected Rsyncker(String id, JobQueue<RsyncJobDescriptor> jobQueue) {
+    protected Rsyncker(String id, BoundedJobQueue<RsyncJobDescriptor> jobQueue) {
+        this(id, jobQueue, new RsynckerSettings());
+    }
+    
+    /**
+     * Constructor
+     * @param id an int to differentiate and identify instances
+     * @param jobQueue a BoundedJobQueue of RsyncJobDescriptor objects
+     * @param settings a RsynckerSettings object holding the configuration of this thread
+     */
+    protected Rsyncker(String id, BoundedJobQueue<RsyncJobDescriptor> jobQueue, RsynckerSettings settings) {
         this.id = id;
         this.jobQueue = jobQueue;
+        this.deltaLogQueue = settings.getDeltaLogQueue();
+        this.listenerFactory = settings.getListenerFactory();
+        this.costHistory = settings.getCostHistory();
+        this.journal = settings.getJournal();
+        this.concurrencyController = settings.getConcurrencyController();
+        this.redirectOutput = settings.isRedirectOutput();
+        this.itemizeChanges = settings.isItemizeChanges();
+        this.leaseManager = settings.getLeaseManager();
+        this.transferEngine = settings.getTransferEngine();
+        this.mirrorPool = settings.getMirrorPool();
+        this.jobTimeout = settings.getJobTimeout();
+        this.noProgressTimeout = settings.getNoProgressTimeout();
+        this.retryTracker = settings.getRetryTracker();
+        this.landingMover = settings.getLandingMover();
         deltaLogDir = null;
         writeLog = false;
+        deltaLogPath = null;
+        deltaLogPaths = new ArrayList<String>();
+        nextIteration = 0;
+        jobStats = null;
+        filesFromFile = null;
+        currentMirror = null;
+        timedOut = false;
     }
     
     /**
@@ -220,19 +473,34 @@ public class Rsyncker implements Runnable {
         strings.add("--verbose");
 //        strings.add("--progress");
         
+        if (itemizeChanges) {
+            strings.add("--out-format=" + DeltaLogEntry.OUT_FORMAT);
+        }
+        
         if (job.isDryRun()) {
         	strings.add("--dry-run");
         }
         
+        for (String exclude : job.getExcludes()) {
+            strings.add("--exclude=" + exclude);
+        }
+        
+        if (filesFromFile != null) {
+            strings.add("--files-from=" + filesFromFile.getPath());
+        }
+        
 
         
+        // credentials only apply to a remote source
+        boolean remote = (currentMirror == null || !currentMirror.isLocal());
+        
         String password = job.getPassword();
-        if (password != null && !password.equals("")) {
+        if (remote && password != null && !password.equals("")) {
             strings.add("--password-file=" + password);
         }
 
         String username = job.getUsername();
-        if (username != null && !username.equals("")) {
+        if (remote && username != null && !username.equals("")) {
             strings.add(username + "@");
         }
 
@@ -240,7 +508,11 @@ public class Rsyncker implements Runnable {
         String host = job.getHost();
         String sourceRoot = job.getSourceRoot();
         
-        strings.add(host + separator + sourceRoot);
+        if (currentMirror != null) {
+            strings.add(currentMirror.getSource(separator, sourceRoot));
+        } else {
+            strings.add(host + separator + sourceRoot);
+        }
         
         strings.add(job.getDestRoot());
         
@@ -255,6 +527,43 @@ public class Rsyncker implements Runnable {
         return commandArray;
     }
     
+    /**
+     * Method to build the command of a job whose output is redirected, which has rsync print its statistics at the end of
+     * the output, so they can be read back from the tail of the delta log file
+     * @param job a RsyncJobDescriptor object
+     * @return a String array containing the command with arguments
+     */
+    protected String[] buildRedirectedCommandArray(RsyncJobDescriptor job) {
+        String[] commandArray = buildCommandArray(job);
+        List<String> strings = new ArrayList<String>();
+        strings.add(commandArray[0]);
+        strings.add("--stats");
+        for (int i = 1; i < commandArray.length; i++) {
+            strings.add(commandArray[i]);
+        }
+        return strings.toArray(new String[0]);
+    }
+    
+    /**
+     * Method to build the header lines of a delta log file
+     * @param job a RsyncJobDescriptor object
+     * @return a List of header lines
+     */
+    protected List<String> buildHeaderLines(RsyncJobDescriptor job) {
+        List<String> headerLines = new ArrayList<String>();
+        headerLines.add("DEST_ROOT=" + job.getDestRoot());
+        String landingPath = (landingMover != null) ? landingMover.getLandingPath(job.getDestRoot()) : null;
+        if (landingPath != null) {
+            headerLines.add("LANDING_ROOT=" + landingPath);
+        }
+        headerLines.add("PREFIX=" + job.getPrefix());
+        headerLines.add("COPYRIGHT=" + job.getCopyright().toString());
+        if (itemizeChanges) {
+            headerLines.add(DeltaLogEntry.FORMAT_PREFIX + DeltaLogEntry.ITEMIZED_FORMAT);
+        }
+        return headerLines;
+    }
+    
     /**
      * Method to prepare a delta log file
      * @param iteration an int to identify the current iteration
@@ -266,6 +575,7 @@ public class Rsyncker implements Runnable {
 	    File dlogFile = new File(deltaLogDir, dlogFileName);
     	try {
     	    writer = new FileWriter(dlogFile);
+    	    deltaLogPath = dlogFile.getPath();
     	} catch (IOException e) {
     		log.error("Unable to create dlog file " + dlogFile.getPath());
     		writeLog = false;
@@ -278,102 +588,512 @@ public class Rsyncker implements Runnable {
      */
     public void run() {
         RsyncJobDescriptor job = null;
-        Writer logWriter = null;
 
-        
-        String EOL = System.getProperty("line.separator");
         try {
-        	int iteration = 0;
-        	boolean isAllJobDone = false;
+        	nextIteration = (journal != null) ? journal.getFirstIteration() : 0;
         	
             do {
-                
-            	Thread outputCatcherThread = null;
-                Thread errorCatcherThread = null;
-                job = jobQueue.dequeue();
-
-                if (job != null) {
-                    
-                	deltaLogDir = job.getDeltaLogDir();
-                    if (deltaLogDir != null) {
-                    	writeLog = true;
-                    }
-                	if (writeLog) {
-                		logWriter = prepareDeltaLogFile(iteration);
-                	}
-                    Runtime runtime = Runtime.getRuntime();
-                    Process process = runtime.exec(buildCommandArray(job));
-                    
-                    if (writeLog) {
-                    	try {
-                    	logWriter.write("DEST_ROOT=" + job.getDestRoot());
-                    	logWriter.write(EOL);
-                    	logWriter.write("PREFIX=" + job.getPrefix());
-                    	logWriter.write(EOL);
-                    	logWriter.write("COPYRIGHT=" + job.getCopyright().toString());
-                    	logWriter.write(EOL);
-                    	outputCatcherThread = OutputCatcherFactory.getOutputWriter(logWriter, process.getInputStream());
-                    	} catch (IOException e) {
-                    		log.error("writing DEST_ROOT to dlog throws IOException. Switch to log4j log.", e);
-                    		try {
-                    			logWriter.close();
-                    		} catch (IOException ioe) {
-                    			log.error("Unable to close logWriter.", ioe);
-                    		}
-                			writeLog = false;
-                			logWriter = null;
-                			outputCatcherThread = OutputCatcherFactory.getOutputLogger(log, process.getInputStream(), Level.INFO);
-                    	}
-                    } else {
-                    	outputCatcherThread = OutputCatcherFactory.getOutputLogger(log, process.getInputStream(), Level.INFO);
+                if (concurrencyController != null) {
+                    concurrencyController.acquire();
+                }
+                job = null;
+                try {
+                    job = jobQueue.take();
+                } finally {
+                    if (job == null && concurrencyController != null) {
+                        concurrencyController.release(null);
                     }
-                    outputCatcherThread.start();
-                    
-                    errorCatcherThread = OutputCatcherFactory.getOutputLogger(log, process.getErrorStream(), Level.ERROR);
-                    errorCatcherThread.start();
-                    
-                    
-                    try {
-                    	int exitValue = process.waitFor();
+                }
 
-                    	if (exitValue == 0) {
-                    		log.info(id + " exitValue:" + exitValue);
-                    	} else {
-                    		log.error("rsync returned abnormal exitValue: Thread " + id + " exitValue: " + exitValue);
-                    	}
-                    } catch (InterruptedException e) {
-                    	log.error("Thread " + id + " interrupted with exitValue: " + process.exitValue(), e);
+                if (job != null && leaseManager != null && !leaseManager.claim(job)) {
+                    if (log.isTraceEnabled()) log.trace("Job Thread " + id + " leaves " + job.getSourceRoot() + " to another node");
+                    if (concurrencyController != null) {
+                        concurrencyController.release(null);
                     }
+                    if (retryTracker != null) {
+                        retryTracker.finished(job, false);
+                    }
+                    continue;
+                }
 
+                if (job != null) {
+                    int exitValue = -1;
                     try {
-                    	outputCatcherThread.join();
-                    } catch (InterruptedException e) {
-                    	log.error("Thread " + id + " joining output catcher thread interrupted", e);
+                        exitValue = runJob(job);
+                    } catch (IOException e) {
+                        // keep draining the queue; producers block on a full queue if all consumers are gone
+                        log.error("Job Thread " + id + " throws IOException on " + job.getSourceRoot(), e);
                     }
-                    
-                    try {
-                    	errorCatcherThread.join();
-                    } catch (InterruptedException e) {
-                    	log.error("Thread " + id + " joining error catcher thread interrupted", e);
+                    boolean leaseHeld = true;
+                    if (leaseManager != null) {
+                        leaseHeld = leaseManager.release(job, exitValue == 0);
+                        if (!leaseHeld) {
+                            log.error("Job Thread " + id + " lost the lease of " + job.getSourceRoot() + " while rsync ran. Counting the job as failed");
+                        }
                     }
-                    
-                    if (logWriter != null) {
-                    	try {
-                    		logWriter.close();
-                    	} catch (IOException e) {
-                    		log.error("attempt to close dlog writer throws IOException.", e);
-                    	}
+                    if (concurrencyController != null) {
+                        concurrencyController.release((exitValue == 0 && leaseHeld) ? jobStats : null);
+                    }
+                    if (landingMover != null) {
+                        // what a failed job landed did change too
+                        landingMover.landed(job);
+                    }
+                    if (deltaLogQueue != null) {
+                        // the delta logs of failed and timed out attempts are handed over too, as the files they list did change
+                        for (String attemptDeltaLogPath : deltaLogPaths) {
+                            if (log.isTraceEnabled()) log.trace("Job Thread " + id + " hands over " + attemptDeltaLogPath);
+                            deltaLogQueue.put(attemptDeltaLogPath);
+                        }
+                    }
+                    if (retryTracker != null) {
+                        retryTracker.finished(job, timedOut && exitValue != 0);
                     }
-                } else {
-                    isAllJobDone = jobQueue.isDone();
                 }
-                iteration++;
-            } while (!isAllJobDone);
+            } while (job != null);
             log.info("Job Thread " +  id + " finished.");
+        } catch (InterruptedException e) {
+            log.error("Job Thread " + id + " interrupted while waiting for a job", e);
+        }
+    }
+    
+    /**
+     * Method to run rsync for one job. For a batch job, the relative paths of the branches are written to a temporary
+     * file passed to rsync as <code>--files-from</code>, which is removed once rsync exits. The delta logs of all attempts
+     * at the job are collected in deltaLogPaths
+     * @param job a RsyncJobDescriptor object
+     * @return the exit value of rsync, or -1 if waiting for rsync was interrupted
+     * @throws IOException thrown if the files-from file could not be written or rsync could not be launched
+     */
+    protected int runJob(RsyncJobDescriptor job) throws IOException {
+        filesFromFile = null;
+        timedOut = false;
+        deltaLogPaths.clear();
+        if (job instanceof BatchRsyncJobDescriptor) {
+            filesFromFile = writeFilesFromFile((BatchRsyncJobDescriptor)job);
+        }
+        try {
+            if (mirrorPool != null) {
+                return runJobOnMirrors(job);
+            } else {
+                return runAttempt(job);
+            }
+        } finally {
+            if (filesFromFile != null) {
+                if (!filesFromFile.delete()) {
+                    log.warn("Unable to delete files-from file " + filesFromFile.getPath());
+                }
+                filesFromFile = null;
+            }
+        }
+    }
+    
+    /**
+     * Method to wait for a transfer to exit, under the watch of a TransferWatchdog if a timeout is set
+     * @param process the Process of the transfer
+     * @param stats the RsyncJobStats object fed with the output of the transfer
+     * @param dlogFile the delta log file the output is redirected into, or <code>null</code> if the output is captured
+     * @return the exit value of the transfer, or {@link #EXIT_TIMEOUT} if it timed out and was killed
+     * @throws InterruptedException thrown if interrupted while waiting for the transfer
+     */
+    protected int waitForTransfer(Process process, RsyncJobStats stats, File dlogFile) throws InterruptedException {
+        if (jobTimeout <= 0 && noProgressTimeout <= 0) {
+            return process.waitFor();
+        }
+        TransferWatchdog watchdog = new TransferWatchdog(process, stats, dlogFile, jobTimeout, noProgressTimeout);
+        Thread watchdogThread = new Thread(watchdog, "TransferWatchdog-" + id);
+        watchdogThread.start();
+        int exitValue = -1;
+        try {
+            exitValue = process.waitFor();
+        } finally {
+            watchdog.stop();
+        }
+        if (watchdog.isTimedOut()) {
+            log.error("Thread " + id + " killed the transfer as it " + watchdog.getTimeoutReason());
+            timedOut = true;
+            return EXIT_TIMEOUT;
+        }
+        return exitValue;
+    }
+    
+    /**
+     * Method to run one attempt at a job. Each attempt takes the next iteration, so it writes its own delta log, and is
+     * journaled on its own
+     * @param job a RsyncJobDescriptor object
+     * @return the exit value of rsync, or -1 if waiting for rsync was interrupted
+     * @throws IOException thrown if rsync could not be launched
+     */
+    protected int runAttempt(RsyncJobDescriptor job) throws IOException {
+        int iteration = nextIteration++;
+        int exitValue = -1;
+        deltaLogPath = null;
+        if (journal != null) {
+            journal.running(id, iteration, job);
+        }
+        try {
+            exitValue = runTransfer(job, iteration);
+        } finally {
+            if (journal != null) {
+                journal.completed(job, exitValue);
+            }
+            if (deltaLogPath != null) {
+                deltaLogPaths.add(deltaLogPath);
+            }
+        }
+        return exitValue;
+    }
+    
+    /**
+     * Method to run one transfer of a job, with its output redirected or captured
+     * @param job a RsyncJobDescriptor object
+     * @param iteration an int to identify the current iteration
+     * @return the exit value of rsync, or -1 if waiting for rsync was interrupted
+     * @throws IOException thrown if rsync could not be launched
+     */
+    protected int runTransfer(RsyncJobDescriptor job, int iteration) throws IOException {
+        if (redirectOutput && transferEngine.isOutputRedirectable() && job.getDeltaLogDir() != null && listenerFactory == null) {
+            return runJobRedirected(job, iteration);
+        } else {
+            return runJobCaptured(job, iteration);
+        }
+    }
+    
+    /**
+     * Method to run one job on the source mirrors. The job runs on the mirror the SourceMirrorPool picks, and if it fails
+     * there, again on another mirror it has not failed on, until it succeeds or has failed on every mirror. Each attempt
+     * writes a delta log of its own, as a failed attempt may have changed files before it failed
+     * @param job a RsyncJobDescriptor object
+     * @return the exit value of the last attempt, or -1 if interrupted while waiting for a mirror or for rsync
+     * @throws IOException thrown if rsync could not be launched
+     */
+    protected int runJobOnMirrors(RsyncJobDescriptor job) throws IOException {
+        Set<SourceMirrorPool.Mirror> failedMirrors = new HashSet<SourceMirrorPool.Mirror>();
+        int exitValue = -1;
+        try {
+            while ((currentMirror = mirrorPool.acquire(failedMirrors)) != null) {
+                boolean successful = false;
+                try {
+                    exitValue = runAttempt(job);
+                    successful = (exitValue == 0);
+                } finally {
+                    mirrorPool.release(currentMirror, jobStats, successful);
+                }
+                if (successful) {
+                    break;
+                }
+                failedMirrors.add(currentMirror);
+                log.warn("Job Thread " + id + " " + job.getSourceRoot() + " failed on mirror " + currentMirror.getName() + " with exitValue " + exitValue
+                        + ((failedMirrors.size() < mirrorPool.size()) ? ". Failing over to another mirror" : ". No mirror left to fail over to"));
+            }
+        } catch (InterruptedException e) {
+            log.error("Job Thread " + id + " interrupted while waiting for a source mirror", e);
+        } finally {
+            currentMirror = null;
+        }
+        return exitValue;
+    }
+    
+    /**
+     * Method to write the relative paths of the branches of a batch job to a temporary file, one per line
+     * @param job a BatchRsyncJobDescriptor object
+     * @return the temporary file
+     * @throws IOException thrown if the file could not be written
+     */
+    protected File writeFilesFromFile(BatchRsyncJobDescriptor job) throws IOException {
+        String EOL = System.getProperty("line.separator");
+        File file = File.createTempFile("rsyncker-" + id + "-", ".files");
+        Writer writer = new FileWriter(file);
+        try {
+            for (String relativePath : job.getRelativePaths()) {
+                writer.write(relativePath);
+                writer.write(EOL);
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+    
+    /**
+     * Method to run one job through the TransferEngine and capture its output into a delta log file
+     * @param job a RsyncJobDescriptor object
+     * @param iteration an int to identify the current iteration
+     * @return the exit value of rsync, or -1 if waiting for rsync was interrupted
+     * @throws IOException thrown if rsync could not be launched
+     */
+    protected int runJobCaptured(RsyncJobDescriptor job, int iteration) throws IOException {
+        String EOL = System.getProperty("line.separator");
+        Writer logWriter = null;
+        Thread outputCatcherThread = null;
+        Thread errorCatcherThread = null;
+        DeltaLogListener listener = null;
+        OutputCatcherFactory.OutputParser outputParser = null;
+        OutputCatcherFactory.QueuedOutputWriter queuedOutputWriter = null;
+        Thread writerThread = null;
+        int exitValue = -1;
+        RsyncJobStats stats = new RsyncJobStats();
+        long startTime = System.currentTimeMillis();
+        jobStats = stats;
+
+        deltaLogPath = null;
+    	deltaLogDir = job.getDeltaLogDir();
+        if (deltaLogDir != null) {
+        	writeLog = true;
+        }
+    	if (writeLog) {
+    		logWriter = prepareDeltaLogFile(iteration);
+    	}
+        Process process = null;
+        try {
+            process = transferEngine.start(job, buildCommandArray(job), itemizeChanges);
         } catch (IOException e) {
-        	log.error("Job Thread " + id + " throws IOException", e);
+            if (logWriter != null) {
+                try {
+                    logWriter.close();
+                } catch (IOException ioe) {
+                    log.error("Unable to close logWriter.", ioe);
+                }
+                deltaLogPath = null;
+            }
+            throw e;
+        }
+        
+        if (writeLog) {
+        	try {
+        	List<String> headerLines = buildHeaderLines(job);
+        	for (String headerLine : headerLines) {
+        		logWriter.write(headerLine);
+        		logWriter.write(EOL);
+        	}
+        	if (listenerFactory != null) {
+        		listener = listenerFactory.createListener();
+        		listener.start(deltaLogPath);
+        		BoundedJobQueue<String> lineQueue = new BoundedJobQueue<String>("DeltaLogLineQueue-" + id, LINE_QUEUE_CAPACITY);
+        		outputParser = new OutputCatcherFactory.OutputParser(listener, headerLines, lineQueue, process.getInputStream(), stats);
+        		outputCatcherThread = new Thread(outputParser);
+        		queuedOutputWriter = new OutputCatcherFactory.QueuedOutputWriter(logWriter, lineQueue);
+        		writerThread = new Thread(queuedOutputWriter);
+        		writerThread.start();
+        	} else {
+        		outputCatcherThread = OutputCatcherFactory.getOutputWriter(logWriter, process.getInputStream(), stats);
+        	}
+        	} catch (IOException e) {
+        		log.error("writing DEST_ROOT to dlog throws IOException. Switch to log4j log.", e);
+        		try {
+        			logWriter.close();
+        		} catch (IOException ioe) {
+        			log.error("Unable to close logWriter.", ioe);
+        		}
+    			writeLog = false;
+    			logWriter = null;
+    			deltaLogPath = null;
+    			outputCatcherThread = OutputCatcherFactory.getOutputLogger(log, process.getInputStream(), Level.INFO, stats);
+        	}
+        } else {
+        	outputCatcherThread = OutputCatcherFactory.getOutputLogger(log, process.getInputStream(), Level.INFO, stats);
         }
+        outputCatcherThread.start();
+        
+        errorCatcherThread = OutputCatcherFactory.getOutputLogger(log, process.getErrorStream(), Level.ERROR);
+        errorCatcherThread.start();
+        
+        
+        try {
+        	exitValue = waitForTransfer(process, stats, null);
+
+        	if (exitValue == 0) {
+        		log.info(id + " exitValue:" + exitValue);
+        	} else {
+        		log.error("rsync returned abnormal exitValue: Thread " + id + " exitValue: " + exitValue);
+        	}
+        } catch (InterruptedException e) {
+        	log.error("Thread " + id + " interrupted while waiting for rsync", e);
+        }
+
+        try {
+        	outputCatcherThread.join();
+        } catch (InterruptedException e) {
+        	log.error("Thread " + id + " joining output catcher thread interrupted", e);
+        }
+        
+        try {
+        	errorCatcherThread.join();
+        } catch (InterruptedException e) {
+        	log.error("Thread " + id + " joining error catcher thread interrupted", e);
+        }
+        
+        stats.setDuration(System.currentTimeMillis() - startTime);
+        recordCost(job, stats, exitValue);
+        
+        if (writerThread != null) {
+        	try {
+        		writerThread.join();
+        	} catch (InterruptedException e) {
+        		log.error("Thread " + id + " joining delta log writer thread interrupted", e);
+        	}
+        }
+        
+        boolean closed = false;
+        if (logWriter != null) {
+        	try {
+        		logWriter.close();
+        		closed = true;
+        	} catch (IOException e) {
+        		log.error("attempt to close dlog writer throws IOException.", e);
+        	}
+        }
+        
+        if (listener != null) {
+        	try {
+        		listener.finish(closed && outputParser.isSuccessful() && queuedOutputWriter.isSuccessful());
+        	} catch (InterruptedException e) {
+        		log.error("Thread " + id + " interrupted while finishing delta log listener", e);
+        	}
+        }
+        return exitValue;
     } 
+    
+    /**
+     * Method to record the cost of a job in the branch cost history, if there is one
+     * @param job a RsyncJobDescriptor object
+     * @param stats a RsyncJobStats object of the job
+     * @param exitValue the exit value of rsync
+     */
+    protected void recordCost(RsyncJobDescriptor job, RsyncJobStats stats, int exitValue) {
+        if (costHistory != null) {
+            if (job instanceof BatchRsyncJobDescriptor) {
+                // the cost of a batch cannot be apportioned to its branches, so their history is left as is
+                if (log.isDebugEnabled()) log.debug("Not recording the cost of batch " + job.getSourceRoot() + " of " + job.getBranchJobs().size() + " branches");
+            } else if (exitValue == 0) {
+                costHistory.record(job.getSourceRoot(), stats);
+            } else {
+                log.warn("Not recording the cost of " + job.getSourceRoot() + " as rsync did not finish cleanly");
+            }
+        }
+        if (log.isDebugEnabled()) log.debug(id + " " + job.getSourceRoot() + " duration: " + stats.getDuration() + " bytes: " + stats.getBytesReceived() + " files: " + stats.getFileCount());
+    }
+    
+    /**
+     * Method to run rsync for one job with its output redirected by the OS: the header is written to the delta log file
+     * before launch, then the TransferEngine has rsync stdout appended to the delta log file and rsync stderr written to a
+     * per-job error file next to it, so no catcher threads are needed and the output never passes through the JVM. The error
+     * file is copied into the log and removed once rsync exits. The job statistics are read from the --stats summary at the
+     * end of the delta log, and only if they are used
+     * @param job a RsyncJobDescriptor object
+     * @param iteration an int to identify the current iteration
+     * @return the exit value of rsync, or -1 if waiting for rsync was interrupted
+     * @throws IOException thrown if the delta log header could not be written or rsync could not be launched
+     */
+    protected int runJobRedirected(RsyncJobDescriptor job, int iteration) throws IOException {
+        String EOL = System.getProperty("line.separator");
+        int exitValue = -1;
+        RsyncJobStats stats = new RsyncJobStats();
+        long startTime = System.currentTimeMillis();
+        jobStats = stats;
+        
+        deltaLogPath = null;
+        deltaLogDir = job.getDeltaLogDir();
+        File dlogFile = new File(deltaLogDir, id + "-" + iteration + ".txt");
+        File errorFile = new File(deltaLogDir, id + "-" + iteration + ".err");
+        
+        List<String> headerLines = buildHeaderLines(job);
+        Writer headerWriter = new FileWriter(dlogFile);
+        try {
+            for (String headerLine : headerLines) {
+                headerWriter.write(headerLine);
+                headerWriter.write(EOL);
+            }
+        } finally {
+            headerWriter.close();
+        }
+        
+        Process process = transferEngine.startRedirected(job, buildRedirectedCommandArray(job), dlogFile, errorFile);
+        deltaLogPath = dlogFile.getPath();
+        // nothing flows through the pipes, so release them right away
+        process.getOutputStream().close();
+        process.getInputStream().close();
+        process.getErrorStream().close();
+        
+        try {
+            exitValue = waitForTransfer(process, stats, dlogFile);
+            if (exitValue == 0) {
+                log.info(id + " exitValue:" + exitValue);
+            } else {
+                log.error("rsync returned abnormal exitValue: Thread " + id + " exitValue: " + exitValue);
+            }
+        } catch (InterruptedException e) {
+            log.error("Thread " + id + " interrupted while waiting for rsync", e);
+        }
+        
+        logErrorFile(errorFile);
+        
+        stats.setDuration(System.currentTimeMillis() - startTime);
+        if (costHistory != null || concurrencyController != null) {
+            collectStats(dlogFile, stats);
+        }
+        recordCost(job, stats, exitValue);
+        return exitValue;
+    }
+    
+    /**
+     * Method to copy the rsync stderr captured in an error file into the log, and remove the file
+     * @param errorFile the error file
+     */
+    protected void logErrorFile(File errorFile) {
+        if (!errorFile.exists()) {
+            return;
+        }
+        if (errorFile.length() > 0) {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(errorFile));
+                try {
+                    String line = null;
+                    do {
+                        line = reader.readLine();
+                        if (line != null) {
+                            log.error(line);
+                        }
+                    } while (line != null);
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                log.error("Unable to read rsync error file " + errorFile.getPath() + ". It is left in place", e);
+                return;
+            }
+        }
+        if (!errorFile.delete()) {
+            log.warn("Unable to delete rsync error file " + errorFile.getPath());
+        }
+    }
+    
+    /**
+     * Method to collect the statistics of a job from the --stats summary rsync printed at the end of its delta log file.
+     * Only the last {@link #STATS_TAIL_SIZE} bytes are read, however long the file list before them is
+     * @param dlogFile the delta log file
+     * @param stats a RsyncJobStats object to collect into
+     */
+    protected void collectStats(File dlogFile, RsyncJobStats stats) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(dlogFile, "r");
+            try {
+                long length = file.length();
+                long start = Math.max(0L, length - STATS_TAIL_SIZE);
+                byte[] tail = new byte[(int) (length - start)];
+                file.seek(start);
+                file.readFully(tail);
+                String[] lines = new String(tail, "UTF-8").split("\\r?\\n");
+                // the first line is cut unless the tail is the whole file
+                for (int i = (start > 0) ? 1 : 0; i < lines.length; i++) {
+                    stats.observeStats(lines[i]);
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            log.error("Unable to read " + dlogFile.getPath() + " for job statistics", e);
+        }
+    }
 
     
 }
@@ -0,0 +1,306 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  RsynckerSettings.java
+# Description: This class holds the configuration shared by the rsync threads of a run
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.DeltaLogListenerFactory;
+
+/**
+ * This class holds the configuration shared by the rsync threads of a run. It is filled in once and handed to each
+ * Rsyncker when it is constructed; every setting left unset keeps the behavior of a plain Rsyncker, which rsyncs each job
+ * from its own host with the rsync command and writes its output to a delta log file
+ */
+public class RsynckerSettings {
+    private BoundedJobQueue<String> deltaLogQueue;
+    private DeltaLogListenerFactory listenerFactory;
+    private BranchCostHistory costHistory;
+    private RsyncJobJournal journal;
+    private AdaptiveConcurrencyController concurrencyController;
+    private boolean redirectOutput;
+    private boolean itemizeChanges;
+    private BranchLeaseManager leaseManager;
+    private TransferEngine transferEngine;
+    private SourceMirrorPool mirrorPool;
+    private long jobTimeout;
+    private long noProgressTimeout;
+    private JobRetryTracker retryTracker;
+    private LandingMover landingMover;
+
+    /**
+     * Constructor
+     */
+    public RsynckerSettings() {
+        this.deltaLogQueue = null;
+        this.listenerFactory = null;
+        this.costHistory = null;
+        this.journal = null;
+        this.concurrencyController = null;
+        this.redirectOutput = false;
+        this.itemizeChanges = false;
+        this.leaseManager = null;
+        this.transferEngine = new RsyncTransferEngine();
+        this.mirrorPool = null;
+        this.jobTimeout = 0L;
+        this.noProgressTimeout = 0L;
+        this.retryTracker = null;
+        this.landingMover = null;
+    }
+
+    /**
+     * Method to set the queue to which the path of each finished delta log file is put
+     * @param deltaLogQueue a BoundedJobQueue object, or <code>null</code> if no downstream stage is waiting for the delta logs
+     */
+    public void setDeltaLogQueue(BoundedJobQueue<String> deltaLogQueue) {
+        this.deltaLogQueue = deltaLogQueue;
+    }
+
+    /**
+     * Method to get the queue to which the path of each finished delta log file is put
+     * @return a BoundedJobQueue object, or <code>null</code> if no downstream stage is waiting for the delta logs
+     */
+    public BoundedJobQueue<String> getDeltaLogQueue() {
+        return deltaLogQueue;
+    }
+
+    /**
+     * Method to set the DeltaLogListenerFactory whose listeners get the rsync output as it arrives, while the delta log
+     * file is written in the background
+     * @param listenerFactory a DeltaLogListenerFactory object, or <code>null</code> to just write the delta log file
+     */
+    public void setListenerFactory(DeltaLogListenerFactory listenerFactory) {
+        this.listenerFactory = listenerFactory;
+    }
+
+    /**
+     * Method to get the DeltaLogListenerFactory
+     * @return a DeltaLogListenerFactory object, or <code>null</code> if the delta log file is just written
+     */
+    public DeltaLogListenerFactory getListenerFactory() {
+        return listenerFactory;
+    }
+
+    /**
+     * Method to set the BranchCostHistory to which the cost of each successful job is recorded
+     * @param costHistory a BranchCostHistory object, or <code>null</code> if costs are not recorded
+     */
+    public void setCostHistory(BranchCostHistory costHistory) {
+        this.costHistory = costHistory;
+    }
+
+    /**
+     * Method to get the BranchCostHistory
+     * @return a BranchCostHistory object, or <code>null</code> if costs are not recorded
+     */
+    public BranchCostHistory getCostHistory() {
+        return costHistory;
+    }
+
+    /**
+     * Method to set the RsyncJobJournal in which the start and the exit value of each attempt at a job are journaled. The
+     * delta logs are then numbered from the first iteration of the journal
+     * @param journal a RsyncJobJournal object, or <code>null</code> if jobs are not journaled
+     */
+    public void setJournal(RsyncJobJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Method to get the RsyncJobJournal
+     * @return a RsyncJobJournal object, or <code>null</code> if jobs are not journaled
+     */
+    public RsyncJobJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Method to set the AdaptiveConcurrencyController from which a permit is acquired before each job
+     * @param concurrencyController an AdaptiveConcurrencyController object, or <code>null</code> if each thread runs a job
+     * as soon as one is queued
+     */
+    public void setConcurrencyController(AdaptiveConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * Method to get the AdaptiveConcurrencyController
+     * @return an AdaptiveConcurrencyController object, or <code>null</code> if each thread runs a job as soon as one is queued
+     */
+    public AdaptiveConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    /**
+     * Method to set whether rsync output is redirected into the delta log file by the OS instead of relayed by catcher
+     * threads. Redirection only applies to jobs with a delta log directory, if the TransferEngine supports it, and not if
+     * a DeltaLogListenerFactory is set as the listeners need the output in the JVM
+     * @param redirectOutput <code>true</code> to redirect rsync output, <code>false</code> to relay it through catcher threads
+     */
+    public void setRedirectOutput(boolean redirectOutput) {
+        this.redirectOutput = redirectOutput;
+    }
+
+    /**
+     * Method to check whether rsync output is redirected into the delta log file by the OS
+     * @return <code>true</code> if rsync output is redirected, <code>false</code> otherwise
+     */
+    public boolean isRedirectOutput() {
+        return redirectOutput;
+    }
+
+    /**
+     * Method to set whether rsync itemizes each change in the delta log, with its change flags, size and modification
+     * time, instead of listing file names only
+     * @param itemizeChanges <code>true</code> to write itemized delta logs, <code>false</code> to write plain verbose delta logs
+     */
+    public void setItemizeChanges(boolean itemizeChanges) {
+        this.itemizeChanges = itemizeChanges;
+    }
+
+    /**
+     * Method to check whether rsync itemizes each change in the delta log
+     * @return <code>true</code> if itemized delta logs are written, <code>false</code> otherwise
+     */
+    public boolean isItemizeChanges() {
+        return itemizeChanges;
+    }
+
+    /**
+     * Method to set the BranchLeaseManager through which jobs shared with other ingest nodes are claimed. A job claimed
+     * by another node, or already done by one in this round, is skipped
+     * @param leaseManager a BranchLeaseManager object, or <code>null</code> to run every job taken from the queue
+     */
+    public void setLeaseManager(BranchLeaseManager leaseManager) {
+        this.leaseManager = leaseManager;
+    }
+
+    /**
+     * Method to get the BranchLeaseManager
+     * @return a BranchLeaseManager object, or <code>null</code> if every job taken from the queue is run
+     */
+    public BranchLeaseManager getLeaseManager() {
+        return leaseManager;
+    }
+
+    /**
+     * Method to set the TransferEngine that runs the jobs
+     * @param transferEngine a TransferEngine object
+     */
+    public void setTransferEngine(TransferEngine transferEngine) {
+        this.transferEngine = transferEngine;
+    }
+
+    /**
+     * Method to get the TransferEngine that runs the jobs
+     * @return a TransferEngine object, by default a RsyncTransferEngine
+     */
+    public TransferEngine getTransferEngine() {
+        return transferEngine;
+    }
+
+    /**
+     * Method to set the SourceMirrorPool from which each job acquires the mirror it is rsynced from, instead of the host
+     * of the job
+     * @param mirrorPool a SourceMirrorPool object, or <code>null</code> to rsync every job from its own host
+     */
+    public void setMirrorPool(SourceMirrorPool mirrorPool) {
+        this.mirrorPool = mirrorPool;
+    }
+
+    /**
+     * Method to get the SourceMirrorPool
+     * @return a SourceMirrorPool object, or <code>null</code> if every job is rsynced from its own host
+     */
+    public SourceMirrorPool getMirrorPool() {
+        return mirrorPool;
+    }
+
+    /**
+     * Method to set the timeouts after which a transfer is killed
+     * @param jobTimeout the most time in milliseconds a transfer may take, or 0 for no limit
+     * @param noProgressTimeout the most time in milliseconds a transfer may print nothing, or 0 for no limit
+     */
+    public void setTimeouts(long jobTimeout, long noProgressTimeout) {
+        this.jobTimeout = jobTimeout;
+        this.noProgressTimeout = noProgressTimeout;
+    }
+
+    /**
+     * Method to get the most time a transfer may take
+     * @return the timeout in milliseconds, or 0 for no limit
+     */
+    public long getJobTimeout() {
+        return jobTimeout;
+    }
+
+    /**
+     * Method to get the most time a transfer may print nothing
+     * @return the timeout in milliseconds, or 0 for no limit
+     */
+    public long getNoProgressTimeout() {
+        return noProgressTimeout;
+    }
+
+    /**
+     * Method to set the JobRetryTracker that is told when each job taken from the queue is finished, and requeues the
+     * jobs that timed out
+     * @param retryTracker a JobRetryTracker object, or <code>null</code> if jobs are not requeued
+     */
+    public void setRetryTracker(JobRetryTracker retryTracker) {
+        this.retryTracker = retryTracker;
+    }
+
+    /**
+     * Method to get the JobRetryTracker
+     * @return a JobRetryTracker object, or <code>null</code> if jobs are not requeued
+     */
+    public JobRetryTracker getRetryTracker() {
+        return retryTracker;
+    }
+
+    /**
+     * Method to set the LandingMover of the local landing directory. The delta logs then name the landing directory of
+     * each job next to its destination root, and each finished job is handed to the mover for migration. The jobs only
+     * land there if the TransferEngine is a LandingTransferEngine of the same mover
+     * @param landingMover a LandingMover object, or <code>null</code> if jobs are rsynced into the destination root
+     */
+    public void setLandingMover(LandingMover landingMover) {
+        this.landingMover = landingMover;
+    }
+
+    /**
+     * Method to get the LandingMover
+     * @return a LandingMover object, or <code>null</code> if jobs are rsynced into the destination root
+     */
+    public LandingMover getLandingMover() {
+        return landingMover;
+    }
+}
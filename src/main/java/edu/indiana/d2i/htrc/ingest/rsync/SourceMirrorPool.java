@@ -0,0 +1,251 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  SourceMirrorPool.java
+# Description: This class spreads rsync jobs across equivalent source mirrors
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class spreads rsync jobs across equivalent source mirrors, each holding the same tree under the same source roots.
+ * A mirror is either a remote host, reached with the configured separator token, or a local directory, for rsync between
+ * local paths. Each mirror runs at most its own number of jobs at a time. A job goes to the mirror with free capacity
+ * expected to finish it soonest, i.e. with the fewest running jobs per unit of observed throughput, so faster mirrors
+ * get more jobs; a mirror whose throughput is not known yet counts as the mean of the others. A job that fails on one
+ * mirror is tried again on the mirrors it has not failed on
+ */
+public class SourceMirrorPool {
+    private static Logger log = Logger.getLogger(SourceMirrorPool.class);
+
+    // weight of the latest job in the moving average of the throughput of a mirror
+    private static final double THROUGHPUT_ALPHA = 0.3;
+
+    /**
+     * This class represents one source mirror
+     */
+    public static class Mirror {
+        private final String name;
+        private final int limit;
+        private int runningCount;
+        private double throughput;
+        private int jobCount;
+        private int failureCount;
+
+        /**
+         * Constructor
+         * @param name the host name of the mirror, or a local directory path starting with a slash
+         * @param limit the most jobs run on the mirror at a time
+         */
+        public Mirror(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+            this.runningCount = 0;
+            this.throughput = -1.0;
+            this.jobCount = 0;
+            this.failureCount = 0;
+        }
+
+        /**
+         * Method to get the name of the mirror
+         * @return the host name of the mirror, or its local directory path
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Method to check if the mirror is a local directory
+         * @return <code>true</code> if the mirror is a local directory, <code>false</code> if it is a remote host
+         */
+        public boolean isLocal() {
+            return name.startsWith("/");
+        }
+
+        /**
+         * Method to build the rsync source argument for a source root on this mirror
+         * @param separator the token separating the host from the path for a remote mirror
+         * @param sourceRoot the source root of a job
+         * @return the rsync source argument
+         */
+        public String getSource(String separator, String sourceRoot) {
+            if (isLocal()) {
+                return (name.endsWith("/") ? name : name + "/") + sourceRoot;
+            }
+            return name + separator + sourceRoot;
+        }
+    }
+
+    private final List<Mirror> mirrors;
+
+    /**
+     * Constructor
+     * @param mirrors a List of Mirror objects, in order of preference while their throughput is unknown
+     */
+    public SourceMirrorPool(List<Mirror> mirrors) {
+        this.mirrors = mirrors;
+    }
+
+    /**
+     * Method to parse a list of mirrors of the form <code>name[=limit],name[=limit],...</code>
+     * @param mirrorList the list of mirrors
+     * @param defaultLimit the limit of a mirror given without one
+     * @return a SourceMirrorPool object, or <code>null</code> if the list names no mirror
+     */
+    public static SourceMirrorPool parse(String mirrorList, int defaultLimit) {
+        List<Mirror> mirrors = new ArrayList<Mirror>();
+        if (mirrorList != null) {
+            for (String entry : mirrorList.split(",")) {
+                entry = entry.trim();
+                if (entry.length() == 0) {
+                    continue;
+                }
+                int limit = defaultLimit;
+                int index = entry.lastIndexOf('=');
+                if (index > 0) {
+                    try {
+                        limit = Integer.parseInt(entry.substring(index + 1).trim());
+                    } catch (NumberFormatException e) {
+                        log.warn("Invalid concurrency limit for mirror " + entry + ". Using " + defaultLimit);
+                    }
+                    entry = entry.substring(0, index).trim();
+                }
+                mirrors.add(new Mirror(entry, Math.max(1, limit)));
+            }
+        }
+        return mirrors.isEmpty() ? null : new SourceMirrorPool(mirrors);
+    }
+
+    /**
+     * Method to get the number of mirrors
+     * @return the number of mirrors
+     */
+    public int size() {
+        return mirrors.size();
+    }
+
+    /**
+     * Method to acquire a mirror for a job, waiting until one has free capacity
+     * @param failedMirrors a Set of the mirrors the job already failed on, which are not acquired again
+     * @return a Mirror object, or <code>null</code> if the job failed on every mirror
+     * @throws InterruptedException thrown if interrupted while waiting for a mirror
+     */
+    public synchronized Mirror acquire(Set<Mirror> failedMirrors) throws InterruptedException {
+        if (failedMirrors.size() >= mirrors.size()) {
+            return null;
+        }
+        Mirror mirror = null;
+        while ((mirror = pick(failedMirrors)) == null) {
+            wait();
+        }
+        mirror.runningCount++;
+        return mirror;
+    }
+
+    /**
+     * Method to pick the mirror with free capacity that has the fewest running jobs per unit of throughput
+     * @param failedMirrors a Set of mirrors not to pick
+     * @return a Mirror object, or <code>null</code> if none has free capacity
+     */
+    private Mirror pick(Set<Mirror> failedMirrors) {
+        double meanThroughput = getMeanThroughput();
+        Mirror best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (Mirror mirror : mirrors) {
+            if (failedMirrors.contains(mirror) || mirror.runningCount >= mirror.limit) {
+                continue;
+            }
+            double throughput = (mirror.throughput > 0) ? mirror.throughput : meanThroughput;
+            double load = (mirror.runningCount + 1) / throughput;
+            if (load < bestLoad) {
+                best = mirror;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Method to get the mean observed throughput of the mirrors
+     * @return the mean throughput in bytes per millisecond, or 1 if none is known
+     */
+    private double getMeanThroughput() {
+        double sum = 0.0;
+        int count = 0;
+        for (Mirror mirror : mirrors) {
+            if (mirror.throughput > 0) {
+                sum += mirror.throughput;
+                count++;
+            }
+        }
+        return (count > 0) ? sum / count : 1.0;
+    }
+
+    /**
+     * Method to release a mirror once a job on it finished, and update its observed throughput
+     * @param mirror the Mirror object acquired for the job
+     * @param stats a RsyncJobStats object of the job, or <code>null</code> if there are none
+     * @param successful <code>true</code> if the job succeeded, <code>false</code> otherwise
+     */
+    public synchronized void release(Mirror mirror, RsyncJobStats stats, boolean successful) {
+        mirror.runningCount--;
+        mirror.jobCount++;
+        if (!successful) {
+            mirror.failureCount++;
+        } else if (stats != null && stats.getBytesReceived() > 0 && stats.getDuration() > 0) {
+            // jobs that received nothing say nothing about bandwidth
+            double throughput = (double) stats.getBytesReceived() / stats.getDuration();
+            mirror.throughput = (mirror.throughput > 0) ? THROUGHPUT_ALPHA * throughput + (1 - THROUGHPUT_ALPHA) * mirror.throughput : throughput;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Method to log the jobs, failures and observed throughput of each mirror
+     */
+    public synchronized void logSummary() {
+        for (Mirror mirror : mirrors) {
+            log.info("mirror " + mirror.getName() + " jobs: " + mirror.jobCount + " failures: " + mirror.failureCount
+                    + " throughput (bytes/ms): " + ((mirror.throughput > 0) ? String.valueOf(mirror.throughput) : "unknown"));
+        }
+    }
+
+    /**
+     * Method to get the mirrors
+     * @return an unmodifiable List of Mirror objects
+     */
+    public List<Mirror> getMirrors() {
+        return Collections.unmodifiableList(mirrors);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TransferEngine.java
+# Description: This interface starts the transfer of one rsync job
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This interface starts the transfer of one rsync job. The transfer is handed back as a Process whose standard output is
+ * what rsync would print for the job, i.e. the delta log lines without the header, and whose exit value follows the rsync
+ * exit codes, so Rsyncker captures, parses and journals it the same way whichever engine runs it. It is called
+ * concurrently by multiple threads
+ */
+public interface TransferEngine {
+    /**
+     * Method to start the transfer of a job
+     * @param job a RsyncJobDescriptor object
+     * @param commandArray the rsync command built for the job, for engines that run rsync
+     * @param itemizeChanges <code>true</code> if each change is to be printed itemized, as with <code>--out-format=</code>{@link edu.indiana.d2i.htrc.ingest.DeltaLogEntry#OUT_FORMAT}
+     * @return a Process object for the running transfer
+     * @throws IOException thrown if the transfer could not be started
+     */
+    public Process start(RsyncJobDescriptor job, String[] commandArray, boolean itemizeChanges) throws IOException;
+
+    /**
+     * Method to check if the output of a transfer can be redirected into the delta log file by the OS. Only engines that
+     * run the rsync command can do so
+     * @return <code>true</code> if the output can be redirected, <code>false</code> otherwise
+     */
+    public boolean isOutputRedirectable();
+
+    /**
+     * Method to start the transfer of a job with its output redirected by the OS: the standard output is appended to the
+     * output file and the errors are written to the error file, so nothing flows through the pipes of the returned Process.
+     * It is only called if {@link #isOutputRedirectable()} returns <code>true</code>
+     * @param job a RsyncJobDescriptor object
+     * @param commandArray the rsync command built for the job
+     * @param outputFile the file to which the output is appended
+     * @param errorFile the file to which the errors are written
+     * @return a Process object for the running transfer
+     * @throws IOException thrown if the transfer could not be started
+     */
+    public Process startRedirected(RsyncJobDescriptor job, String[] commandArray, File outputFile, File errorFile) throws IOException;
+}
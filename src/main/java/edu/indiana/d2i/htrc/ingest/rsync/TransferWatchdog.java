@@ -0,0 +1,146 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TransferWatchdog.java
+# Description: This class kills a transfer that runs too long or stops making progress
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.File;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class kills a transfer that runs longer than the job timeout, or makes no progress for longer than the no-progress
+ * timeout. Progress is a new line of output, as seen by the RsyncJobStats of the job when the output is captured, or
+ * growth of the delta log file when the output is redirected into it. rsync prints a file once it is transferred, so the
+ * no-progress timeout has to allow for the largest file
+ */
+public class TransferWatchdog implements Runnable {
+    private static Logger log = Logger.getLogger(TransferWatchdog.class);
+
+    private final Process process;
+    private final RsyncJobStats stats;
+    private final File dlogFile;
+    private final long jobTimeout;
+    private final long noProgressTimeout;
+    private final long checkInterval;
+    private final long startTime;
+    private boolean stopped;
+    private volatile String timeoutReason;
+
+    /**
+     * Constructor
+     * @param process the Process of the transfer
+     * @param stats the RsyncJobStats object fed with the output of the transfer
+     * @param dlogFile the delta log file the output is redirected into, or <code>null</code> if the output is captured
+     * @param jobTimeout the most time in milliseconds the transfer may take, or 0 for no limit
+     * @param noProgressTimeout the most time in milliseconds the transfer may make no progress, or 0 for no limit
+     */
+    public TransferWatchdog(Process process, RsyncJobStats stats, File dlogFile, long jobTimeout, long noProgressTimeout) {
+        this.process = process;
+        this.stats = stats;
+        this.dlogFile = dlogFile;
+        this.jobTimeout = jobTimeout;
+        this.noProgressTimeout = noProgressTimeout;
+        long shortest = (jobTimeout > 0 && noProgressTimeout > 0) ? Math.min(jobTimeout, noProgressTimeout) : Math.max(jobTimeout, noProgressTimeout);
+        this.checkInterval = Math.max(10L, Math.min(shortest / 10, 10000L));
+        this.startTime = System.currentTimeMillis();
+        this.stopped = false;
+        this.timeoutReason = null;
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        long dlogLength = (dlogFile != null) ? dlogFile.length() : 0L;
+        long dlogGrowthTime = startTime;
+        synchronized (this) {
+            while (!stopped) {
+                try {
+                    wait(checkInterval);
+                } catch (InterruptedException e) {
+                    log.warn("Transfer watchdog interrupted. The transfer is no longer watched");
+                    return;
+                }
+                if (stopped) {
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                if (dlogFile != null) {
+                    long length = dlogFile.length();
+                    if (length != dlogLength) {
+                        dlogLength = length;
+                        dlogGrowthTime = now;
+                    }
+                }
+                long lastProgressTime = Math.max(stats.getLastActivityTime(), dlogGrowthTime);
+                if (jobTimeout > 0 && now - startTime > jobTimeout) {
+                    kill("ran longer than " + jobTimeout + " ms");
+                } else if (noProgressTimeout > 0 && now - lastProgressTime > noProgressTimeout) {
+                    kill("made no progress for " + (now - lastProgressTime) + " ms");
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to kill the transfer
+     * @param reason the reason the transfer is killed
+     */
+    private void kill(String reason) {
+        timeoutReason = reason;
+        stopped = true;
+        process.destroy();
+    }
+
+    /**
+     * Method to stop watching once the transfer exited
+     */
+    public synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Method to check if the transfer was killed
+     * @return <code>true</code> if the transfer timed out and was killed, <code>false</code> otherwise
+     */
+    public boolean isTimedOut() {
+        return timeoutReason != null;
+    }
+
+    /**
+     * Method to get the reason the transfer was killed
+     * @return the reason, or <code>null</code> if the transfer was not killed
+     */
+    public String getTimeoutReason() {
+        return timeoutReason;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  FileListEntry.java
+# Description: This class represents one entry of the file list sent by an rsync sender
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync.protocol;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Comparator;
+
+/**
+ * This class represents one entry of the file list sent by an rsync sender: the path relative to the transfer root, the
+ * length, the modification time in seconds and the mode. Both ends sort the file list the same way, and refer to entries
+ * by their index in the sorted list, so the order of {@link #NAME_ORDER} has to be exactly that of rsync protocol 29: byte
+ * order of the path components, a directory compared as its name followed by a slash, and within a directory the files
+ * before the subdirectories
+ */
+public class FileListEntry {
+    public static final int S_IFMT = 0170000;
+    public static final int S_IFDIR = 0040000;
+    public static final int S_IFREG = 0100000;
+
+    /**
+     * Comparator that sorts FileListEntry objects in rsync file list order
+     */
+    public static final Comparator<FileListEntry> NAME_ORDER = new Comparator<FileListEntry>() {
+        public int compare(FileListEntry entry1, FileListEntry entry2) {
+            return compareNames(entry1, entry2);
+        }
+    };
+
+    private final String path;
+    private final long length;
+    private final long modTime;
+    private final int mode;
+    private final boolean topDir;
+
+    /**
+     * Constructor
+     * @param path the path relative to the transfer root, "." for the transfer root itself
+     * @param length the length in bytes
+     * @param modTime the modification time in seconds since the epoch
+     * @param mode the file mode, including the file type bits
+     * @param topDir <code>true</code> if the entry is one of the top level items named on the command line
+     */
+    public FileListEntry(String path, long length, long modTime, int mode, boolean topDir) {
+        this.path = path;
+        this.length = length;
+        this.modTime = modTime;
+        this.mode = mode;
+        this.topDir = topDir;
+    }
+
+    /**
+     * Method to get the path
+     * @return the path relative to the transfer root
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Method to get the length
+     * @return the length in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Method to get the modification time
+     * @return the modification time in seconds since the epoch
+     */
+    public long getModTime() {
+        return modTime;
+    }
+
+    /**
+     * Method to get the mode
+     * @return the file mode, including the file type bits
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Method to check if the entry is a top level item
+     * @return <code>true</code> if the entry is one of the top level items named on the command line, <code>false</code> otherwise
+     */
+    public boolean isTopDir() {
+        return topDir;
+    }
+
+    /**
+     * Method to check if the entry is a directory
+     * @return <code>true</code> if the entry is a directory, <code>false</code> otherwise
+     */
+    public boolean isDirectory() {
+        return (mode & S_IFMT) == S_IFDIR;
+    }
+
+    /**
+     * Method to check if the entry is a regular file
+     * @return <code>true</code> if the entry is a regular file, <code>false</code> otherwise
+     */
+    public boolean isFile() {
+        return (mode & S_IFMT) == S_IFREG;
+    }
+
+    /**
+     * Method to compare two entries in rsync file list order. The entry "." sorts first. Going down the path components,
+     * a component that is the name of a file sorts before one that is a directory; two of the same kind compare by their
+     * bytes, a directory with a slash appended, and a directory sorts before anything inside it
+     * @param entry1 a FileListEntry object
+     * @param entry2 a FileListEntry object
+     * @return a negative number, zero or a positive number as the first entry sorts before, with or after the second
+     */
+    static int compareNames(FileListEntry entry1, FileListEntry entry2) {
+        String[] components1 = split(entry1.path);
+        String[] components2 = split(entry2.path);
+        int depth = Math.max(components1.length, components2.length);
+        for (int i = 0; i <= depth; i++) {
+            boolean ended1 = i >= components1.length;
+            boolean ended2 = i >= components2.length;
+            if (ended1 || ended2) {
+                // what is left is an empty file name; the directory itself sorts before its content
+                return (ended1 ? 0 : 1) - (ended2 ? 0 : 1);
+            }
+            boolean item1 = (i == components1.length - 1) && !entry1.isDirectory();
+            boolean item2 = (i == components2.length - 1) && !entry2.isDirectory();
+            if (item1 != item2) {
+                return item1 ? -1 : 1;
+            }
+            int dif = compareBytes(item1 ? components1[i] : components1[i] + "/", item2 ? components2[i] : components2[i] + "/");
+            if (dif != 0) {
+                return dif;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Method to split a path into its components, the path "." having none
+     * @param path a path relative to the transfer root
+     * @return a String array of the path components
+     */
+    private static String[] split(String path) {
+        if (path.equals(".") || path.length() == 0) {
+            return new String[0];
+        }
+        return path.split("/");
+    }
+
+    /**
+     * Method to compare two strings by their UTF-8 bytes, unsigned, as rsync compares names
+     * @param string1 a String
+     * @param string2 a String
+     * @return a negative number, zero or a positive number as the first string sorts before, with or after the second
+     */
+    private static int compareBytes(String string1, String string2) {
+        try {
+            byte[] bytes1 = string1.getBytes("UTF-8");
+            byte[] bytes2 = string2.getBytes("UTF-8");
+            int length = Math.min(bytes1.length, bytes2.length);
+            for (int i = 0; i < length; i++) {
+                int dif = (bytes1[i] & 0xff) - (bytes2[i] & 0xff);
+                if (dif != 0) {
+                    return dif;
+                }
+            }
+            return bytes1.length - bytes2.length;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  MD4.java
+# Description: This class computes MD4 digests, used by rsync protocol 29 for checksums and authentication
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync.protocol;
+
+/**
+ * This class computes MD4 digests as specified by RFC 1320. rsync protocol 29 uses MD4 for the whole-file checksum of
+ * each transfer and for the daemon authentication response, and the JDK ships no MD4 MessageDigest
+ */
+public class MD4 {
+    public static final int DIGEST_LENGTH = 16;
+
+    private static final int BLOCK_LENGTH = 64;
+
+    private final int[] state;
+    private final byte[] buffer;
+    private final int[] x;
+    private long count;
+
+    /**
+     * Constructor
+     */
+    public MD4() {
+        this.state = new int[4];
+        this.buffer = new byte[BLOCK_LENGTH];
+        this.x = new int[16];
+        reset();
+    }
+
+    /**
+     * Method to reset the digest to its initial state
+     */
+    public void reset() {
+        state[0] = 0x67452301;
+        state[1] = 0xefcdab89;
+        state[2] = 0x98badcfe;
+        state[3] = 0x10325476;
+        count = 0L;
+    }
+
+    /**
+     * Method to add bytes to the digest
+     * @param bytes a byte array
+     * @param offset the offset of the first byte to add
+     * @param length the number of bytes to add
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        int index = (int)(count % BLOCK_LENGTH);
+        count += length;
+        int partLength = BLOCK_LENGTH - index;
+        int i = 0;
+        if (length >= partLength) {
+            System.arraycopy(bytes, offset, buffer, index, partLength);
+            transform(buffer, 0);
+            for (i = partLength; i + BLOCK_LENGTH - 1 < length; i += BLOCK_LENGTH) {
+                transform(bytes, offset + i);
+            }
+            index = 0;
+        }
+        if (i < length) {
+            System.arraycopy(bytes, offset + i, buffer, index, length - i);
+        }
+    }
+
+    /**
+     * Method to add bytes to the digest
+     * @param bytes a byte array
+     */
+    public void update(byte[] bytes) {
+        update(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Method to complete the digest, after which it is reset
+     * @return the 16 byte digest
+     */
+    public byte[] digest() {
+        long bitCount = count << 3;
+        int index = (int)(count % BLOCK_LENGTH);
+        int padLength = (index < 56) ? 56 - index : 120 - index;
+        byte[] tail = new byte[padLength + 8];
+        tail[0] = (byte)0x80;
+        for (int i = 0; i < 8; i++) {
+            tail[padLength + i] = (byte)(bitCount >>> (8 * i));
+        }
+        update(tail, 0, tail.length);
+        byte[] digest = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                digest[i * 4 + j] = (byte)(state[i] >>> (8 * j));
+            }
+        }
+        reset();
+        return digest;
+    }
+
+    /**
+     * Method to process one 64 byte block
+     * @param block a byte array
+     * @param offset the offset of the block
+     */
+    private void transform(byte[] block, int offset) {
+        for (int i = 0; i < 16; i++) {
+            int j = offset + i * 4;
+            x[i] = (block[j] & 0xff) | ((block[j + 1] & 0xff) << 8) | ((block[j + 2] & 0xff) << 16) | ((block[j + 3] & 0xff) << 24);
+        }
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+
+        int[] round1 = {3, 7, 11, 19};
+        for (int i = 0; i < 16; i++) {
+            int f = (b & c) | (~b & d);
+            int t = Integer.rotateLeft(a + f + x[i], round1[i % 4]);
+            a = d; d = c; c = b; b = t;
+        }
+        int[] round2 = {3, 5, 9, 13};
+        int[] order2 = {0, 4, 8, 12, 1, 5, 9, 13, 2, 6, 10, 14, 3, 7, 11, 15};
+        for (int i = 0; i < 16; i++) {
+            int g = (b & c) | (b & d) | (c & d);
+            int t = Integer.rotateLeft(a + g + x[order2[i]] + 0x5a827999, round2[i % 4]);
+            a = d; d = c; c = b; b = t;
+        }
+        int[] round3 = {3, 9, 11, 15};
+        int[] order3 = {0, 8, 4, 12, 2, 10, 6, 14, 1, 9, 5, 13, 3, 11, 7, 15};
+        for (int i = 0; i < 16; i++) {
+            int h = b ^ c ^ d;
+            int t = Integer.rotateLeft(a + h + x[order3[i]] + 0x6ed9eba1, round3[i % 4]);
+            a = d; d = c; c = b; b = t;
+        }
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  MultiplexInputStream.java
+# Description: This class reads the data out of the multiplexed stream an rsync server sends
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class reads the data out of the multiplexed stream an rsync server sends once the protocol setup is done. The
+ * stream is a sequence of packets, each with a 4 byte little-endian header holding the message tag plus
+ * {@link #MPLEX_BASE} in the high byte and the payload length in the low three bytes. Only the payload of data packets
+ * is read through this stream; the payload of a message packet, e.g. an error or info text of the server, is handed to
+ * the MessageHandler. Until multiplexing is turned on, the underlying stream is read as is
+ */
+public class MultiplexInputStream extends InputStream {
+    public static final int MPLEX_BASE = 7;
+    public static final int MSG_DATA = 0;
+    public static final int MSG_ERROR_XFER = 1;
+    public static final int MSG_INFO = 2;
+    public static final int MSG_ERROR = 3;
+    public static final int MSG_WARNING = 4;
+    public static final int MSG_ERROR_SOCKET = 5;
+    public static final int MSG_LOG = 6;
+    public static final int MSG_CLIENT = 7;
+    public static final int MSG_IO_ERROR = 22;
+    public static final int MSG_NOOP = 42;
+
+    /**
+     * This interface receives the messages multiplexed into the stream
+     */
+    public interface MessageHandler {
+        /**
+         * Method called for each message packet
+         * @param tag the message tag
+         * @param payload the payload of the message
+         */
+        public void message(int tag, byte[] payload);
+    }
+
+    private final InputStream inputStream;
+    private final MessageHandler handler;
+    private boolean multiplexed;
+    private int remaining;
+
+    /**
+     * Constructor
+     * @param inputStream the InputStream of the connection
+     * @param handler the MessageHandler that receives the message packets
+     */
+    public MultiplexInputStream(InputStream inputStream, MessageHandler handler) {
+        this.inputStream = inputStream;
+        this.handler = handler;
+        this.multiplexed = false;
+        this.remaining = 0;
+    }
+
+    /**
+     * Method to turn on multiplexing, from the next byte on
+     */
+    public void startMultiplexing() {
+        multiplexed = true;
+    }
+
+    /**
+     * Method to position the stream on payload of a data packet, handing any message packet before it to the handler
+     * @return <code>false</code> if the stream ended at a packet boundary, <code>true</code> otherwise
+     * @throws IOException thrown if the stream could not be read or ended inside a packet
+     */
+    private boolean nextData() throws IOException {
+        while (remaining == 0) {
+            int b0 = inputStream.read();
+            if (b0 < 0) {
+                return false;
+            }
+            int header = b0 | (readRawByte() << 8) | (readRawByte() << 16) | (readRawByte() << 24);
+            int tag = (header >>> 24) - MPLEX_BASE;
+            int length = header & 0xffffff;
+            if (tag == MSG_DATA) {
+                remaining = length;
+            } else {
+                byte[] payload = new byte[length];
+                int offset = 0;
+                while (offset < length) {
+                    int count = inputStream.read(payload, offset, length - offset);
+                    if (count < 0) {
+                        throw new EOFException("connection closed inside a message");
+                    }
+                    offset += count;
+                }
+                handler.message(tag, payload);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method to read one byte of the underlying stream
+     * @return the byte
+     * @throws IOException thrown if the stream could not be read or ended
+     */
+    private int readRawByte() throws IOException {
+        int b = inputStream.read();
+        if (b < 0) {
+            throw new EOFException("connection closed inside a packet header");
+        }
+        return b;
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+        if (!multiplexed) {
+            return inputStream.read();
+        }
+        if (!nextData()) {
+            return -1;
+        }
+        int b = inputStream.read();
+        if (b < 0) {
+            throw new EOFException("connection closed inside a data packet");
+        }
+        remaining--;
+        return b;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (!multiplexed) {
+            return inputStream.read(bytes, offset, length);
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextData()) {
+            return -1;
+        }
+        int count = inputStream.read(bytes, offset, Math.min(length, remaining));
+        if (count < 0) {
+            throw new EOFException("connection closed inside a data packet");
+        }
+        remaining -= count;
+        return count;
+    }
+
+    /**
+     * @see java.io.InputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+}
@@ -0,0 +1,990 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  RsyncDaemonClient.java
+# Description: This class pulls files from an rsync daemon over the rsync protocol, without running rsync
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.DeltaLogEntry;
+
+/**
+ * This class pulls files from an rsync daemon over the rsync protocol, version 29, in the JVM instead of running rsync.
+ * It covers the subset Rsyncker uses: recursive, perms, times, copy-links and delete, with literal exclude patterns,
+ * and whole-file transfers, i.e. the sender is sent no block checksums and sends every changed file in full. A changed
+ * file is received into a temporary file that is checked against the MD4 checksum the sender appends, then renamed into
+ * place with the modification time of the source. Permissions are not copied.
+ * <p>
+ * Each change is handed to the TransferListener as a typed DeltaLogEntry as soon as it is done: deletions first, as the
+ * local directories are compared with the file list before anything is requested, then each file as it is received.
+ * Several source paths of the same module may be pulled in one session. A session serves one transfer and is then closed
+ * by the daemon, so a connection is never reused
+ */
+public class RsyncDaemonClient {
+    private static Logger log = Logger.getLogger(RsyncDaemonClient.class);
+
+    public static final int PROTOCOL_VERSION = 29;
+    public static final int DEFAULT_PORT = 873;
+
+    private static final String GREETING_PREFIX = "@RSYNCD: ";
+    private static final String AUTH_REQUIRED_PREFIX = "@RSYNCD: AUTHREQD ";
+    private static final String OK_LINE = "@RSYNCD: OK";
+    private static final String EXIT_LINE = "@RSYNCD: EXIT";
+    private static final String ERROR_PREFIX = "@ERROR";
+
+    private static final int NDX_DONE = -1;
+    private static final int MAX_PHASE = 2;
+
+    private static final int XMIT_TOP_DIR = 1 << 0;
+    private static final int XMIT_SAME_MODE = 1 << 1;
+    private static final int XMIT_EXTENDED_FLAGS = 1 << 2;
+    private static final int XMIT_SAME_NAME = 1 << 5;
+    private static final int XMIT_LONG_NAME = 1 << 6;
+    private static final int XMIT_SAME_TIME = 1 << 7;
+
+    private static final int ITEM_BASIS_TYPE_FOLLOWS = 1 << 11;
+    private static final int ITEM_XNAME_FOLLOWS = 1 << 12;
+    private static final int ITEM_IS_NEW = 1 << 13;
+    private static final int ITEM_TRANSFER = 1 << 15;
+
+    private static final String NEW_FILE_FLAGS = ">f+++++++++";
+    private static final String SIZE_CHANGED_FLAGS = ">f.st......";
+    private static final String TIME_CHANGED_FLAGS = ">f..t......";
+    private static final String NEW_DIRECTORY_FLAGS = "cd+++++++++";
+    private static final String DELETING_FLAGS = "*deleting  ";
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final char[] BASE64_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * This interface receives what a transfer changes, and what the daemon says
+     */
+    public interface TransferListener {
+        /**
+         * Method called for each change once it is done, in the form of an itemized delta log line
+         * @param entry a DeltaLogEntry object
+         * @throws IOException thrown if the change could not be handled, which aborts the transfer
+         */
+        public void changed(DeltaLogEntry entry) throws IOException;
+
+        /**
+         * Method called for each message of the daemon, e.g. its message of the day or an error about one file
+         * @param text the message
+         * @param error <code>true</code> if the message is an error or a warning, <code>false</code> otherwise
+         */
+        public void message(String text, boolean error);
+    }
+
+    private final Socket socket;
+    private final List<String> excludes;
+    private final boolean dryRun;
+    private final SimpleDateFormat dateFormat;
+    private MultiplexInputStream inputStream;
+    private OutputStream outputStream;
+    private TransferListener listener;
+    private int checksumSeed;
+    private int ioError;
+    private int errorCount;
+    private long bytesReceived;
+    private long totalSize;
+
+    /**
+     * Constructor
+     * @param socket a Socket connected to the rsync daemon, closed once the transfer is done
+     * @param excludes a List of exclude patterns, matched as literal paths, anchored if they start with a slash
+     * @param dryRun <code>true</code> to report the changes without making them, <code>false</code> otherwise
+     */
+    public RsyncDaemonClient(Socket socket, List<String> excludes, boolean dryRun) {
+        this.socket = socket;
+        this.excludes = excludes;
+        this.dryRun = dryRun;
+        this.dateFormat = new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss");
+        this.ioError = 0;
+        this.errorCount = 0;
+        this.bytesReceived = 0L;
+        this.totalSize = 0L;
+    }
+
+    /**
+     * Method to pull source paths of a module into a local destination
+     * @param module the name of the module
+     * @param username the user name to authenticate with, or <code>null</code> if the module needs none
+     * @param password the password to authenticate with, or <code>null</code> if the module needs none
+     * @param sourcePaths a List of paths relative to the module. A directory with a trailing slash is mirrored into the
+     * destination, anything else is copied into it by name. A path with a "/./" in it is copied into the destination
+     * under the part after the "/./", as with rsync <code>--relative</code>, and then only that part is mirrored
+     * @param dest the local destination
+     * @param listener the TransferListener that receives the changes
+     * @return <code>true</code> if everything was transferred, <code>false</code> if some files failed or the sender
+     * reported an I/O error
+     * @throws IOException thrown if the daemon refused the transfer, the connection failed or the protocol was violated
+     */
+    public boolean transfer(String module, String username, String password, List<String> sourcePaths, File dest, TransferListener listener) throws IOException {
+        this.listener = listener;
+        inputStream = new MultiplexInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE), new MultiplexInputStream.MessageHandler() {
+            public void message(int tag, byte[] payload) {
+                handleMessage(tag, payload);
+            }
+        });
+        outputStream = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        try {
+            startSession(module, username, password);
+            boolean relative = isRelative(sourcePaths);
+            sendArguments(module, sourcePaths, relative);
+            checksumSeed = readInt();
+            inputStream.startMultiplexing();
+            sendFilterList();
+
+            List<FileListEntry> fileList = receiveFileList();
+            ioError |= readInt();
+            Collections.sort(fileList, FileListEntry.NAME_ORDER);
+            boolean destIsDirectory = dest.isDirectory() || dest.getPath().endsWith("/") || fileList.size() != 1 || !fileList.get(0).isFile();
+
+            deleteExtraneous(fileList, dest, destIsDirectory, relative ? getRelativeRoots(sourcePaths) : null);
+            List<Integer> requests = generate(fileList, dest, destIsDirectory);
+            Thread generatorThread = startGenerator(requests);
+            try {
+                receiveFiles(fileList, dest, destIsDirectory);
+            } finally {
+                try {
+                    generatorThread.join();
+                } catch (InterruptedException e) {
+                    log.warn("Interrupted while waiting for the generator thread", e);
+                }
+            }
+            setDirectoryTimes(fileList, dest, destIsDirectory);
+
+            // the statistics of the sender: read, written, total size, file list build and transfer time
+            readLongInt();
+            readLongInt();
+            totalSize = readLongInt();
+            readLongInt();
+            readLongInt();
+            writeInt(NDX_DONE);
+            outputStream.flush();
+        } finally {
+            socket.close();
+        }
+        return ioError == 0 && errorCount == 0;
+    }
+
+    /**
+     * Method to exchange greetings with the daemon, select the module and authenticate
+     * @param module the name of the module
+     * @param username the user name, or <code>null</code>
+     * @param password the password, or <code>null</code>
+     * @throws IOException thrown if the daemon refused the module or the authentication
+     */
+    private void startSession(String module, String username, String password) throws IOException {
+        writeLine(GREETING_PREFIX + PROTOCOL_VERSION + ".0");
+        outputStream.flush();
+        String greeting = readLine();
+        if (!greeting.startsWith(GREETING_PREFIX)) {
+            throw new IOException("rsync daemon sent an invalid greeting: " + greeting);
+        }
+        int remoteProtocol = parseProtocolVersion(greeting.substring(GREETING_PREFIX.length()));
+        if (remoteProtocol < PROTOCOL_VERSION) {
+            throw new IOException("rsync daemon speaks protocol " + remoteProtocol + ", at least " + PROTOCOL_VERSION + " is needed");
+        }
+
+        writeLine(module);
+        outputStream.flush();
+        while (true) {
+            String line = readLine();
+            if (line.startsWith(AUTH_REQUIRED_PREFIX)) {
+                if (username == null || password == null) {
+                    throw new IOException("rsync daemon module " + module + " requires authentication");
+                }
+                writeLine(username + " " + generateAuthResponse(password, line.substring(AUTH_REQUIRED_PREFIX.length()).trim()));
+                outputStream.flush();
+            } else if (line.equals(OK_LINE)) {
+                return;
+            } else if (line.startsWith(EXIT_LINE)) {
+                throw new IOException("rsync daemon closed the session for module " + module);
+            } else if (line.startsWith(ERROR_PREFIX)) {
+                throw new IOException("rsync daemon refused module " + module + ": " + line);
+            } else {
+                listener.message(line, false);
+            }
+        }
+    }
+
+    /**
+     * Method to parse the protocol version out of a greeting, e.g. "31.0 md5 md4"
+     * @param version the greeting without its prefix
+     * @return the protocol version
+     * @throws IOException thrown if the greeting holds no version
+     */
+    private int parseProtocolVersion(String version) throws IOException {
+        int end = 0;
+        while (end < version.length() && Character.isDigit(version.charAt(end))) {
+            end++;
+        }
+        if (end == 0) {
+            throw new IOException("rsync daemon sent no protocol version: " + version);
+        }
+        return Integer.parseInt(version.substring(0, end));
+    }
+
+    /**
+     * Method to check if the source paths are to be copied under their relative part
+     * @param sourcePaths a List of paths relative to the module
+     * @return <code>true</code> if any of the paths has a "/./" in it, <code>false</code> otherwise
+     */
+    private static boolean isRelative(List<String> sourcePaths) {
+        for (String sourcePath : sourcePaths) {
+            if (sourcePath.contains("/./")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method to get the relative parts of the source paths, which are the only directories mirrored in a relative
+     * transfer; the directories above them are only created
+     * @param sourcePaths a List of paths relative to the module
+     * @return a List of the relative parts, without trailing slashes
+     */
+    private static List<String> getRelativeRoots(List<String> sourcePaths) {
+        List<String> roots = new ArrayList<String>();
+        for (String sourcePath : sourcePaths) {
+            int index = sourcePath.indexOf("/./");
+            String root = (index < 0) ? sourcePath : sourcePath.substring(index + 3);
+            while (root.endsWith("/")) {
+                root = root.substring(0, root.length() - 1);
+            }
+            roots.add(root);
+        }
+        return roots;
+    }
+
+    /**
+     * Method to check if a path is one of the roots or under one of them
+     * @param path a path relative to the transfer root
+     * @param roots a List of relative roots
+     * @return <code>true</code> if the path is or is under one of the roots, <code>false</code> otherwise
+     */
+    private static boolean isUnder(String path, List<String> roots) {
+        for (String root : roots) {
+            if (path.equals(root) || path.startsWith(root + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method to send the arguments of the server side, one per line, ending with an empty line. The daemon runs as the
+     * sender of a recursive transfer preserving permissions and times and following symlinks
+     * @param module the name of the module
+     * @param sourcePaths a List of paths relative to the module
+     * @param relative <code>true</code> to send the paths under their relative part
+     * @throws IOException thrown if the arguments could not be sent
+     */
+    private void sendArguments(String module, List<String> sourcePaths, boolean relative) throws IOException {
+        writeLine("--server");
+        writeLine("--sender");
+        writeLine(relative ? "-rptLR" : "-rptL");
+        writeLine(".");
+        for (String sourcePath : sourcePaths) {
+            writeLine(module + "/" + sourcePath);
+        }
+        writeLine("");
+        outputStream.flush();
+    }
+
+    /**
+     * Method to send the excludes as filter rules, ending with an empty rule
+     * @throws IOException thrown if the rules could not be sent
+     */
+    private void sendFilterList() throws IOException {
+        for (String exclude : excludes) {
+            byte[] rule = ("- " + exclude).getBytes("UTF-8");
+            writeInt(rule.length);
+            outputStream.write(rule);
+        }
+        writeInt(0);
+        outputStream.flush();
+    }
+
+    /**
+     * Method to receive the file list. Each entry starts with flags telling which fields are the same as in the entry
+     * before it and so are not sent; the list ends with an entry of no flags
+     * @return a List of FileListEntry objects, in the order received
+     * @throws IOException thrown if the list could not be read
+     */
+    private List<FileListEntry> receiveFileList() throws IOException {
+        List<FileListEntry> fileList = new ArrayList<FileListEntry>();
+        byte[] lastName = new byte[0];
+        long lastModTime = 0L;
+        int lastMode = 0;
+        int flags = 0;
+        while ((flags = readByte()) != 0) {
+            if ((flags & XMIT_EXTENDED_FLAGS) != 0) {
+                flags |= readByte() << 8;
+            }
+            int sameLength = ((flags & XMIT_SAME_NAME) != 0) ? readByte() : 0;
+            int newLength = ((flags & XMIT_LONG_NAME) != 0) ? readInt() : readByte();
+            if (sameLength > lastName.length || newLength < 0) {
+                throw new IOException("rsync protocol error: invalid file name length in file list");
+            }
+            byte[] name = new byte[sameLength + newLength];
+            System.arraycopy(lastName, 0, name, 0, sameLength);
+            readFully(name, sameLength, newLength);
+            lastName = name;
+
+            long length = readLongInt();
+            long modTime = ((flags & XMIT_SAME_TIME) != 0) ? lastModTime : readInt();
+            int mode = ((flags & XMIT_SAME_MODE) != 0) ? lastMode : readInt();
+            lastModTime = modTime;
+            lastMode = mode;
+            fileList.add(new FileListEntry(new String(name, "UTF-8"), length, modTime, mode, (flags & XMIT_TOP_DIR) != 0));
+        }
+        if (log.isTraceEnabled()) log.trace("received file list of " + fileList.size() + " entries");
+        return fileList;
+    }
+
+    /**
+     * Method to get the local file of a file list entry
+     * @param entry a FileListEntry object
+     * @param dest the local destination
+     * @param destIsDirectory <code>true</code> if the entries go into the destination, <code>false</code> if the only
+     * entry is the destination
+     * @return the local File
+     */
+    private File getTarget(FileListEntry entry, File dest, boolean destIsDirectory) {
+        if (!destIsDirectory || entry.getPath().equals(".")) {
+            return dest;
+        }
+        return new File(dest, entry.getPath());
+    }
+
+    /**
+     * Method to delete what is in the local copy of a directory of the file list but not in the list, unless excluded
+     * @param fileList the sorted List of FileListEntry objects
+     * @param dest the local destination
+     * @param destIsDirectory <code>true</code> if the entries go into the destination
+     * @param relativeRoots a List of the directories mirrored in a relative transfer, or <code>null</code> to mirror every directory
+     * @throws IOException thrown if the listener failed
+     */
+    private void deleteExtraneous(List<FileListEntry> fileList, File dest, boolean destIsDirectory, List<String> relativeRoots) throws IOException {
+        if (!destIsDirectory) {
+            return;
+        }
+        Map<String, Set<String>> childNames = new HashMap<String, Set<String>>();
+        for (FileListEntry entry : fileList) {
+            String path = entry.getPath();
+            if (path.equals(".")) {
+                continue;
+            }
+            int index = path.lastIndexOf('/');
+            String parent = (index < 0) ? "." : path.substring(0, index);
+            Set<String> names = childNames.get(parent);
+            if (names == null) {
+                names = new HashSet<String>();
+                childNames.put(parent, names);
+            }
+            names.add(path.substring(index + 1));
+        }
+        for (FileListEntry entry : fileList) {
+            if (!entry.isDirectory() || (relativeRoots != null && !isUnder(entry.getPath(), relativeRoots))) {
+                continue;
+            }
+            File dir = getTarget(entry, dest, destIsDirectory);
+            String[] localNames = dir.list();
+            if (localNames == null) {
+                continue;
+            }
+            Arrays.sort(localNames);
+            Set<String> names = childNames.get(entry.getPath());
+            String prefix = entry.getPath().equals(".") ? "" : entry.getPath() + "/";
+            for (String localName : localNames) {
+                File local = new File(dir, localName);
+                if ((names == null || !names.contains(localName)) && !isExcluded(prefix + localName, local.isDirectory())) {
+                    delete(local, prefix + localName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to delete a file, or a directory with its content deepest first, reporting each deleted path
+     * @param file the File to delete
+     * @param path the path relative to the transfer root
+     * @throws IOException thrown if the listener failed
+     */
+    private void delete(File file, String path) throws IOException {
+        long modTime = file.lastModified();
+        if (file.isDirectory()) {
+            String[] names = file.list();
+            if (names != null) {
+                Arrays.sort(names);
+                for (String name : names) {
+                    delete(new File(file, name), path + "/" + name);
+                }
+            }
+            path = path + "/";
+        }
+        if (!dryRun && !file.delete()) {
+            reportError("delete_file: unlink \"" + path + "\" failed");
+            return;
+        }
+        listener.changed(new DeltaLogEntry(DELETING_FLAGS, 0L, dateFormat.format(new Date(modTime)), path));
+    }
+
+    /**
+     * Method to check if a path matches an exclude pattern
+     * @param path the path relative to the transfer root
+     * @param directory <code>true</code> if the path is a directory
+     * @return <code>true</code> if the path is excluded, <code>false</code> otherwise
+     */
+    private boolean isExcluded(String path, boolean directory) {
+        for (String exclude : excludes) {
+            if (exclude.endsWith("/") && !directory) {
+                continue;
+            }
+            String pattern = exclude.endsWith("/") ? exclude.substring(0, exclude.length() - 1) : exclude;
+            if (pattern.startsWith("/")) {
+                if (path.equals(pattern.substring(1))) {
+                    return true;
+                }
+            } else if (path.equals(pattern) || path.endsWith("/" + pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method to create the missing directories and pick the files to request: those missing locally or differing in size
+     * or modification time, in whole seconds. In a dry run the files are reported instead of requested
+     * @param fileList the sorted List of FileListEntry objects
+     * @param dest the local destination
+     * @param destIsDirectory <code>true</code> if the entries go into the destination
+     * @return a List of the indexes of the files to request
+     * @throws IOException thrown if the listener failed
+     */
+    private List<Integer> generate(List<FileListEntry> fileList, File dest, boolean destIsDirectory) throws IOException {
+        List<Integer> requests = new ArrayList<Integer>();
+        for (int i = 0; i < fileList.size(); i++) {
+            FileListEntry entry = fileList.get(i);
+            File target = getTarget(entry, dest, destIsDirectory);
+            if (entry.isDirectory()) {
+                if (target.isDirectory()) {
+                    continue;
+                }
+                if (target.exists()) {
+                    delete(target, entry.getPath());
+                }
+                if (!dryRun && !target.mkdirs()) {
+                    reportError("mkdir \"" + target.getPath() + "\" failed");
+                    continue;
+                }
+                if (!entry.getPath().equals(".")) {
+                    listener.changed(new DeltaLogEntry(NEW_DIRECTORY_FLAGS, entry.getLength(), formatTime(entry), entry.getPath() + "/"));
+                }
+            } else if (entry.isFile()) {
+                if (target.isDirectory()) {
+                    delete(target, entry.getPath());
+                }
+                if (target.isFile() && target.length() == entry.getLength() && target.lastModified() / 1000 == entry.getModTime()) {
+                    continue;
+                }
+                if (dryRun) {
+                    listener.changed(new DeltaLogEntry(getChangeFlags(target, entry), entry.getLength(), formatTime(entry), entry.getPath()));
+                } else {
+                    requests.add(Integer.valueOf(i));
+                }
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Method to start the generator thread, which sends the requests for the files followed by the end of the first phase.
+     * The requests are sent from their own thread, as the sender answers them while they are sent
+     * @param requests a List of the indexes of the files to request
+     * @return the generator Thread
+     */
+    private Thread startGenerator(final List<Integer> requests) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    synchronized (outputStream) {
+                        for (Integer request : requests) {
+                            writeInt(request.intValue());
+                            writeShortInt(ITEM_TRANSFER | ITEM_IS_NEW);
+                            // a sum head of no blocks asks for the whole file
+                            writeInt(0);
+                            writeInt(0);
+                            writeInt(0);
+                            writeInt(0);
+                        }
+                        writeInt(NDX_DONE);
+                        outputStream.flush();
+                    }
+                } catch (IOException e) {
+                    // the receiver fails on the closed connection too
+                    log.error("Unable to send the file requests", e);
+                }
+            }
+        }, "RsyncDaemonGenerator-" + socket.getInetAddress());
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Method to receive the requested files until the sender ends the last phase. At the end of each earlier phase the
+     * generator ends the next phase, as no file is requested again
+     * @param fileList the sorted List of FileListEntry objects
+     * @param dest the local destination
+     * @param destIsDirectory <code>true</code> if the entries go into the destination
+     * @throws IOException thrown if the connection failed or the protocol was violated
+     */
+    private void receiveFiles(List<FileListEntry> fileList, File dest, boolean destIsDirectory) throws IOException {
+        int phase = 0;
+        while (true) {
+            int index = readInt();
+            if (index == NDX_DONE) {
+                phase++;
+                if (phase > MAX_PHASE) {
+                    return;
+                }
+                synchronized (outputStream) {
+                    writeInt(NDX_DONE);
+                    outputStream.flush();
+                }
+                continue;
+            }
+            if (index < 0 || index >= fileList.size()) {
+                throw new IOException("rsync protocol error: invalid file index " + index);
+            }
+            int iflags = readShortInt();
+            if ((iflags & ITEM_BASIS_TYPE_FOLLOWS) != 0) {
+                readByte();
+            }
+            if ((iflags & ITEM_XNAME_FOLLOWS) != 0) {
+                int length = readByte();
+                if ((length & 0x80) != 0) {
+                    length = (length & 0x7f) * 256 + readByte();
+                }
+                readFully(new byte[length], 0, length);
+            }
+            if ((iflags & ITEM_TRANSFER) == 0) {
+                continue;
+            }
+            // the sum head is echoed back
+            readInt();
+            readInt();
+            readInt();
+            readInt();
+            FileListEntry entry = fileList.get(index);
+            receiveFile(entry, getTarget(entry, dest, destIsDirectory));
+        }
+    }
+
+    /**
+     * Method to receive one file into a temporary file next to the target, checked against its checksum and renamed into place
+     * @param entry the FileListEntry of the file
+     * @param target the local File
+     * @throws IOException thrown if the connection failed or the protocol was violated
+     */
+    private void receiveFile(FileListEntry entry, File target) throws IOException {
+        String flags = getChangeFlags(target, entry);
+        File tempFile = new File(target.getParentFile(), "." + target.getName() + "." + Long.toHexString(System.nanoTime()));
+        MD4 md4 = new MD4();
+        md4.update(new byte[] {(byte)checksumSeed, (byte)(checksumSeed >>> 8), (byte)(checksumSeed >>> 16), (byte)(checksumSeed >>> 24)});
+        byte[] buffer = new byte[BUFFER_SIZE];
+        OutputStream fileStream = null;
+        IOException fileError = null;
+        try {
+            fileStream = new FileOutputStream(tempFile);
+        } catch (IOException e) {
+            fileError = e;
+        }
+        try {
+            int token = 0;
+            while ((token = readInt()) != 0) {
+                if (token < 0) {
+                    throw new IOException("rsync protocol error: block match token for " + entry.getPath() + " though no blocks were sent");
+                }
+                int remaining = token;
+                while (remaining > 0) {
+                    int count = Math.min(remaining, buffer.length);
+                    readFully(buffer, 0, count);
+                    md4.update(buffer, 0, count);
+                    if (fileStream != null) {
+                        try {
+                            fileStream.write(buffer, 0, count);
+                        } catch (IOException e) {
+                            // keep reading, so the stream stays in step
+                            fileError = e;
+                            closeQuietly(fileStream);
+                            fileStream = null;
+                        }
+                    }
+                    remaining -= count;
+                    bytesReceived += count;
+                }
+            }
+        } finally {
+            if (fileStream != null) {
+                closeQuietly(fileStream);
+            }
+        }
+        byte[] checksum = new byte[MD4.DIGEST_LENGTH];
+        readFully(checksum, 0, checksum.length);
+
+        if (fileError != null) {
+            tempFile.delete();
+            reportError("failed to write \"" + entry.getPath() + "\": " + fileError.getMessage());
+        } else if (!Arrays.equals(checksum, md4.digest())) {
+            tempFile.delete();
+            reportError("checksum mismatch for \"" + entry.getPath() + "\"");
+        } else {
+            tempFile.setLastModified(entry.getModTime() * 1000);
+            if (!tempFile.renameTo(target) && !(target.delete() && tempFile.renameTo(target))) {
+                tempFile.delete();
+                reportError("rename \"" + tempFile.getPath() + "\" -> \"" + entry.getPath() + "\" failed");
+            } else {
+                listener.changed(new DeltaLogEntry(flags, entry.getLength(), formatTime(entry), entry.getPath()));
+            }
+        }
+    }
+
+    /**
+     * Method to set the modification times of the directories once their content is done
+     * @param fileList the sorted List of FileListEntry objects
+     * @param dest the local destination
+     * @param destIsDirectory <code>true</code> if the entries go into the destination
+     */
+    private void setDirectoryTimes(List<FileListEntry> fileList, File dest, boolean destIsDirectory) {
+        if (dryRun) {
+            return;
+        }
+        for (FileListEntry entry : fileList) {
+            if (entry.isDirectory()) {
+                File target = getTarget(entry, dest, destIsDirectory);
+                if (target.isDirectory()) {
+                    target.setLastModified(entry.getModTime() * 1000);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to get the itemized change flags of a file about to be transferred
+     * @param target the local File
+     * @param entry the FileListEntry of the file
+     * @return the itemized change flags
+     */
+    private String getChangeFlags(File target, FileListEntry entry) {
+        if (!target.isFile()) {
+            return NEW_FILE_FLAGS;
+        }
+        return (target.length() != entry.getLength()) ? SIZE_CHANGED_FLAGS : TIME_CHANGED_FLAGS;
+    }
+
+    /**
+     * Method to format the modification time of an entry as rsync prints it
+     * @param entry a FileListEntry object
+     * @return the formatted modification time
+     */
+    private String formatTime(FileListEntry entry) {
+        return dateFormat.format(new Date(entry.getModTime() * 1000));
+    }
+
+    /**
+     * Method to handle a message multiplexed into the data of the sender
+     * @param tag the message tag
+     * @param payload the payload of the message
+     */
+    private void handleMessage(int tag, byte[] payload) {
+        switch (tag) {
+        case MultiplexInputStream.MSG_INFO:
+        case MultiplexInputStream.MSG_LOG:
+        case MultiplexInputStream.MSG_CLIENT:
+            listener.message(toText(payload), false);
+            break;
+        case MultiplexInputStream.MSG_ERROR_XFER:
+        case MultiplexInputStream.MSG_ERROR:
+        case MultiplexInputStream.MSG_WARNING:
+        case MultiplexInputStream.MSG_ERROR_SOCKET:
+            listener.message(toText(payload), true);
+            break;
+        case MultiplexInputStream.MSG_IO_ERROR:
+            if (payload.length >= 4) {
+                ioError |= (payload[0] & 0xff) | ((payload[1] & 0xff) << 8) | ((payload[2] & 0xff) << 16) | ((payload[3] & 0xff) << 24);
+            }
+            break;
+        default:
+            if (log.isTraceEnabled()) log.trace("ignoring rsync message tag " + tag);
+        }
+    }
+
+    /**
+     * Method to report a failure that leaves the transfer partial
+     * @param message the error message
+     */
+    private void reportError(String message) {
+        errorCount++;
+        listener.message("rsync: " + message, true);
+    }
+
+    /**
+     * Method to get the number of bytes of file data received
+     * @return the number of bytes of file data received
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Method to get the total size of the files in the file list, as reported by the sender
+     * @return the total size in bytes
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Method to close the connection, which makes a running transfer fail
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the connection to the rsync daemon", e);
+        }
+    }
+
+    /**
+     * Method to compute the response to an authentication challenge: the MD4 digest of four zero bytes, the password and
+     * the challenge, base64 encoded without padding
+     * @param password the password
+     * @param challenge the challenge sent by the daemon
+     * @return the response
+     * @throws UnsupportedEncodingException thrown if UTF-8 is not supported
+     */
+    static String generateAuthResponse(String password, String challenge) throws UnsupportedEncodingException {
+        MD4 md4 = new MD4();
+        md4.update(new byte[4]);
+        md4.update(password.getBytes("UTF-8"));
+        md4.update(challenge.getBytes("UTF-8"));
+        return encodeBase64(md4.digest());
+    }
+
+    /**
+     * Method to encode bytes in base64 without padding, as rsync does
+     * @param bytes a byte array
+     * @return the encoded String
+     */
+    static String encodeBase64(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < bytes.length; i += 3) {
+            int chunk = (bytes[i] & 0xff) << 16;
+            int count = Math.min(3, bytes.length - i);
+            if (count > 1) {
+                chunk |= (bytes[i + 1] & 0xff) << 8;
+            }
+            if (count > 2) {
+                chunk |= bytes[i + 2] & 0xff;
+            }
+            for (int j = 0; j <= count; j++) {
+                builder.append(BASE64_DIGITS[(chunk >>> (18 - 6 * j)) & 0x3f]);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Method to convert the payload of a message to text, without its line break
+     * @param payload the payload of a message
+     * @return the text
+     */
+    private static String toText(byte[] payload) {
+        try {
+            return new String(payload, "UTF-8").trim();
+        } catch (UnsupportedEncodingException e) {
+            return new String(payload).trim();
+        }
+    }
+
+    /**
+     * Method to close an OutputStream, logging any failure
+     * @param stream an OutputStream object
+     */
+    private static void closeQuietly(OutputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.warn("Unable to close a received file", e);
+        }
+    }
+
+    /**
+     * Method to read a line of the daemon text protocol
+     * @return the line without its line break
+     * @throws IOException thrown if the connection closed before the line ended
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = 0;
+        while ((b = inputStream.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("rsync daemon closed the connection");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Method to write a line of the daemon text protocol
+     * @param line the line without its line break
+     * @throws IOException thrown if the line could not be written
+     */
+    private void writeLine(String line) throws IOException {
+        outputStream.write(line.getBytes("UTF-8"));
+        outputStream.write('\n');
+    }
+
+    /**
+     * Method to read bytes, as many as asked for
+     * @param bytes a byte array
+     * @param offset the offset to read into
+     * @param length the number of bytes to read
+     * @throws IOException thrown if the connection closed before they were read
+     */
+    private void readFully(byte[] bytes, int offset, int length) throws IOException {
+        InputStream stream = inputStream;
+        while (length > 0) {
+            int count = stream.read(bytes, offset, length);
+            if (count < 0) {
+                throw new EOFException("rsync daemon closed the connection");
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Method to read one unsigned byte
+     * @return the byte
+     * @throws IOException thrown if the connection closed
+     */
+    private int readByte() throws IOException {
+        int b = inputStream.read();
+        if (b < 0) {
+            throw new EOFException("rsync daemon closed the connection");
+        }
+        return b;
+    }
+
+    /**
+     * Method to read a 2 byte little-endian unsigned integer
+     * @return the integer
+     * @throws IOException thrown if the connection closed
+     */
+    private int readShortInt() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+
+    /**
+     * Method to read a 4 byte little-endian integer
+     * @return the integer
+     * @throws IOException thrown if the connection closed
+     */
+    private int readInt() throws IOException {
+        return readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+    }
+
+    /**
+     * Method to read a long integer: a 4 byte integer, or -1 followed by an 8 byte little-endian integer
+     * @return the long integer
+     * @throws IOException thrown if the connection closed
+     */
+    private long readLongInt() throws IOException {
+        int value = readInt();
+        if (value != -1) {
+            return value;
+        }
+        long low = readInt() & 0xffffffffL;
+        long high = readInt() & 0xffffffffL;
+        return low | (high << 32);
+    }
+
+    /**
+     * Method to write a 2 byte little-endian integer
+     * @param value the integer
+     * @throws IOException thrown if the integer could not be written
+     */
+    private void writeShortInt(int value) throws IOException {
+        outputStream.write(value & 0xff);
+        outputStream.write((value >>> 8) & 0xff);
+    }
+
+    /**
+     * Method to write a 4 byte little-endian integer
+     * @param value the integer
+     * @throws IOException thrown if the integer could not be written
+     */
+    private void writeInt(int value) throws IOException {
+        outputStream.write(value & 0xff);
+        outputStream.write((value >>> 8) & 0xff);
+        outputStream.write((value >>> 16) & 0xff);
+        outputStream.write((value >>> 24) & 0xff);
+    }
+}
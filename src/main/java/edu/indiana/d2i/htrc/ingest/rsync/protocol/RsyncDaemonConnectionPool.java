@@ -0,0 +1,140 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  RsyncDaemonConnectionPool.java
+# Description: This class hands out connections to rsync daemons, bounding how many are open to each daemon at a time
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class hands out connections to rsync daemons, bounding how many are open to each daemon at a time, so that the
+ * transfers of all rsync threads share a fixed number of sessions per daemon instead of running into its
+ * <code>max connections</code> limit. An rsync daemon serves one transfer per connection and closes it afterwards, so a
+ * connection is not reused; what is pooled is the right to have one open. A thread asking for a connection to a daemon
+ * that has all of its connections open waits until one is released
+ */
+public class RsyncDaemonConnectionPool {
+    private static Logger log = Logger.getLogger(RsyncDaemonConnectionPool.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_IN_MS = 30000;
+
+    private final int maxConnections;
+    private final int connectTimeout;
+    private final Map<String, Integer> openCounts;
+    private long openedCount;
+
+    /**
+     * Constructor
+     * @param maxConnections the maximum number of connections open to each daemon at a time
+     * @param connectTimeout the connect timeout in milliseconds
+     */
+    public RsyncDaemonConnectionPool(int maxConnections, int connectTimeout) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.connectTimeout = connectTimeout;
+        this.openCounts = new HashMap<String, Integer>();
+        this.openedCount = 0L;
+    }
+
+    /**
+     * Method to open a connection to a daemon, waiting for one of its connections to be released if all are open
+     * @param host the host of the daemon
+     * @param port the port of the daemon
+     * @return a connected Socket, to be released with {@link #release(String, int)} once closed
+     * @throws IOException thrown if the connection could not be opened
+     * @throws InterruptedException thrown if interrupted while waiting for a connection to be released
+     */
+    public Socket acquire(String host, int port) throws IOException, InterruptedException {
+        String key = host + ":" + port;
+        synchronized (this) {
+            while (getOpenCount(key) >= maxConnections) {
+                if (log.isTraceEnabled()) log.trace("waiting for a connection to " + key);
+                wait();
+            }
+            openCounts.put(key, Integer.valueOf(getOpenCount(key) + 1));
+        }
+        boolean connected = false;
+        Socket socket = new Socket();
+        try {
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            connected = true;
+        } finally {
+            if (!connected) {
+                socket.close();
+                release(host, port);
+            }
+        }
+        synchronized (this) {
+            openedCount++;
+        }
+        return socket;
+    }
+
+    /**
+     * Method to release a connection to a daemon once it is closed
+     * @param host the host of the daemon
+     * @param port the port of the daemon
+     */
+    public synchronized void release(String host, int port) {
+        String key = host + ":" + port;
+        int count = getOpenCount(key);
+        if (count <= 1) {
+            openCounts.remove(key);
+        } else {
+            openCounts.put(key, Integer.valueOf(count - 1));
+        }
+        notifyAll();
+    }
+
+    /**
+     * Method to get the number of connections open to a daemon
+     * @param key the host and port of the daemon
+     * @return the number of open connections
+     */
+    private int getOpenCount(String key) {
+        Integer count = openCounts.get(key);
+        return (count == null) ? 0 : count.intValue();
+    }
+
+    /**
+     * Method to get the number of connections opened so far
+     * @return the number of connections opened
+     */
+    public synchronized long getOpenedCount() {
+        return openedCount;
+    }
+}
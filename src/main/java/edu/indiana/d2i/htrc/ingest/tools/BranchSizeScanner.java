@@ -0,0 +1,137 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  BranchSizeScanner.java
+# Description: This class is a tool to write a branch size manifest from a scan of the local Pairtree
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import edu.indiana.d2i.htrc.ingest.Constants;
+import edu.indiana.d2i.htrc.ingest.PropertyReader;
+import edu.indiana.d2i.htrc.ingest.Util;
+
+/**
+ * This class is a tool to write a branch size manifest from a scan of the local Pairtree: one
+ * <code>rsync point&lt;TAB&gt;bytes</code> line for every rsync point found under the local destination root. Each node
+ * only holds its own branches, so the manifests of all nodes are concatenated into the one used for balanced assignment
+ */
+public class BranchSizeScanner {
+    private final String rsyncPointsFilename;
+    private final String manifestFilename;
+    private final String destRoot;
+    private final String sourceCleanseTarget;
+
+    /**
+     * Constructor
+     * @param rsyncPointsFilename name of the rsync points file
+     * @param manifestFilename name of the manifest file to write
+     */
+    public BranchSizeScanner(String rsyncPointsFilename, String manifestFilename) {
+        PropertyReader propertyReader = PropertyReader.getInstance();
+        this.rsyncPointsFilename = rsyncPointsFilename;
+        this.manifestFilename = manifestFilename;
+        this.destRoot = Util.addTrailingSlash(propertyReader.getProperty(Constants.PK_RSYNC_DEST_ROOT));
+        String target = propertyReader.getProperty(Constants.PK_SOURCE_CLEANSE_TARGET);
+        this.sourceCleanseTarget = (target == null) ? "" : target.trim();
+    }
+
+    /**
+     * Method to scan the local branches and write the manifest
+     * @throws IOException thrown if the rsync points file could not be read or the manifest could not be written
+     */
+    public void scan() throws IOException {
+        final String lineSeparator = System.getProperty("line.separator");
+        BufferedReader reader = new BufferedReader(new FileReader(rsyncPointsFilename));
+        FileWriter writer = new FileWriter(manifestFilename);
+        int branchCount = 0;
+        try {
+            String line = null;
+            do {
+                line = reader.readLine();
+                if (line != null) {
+                    File branch = new File(destRoot + Util.cleanseSource(line, sourceCleanseTarget, null));
+                    if (branch.isDirectory()) {
+                        writer.write(line + "\t" + sizeOf(branch) + lineSeparator);
+                        branchCount++;
+                    }
+                }
+            } while (line != null);
+        } finally {
+            reader.close();
+            writer.close();
+        }
+        System.out.println("Wrote sizes of " + branchCount + " local branches to " + manifestFilename);
+    }
+
+    /**
+     * Method to sum up the sizes of the files under a directory
+     * @param file a File object
+     * @return the total size in bytes
+     */
+    private long sizeOf(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0L;
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Method to print the usage
+     */
+    public static void printUsage() {
+        System.out.println("BranchSizeScanner <rsyncPointsFilename> <manifestFilename>");
+    }
+
+    /**
+     * main method
+     * @param args arguments passed in by the system
+     * @throws Exception thrown if anything failed
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            printUsage();
+            System.exit(-1);
+        }
+
+        BranchSizeScanner scanner = new BranchSizeScanner(args[0], args[1]);
+        scanner.scan();
+    }
+}
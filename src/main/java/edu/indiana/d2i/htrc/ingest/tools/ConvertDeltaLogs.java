@@ -0,0 +1,110 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  ConvertDeltaLogs.java
+# Description: This class is a tool to convert text delta logs to binary delta logs
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+
+import edu.indiana.d2i.htrc.ingest.BinaryDeltaLog;
+import edu.indiana.d2i.htrc.ingest.Constants;
+import edu.indiana.d2i.htrc.ingest.PropertyReader;
+import edu.indiana.d2i.htrc.ingest.tools.RevertDeltaLogs.RegexContainsFileFilter;
+import edu.indiana.d2i.htrc.ingest.tools.RevertDeltaLogs.RegexFileFilter;
+
+/**
+ * This class is a tool to convert the text delta logs under the delta log root to binary delta logs (see
+ * {@link BinaryDeltaLog}) in place, whatever state they are in. A converted delta log keeps its name, so it can still be
+ * reverted, pushed and verified as before, only with less to read. Delta logs that are already binary are skipped
+ */
+public class ConvertDeltaLogs {
+
+    private static final String DIRNAME_REGEX = "(_[A-Z]+_)?dlog-\\d{8}-\\d{9}";
+    private static final String T_FILENAME_REGEX = "(_[A-Z]+_)?t-\\d+-\\d+\\.txt";
+
+    public static void main(String[] args) {
+        HashSet<String> targetSet = new HashSet<String>();
+        for (String arg : args) {
+            if ("-h".equals(arg) || "--help".equals(arg)) {
+                printUsage();
+                System.exit(-1);
+            }
+            targetSet.add(arg);
+        }
+
+        String[] dirRegexes = new String[] {DIRNAME_REGEX};
+        RegexContainsFileFilter dirFileFilter = new RegexContainsFileFilter(dirRegexes, targetSet.toArray(new String[0]));
+        RegexFileFilter fileFileFilter = new RegexFileFilter(new String[] {T_FILENAME_REGEX});
+
+        PropertyReader propertyReader = PropertyReader.getInstance();
+        String deltaLogRootPath = propertyReader.getProperty(Constants.PK_DELTA_LOG_ROOT);
+
+        File deltaLogRoot = new File(deltaLogRootPath);
+        File[] listFiles = deltaLogRoot.listFiles(dirFileFilter);
+
+        int convertedCount = 0;
+        int failedCount = 0;
+        long textBytes = 0L;
+        long binaryBytes = 0L;
+
+        for (File dir : listFiles) {
+            File[] tfilesList = dir.listFiles(fileFileFilter);
+            for (File tfile : tfilesList) {
+                try {
+                    if (BinaryDeltaLog.isBinary(tfile)) {
+                        System.out.println("Skipping " + tfile.getPath() + " already binary");
+                        continue;
+                    }
+                    long textLength = tfile.length();
+                    BinaryDeltaLog.convertInPlace(tfile);
+                    textBytes += textLength;
+                    binaryBytes += tfile.length();
+                    convertedCount++;
+                    System.out.println("Converted " + tfile.getPath() + " from " + textLength + " to " + tfile.length() + " bytes");
+                } catch (IOException e) {
+                    failedCount++;
+                    System.err.println("ERROR: Failed to convert " + tfile.getPath() + ": " + e.toString());
+                }
+            }
+        }
+
+        System.out.println("Converted " + convertedCount + " delta logs from " + textBytes + " to " + binaryBytes + " bytes. Failed: " + failedCount);
+    }
+
+    /**
+     * Method to print the usage
+     */
+    private static void printUsage() {
+        System.out.println("Usage: ConvertDeltaLogs [pattern [pattern ...]]");
+
+        System.out.println("Usage: ConvertDeltaLogs <-h | --help>");
+    }
+}
@@ -0,0 +1,140 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressed or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  HashRingPreview.java
+# Description: This class is a tool to preview which rsync points move between ingest nodes when the hash space changes
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.tools;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigInteger;
+
+import edu.indiana.d2i.htrc.ingest.ConsistentHashRing;
+import edu.indiana.d2i.htrc.ingest.Constants;
+import edu.indiana.d2i.htrc.ingest.PropertyReader;
+import edu.indiana.d2i.htrc.ingest.Util;
+
+/**
+ * This class is a tool to preview which rsync points move between ingest nodes when the hash space or the node weights
+ * change. The current assignment follows the properties file, by consistent hashing or by modulo hash; the new one is
+ * always by consistent hashing. Every rsync point that changes node is printed with its old and new hash key, followed
+ * by the number of rsync points per node before and after
+ */
+public class HashRingPreview {
+    private final String rsyncPointsFilename;
+
+    private final int currentHashSpace;
+    private final BigInteger currentHashSpaceBigInt;
+    private final ConsistentHashRing currentRing;
+
+    private final int newHashSpace;
+    private final ConsistentHashRing newRing;
+
+    /**
+     * Constructor
+     * @param rsyncPointsFilename name of the rsync points file
+     * @param newHashSpace the new number of ingest nodes
+     * @param newWeights comma separated weights of the new nodes, or <code>null</code> for equal weights
+     */
+    public HashRingPreview(String rsyncPointsFilename, int newHashSpace, String newWeights) {
+        PropertyReader propertyReader = PropertyReader.getInstance();
+        this.rsyncPointsFilename = rsyncPointsFilename;
+
+        int hashSpaceInt = Integer.parseInt(propertyReader.getProperty(Constants.PK_INGEST_HASH_SPACE));
+        this.currentHashSpace = hashSpaceInt > 0 ? hashSpaceInt : 1;
+        this.currentHashSpaceBigInt = BigInteger.valueOf(currentHashSpace);
+        this.currentRing = ConsistentHashRing.fromProperties(propertyReader, currentHashSpace);
+
+        int virtualNodeCount = Util.getIntProperty(propertyReader.getProperty(Constants.PK_INGEST_HASH_VIRTUAL_NODE_COUNT), ConsistentHashRing.DEFAULT_VIRTUAL_NODE_COUNT);
+        this.newHashSpace = newHashSpace;
+        this.newRing = new ConsistentHashRing(ConsistentHashRing.parseWeights(newWeights, newHashSpace), virtualNodeCount);
+    }
+
+    /**
+     * Method to print the rsync points that would move, and the number of rsync points per node
+     * @throws IOException thrown if the rsync points file could not be read
+     */
+    public void preview() throws IOException {
+        int[] currentCounts = new int[currentHashSpace];
+        int[] newCounts = new int[newHashSpace];
+        int total = 0;
+        int moved = 0;
+
+        BufferedReader bufferedReader = new BufferedReader(new FileReader(rsyncPointsFilename));
+        try {
+            String line = null;
+            do {
+                line = bufferedReader.readLine();
+                if (line != null) {
+                    int currentKey = (currentRing != null) ? currentRing.getNode(line) : Util.hashMD5Checksum(line, currentHashSpaceBigInt);
+                    int newKey = newRing.getNode(line);
+                    currentCounts[currentKey]++;
+                    newCounts[newKey]++;
+                    total++;
+                    if (currentKey != newKey) {
+                        moved++;
+                        System.out.println("MOVE " + line + " " + currentKey + " -> " + newKey);
+                    }
+                }
+            } while (line != null);
+        } finally {
+            bufferedReader.close();
+        }
+
+        System.out.println("rsync points: " + total + " moved: " + moved + (total > 0 ? " (" + (moved * 100L / total) + "%)" : ""));
+        for (int i = 0; i < Math.max(currentHashSpace, newHashSpace); i++) {
+            int currentCount = (i < currentHashSpace) ? currentCounts[i] : 0;
+            int newCount = (i < newHashSpace) ? newCounts[i] : 0;
+            System.out.println("hash key " + i + ": " + currentCount + " -> " + newCount);
+        }
+    }
+
+    /**
+     * Method to print the usage
+     */
+    public static void printUsage() {
+        System.out.println("HashRingPreview <rsyncPointsFilename> <newHashSpace> [<newWeights>]");
+    }
+
+    /**
+     * main method
+     * @param args arguments passed in by the system
+     * @throws Exception thrown if anything failed
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            printUsage();
+            System.exit(-1);
+        }
+
+        HashRingPreview preview = new HashRingPreview(args[0], Integer.parseInt(args[1]), (args.length > 2) ? args[2] : null);
+        preview.preview();
+    }
+}
@@ -45,6 +45,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+import edu.indiana.d2i.htrc.ingest.BalancedAssignment;
+import edu.indiana.d2i.htrc.ingest.ConsistentHashRing;
 import edu.indiana.d2i.htrc.ingest.Constants;
 import edu.indiana.d2i.htrc.ingest.PropertyReader;
 import edu.indiana.d2i.htrc.ingest.Util;
@@ -180,6 +182,8 @@ public class PairtreeTrimmer {
     
     private int myHashKey = -1;
     private BigInteger hashSpace = null;
+    private ConsistentHashRing hashRing = null;
+    private Map<String, Integer> assignmentMap = null;
     
     private String rsyncPointsPath = null;
     
@@ -226,6 +230,22 @@ public class PairtreeTrimmer {
         
         hashSpace = BigInteger.valueOf(hashSpaceInt);
         
+        hashRing = ConsistentHashRing.fromProperties(propertyReader, hashSpaceInt);
+        
+        // the Ingester rebalances and saves the assignment; the trimmer only follows it
+        if (Util.getBooleanProperty(propertyReader.getProperty(Constants.PK_PERFORM_BALANCED_ASSIGNMENT))) {
+            String assignmentPath = propertyReader.getProperty(Constants.PK_INGEST_ASSIGNMENT_FILE);
+            try {
+                assignmentMap = (assignmentPath != null) ? BalancedAssignment.loadAssignment(assignmentPath) : null;
+            } catch (IOException e) {
+                System.err.println("Unable to read assignment file " + assignmentPath);
+                e.printStackTrace(System.err);
+            }
+            if (assignmentMap == null) {
+                System.out.println("No balanced assignment found. Keeping branches by hash");
+            }
+        }
+        
         sourceCleanseTarget = propertyReader.getProperty(Constants.PK_SOURCE_CLEANSE_TARGET);
         
         if (sourceCleanseTarget == null) {
@@ -271,7 +291,8 @@ public class PairtreeTrimmer {
         do {
             line = bufferedReader.readLine();
             if (line != null) {
-                int hash = Util.hashMD5Checksum(line, hashSpace);
+                Integer assignedKey = (assignmentMap != null) ? assignmentMap.get(line) : null;
+                int hash = (assignedKey != null) ? assignedKey.intValue() : (hashRing != null) ? hashRing.getNode(line) : Util.hashMD5Checksum(line, hashSpace);
                 if (hash == myHashKey) {
                     String cleanedSource = Util.addTrailingSlash(Util.cleanseSource(line, sourceCleanseTarget, null));
                     addPathToTree(keepTree, cleanedSource);
@@ -33,17 +33,25 @@ package edu.indiana.d2i.htrc.ingest.tools;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import edu.indiana.d2i.htrc.ingest.Constants;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
 import edu.indiana.d2i.htrc.ingest.PropertyReader;
+import edu.indiana.d2i.htrc.ingest.cassandra.PairtreeToCassandraDataSyncker;
 import edu.indiana.d2i.htrc.ingest.tools.RevertDeltaLogs.FromToFactory.FromDirSelector;
 import edu.indiana.d2i.htrc.ingest.tools.RevertDeltaLogs.FromToFactory.ToDirRenamer;
 
 /**
- * This class is a tool to modify the state of the delta logs and delta log directories to another state
+ * This class is a tool to modify the state of the delta logs and delta log directories to another state. If an ingest
+ * ledger is configured, the delta log directories it tracks keep their names and are rewound in the ledger with a single
+ * record each, so the volume level progress recorded for them is forgotten as well; directories renamed before the
+ * ledger was configured are still reverted by renaming them
  * @author Yiming Sun
  *
  */
@@ -597,6 +605,63 @@ public class RevertDeltaLogs {
         
     }
     
+    /**
+     * Method to rewind the delta log directories the ingest ledger records in the "from" state to the "to" state. The
+     * directories keep their names
+     * @param ingestLedger the IngestLedger object
+     * @param from the state of the delta logs to revert from
+     * @param to the state of the delta logs to revert to
+     * @param patterns an array of patterns the directory names must contain
+     */
+    static void rewindInLedger(IngestLedger ingestLedger, String from, String to, String[] patterns) {
+        List<String> dirNames = new ArrayList<String>();
+        if (ALL.equals(from) || VERIFIED.equals(from)) {
+            dirNames.addAll(ingestLedger.getDeltaLogDirNames(IngestLedger.State.VERIFIED));
+        }
+        if (ALL.equals(from) || PROCESSED.equals(from)) {
+            dirNames.addAll(ingestLedger.getDeltaLogDirNames(IngestLedger.State.PARSED));
+        }
+        
+        ContainsFileFilter containsFileFilter = new ContainsFileFilter(patterns);
+        IngestLedger.State state = RAW.equals(to) ? IngestLedger.State.RAW : IngestLedger.State.PARSED;
+        for (String dirName : dirNames) {
+            if (!containsFileFilter.accept(new File(dirName))) {
+                continue;
+            }
+            try {
+                ingestLedger.rewind(dirName, state);
+                System.out.println("Rewound " + dirName + " to " + to + " in the ingest ledger");
+            } catch (IOException e) {
+                System.err.println("ERROR: Failed to rewind " + dirName + " in the ingest ledger. Leaving it as is: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Method to record the raw delta log directories under a delta log root, and their raw delta log files, as processed
+     * in the ingest ledger. The directories and files keep their names
+     * @param deltaLogRoot the delta log root directory
+     * @param ingestLedger the IngestLedger object
+     * @param patterns an array of patterns the directory names must contain
+     */
+    static void markRawInLedger(File deltaLogRoot, IngestLedger ingestLedger, String[] patterns) {
+        ContainsFileFilter containsFileFilter = new ContainsFileFilter(patterns);
+        for (File dir : PairtreeToCassandraDataSyncker.listUnprocessedDeltaLogDirs(deltaLogRoot, ingestLedger)) {
+            if (!containsFileFilter.accept(dir)) {
+                continue;
+            }
+            try {
+                for (File tfile : PairtreeToCassandraDataSyncker.listUnparsedDeltaLogFiles(dir, ingestLedger)) {
+                    ingestLedger.recordDeltaLog(tfile.getPath(), IngestLedger.State.PARSED);
+                }
+                ingestLedger.recordDeltaLogDir(dir.getName(), IngestLedger.State.PARSED);
+                System.out.println("Recorded " + dir.getPath() + " as " + PROCESSED + " in the ingest ledger");
+            } catch (IOException e) {
+                System.err.println("ERROR: Failed to record " + dir.getPath() + " in the ingest ledger. Leaving it as is: " + e.getMessage());
+            }
+        }
+    }
+    
     /**
      * main method
      * @param args arguments passed in by the system
@@ -666,12 +731,33 @@ public class RevertDeltaLogs {
             
             File deltaLogRoot = new File(deltaLogRootPath);
             
+            IngestLedger ingestLedger = IngestLedger.getConfiguredInstance();
+            
+            if (ingestLedger != null && special) {
+                // raw directories are tracked by the ledger alone, so none is renamed
+                markRawInLedger(deltaLogRoot, ingestLedger, patterns);
+                ingestLedger.close();
+                return;
+            } else if (ingestLedger != null) {
+                rewindInLedger(ingestLedger, from, to, patterns);
+            }
+            
             FileFilter dirFileFilter = fromDirSelector.getDirFileFilter();
             FileFilter fileFileFilter = fromDirSelector.getFileFileFilter();
             
             File[] listFiles = deltaLogRoot.listFiles(dirFileFilter);
             
             for (File file : listFiles) {
+                if (ingestLedger != null && RAW.equals(to)) {
+                    // forget any progress recorded for it, so its delta logs are pushed again once raw
+                    try {
+                        ingestLedger.rewind(file.getName(), IngestLedger.State.RAW);
+                    } catch (IOException e) {
+                        System.err.println("ERROR: Failed to rewind " + file.getName() + " in the ingest ledger. Leaving it as is: " + e.getMessage());
+                        continue;
+                    }
+                }
+                
                 File[] tfilesList = file.listFiles(fileFileFilter);
                 for (File tfile : tfilesList) {
                     String rawFilename = fromDirSelector.getRawFilename(tfile);
@@ -704,6 +790,10 @@ public class RevertDeltaLogs {
                     System.out.println("Skipping reverting dir " + file.getPath() + " to its current name");
                 }
             }
+            
+            if (ingestLedger != null) {
+                ingestLedger.close();
+            }
         } catch (IllegalArgumentException e) {
             printUsage();
         }
@@ -33,9 +33,14 @@ package edu.indiana.d2i.htrc.ingest.verify;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.log4j.Logger;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
 import edu.indiana.d2i.htrc.ingest.Constants;
-import edu.indiana.d2i.htrc.ingest.JobQueue;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
 import edu.indiana.d2i.htrc.ingest.PropertyReader;
 
 /**
@@ -83,16 +88,69 @@ public class ProcessedDeltaLogLister implements Runnable {
         
     }
 
+    private static Logger log = Logger.getLogger(ProcessedDeltaLogLister.class);
+    
+    protected final BoundedJobQueue<File> processedDeltaLogQueue;
+    
+    protected final IngestLedger ingestLedger;
     
-    protected final JobQueue<File> processedDeltaLogQueue;
+    /**
+     * Constructor
+     * @param processedDeltaLogQueue a BoundedJobQueue of File objects representing delta log 
+     */
+    ProcessedDeltaLogLister(BoundedJobQueue<File> processedDeltaLogQueue) {
+        this(processedDeltaLogQueue, null);
+    }
     
     /**
      * Constructor
-     * @param processedDeltaLogQueue a JobQueue of File objects representing delta log 
+     * @param processedDeltaLogQueue a BoundedJobQueue of File objects representing delta log 
+     * @param ingestLedger an IngestLedger object the parsed delta logs are recorded in, or <code>null</code> if they are renamed
      */
-    ProcessedDeltaLogLister(JobQueue<File> processedDeltaLogQueue) {
+    ProcessedDeltaLogLister(BoundedJobQueue<File> processedDeltaLogQueue, IngestLedger ingestLedger) {
         
         this.processedDeltaLogQueue = processedDeltaLogQueue;
+        this.ingestLedger = ingestLedger;
+    }
+    
+    /**
+     * Method to list the parsed delta log files under a delta log root that are left to verify. If a ledger is kept, those
+     * are the delta logs it records as parsed, outside of the directories it records as verified; otherwise they are the
+     * files renamed as parsed in the processed and unprocessed delta log directories
+     * @param deltaLogRootDir the delta log root directory
+     * @param ingestLedger an IngestLedger object the parsed delta logs are recorded in, or <code>null</code> if they are renamed
+     * @return a List of File objects representing the parsed delta log files
+     */
+    public static List<File> listParsedDeltaLogs(File deltaLogRootDir, IngestLedger ingestLedger) {
+        List<File> parsedDeltaLogs = new ArrayList<File>();
+        if (ingestLedger != null) {
+            for (String key : ingestLedger.getDeltaLogKeys(IngestLedger.State.PARSED)) {
+                File parsedFile = new File(deltaLogRootDir, key);
+                if (ingestLedger.getDeltaLogDirState(parsedFile.getParentFile().getName()) == IngestLedger.State.VERIFIED) {
+                    continue;
+                }
+                if (parsedFile.isFile()) {
+                    parsedDeltaLogs.add(parsedFile);
+                } else {
+                    log.warn("Parsed deltalog file " + parsedFile.getPath() + " recorded in the ingest ledger is missing. Skipping it");
+                }
+            }
+            return parsedDeltaLogs;
+        }
+        
+        File[] listFiles = deltaLogRootDir.listFiles(new DeltaLogDirFilter());
+        if (listFiles == null) {
+            return parsedDeltaLogs;
+        }
+        for (File deltaLogDir : listFiles) {
+            File[] parsedFiles = deltaLogDir.listFiles(new ParsedTFileFilter());
+            if (parsedFiles != null) {
+                for (File parsedFile : parsedFiles) {
+                    parsedDeltaLogs.add(parsedFile);
+                }
+            }
+        }
+        return parsedDeltaLogs;
     }
     
     /**
@@ -105,15 +163,15 @@ public class ProcessedDeltaLogLister implements Runnable {
         
         File deltaLogRootDir = new File(deltaLogRootPath);
         
-        File[] listFiles = deltaLogRootDir.listFiles(new DeltaLogDirFilter());
-        for (File deltaLogDir : listFiles) {
-            File[] parsedFiles = deltaLogDir.listFiles(new ParsedTFileFilter());
-            for (File parsedFile : parsedFiles) {
-                processedDeltaLogQueue.enqueue(parsedFile);
+        try {
+            for (File parsedFile : listParsedDeltaLogs(deltaLogRootDir, ingestLedger)) {
+                processedDeltaLogQueue.put(parsedFile);
             }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while queuing parsed delta log files. Remaining delta logs are left for the next run", e);
+        } finally {
+            processedDeltaLogQueue.close();
         }
-
-        processedDeltaLogQueue.markDone();
     }
 
 }
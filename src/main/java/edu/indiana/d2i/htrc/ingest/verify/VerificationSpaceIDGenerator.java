@@ -31,11 +31,8 @@
  */
 package edu.indiana.d2i.htrc.ingest.verify;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -44,8 +41,13 @@ import me.prettyprint.hector.api.exceptions.HTimedOutException;
 
 import org.apache.log4j.Logger;
 
+import edu.indiana.d2i.htrc.ingest.BinaryDeltaLog;
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
 import edu.indiana.d2i.htrc.ingest.Constants;
-import edu.indiana.d2i.htrc.ingest.JobQueue;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.Record;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.RecordHandler;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
 import edu.indiana.d2i.htrc.ingest.PropertyReader;
 import gov.loc.repository.pairtree.Pairtree;
 
@@ -62,131 +64,105 @@ public class VerificationSpaceIDGenerator {
     }
     
     static interface IDGenerator {
-        public void generate(JobQueue<String> jobQueue);
+        public void generate(BoundedJobQueue<String> jobQueue) throws InterruptedException;
     }
     
     static class IDFromCassandraGenerator implements IDGenerator {
 
         /**
-         * @see edu.indiana.d2i.htrc.ingest.verify.VerificationSpaceIDGenerator.IDGenerator#generate(edu.indiana.d2i.htrc.ingest.JobQueue)
+         * @see edu.indiana.d2i.htrc.ingest.verify.VerificationSpaceIDGenerator.IDGenerator#generate(edu.indiana.d2i.htrc.ingest.BoundedJobQueue)
          */
         @Override
-        public void generate(JobQueue<String> jobQueue) {
+        public void generate(BoundedJobQueue<String> jobQueue) throws InterruptedException {
             HectorAccessor accessor = HectorAccessor.getInstance();
             try {
                 List<String> idList = accessor.getAllVolumeIDs();
                 for (String id : idList) {
-                    jobQueue.enqueue(id);
+                    jobQueue.put(id);
                 }
             } catch (HTimedOutException e) {
                 log.error(e.toString(), e);
             }
-            jobQueue.markDone();
         }
         
     }
     
     static class IDFromDeltaLogGenerator implements IDGenerator {
 
-        static class DeltaLogDirFilter implements FileFilter {
-            public static final String PROCESSED_DLOG_PATTERN = "_PROCESSED_dlog-\\d{8}-\\d{9}";
-            public static final String UNPROCESSED_DLOG_PATTERN = "dlog-\\d{8}-\\d{9}";
-            
-            @Override
-            public boolean accept(File file) {
-                String filename = file.getName();
-                return (filename.matches(PROCESSED_DLOG_PATTERN) || filename.matches(UNPROCESSED_DLOG_PATTERN));
-            }
-        }
-        
-        static class ParsedTFileFilter implements FileFilter {
-            public static final String PARSED_T_PATTERN = "_PARSED_t-\\d+-\\d+.txt";
-            
-            @Override
-            public boolean accept(File file) {
-                return file.getName().matches(PARSED_T_PATTERN);
-            }
-            
-        }
-        
         static class DeltaLogVolumeIDExtractor implements Runnable {
             private static Logger log = Logger.getLogger(DeltaLogVolumeIDExtractor.class);
-            private JobQueue<File> deltaLogQueue;
-            private JobQueue<String> volumeIDQueue;
+            private BoundedJobQueue<File> deltaLogQueue;
+            private BoundedJobQueue<String> volumeIDQueue;
             private Pairtree pairtree;
             
-            DeltaLogVolumeIDExtractor(JobQueue<File> deltaLogQueue, JobQueue<String> volumeIDQueue) {
+            DeltaLogVolumeIDExtractor(BoundedJobQueue<File> deltaLogQueue, BoundedJobQueue<String> volumeIDQueue) {
                 this.deltaLogQueue = deltaLogQueue;
                 this.volumeIDQueue = volumeIDQueue;
                 pairtree = new Pairtree();
             }
             
             public void run() {
-                while (!deltaLogQueue.isDone()) {
-                    File file = deltaLogQueue.dequeue();
-                    if (log.isTraceEnabled()) log.trace("extracting volumeID from " + file.getPath());
-                    BufferedReader bufferedReader = null;
-                    String prefix = null;
-                    try {
-                        bufferedReader = new BufferedReader(new FileReader(file));
-                        String line = null;
-                        do {
-                            line = bufferedReader.readLine();
-                            if (line != null) {
-                                if (line.endsWith(".zip")) {
-                                    int index = line.lastIndexOf('/');
-                                    String zipFilename = line.substring(index + 1);
-                                    String cleanedPartialVolumeID = zipFilename.substring(0, zipFilename.length() - ".zip".length());
-                                    String uncleanedPartialVolumeID = pairtree.uncleanId(cleanedPartialVolumeID);
-                                    String volumeID = prefix + uncleanedPartialVolumeID;
-                                    if (log.isTraceEnabled()) log.trace("extracted volumeID: " + volumeID);
-                                    volumeIDQueue.enqueue(volumeID);
-                                } else if (line.startsWith("PREFIX=")) {
-                                    prefix = line.substring("PREFIX=".length());
-                                }
-                            }
-                        } while (line != null);
-                    } catch (FileNotFoundException e) {
-                        log.error("Delta log file not found " + file.getPath(), e);
-                    } catch (IOException e) {
-                        log.error("Error reading delta log file " + file.getPath(), e);
-                    } finally {
-                        if (bufferedReader != null) {
-                            try {
-                                bufferedReader.close();
-                            } catch (IOException e) {
-                                log.error("Failed to close BufferedReader on file " + file.getPath(), e);
-                            }
+                try {
+                    File file = deltaLogQueue.take();
+                    while (file != null) {
+                        extract(file);
+                        file = deltaLogQueue.take();
+                    }
+                } catch (InterruptedException e) {
+                    log.error("Interrupted while extracting volumeIDs from delta logs", e);
+                }
+            }
+            
+            private void extract(File file) throws InterruptedException {
+                if (log.isTraceEnabled()) log.trace("extracting volumeID from " + file.getPath());
+                try {
+                    DeltaLogScanner scanner = new DeltaLogScanner(file);
+                    if (scanner.isBinary()) {
+                        for (String volumeID : scanner.getIndexedVolumeIDs(BinaryDeltaLog.VOLUME_ZIP_UPDATED)) {
+                            volumeIDQueue.put(volumeID);
                         }
+                        return;
                     }
-                    
+                    final String prefix = scanner.getHeader("PREFIX");
+                    scanner.scan(new RecordHandler() {
+                        public void handleRecord(Record record) throws InterruptedException {
+                            if (record.isZip() && !record.isDeletion() && !record.isAttributeOnly()) {
+                                String volumeID = prefix + pairtree.uncleanId(record.getCleanedPartialVolumeID());
+                                if (log.isTraceEnabled()) log.trace("extracted volumeID: " + volumeID);
+                                volumeIDQueue.put(volumeID);
+                            }
+                        }
+                    }, 1);
+                } catch (FileNotFoundException e) {
+                    log.error("Delta log file not found " + file.getPath(), e);
+                } catch (IOException e) {
+                    log.error("Error reading delta log file " + file.getPath(), e);
                 }
             }
         }
         
         private static Logger log = Logger.getLogger(IDFromDeltaLogGenerator.class);
         /**
-         * @see edu.indiana.d2i.htrc.ingest.verify.VerificationSpaceIDGenerator.IDGenerator#generate(edu.indiana.d2i.htrc.ingest.JobQueue)
+         * @see edu.indiana.d2i.htrc.ingest.verify.VerificationSpaceIDGenerator.IDGenerator#generate(edu.indiana.d2i.htrc.ingest.BoundedJobQueue)
          */
         @Override
-        public void generate(JobQueue<String> jobQueue) {
+        public void generate(BoundedJobQueue<String> jobQueue) throws InterruptedException {
             PropertyReader reader = PropertyReader.getInstance();
             String deltaLogRootPath = reader.getProperty(Constants.PK_DELTA_LOG_ROOT);
             
             int extracterCount = Integer.parseInt(reader.getProperty(Constants.PK_DELTALOG_VOLUMEID_EXTRACTOR_THREAD_COUNT));
             
-            JobQueue<File> deltaLogQueue = new JobQueue<File>("deltaLogQueue");
+            BoundedJobQueue<File> deltaLogQueue = new BoundedJobQueue<File>("deltaLogQueue", BoundedJobQueue.DEFAULT_CAPACITY);
             List<Thread> threads = launchExtractorThreads(extracterCount, deltaLogQueue, jobQueue);
 
             File deltaLogRootDir = new File(deltaLogRootPath);
-            File[] listFiles = deltaLogRootDir.listFiles(new DeltaLogDirFilter());
-            for (File file : listFiles) {
-                File[] parsedTFiles = file.listFiles(new ParsedTFileFilter());
-                for (File parsedTFile : parsedTFiles) {
-                    deltaLogQueue.enqueue(parsedTFile);
+            try {
+                for (File parsedTFile : ProcessedDeltaLogLister.listParsedDeltaLogs(deltaLogRootDir, IngestLedger.getConfiguredInstance())) {
+                    deltaLogQueue.put(parsedTFile);
                 }
+            } finally {
+                deltaLogQueue.close();
             }
-            deltaLogQueue.markDone();
             
             for (Thread thread : threads) {
                 try {
@@ -200,7 +176,7 @@ public class VerificationSpaceIDGenerator {
         }
         
         
-        private List<Thread> launchExtractorThreads(int threadCount, JobQueue<File> deltaLogQueue, JobQueue<String> volumeIDQueue) {
+        private List<Thread> launchExtractorThreads(int threadCount, BoundedJobQueue<File> deltaLogQueue, BoundedJobQueue<String> volumeIDQueue) {
             List<Thread> threads = new ArrayList<Thread>();
             for (int i = 0; i < threadCount; i++) {
                 DeltaLogVolumeIDExtractor extractor = new DeltaLogVolumeIDExtractor(deltaLogQueue, volumeIDQueue);
@@ -215,10 +191,10 @@ public class VerificationSpaceIDGenerator {
     }
     
     private static Logger log = Logger.getLogger(VerificationSpaceIDGenerator.class);
-    private JobQueue<String> jobQueue;
+    private BoundedJobQueue<String> jobQueue;
     private VerificationSpaceEnum verificationSpace;
     
-    public VerificationSpaceIDGenerator(JobQueue<String> jobQueue, VerificationSpaceEnum verificationSpace) {
+    public VerificationSpaceIDGenerator(BoundedJobQueue<String> jobQueue, VerificationSpaceEnum verificationSpace) {
         this.jobQueue = jobQueue;
         this.verificationSpace = verificationSpace;
     }
@@ -236,8 +212,13 @@ public class VerificationSpaceIDGenerator {
             break;
         }
         
-        idGenerator.generate(jobQueue);
-        jobQueue.markDone();
+        try {
+            idGenerator.generate(jobQueue);
+        } catch (InterruptedException e) {
+            log.error("Interrupted while generating volumeIDs", e);
+        } finally {
+            jobQueue.close();
+        }
     }
 
 }
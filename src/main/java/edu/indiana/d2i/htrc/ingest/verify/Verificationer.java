@@ -34,13 +34,15 @@ package edu.indiana.d2i.htrc.ingest.verify;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
 import edu.indiana.d2i.htrc.ingest.Constants;
-import edu.indiana.d2i.htrc.ingest.JobQueue;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
 import edu.indiana.d2i.htrc.ingest.PropertyReader;
 import edu.indiana.d2i.htrc.ingest.Util;
 import edu.indiana.d2i.htrc.ingest.verify.Verifier.VerificationLevelEnum;
@@ -82,12 +84,35 @@ public class Verificationer {
 
     private static Logger log = Logger.getLogger(Verificationer.class);
     
+    protected BoundedJobQueue<String> pushedVolumeQueue;
+    
+    protected List<Thread> pipelinedThreadList;
+    
+    protected IngestLedger ingestLedger;
+    
+    /**
+     * Constructor
+     */
+    public Verificationer() {
+        this(null);
+    }
+    
+    /**
+     * Constructor for the pipelined mode, where volumes are handed over by the Cassandra push stage as soon as they are pushed
+     * @param pushedVolumeQueue a BoundedJobQueue of volumeIDs of pushed volumes, or <code>null</code> if not in pipelined mode
+     */
+    public Verificationer(BoundedJobQueue<String> pushedVolumeQueue) {
+        this.pushedVolumeQueue = pushedVolumeQueue;
+        this.pipelinedThreadList = null;
+        this.ingestLedger = IngestLedger.getConfiguredInstance();
+    }
+    
     /**
      * Method to carry out the verification process
      */
     public void verify() {
 
-        JobQueue<File> processedDeltaLogQueue = new JobQueue<File>("ProcessedDeltaLogQueue");
+        BoundedJobQueue<File> processedDeltaLogQueue = createProcessedDeltaLogQueue();
 
         List<Thread> verifierThreadList = launchVerifierThreads(processedDeltaLogQueue);
         listProcessedDeltaLogs(processedDeltaLogQueue);
@@ -105,12 +130,66 @@ public class Verificationer {
         markProcessedDlogDirsAsDone();
     }
     
+    /**
+     * Method to start the verification process in pipelined mode. It launches the verifier threads and queues the parsed
+     * delta logs left unverified by earlier runs; the volumes of the current run are put into the pushed volume queue by the
+     * Cassandra push stage. This method must be called before the push stage starts, and finishPipelined() must be called
+     * once the push stage is done
+     */
+    public void startPipelined() {
+        BoundedJobQueue<File> processedDeltaLogQueue = createProcessedDeltaLogQueue();
+        pipelinedThreadList = launchVerifierThreads(processedDeltaLogQueue, pushedVolumeQueue);
+        
+        // list in the calling thread, so parsed delta logs of the current run are not picked up as leftovers
+        ProcessedDeltaLogLister lister = new ProcessedDeltaLogLister(processedDeltaLogQueue, ingestLedger);
+        lister.run();
+    }
+    
+    /**
+     * Method to finish the verification process in pipelined mode. It closes the pushed volume queue, waits for the
+     * verifier threads to drain it, and then marks the processed delta log directories as verified, unless the stages
+     * before it failed
+     * @param upstreamSucceeded a boolean flag indicating if the rsync and Cassandra push stages ran to their end. If not,
+     * the delta log files and directories are left as they are, so the next run verifies them again
+     */
+    public void finishPipelined(boolean upstreamSucceeded) {
+        if (pushedVolumeQueue != null) {
+            pushedVolumeQueue.close();
+        }
+        if (pipelinedThreadList != null) {
+            for (Thread thread : pipelinedThreadList) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    log.warn("Joining thread interrupted", e);
+                }
+            }
+            pipelinedThreadList = null;
+        }
+        
+        if (upstreamSucceeded) {
+            markParsedDeltaLogsAsExtracted();
+            markProcessedDlogDirsAsDone();
+        } else {
+            log.warn("Rsync or cassandra push stage did not finish. Leaving the processed deltaLog directories unverified for the next run");
+        }
+    }
+    
+    /**
+     * Method to create the queue of processed delta logs
+     * @return a BoundedJobQueue of File objects
+     */
+    protected BoundedJobQueue<File> createProcessedDeltaLogQueue() {
+        int jobQueueCapacity = Util.getIntProperty(PropertyReader.getInstance().getProperty(Constants.PK_JOB_QUEUE_CAPACITY), BoundedJobQueue.DEFAULT_CAPACITY);
+        return new BoundedJobQueue<File>("ProcessedDeltaLogQueue", jobQueueCapacity);
+    }
+    
     /**
      * Method to list processed delta logs
-     * @param processedDeltaLogQueue a JobQueue of File objects containing processed delta logs
+     * @param processedDeltaLogQueue a BoundedJobQueue of File objects containing processed delta logs
      */
-    protected void listProcessedDeltaLogs(JobQueue<File> processedDeltaLogQueue) {
-        ProcessedDeltaLogLister lister = new ProcessedDeltaLogLister(processedDeltaLogQueue);
+    protected void listProcessedDeltaLogs(BoundedJobQueue<File> processedDeltaLogQueue) {
+        ProcessedDeltaLogLister lister = new ProcessedDeltaLogLister(processedDeltaLogQueue, ingestLedger);
         Thread thread = new Thread(lister);
         thread.start();
         
@@ -118,10 +197,20 @@ public class Verificationer {
     
     /**
      * Method to launch verification threads
-     * @param processedDeltaLogQueue a JobQueue of File objects containing processed delta logs
+     * @param processedDeltaLogQueue a BoundedJobQueue of File objects containing processed delta logs
      * @return a List of Thread objects
      */
-    protected List<Thread> launchVerifierThreads(JobQueue<File> processedDeltaLogQueue) {
+    protected List<Thread> launchVerifierThreads(BoundedJobQueue<File> processedDeltaLogQueue) {
+        return launchVerifierThreads(processedDeltaLogQueue, null);
+    }
+    
+    /**
+     * Method to launch verification threads
+     * @param processedDeltaLogQueue a BoundedJobQueue of File objects containing processed delta logs
+     * @param volumeIDQueue a BoundedJobQueue of volumeIDs to verify after the processed delta logs, or <code>null</code> if there are none
+     * @return a List of Thread objects
+     */
+    protected List<Thread> launchVerifierThreads(BoundedJobQueue<File> processedDeltaLogQueue, BoundedJobQueue<String> volumeIDQueue) {
 
         List<Thread> threads = new ArrayList<Thread>();
 
@@ -136,9 +225,12 @@ public class Verificationer {
             verificationLevel = VerificationLevelEnum.VERIFY_PAGE_SIZE;
         }
         
+        int scannerThreadCount = Util.getIntProperty(reader.getProperty(Constants.PK_DELTA_LOG_SCANNER_THREAD_COUNT), 1);
         
         for (int i = 0; i < threadCount; i++) {
-            Verifier verifier = new Verifier(processedDeltaLogQueue, verificationLevel);
+            Verifier verifier = new Verifier(processedDeltaLogQueue, volumeIDQueue, verificationLevel);
+            verifier.setIngestLedger(ingestLedger);
+            verifier.setScannerThreadCount(scannerThreadCount);
             Thread thread = new Thread(verifier);
             threads.add(thread);
             thread.start();
@@ -147,6 +239,53 @@ public class Verificationer {
         return threads;
         
     }
+    /**
+     * Method to rename the parsed delta log files in processed delta log directories to extracted delta log files. It is used in
+     * pipelined mode, where the volumes of those delta logs are verified as they are pushed rather than extracted from the files
+     */
+    protected void markParsedDeltaLogsAsExtracted() {
+        PropertyReader propertyReader = PropertyReader.getInstance();
+        
+        String deltaLogRoot = propertyReader.getProperty(Constants.PK_DELTA_LOG_ROOT);
+        markParsedDeltaLogsAsExtracted(new File(deltaLogRoot), ingestLedger);
+    }
+    
+    /**
+     * Method to rename the parsed delta log files in the processed delta log directories under a delta log root to
+     * extracted delta log files
+     * @param deltaLogRootDir the delta log root directory
+     */
+    public static void markParsedDeltaLogsAsExtracted(File deltaLogRootDir) {
+        markParsedDeltaLogsAsExtracted(deltaLogRootDir, null);
+    }
+    
+    /**
+     * Method to rename the parsed delta log files in the processed delta log directories under a delta log root to
+     * extracted delta log files. Nothing is renamed if a ledger is kept, as the parsed delta logs of a directory are no
+     * longer listed once the ledger records the directory as verified
+     * @param deltaLogRootDir the delta log root directory
+     * @param ingestLedger an IngestLedger object the delta log directories are recorded in, or <code>null</code> if no ledger is kept
+     */
+    public static void markParsedDeltaLogsAsExtracted(File deltaLogRootDir, IngestLedger ingestLedger) {
+        if (ingestLedger != null) {
+            return;
+        }
+        File[] processedDlogDirList = deltaLogRootDir.listFiles((FileFilter)new ProcessedDeltaLogDirectoryFilter());
+        if (processedDlogDirList == null) {
+            return;
+        }
+        
+        for (File dir : processedDlogDirList) {
+            File[] parsedFiles = dir.listFiles(new ProcessedDeltaLogLister.ParsedTFileFilter());
+            for (File parsedFile : parsedFiles) {
+                File newFile = new File(dir, "_XTRACTED_" + parsedFile.getName().substring("_PARSED_".length()));
+                if (!parsedFile.renameTo(newFile)) {
+                    log.error("Failed to rename parsed deltalog file " + parsedFile.getPath() + " to " + newFile.getPath());
+                }
+            }
+        }
+    }
+    
     /**
      * Method to mark processed delta log directories
      */
@@ -154,8 +293,35 @@ public class Verificationer {
         PropertyReader propertyReader = PropertyReader.getInstance();
         
         String deltaLogRoot = propertyReader.getProperty(Constants.PK_DELTA_LOG_ROOT);
-        File deltaLogRootDir = new File(deltaLogRoot);
-        
+        markProcessedDlogDirsAsDone(new File(deltaLogRoot), ingestLedger);
+    }
+    
+    /**
+     * Method to mark the processed delta log directories under a delta log root as verified
+     * @param deltaLogRootDir the delta log root directory
+     */
+    public static void markProcessedDlogDirsAsDone(File deltaLogRootDir) {
+        markProcessedDlogDirsAsDone(deltaLogRootDir, null);
+    }
+    
+    /**
+     * Method to mark the processed delta log directories under a delta log root as verified, by recording them in the
+     * IngestLedger if one is kept, or else by renaming them
+     * @param deltaLogRootDir the delta log root directory
+     * @param ingestLedger an IngestLedger object the delta log directories are recorded in, or <code>null</code> if no ledger is kept
+     */
+    public static void markProcessedDlogDirsAsDone(File deltaLogRootDir, IngestLedger ingestLedger) {
+        if (ingestLedger != null) {
+            for (String dirName : ingestLedger.getDeltaLogDirNames(IngestLedger.State.PARSED)) {
+                try {
+                    ingestLedger.recordDeltaLogDir(dirName, IngestLedger.State.VERIFIED);
+                    log.info("deltaLog directory " + dirName + " recorded as verified in the ingest ledger");
+                } catch (IOException e) {
+                    log.error("Unable to record deltaLog directory " + dirName + " as verified in the ingest ledger", e);
+                }
+            }
+            return;
+        }
         FileFilter processedDeltaLogDirectoryFilter = new ProcessedDeltaLogDirectoryFilter();
         
 
@@ -31,21 +31,25 @@
  */
 package edu.indiana.d2i.htrc.ingest.verify;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
 
+import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.exceptions.HTimedOutException;
 
 import org.apache.log4j.Logger;
 
-import edu.indiana.d2i.htrc.ingest.JobQueue;
+import edu.indiana.d2i.htrc.ingest.BinaryDeltaLog;
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.Record;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.RecordHandler;
+import edu.indiana.d2i.htrc.ingest.IngestLedger;
 import edu.indiana.d2i.htrc.ingest.Util;
 import edu.indiana.d2i.htrc.ingest.verify.HectorAccessor.PageChecksumMetadata;
 import edu.indiana.d2i.htrc.ingest.verify.HectorAccessor.PageSizeMetadata;
@@ -98,81 +102,165 @@ public class Verifier implements Runnable {
     
     protected VerificationLevelEnum verificationLevel;
     protected HectorAccessor hectorAccessor;
-    protected JobQueue<File> jobQueue;
+    protected BoundedJobQueue<File> jobQueue;
+    protected BoundedJobQueue<String> volumeIDQueue;
     protected Pairtree pairtree;
+    protected IngestLedger ingestLedger;
+    protected int scannerThreadCount;
 
     /**
      * Constructor
-     * @param jobQueue a JobQueue of File objects representing delta logs
+     * @param jobQueue a BoundedJobQueue of File objects representing delta logs
      * @param verificationLevel level at which the verification is to be done
      */
-    protected Verifier(JobQueue<File> jobQueue, VerificationLevelEnum verificationLevel) {
+    protected Verifier(BoundedJobQueue<File> jobQueue, VerificationLevelEnum verificationLevel) {
+        this(jobQueue, null, verificationLevel);
+    }
+    
+    /**
+     * Constructor
+     * @param jobQueue a BoundedJobQueue of File objects representing delta logs
+     * @param volumeIDQueue a BoundedJobQueue of volumeIDs to verify once jobQueue reaches its end, or <code>null</code> if there are none
+     * @param verificationLevel level at which the verification is to be done
+     */
+    protected Verifier(BoundedJobQueue<File> jobQueue, BoundedJobQueue<String> volumeIDQueue, VerificationLevelEnum verificationLevel) {
         this.jobQueue = jobQueue;
+        this.volumeIDQueue = volumeIDQueue;
         this.verificationLevel = verificationLevel;
         this.hectorAccessor = HectorAccessor.getInstance();
         this.pairtree = new Pairtree();
+        this.ingestLedger = null;
+        this.scannerThreadCount = 1;
         
     }
+    
+    /**
+     * Method to set the number of threads a delta log file is scanned with when its volumeIDs are extracted
+     * @param scannerThreadCount the number of threads
+     */
+    public void setScannerThreadCount(int scannerThreadCount) {
+        this.scannerThreadCount = scannerThreadCount;
+    }
+    
+    /**
+     * Method to set the IngestLedger to resume and record the verification with. Volumes of a delta log already verified
+     * are skipped, and each verified volume is recorded as soon as it is verified
+     * @param ingestLedger an IngestLedger object, or <code>null</code> if no ledger is kept
+     */
+    public void setIngestLedger(IngestLedger ingestLedger) {
+        this.ingestLedger = ingestLedger;
+    }
     /**
      * 
      * @see java.lang.Runnable#run()
      */
     public void run() {
-        while (!jobQueue.isDone()) {
-            File parsedDeltaLog = jobQueue.dequeue();
-            if (log.isTraceEnabled()) log.trace("parsedDeltaLog dequeued: " + parsedDeltaLog.getPath());
-            List<String> extractedVolumeIDs = extractVolumeIDs(parsedDeltaLog);
-            for (String volumeID : extractedVolumeIDs) {
-                verify(volumeID);
+        try {
+            File parsedDeltaLog = jobQueue.take();
+            while (parsedDeltaLog != null) {
+                if (log.isTraceEnabled()) log.trace("parsedDeltaLog dequeued: " + parsedDeltaLog.getPath());
+                if (ingestLedger != null) {
+                    // the ledger records the delta log as verified, so it keeps its name
+                    verifyWithLedger(parsedDeltaLog);
+                } else {
+                    List<String> extractedVolumeIDs = extractVolumeIDs(parsedDeltaLog);
+                    for (String volumeID : extractedVolumeIDs) {
+                        verify(volumeID);
+                    }
+                    renameParsedFileToExtracted(parsedDeltaLog);
+                }
+                
+                parsedDeltaLog = jobQueue.take();
             }
-            renameParsedFileToExtracted(parsedDeltaLog);
             
+            if (volumeIDQueue != null) {
+                String volumeID = volumeIDQueue.take();
+                while (volumeID != null) {
+                    if (log.isTraceEnabled()) log.trace("volumeID dequeued: " + volumeID);
+                    verify(volumeID);
+                    volumeID = volumeIDQueue.take();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.error("Verifier interrupted while waiting for a job", e);
+        }
+    }
+    /**
+     * Method to verify the volumes of a parsed delta log that the IngestLedger does not record as verified yet, and
+     * record the result of each. The delta log is recorded as verified once all of its volumes are
+     * @param parsedDeltaLog a File object representing a parsed delta log file
+     */
+    protected void verifyWithLedger(File parsedDeltaLog) {
+        String deltaLogPath = parsedDeltaLog.getPath();
+        if (ingestLedger.getDeltaLogState(deltaLogPath) == IngestLedger.State.VERIFIED) {
+            log.info("Delta log " + deltaLogPath + " already verified according to the ingest ledger");
+            return;
+        }
+        boolean allVerified = true;
+        int skippedCount = 0;
+        for (String volumeID : extractVolumeIDs(parsedDeltaLog)) {
+            if (ingestLedger.isVerified(deltaLogPath, volumeID)) {
+                skippedCount++;
+                continue;
+            }
+            boolean verified = verify(volumeID);
+            try {
+                ingestLedger.recordVolume(deltaLogPath, volumeID, verified ? IngestLedger.State.VERIFIED : IngestLedger.State.FAILED);
+            } catch (IOException e) {
+                // the volume is verified again when the delta log is resumed
+                log.error("Unable to record volume " + volumeID + " of " + deltaLogPath + " in the ingest ledger", e);
+                verified = false;
+            }
+            if (!verified) {
+                allVerified = false;
+            }
+        }
+        if (skippedCount > 0) {
+            log.info("Skipped " + skippedCount + " volumes of " + deltaLogPath + " already verified according to the ingest ledger");
+        }
+        if (allVerified) {
+            try {
+                ingestLedger.recordDeltaLog(deltaLogPath, IngestLedger.State.VERIFIED);
+            } catch (IOException e) {
+                log.error("Unable to record " + deltaLogPath + " as verified in the ingest ledger", e);
+            }
         }
     }
+    
     /**
      * Method to extract volumeIDs from parsed delta log files
      * @param parsedDeltaLog a File object representing a parsed delta log file
      * @return a List of volumeIDs
      */
     protected List<String> extractVolumeIDs(File parsedDeltaLog) {
-        List<String> volumeIDList = new LinkedList<String>();
+        final List<String> volumeIDList = new LinkedList<String>();
 
         if (log.isTraceEnabled()) log.trace("extracting volumeID from " + parsedDeltaLog.getPath());
-        BufferedReader bufferedReader = null;
-        String prefix = null;
         try {
-            bufferedReader = new BufferedReader(new FileReader(parsedDeltaLog));
-            String line = null;
-            do {
-                line = bufferedReader.readLine();
-                if (line != null) {
-                    if (line.endsWith(".zip")) {
-                        if (!line.startsWith("deleting ")) {
-                            int index = line.lastIndexOf('/');
-                            String zipFilename = line.substring(index + 1);
-                            String cleanedPartialVolumeID = zipFilename.substring(0, zipFilename.length() - ".zip".length());
-                            String uncleanedPartialVolumeID = pairtree.uncleanId(cleanedPartialVolumeID);
-                            String volumeID = prefix + uncleanedPartialVolumeID;
-                            if (log.isTraceEnabled()) log.trace("extracted volumeID: " + volumeID);
-                            volumeIDList.add(volumeID);
-                        }
-                    } else if (line.startsWith("PREFIX=")) {
-                        prefix = line.substring("PREFIX=".length());
+            DeltaLogScanner scanner = new DeltaLogScanner(parsedDeltaLog);
+            if (scanner.isBinary()) {
+                // the footer index already lists the volumes whose zip file was updated
+                volumeIDList.addAll(scanner.getIndexedVolumeIDs(BinaryDeltaLog.VOLUME_ZIP_UPDATED));
+                if (log.isTraceEnabled()) log.trace("extracted " + volumeIDList.size() + " volumeIDs from the index of " + parsedDeltaLog.getPath());
+                return volumeIDList;
+            }
+            final String prefix = scanner.getHeader("PREFIX");
+            scanner.scan(new RecordHandler() {
+                public void handleRecord(Record record) {
+                    // unchanged content is not pushed again, so there is nothing to verify
+                    if (record.isZip() && !record.isDeletion() && !record.isAttributeOnly()) {
+                        String volumeID = prefix + pairtree.uncleanId(record.getCleanedPartialVolumeID());
+                        if (log.isTraceEnabled()) log.trace("extracted volumeID: " + volumeID);
+                        volumeIDList.add(volumeID);
                     }
                 }
-            } while (line != null);
+            }, scannerThreadCount);
         } catch (FileNotFoundException e) {
             log.error("Delta log file not found " + parsedDeltaLog.getPath(), e);
         } catch (IOException e) {
             log.error("Error reading delta log file " + parsedDeltaLog.getPath(), e);
-        } finally {
-            if (bufferedReader != null) {
-                try {
-                    bufferedReader.close();
-                } catch (IOException e) {
-                    log.error("Failed to close BufferedReader on file " + parsedDeltaLog.getPath(), e);
-                }
-            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while reading delta log file " + parsedDeltaLog.getPath(), e);
         }
         return volumeIDList;
 
@@ -181,14 +269,16 @@ public class Verifier implements Runnable {
     /**
      * Method to initiate verification of a volume
      * @param volumeID volumeID of a volume to verify
+     * @return <code>true</code> if the volume is verified, <code>false</code> if the verification failed
      */
-    public void verify(String volumeID) {
+    public boolean verify(String volumeID) {
         
         try {
 
             int pageCount = hectorAccessor.retrieveVolumePageCount(volumeID);
             verifyPages(volumeID, pageCount);
             log.info("volume " + volumeID + " verified at level " + verificationLevel.toString());
+            return true;
             
         } catch (VerificationException e) {
             log.error(e.toString(), e);
@@ -198,7 +288,11 @@ public class Verifier implements Runnable {
             log.error(e.toString(), e);
         } catch (HTimedOutException e) {
             log.error(e.toString(), e);
+        } catch (HectorException e) {
+            // keep draining the queue; the lister blocks on a full queue if all verifiers are gone
+            log.error("Hector exception while verifying volume " + volumeID, e);
         }
+        return false;
         
     }
     
@@ -0,0 +1,108 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TempFiles.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * This class holds the file helpers shared by the tests that work on scratch directories. The journal, landing, snapshot
+ * and ledger tests all need a directory tree that is created fresh and removed afterwards, which the existing tests,
+ * built around a single file, do not need
+ */
+public final class TempFiles {
+
+    private TempFiles() {
+    }
+
+    /**
+     * Method to create an empty scratch directory under the temp directory
+     * @param prefix prefix of the directory name
+     * @return the created directory
+     * @throws IOException thrown if the directory could not be created
+     */
+    public static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        if (!dir.mkdirs()) {
+            throw new IOException("Failed to create temp directory " + dir.getPath());
+        }
+        return dir;
+    }
+
+    /**
+     * Method to delete a file, or a directory with everything under it
+     * @param file the file or directory to delete
+     */
+    public static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Method to write a String to a file, replacing its content
+     * @param file the file to write
+     * @param content the content to write
+     * @throws IOException thrown if the file could not be written
+     */
+    public static void writeFile(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Method to read the first line of a file
+     * @param file the file to read
+     * @return the first line, or <code>null</code> if the file is empty
+     * @throws IOException thrown if the file could not be read
+     */
+    public static String readFirstLine(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+}
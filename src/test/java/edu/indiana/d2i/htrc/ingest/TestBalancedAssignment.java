@@ -0,0 +1,83 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestBalancedAssignment.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBalancedAssignment {
+    private static final List<String> BRANCHES = Arrays.asList("a/", "b/", "c/", "d/", "e/");
+
+    private Map<String, Long> createSizeMap() {
+        Map<String, Long> sizeMap = new HashMap<String, Long>();
+        sizeMap.put("a/", Long.valueOf(50));
+        sizeMap.put("b/", Long.valueOf(30));
+        sizeMap.put("c/", Long.valueOf(20));
+        sizeMap.put("d/", Long.valueOf(10));
+        sizeMap.put("e/", Long.valueOf(10));
+        return sizeMap;
+    }
+
+    @Test
+    public void testNewBranchesPackedLargestFirst() {
+        BalancedAssignment assignment = new BalancedAssignment(2, 0.0);
+        assignment.assign(BRANCHES, createSizeMap(), new HashMap<String, Integer>());
+
+        Assert.assertEquals("largest branch should go to node 0", 0, assignment.getNode("a/"));
+        Assert.assertEquals("second largest branch should go to the other node", 1, assignment.getNode("b/"));
+        Assert.assertEquals("node 1 is least loaded", 1, assignment.getNode("c/"));
+        Assert.assertEquals("unknown branch should not be assigned", -1, assignment.getNode("z/"));
+    }
+
+    @Test
+    public void testRebalanceLimitedByFraction() {
+        Map<String, Integer> previousMap = new HashMap<String, Integer>();
+        for (String branch : BRANCHES) {
+            previousMap.put(branch, Integer.valueOf(0));
+        }
+
+        BalancedAssignment unlimited = new BalancedAssignment(2, 1.0);
+        unlimited.assign(BRANCHES, createSizeMap(), previousMap);
+        Assert.assertEquals("should even out the nodes", 60L, unlimited.getMovedBytes());
+        Assert.assertEquals("largest branch should move first", 1, unlimited.getNode("a/"));
+
+        BalancedAssignment limited = new BalancedAssignment(2, 0.1);
+        limited.assign(BRANCHES, createSizeMap(), previousMap);
+        Assert.assertTrue("should move at most 10% of the bytes", limited.getMovedBytes() <= 12L);
+        Assert.assertEquals("should still move what the budget allows", 10L, limited.getMovedBytes());
+    }
+}
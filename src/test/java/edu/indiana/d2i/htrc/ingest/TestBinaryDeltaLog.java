@@ -0,0 +1,163 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestBinaryDeltaLog.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.Record;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.RecordHandler;
+
+public class TestBinaryDeltaLog {
+    private File textFile;
+    private File binaryFile;
+
+    @Before
+    public void setUp() throws IOException {
+        textFile = File.createTempFile("t-1-", ".txt");
+        binaryFile = File.createTempFile("t-1-", ".bin");
+
+        FileWriter writer = new FileWriter(textFile);
+        writer.write("DEST_ROOT=/dest/mdp/pairtree_root/\n");
+        writer.write("PREFIX=mdp.\n");
+        writer.write("COPYRIGHT=PUBLIC_DOMAIN\n");
+        writer.write("FORMAT=ITEMIZED\n");
+        writer.write("receiving incremental file list\n");
+        writer.write("cd+++++++++\t4096\t2013/01/31-12:00:00\tab/cd/abcd/\n");
+        writer.write(">f+++++++++\t2048\t2013/01/31-12:00:00\tab/cd/abcd/abcd.zip\n");
+        writer.write(".f...p.....\t10\t2013/01/31-12:00:00\tab/cd/abcd/readme.txt\n");
+        writer.write(">f.st......\t512\t2013/02/01-08:30:00\tef/gh/efgh/efgh.mets.xml\n");
+        writer.write(".f...p.....\t1024\t2013/01/31-12:00:00\tab/cd/abcd/abcd.mets.xml\n");
+        writer.write("*deleting  \t0\t1970/01/01-00:00:00\tij/kl/ijkl/ijkl.zip\n");
+        writer.close();
+    }
+
+    @After
+    public void tearDown() {
+        textFile.delete();
+        binaryFile.delete();
+    }
+
+    private List<String> scan(DeltaLogScanner scanner) throws IOException, InterruptedException {
+        final List<String> records = new ArrayList<String>();
+        scanner.scan(new RecordHandler() {
+            public void handleRecord(Record record) {
+                records.add((record.isDeletion() ? "-" : "+") + (record.isAttributeOnly() ? "." : "") + record.getPath()
+                        + "|" + record.getSize() + "|" + record.getModTime());
+            }
+        }, 1);
+        return records;
+    }
+
+    @Test
+    public void testConvertedDeltaLogScansLikeText() throws IOException, InterruptedException {
+        BinaryDeltaLog.convert(textFile, binaryFile);
+        Assert.assertTrue(BinaryDeltaLog.isBinary(binaryFile));
+        Assert.assertFalse(BinaryDeltaLog.isBinary(textFile));
+        Assert.assertTrue(binaryFile.length() < textFile.length());
+
+        DeltaLogScanner textScanner = new DeltaLogScanner(textFile);
+        DeltaLogScanner binaryScanner = new DeltaLogScanner(binaryFile);
+        Assert.assertTrue(binaryScanner.isBinary());
+        Assert.assertTrue(binaryScanner.isItemized());
+        Assert.assertEquals(textScanner.getHeaderLines(), binaryScanner.getHeaderLines());
+        Assert.assertEquals("PUBLIC_DOMAIN", binaryScanner.getHeader("COPYRIGHT"));
+
+        List<String> textRecords = scan(textScanner);
+        List<String> binaryRecords = scan(binaryScanner);
+        // the changes of a volume are grouped together
+        Assert.assertEquals(Arrays.asList(textRecords.get(0), textRecords.get(2), textRecords.get(1), textRecords.get(3)), binaryRecords);
+        Assert.assertTrue(binaryRecords.get(0).startsWith("+ab/cd/abcd/abcd.zip|2048|"));
+        Assert.assertFalse(binaryRecords.get(0).endsWith("|-1"));
+        Assert.assertEquals(textScanner.getAttributeOnlyCount(), binaryScanner.getAttributeOnlyCount());
+    }
+
+    @Test
+    public void testFooterIndex() throws IOException, InterruptedException {
+        BinaryDeltaLog.convert(textFile, binaryFile);
+        DeltaLogScanner scanner = new DeltaLogScanner(binaryFile);
+
+        Assert.assertEquals(Arrays.asList("mdp.abcd", "mdp.efgh", "mdp.ijkl"), scanner.getIndexedVolumeIDs(0xFF));
+        Assert.assertEquals(Arrays.asList("mdp.abcd"), scanner.getIndexedVolumeIDs(BinaryDeltaLog.VOLUME_ZIP_UPDATED));
+        Assert.assertEquals(Arrays.asList("mdp.ijkl"), scanner.getIndexedVolumeIDs(BinaryDeltaLog.VOLUME_DELETED));
+        Assert.assertNull(new DeltaLogScanner(textFile).getIndexedVolumeIDs(0xFF));
+
+        final List<String> paths = new ArrayList<String>();
+        RecordHandler recordHandler = new RecordHandler() {
+            public void handleRecord(Record record) {
+                paths.add(record.getPath());
+            }
+        };
+        Assert.assertTrue(scanner.scanVolume("mdp.efgh", recordHandler));
+        Assert.assertFalse(scanner.scanVolume("mdp.mnop", recordHandler));
+        Assert.assertEquals(Arrays.asList("ef/gh/efgh/efgh.mets.xml"), paths);
+    }
+
+    @Test
+    public void testConvertInPlaceAndCorruption() throws IOException {
+        long textLength = textFile.length();
+        BinaryDeltaLog.convertInPlace(textFile);
+        Assert.assertTrue(BinaryDeltaLog.isBinary(textFile));
+        Assert.assertTrue(textFile.length() < textLength);
+        Assert.assertFalse(new File(textFile.getPath() + ".partial").exists());
+
+        try {
+            BinaryDeltaLog.convertInPlace(textFile);
+            Assert.fail("converted a binary delta log again");
+        } catch (IOException e) {
+            Assert.assertTrue(BinaryDeltaLog.isBinary(textFile));
+        }
+
+        RandomAccessFile file = new RandomAccessFile(textFile, "rw");
+        file.seek(10);
+        int b = file.read();
+        file.seek(10);
+        file.write(b ^ 0x01);
+        file.close();
+        try {
+            new DeltaLogScanner(textFile).open();
+            Assert.fail("opened a corrupted binary delta log");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("CRC"));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestBoundedJobQueue.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBoundedJobQueue {
+
+    private BoundedJobQueue<String> jobQueue = null;
+
+    @Before
+    public void setupJobQueue() {
+        this.jobQueue = new BoundedJobQueue<String>("String Queue", 4);
+    }
+
+    @After
+    public void teardownJobQueue() {
+        this.jobQueue = null;
+    }
+
+    @Test
+    public void testPutTake() throws InterruptedException {
+        String job = "Job1";
+
+        jobQueue.put(job);
+        String taken = jobQueue.take();
+
+        Assert.assertEquals("taken mismatch put", job, taken);
+    }
+
+    @Test
+    public void testTakeAfterClose() throws InterruptedException {
+        jobQueue.put("Job2");
+        jobQueue.close();
+
+        Assert.assertFalse("queue not empty, should not be end of stream", jobQueue.isEndOfStream());
+        Assert.assertEquals("end-of-stream marker should not be counted", 1, jobQueue.size());
+        Assert.assertEquals("job queued before close should still be taken", "Job2", jobQueue.take());
+        Assert.assertNull("should be end of stream", jobQueue.take());
+        Assert.assertNull("end of stream should be seen again", jobQueue.take());
+        Assert.assertEquals("no jobs left", 0, jobQueue.size());
+        Assert.assertTrue("should be end of stream", jobQueue.isEndOfStream());
+    }
+
+    @Test
+    public void testDrainTo() throws InterruptedException {
+        jobQueue.put("Job3");
+        jobQueue.put("Job4");
+        jobQueue.put("Job5");
+        jobQueue.close();
+
+        List<String> batch = new ArrayList<String>();
+        int count = jobQueue.drainTo(batch, 2);
+        Assert.assertEquals("batch size mismatch", 2, count);
+        Assert.assertEquals("batch order mismatch", "Job4", batch.get(1));
+
+        batch.clear();
+        count = jobQueue.drainTo(batch, 10);
+        Assert.assertEquals("batch should stop at end of stream", 1, count);
+        Assert.assertEquals("batch content mismatch", "Job5", batch.get(0));
+
+        count = jobQueue.drainTo(batch, 10);
+        Assert.assertEquals("should be end of stream", 0, count);
+    }
+
+    @Test
+    public void testOfferWhenFull() throws InterruptedException {
+        for (int i = 0; i < jobQueue.getCapacity(); i++) {
+            Assert.assertTrue("queue not full, offer should succeed", jobQueue.offer("Job" + i, 10, TimeUnit.MILLISECONDS));
+        }
+        Assert.assertFalse("queue full, offer should time out", jobQueue.offer("JobX", 10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("size mismatch", jobQueue.getCapacity(), jobQueue.size());
+    }
+
+    @Test
+    public void testPollTimeout() throws InterruptedException {
+        String polled = jobQueue.poll(10, TimeUnit.MILLISECONDS);
+        Assert.assertNull("empty queue, poll should time out", polled);
+        Assert.assertFalse("queue not closed, should not be end of stream", jobQueue.isEndOfStream());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testPutAfterClose() throws InterruptedException {
+        jobQueue.close();
+        jobQueue.put("Job6");
+    }
+
+    @Test
+    public void testMultipleConsumers() throws InterruptedException {
+        final List<String> consumed = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String job = jobQueue.take();
+                        while (job != null) {
+                            consumed.add(job);
+                            job = jobQueue.take();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        int jobCount = 100;
+        for (int i = 0; i < jobCount; i++) {
+            jobQueue.put("Job" + i);
+        }
+        jobQueue.close();
+
+        for (Thread thread : threads) {
+            thread.join(5000);
+            Assert.assertFalse("consumer should stop at end of stream", thread.isAlive());
+        }
+        Assert.assertEquals("every job should be consumed exactly once", jobCount, consumed.size());
+    }
+}
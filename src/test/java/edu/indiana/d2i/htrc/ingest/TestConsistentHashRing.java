@@ -0,0 +1,78 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestConsistentHashRing.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestConsistentHashRing {
+    private static final int PATH_COUNT = 10000;
+
+    private static String path(int i) {
+        return "mdp/pairtree_root/" + (i % 100) + "/" + (i / 100) + "/";
+    }
+
+    @Test
+    public void testAddingNodeMovesOnlyItsShare() {
+        ConsistentHashRing fourNodes = new ConsistentHashRing(ConsistentHashRing.parseWeights(null, 4), ConsistentHashRing.DEFAULT_VIRTUAL_NODE_COUNT);
+        ConsistentHashRing fiveNodes = new ConsistentHashRing(ConsistentHashRing.parseWeights(null, 5), ConsistentHashRing.DEFAULT_VIRTUAL_NODE_COUNT);
+
+        int moved = 0;
+        for (int i = 0; i < PATH_COUNT; i++) {
+            int before = fourNodes.getNode(path(i));
+            int after = fiveNodes.getNode(path(i));
+            if (before != after) {
+                Assert.assertEquals("branches should only move to the new node", 4, after);
+                moved++;
+            }
+        }
+        // about 1/5 of the branches, where a modulo hash would move about 4/5
+        Assert.assertTrue("too many branches moved: " + moved, moved < PATH_COUNT * 3 / 10);
+        Assert.assertTrue("too few branches moved: " + moved, moved > PATH_COUNT / 10);
+    }
+
+    @Test
+    public void testWeights() {
+        ConsistentHashRing ring = new ConsistentHashRing(ConsistentHashRing.parseWeights("1,3,0", 3), ConsistentHashRing.DEFAULT_VIRTUAL_NODE_COUNT);
+        int[] counts = new int[3];
+        for (int i = 0; i < PATH_COUNT; i++) {
+            counts[ring.getNode(path(i))]++;
+        }
+        Assert.assertEquals("node of weight 0 should own nothing", 0, counts[2]);
+        Assert.assertTrue("node of weight 3 should own about 3/4: " + counts[1], counts[1] > PATH_COUNT * 65 / 100 && counts[1] < PATH_COUNT * 85 / 100);
+    }
+
+    @Test
+    public void testParseWeightsMismatch() {
+        Assert.assertArrayEquals("mismatched weights should fall back to equal weights", new int[] {1, 1}, ConsistentHashRing.parseWeights("1,2,3", 2));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestDeltaLogScanner.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.Record;
+import edu.indiana.d2i.htrc.ingest.DeltaLogScanner.RecordHandler;
+
+public class TestDeltaLogScanner {
+    private File deltaLogFile;
+
+    @Before
+    public void setUp() throws IOException {
+        deltaLogFile = File.createTempFile("t-1-", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        deltaLogFile.delete();
+    }
+
+    private List<String> scan(DeltaLogScanner scanner, int threadCount) throws IOException, InterruptedException {
+        final List<String> records = new ArrayList<String>();
+        scanner.scan(new RecordHandler() {
+            public void handleRecord(Record record) {
+                records.add((record.isDeletion() ? "-" : "+") + (record.isAttributeOnly() ? "." : "") + record.getVolumeDirectory()
+                        + "|" + record.getCleanedPartialVolumeID() + "|" + record.getSize());
+            }
+        }, threadCount);
+        return records;
+    }
+
+    @Test
+    public void testPlainDeltaLog() throws IOException, InterruptedException {
+        FileWriter writer = new FileWriter(deltaLogFile);
+        writer.write("DEST_ROOT=/dest/mdp/pairtree_root/\r\n");
+        writer.write("PREFIX=mdp.\r\n");
+        writer.write("\r\n");
+        writer.write("receiving incremental file list\r\n");
+        writer.write("ab/cd/abcd/\r\n");
+        writer.write("ab/cd/abcd/abcd.mets.xml\r\n");
+        writer.write("ab/cd/abcd/abcd.zip\r\n");
+        writer.write("deleting ef/gh/efgh/efgh.zip\r\n");
+        writer.write("sent 12345 bytes  received 54321 bytes  3600.12 bytes/sec\r\n");
+        writer.close();
+
+        DeltaLogScanner scanner = new DeltaLogScanner(deltaLogFile);
+        Assert.assertEquals("mdp.", scanner.getHeader("PREFIX"));
+        Assert.assertEquals(2, scanner.getHeaderLines().size());
+        Assert.assertFalse(scanner.isItemized());
+
+        List<String> records = scan(scanner, 1);
+        Assert.assertEquals(3, records.size());
+        Assert.assertEquals("+ab/cd/abcd/|abcd|-1", records.get(0));
+        Assert.assertEquals("+ab/cd/abcd/|abcd|-1", records.get(1));
+        Assert.assertEquals("-ef/gh/efgh/|efgh|-1", records.get(2));
+    }
+
+    @Test
+    public void testItemizedDeltaLog() throws IOException, InterruptedException {
+        FileWriter writer = new FileWriter(deltaLogFile);
+        writer.write("PREFIX=mdp.\n");
+        writer.write("FORMAT=ITEMIZED\n");
+        writer.write("receiving incremental file list\n");
+        writer.write("cd+++++++++\t4096\t2013/01/31-12:00:00\tab/cd/abcd/\n");
+        writer.write(">f+++++++++\t2048\t2013/01/31-12:00:00\tab/cd/abcd/abcd.zip\n");
+        writer.write(".f...p.....\t1024\t2013/01/31-12:00:00\tab/cd/abcd/abcd.mets.xml\n");
+        writer.write(".f...p.....\t10\t2013/01/31-12:00:00\tab/cd/abcd/readme.txt\n");
+        writer.write("*deleting  \t0\t1970/01/01-00:00:00\tef/gh/efgh/efgh.zip");
+        writer.close();
+
+        DeltaLogScanner scanner = new DeltaLogScanner(deltaLogFile);
+        Assert.assertTrue(scanner.isItemized());
+        List<String> records = scan(scanner, 1);
+        Assert.assertEquals(3, records.size());
+        Assert.assertEquals("+ab/cd/abcd/|abcd|2048", records.get(0));
+        Assert.assertEquals("+.ab/cd/abcd/|abcd|1024", records.get(1));
+        Assert.assertEquals("-ef/gh/efgh/|efgh|0", records.get(2));
+        Assert.assertEquals(2, scanner.getAttributeOnlyCount());
+    }
+
+    @Test
+    public void testChunksKeepFileOrder() throws IOException, InterruptedException {
+        FileWriter writer = new FileWriter(deltaLogFile);
+        writer.write("PREFIX=mdp.\n");
+        int volumeCount = 0;
+        while (volumeCount * 40 < 3 * DeltaLogScanner.MIN_CHUNK_SIZE) {
+            writer.write("ab/cd/volume" + volumeCount + "/\n");
+            writer.write("ab/cd/volume" + volumeCount + "/volume" + volumeCount + ".zip\n");
+            volumeCount++;
+        }
+        writer.close();
+
+        List<String> sequential = scan(new DeltaLogScanner(deltaLogFile), 1);
+        List<String> chunked = scan(new DeltaLogScanner(deltaLogFile), 4);
+        Assert.assertEquals(volumeCount, sequential.size());
+        Assert.assertEquals(sequential, chunked);
+    }
+
+    @Test
+    public void testSmallWindowsKeepLinesWhole() throws IOException, InterruptedException {
+        FileWriter writer = new FileWriter(deltaLogFile);
+        writer.write("PREFIX=mdp.\n");
+        for (int i = 0; i < 20; i++) {
+            writer.write("ab/cd/volume" + i + "/\n");
+            writer.write("ab/cd/volume" + i + "/volume" + i + ".zip\n");
+        }
+        writer.write("deleting ef/gh/efgh/efgh.zip");
+        writer.close();
+
+        List<String> expected = scan(new DeltaLogScanner(deltaLogFile), 1);
+        List<String> windowed = scan(new DeltaLogScanner(deltaLogFile, 16), 1);
+        Assert.assertEquals(21, expected.size());
+        Assert.assertEquals(expected, windowed);
+    }
+
+    @Test
+    public void testScanSingleLine() {
+        Record record = DeltaLogScanner.scanLine("deleting ef/gh/efgh/efgh.zip", false);
+        Assert.assertTrue(record.isDeletion());
+        Assert.assertEquals("ef/gh/efgh/", record.getVolumeDirectory());
+        Assert.assertNull(DeltaLogScanner.scanLine("PREFIX=mdp.", false));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestIngestLedger.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.IngestLedger.State;
+
+public class TestIngestLedger {
+    private static final String DLOG_1 = "/dlogs/dlog-20130101-000000000/t-1-0.txt";
+    private static final String DLOG_2 = "/dlogs/dlog-20130101-000000000/t-2-0.txt";
+
+    private File ledgerFile;
+
+    @Before
+    public void setUp() throws IOException {
+        ledgerFile = File.createTempFile("ledger", ".txt");
+        ledgerFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        ledgerFile.delete();
+        new File(ledgerFile.getPath() + ".partial").delete();
+    }
+
+    @Test
+    public void testResumeAfterReopenAndRename() throws IOException {
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        ledger.recordVolume(DLOG_1, "mdp.001", State.PUSHED);
+        ledger.recordVolume(DLOG_1, "mdp.002", State.FAILED);
+        ledger.close();
+
+        ledger = new IngestLedger(ledgerFile);
+        String renamed = "/dlogs/_PROCESSED_dlog-20130101-000000000/_PARSED_t-1-0.txt";
+        Assert.assertTrue(ledger.isPushed(renamed, "mdp.001"));
+        Assert.assertFalse(ledger.isPushed(renamed, "mdp.002"));
+        Assert.assertFalse(ledger.isPushed(DLOG_2, "mdp.001"));
+        Assert.assertNull(ledger.getDeltaLogState(DLOG_1));
+
+        ledger.recordDeltaLog(DLOG_1, State.PARSED);
+        Assert.assertTrue(ledger.isPushed(DLOG_1, "mdp.002"));
+        Assert.assertFalse(ledger.isVerified(DLOG_1, "mdp.001"));
+        ledger.close();
+    }
+
+    @Test
+    public void testTornTailIsCutOff() throws IOException {
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        ledger.recordVolume(DLOG_1, "mdp.001", State.PUSHED);
+        ledger.close();
+        long length = ledgerFile.length();
+
+        FileWriter writer = new FileWriter(ledgerFile, true);
+        writer.write("0badc0de\tPUSHED\tdlog-20130101-000000000/t-1-0.txt\tmdp.0");
+        writer.close();
+
+        ledger = new IngestLedger(ledgerFile);
+        Assert.assertEquals(length, ledgerFile.length());
+        Assert.assertTrue(ledger.isPushed(DLOG_1, "mdp.001"));
+        ledger.recordVolume(DLOG_1, "mdp.002", State.PUSHED);
+        ledger.close();
+
+        ledger = new IngestLedger(ledgerFile);
+        Assert.assertTrue(ledger.isPushed(DLOG_1, "mdp.002"));
+        ledger.close();
+    }
+
+    @Test
+    public void testUnwrittenRecordIsNotApplied() throws IOException {
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        ledger.recordVolume(DLOG_1, "mdp.001", State.PUSHED);
+        ledger.close();
+
+        try {
+            ledger.recordDeltaLog(DLOG_1, State.PARSED);
+            Assert.fail("a record that cannot be written should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertNull(ledger.getDeltaLogState(DLOG_1));
+        Assert.assertFalse(ledger.isPushed(DLOG_1, "mdp.002"));
+
+        ledger = new IngestLedger(ledgerFile);
+        Assert.assertTrue(ledger.isPushed(DLOG_1, "mdp.001"));
+        Assert.assertNull(ledger.getDeltaLogState(DLOG_1));
+        ledger.close();
+    }
+
+    @Test
+    public void testRewind() throws IOException {
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        ledger.recordVolume(DLOG_1, "mdp.001", State.VERIFIED);
+        ledger.recordVolume(DLOG_2, "mdp.002", State.PUSHED);
+        ledger.recordDeltaLog(DLOG_2, State.VERIFIED);
+
+        ledger.rewind("_VERIFIED_dlog-20130101-000000000", State.PARSED);
+        Assert.assertTrue(ledger.isPushed(DLOG_1, "mdp.001"));
+        Assert.assertFalse(ledger.isVerified(DLOG_1, "mdp.001"));
+        Assert.assertEquals(State.PARSED, ledger.getDeltaLogState(DLOG_2));
+        Assert.assertFalse(ledger.isVerified(DLOG_2, "mdp.002"));
+
+        ledger.rewind("_PROCESSED_dlog-20130101-000000000", State.RAW);
+        Assert.assertFalse(ledger.isPushed(DLOG_1, "mdp.001"));
+        Assert.assertNull(ledger.getDeltaLogState(DLOG_2));
+        ledger.close();
+
+        ledger = new IngestLedger(ledgerFile);
+        Assert.assertFalse(ledger.isPushed(DLOG_1, "mdp.001"));
+        ledger.close();
+    }
+
+    @Test
+    public void testDeltaLogDirStates() throws IOException {
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        ledger.recordVolume(DLOG_1, "mdp.001", State.PUSHED);
+        ledger.recordDeltaLog(DLOG_1, State.PARSED);
+        Assert.assertNull(ledger.getDeltaLogDirState("dlog-20130101-000000000"));
+
+        ledger.recordDeltaLogDir("dlog-20130101-000000000", State.PARSED);
+        Assert.assertEquals(State.PARSED, ledger.getDeltaLogDirState("_PROCESSED_dlog-20130101-000000000"));
+        Assert.assertEquals(Arrays.asList("dlog-20130101-000000000"), ledger.getDeltaLogDirNames(State.PARSED));
+        Assert.assertEquals("the delta logs keep their own state", State.PARSED, ledger.getDeltaLogState(DLOG_1));
+        Assert.assertEquals(Arrays.asList("dlog-20130101-000000000/t-1-0.txt"), ledger.getDeltaLogKeys(State.PARSED));
+
+        ledger.recordDeltaLogDir("dlog-20130101-000000000", State.VERIFIED);
+        Assert.assertEquals(Collections.emptyList(), ledger.getDeltaLogDirNames(State.PARSED));
+        ledger.compact();
+        ledger.close();
+
+        ledger = new IngestLedger(ledgerFile);
+        Assert.assertEquals(State.VERIFIED, ledger.getDeltaLogDirState("dlog-20130101-000000000"));
+        Assert.assertTrue(ledger.isPushed(DLOG_1, "mdp.001"));
+
+        ledger.rewind("dlog-20130101-000000000", State.RAW);
+        Assert.assertNull(ledger.getDeltaLogDirState("dlog-20130101-000000000"));
+        Assert.assertEquals(Collections.emptyList(), ledger.getDeltaLogKeys(State.PARSED));
+        ledger.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        IngestLedger ledger = new IngestLedger(ledgerFile);
+        for (int i = 0; i < 10; i++) {
+            ledger.recordVolume(DLOG_1, "mdp.00" + i, State.PUSHED);
+        }
+        ledger.recordDeltaLog(DLOG_1, State.VERIFIED);
+        ledger.recordVolume(DLOG_2, "mdp.100", State.PUSHED);
+        ledger.close();
+
+        // 12 records for 2 live states are compacted on open
+        ledger = new IngestLedger(ledgerFile);
+        Assert.assertTrue(ledger.isVerified(DLOG_1, "mdp.005"));
+        Assert.assertTrue(ledger.isPushed(DLOG_2, "mdp.100"));
+        ledger.close();
+        Assert.assertEquals(2, countLines(ledgerFile));
+
+        ledger = new IngestLedger(ledgerFile);
+        Assert.assertTrue(ledger.isVerified(DLOG_1, "mdp.005"));
+        Assert.assertTrue(ledger.isPushed(DLOG_2, "mdp.100"));
+        ledger.close();
+    }
+
+    private int countLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        int count = 0;
+        try {
+            while (reader.readLine() != null) {
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+}
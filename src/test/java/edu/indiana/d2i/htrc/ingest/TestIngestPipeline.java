@@ -0,0 +1,388 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestIngestPipeline.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.cassandra.PairtreeToCassandraDataSyncker;
+import edu.indiana.d2i.htrc.ingest.verify.ProcessedDeltaLogLister;
+import edu.indiana.d2i.htrc.ingest.verify.Verificationer;
+
+public class TestIngestPipeline {
+
+    /**
+     * A stage that takes jobs from one queue in its own thread and hands them to the next queue, if any
+     */
+    private static class QueueStage implements IngestPipeline.Stage, Runnable {
+        private final String name;
+        private final List<String> events;
+        private final BoundedJobQueue<String> inQueue;
+        private final BoundedJobQueue<String> outQueue;
+        private final List<String> taken;
+        private Thread thread;
+
+        QueueStage(String name, List<String> events, BoundedJobQueue<String> inQueue, BoundedJobQueue<String> outQueue) {
+            this.name = name;
+            this.events = events;
+            this.inQueue = inQueue;
+            this.outQueue = outQueue;
+            this.taken = Collections.synchronizedList(new ArrayList<String>());
+            this.thread = null;
+        }
+
+        public void start() {
+            events.add(name + " start");
+            thread = new Thread(this);
+            thread.start();
+        }
+
+        public void finish(boolean upstreamSucceeded) {
+            events.add(name + " finish");
+            inQueue.close();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.add(name + " drained");
+        }
+
+        public void run() {
+            try {
+                String job = inQueue.take();
+                while (job != null) {
+                    taken.add(job);
+                    if (outQueue != null) {
+                        outQueue.put(job);
+                    }
+                    job = inQueue.take();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<String> getTaken() {
+            return taken;
+        }
+    }
+
+    /**
+     * A push stage that marks the delta log directories of the run as done once it is drained, unless the rsync stage failed
+     */
+    private static class MarkingQueueStage extends QueueStage {
+        private final File[] dlogDirs;
+
+        MarkingQueueStage(String name, List<String> events, BoundedJobQueue<String> inQueue, BoundedJobQueue<String> outQueue, File[] dlogDirs) {
+            super(name, events, inQueue, outQueue);
+            this.dlogDirs = dlogDirs;
+        }
+
+        @Override
+        public void finish(boolean upstreamSucceeded) {
+            super.finish(upstreamSucceeded);
+            if (upstreamSucceeded) {
+                PairtreeToCassandraDataSyncker.markDlogDirsAsDone(dlogDirs);
+            }
+        }
+    }
+
+    /**
+     * An rsync stage that puts some delta logs and then succeeds or fails
+     */
+    private static class FakeRsyncStage implements IngestPipeline.RsyncStage {
+        private final List<String> events;
+        private final BoundedJobQueue<String> deltaLogQueue;
+        private final List<String> deltaLogs;
+        private final boolean fail;
+
+        FakeRsyncStage(List<String> events, BoundedJobQueue<String> deltaLogQueue, List<String> deltaLogs, boolean fail) {
+            this.events = events;
+            this.deltaLogQueue = deltaLogQueue;
+            this.deltaLogs = deltaLogs;
+            this.fail = fail;
+        }
+
+        public void ingest() throws IngestException {
+            events.add("rsync start");
+            try {
+                for (String deltaLog : deltaLogs) {
+                    deltaLogQueue.put(deltaLog);
+                }
+            } catch (InterruptedException e) {
+                throw new IngestException(e);
+            }
+            if (fail) {
+                events.add("rsync fail");
+                throw new IngestException("rsync stage failed");
+            }
+            events.add("rsync end");
+        }
+    }
+
+    @Test
+    public void testStageOrdering() throws IngestException {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        BoundedJobQueue<String> deltaLogQueue = new BoundedJobQueue<String>("DeltaLogQueue", 2);
+        BoundedJobQueue<String> pushedVolumeQueue = new BoundedJobQueue<String>("PushedVolumeQueue", 2);
+        List<String> deltaLogs = Arrays.asList("t-0-0.txt", "t-1-1.txt", "t-0-2.txt", "t-1-3.txt", "t-0-4.txt");
+
+        QueueStage pushStage = new QueueStage("push", events, deltaLogQueue, pushedVolumeQueue);
+        QueueStage verificationStage = new QueueStage("verify", events, pushedVolumeQueue, null);
+        FakeRsyncStage rsyncStage = new FakeRsyncStage(events, deltaLogQueue, deltaLogs, false);
+
+        new IngestPipeline(true, false, 2).runStages(rsyncStage, pushStage, verificationStage);
+
+        Assert.assertEquals("stage order mismatch",
+                Arrays.asList("verify start", "push start", "rsync start", "rsync end", "push finish", "push drained", "verify finish", "verify drained"),
+                events);
+        Assert.assertEquals("push stage should take every delta log", deltaLogs, pushStage.getTaken());
+        Assert.assertEquals("verification stage should take every pushed job", deltaLogs, verificationStage.getTaken());
+    }
+
+    @Test
+    public void testDrainOnRsyncFailure() {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        BoundedJobQueue<String> deltaLogQueue = new BoundedJobQueue<String>("DeltaLogQueue", 2);
+        BoundedJobQueue<String> pushedVolumeQueue = new BoundedJobQueue<String>("PushedVolumeQueue", 2);
+        List<String> deltaLogs = Arrays.asList("t-0-0.txt", "t-1-1.txt", "t-0-2.txt");
+
+        QueueStage pushStage = new QueueStage("push", events, deltaLogQueue, pushedVolumeQueue);
+        QueueStage verificationStage = new QueueStage("verify", events, pushedVolumeQueue, null);
+        FakeRsyncStage rsyncStage = new FakeRsyncStage(events, deltaLogQueue, deltaLogs, true);
+
+        try {
+            new IngestPipeline(true, false, 2).runStages(rsyncStage, pushStage, verificationStage);
+            Assert.fail("rsync failure should be thrown");
+        } catch (IngestException e) {
+            Assert.assertEquals("exception mismatch", "rsync stage failed", e.getMessage());
+        }
+
+        Assert.assertEquals("stages should be finished after the failure",
+                Arrays.asList("verify start", "push start", "rsync start", "rsync fail", "push finish", "push drained", "verify finish", "verify drained"),
+                events);
+        Assert.assertEquals("delta logs of the failed run should be drained", deltaLogs, pushStage.getTaken());
+        Assert.assertEquals("pushed jobs of the failed run should be drained", deltaLogs, verificationStage.getTaken());
+    }
+
+    @Test
+    public void testVerificationFinishedWhenPushFails() {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        BoundedJobQueue<String> deltaLogQueue = new BoundedJobQueue<String>("DeltaLogQueue", 2);
+        BoundedJobQueue<String> pushedVolumeQueue = new BoundedJobQueue<String>("PushedVolumeQueue", 2);
+
+        IngestPipeline.Stage pushStage = new IngestPipeline.Stage() {
+            public void start() {
+                events.add("push start");
+            }
+            public void finish(boolean upstreamSucceeded) {
+                events.add("push finish");
+                throw new IllegalStateException("push stage failed");
+            }
+        };
+        QueueStage verificationStage = new QueueStage("verify", events, pushedVolumeQueue, null);
+        FakeRsyncStage rsyncStage = new FakeRsyncStage(events, deltaLogQueue, Collections.<String>emptyList(), false);
+
+        try {
+            new IngestPipeline(true, false, 2).runStages(rsyncStage, pushStage, verificationStage);
+            Assert.fail("push failure should be thrown");
+        } catch (IngestException e) {
+            Assert.fail("rsync stage should not fail");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("exception mismatch", "push stage failed", e.getMessage());
+        }
+
+        Assert.assertEquals("verification stage should be finished after the push failure",
+                Arrays.asList("verify start", "push start", "rsync start", "rsync end", "push finish", "verify finish", "verify drained"),
+                events);
+    }
+
+    private void runWithDeltaLogDir(File dlogDir, boolean failRsync) throws IngestException {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        BoundedJobQueue<String> deltaLogQueue = new BoundedJobQueue<String>("DeltaLogQueue", 2);
+        List<String> deltaLogs = Arrays.asList(new File(dlogDir, "t-0-0.txt").getPath(), new File(dlogDir, "t-1-1.txt").getPath());
+
+        MarkingQueueStage pushStage = new MarkingQueueStage("push", events, deltaLogQueue, null, new File[] {dlogDir});
+        FakeRsyncStage rsyncStage = new FakeRsyncStage(events, deltaLogQueue, deltaLogs, failRsync);
+
+        new IngestPipeline(false, false, 2).runStages(rsyncStage, pushStage, null);
+        Assert.assertEquals("push stage should take every delta log", deltaLogs, pushStage.getTaken());
+    }
+
+    @Test
+    public void testDeltaLogDirMarkedWhenRsyncSucceeds() throws IOException, IngestException {
+        File deltaLogRoot = TempFiles.createTempDir("pipeline");
+        try {
+            File dlogDir = new File(deltaLogRoot, "dlog-20130101-000000000");
+            dlogDir.mkdir();
+
+            runWithDeltaLogDir(dlogDir, false);
+
+            Assert.assertFalse("delta log directory should be renamed", dlogDir.exists());
+            Assert.assertTrue("delta log directory should be marked as processed", new File(deltaLogRoot, "_PROCESSED_dlog-20130101-000000000").isDirectory());
+        } finally {
+            TempFiles.delete(deltaLogRoot);
+        }
+    }
+
+    @Test
+    public void testDeltaLogDirLeftWhenRsyncFails() throws IOException {
+        File deltaLogRoot = TempFiles.createTempDir("pipeline");
+        try {
+            File dlogDir = new File(deltaLogRoot, "dlog-20130101-000000000");
+            dlogDir.mkdir();
+
+            try {
+                runWithDeltaLogDir(dlogDir, true);
+                Assert.fail("rsync failure should be thrown");
+            } catch (IngestException e) {
+                Assert.assertEquals("exception mismatch", "rsync stage failed", e.getMessage());
+            }
+
+            Assert.assertTrue("delta log directory of the failed run should stay in place", dlogDir.isDirectory());
+            Assert.assertFalse("delta log directory of the failed run should not be marked", new File(deltaLogRoot, "_PROCESSED_dlog-20130101-000000000").exists());
+        } finally {
+            TempFiles.delete(deltaLogRoot);
+        }
+    }
+
+    private void runWithProcessedDeltaLogDir(final File deltaLogRoot, boolean failRsync) throws IngestException {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        BoundedJobQueue<String> deltaLogQueue = new BoundedJobQueue<String>("DeltaLogQueue", 2);
+        BoundedJobQueue<String> pushedVolumeQueue = new BoundedJobQueue<String>("PushedVolumeQueue", 2);
+
+        // the verifier threads are not started, only the marking done by finishPipelined() is under test
+        final Verificationer verificationer = new Verificationer(pushedVolumeQueue) {
+            @Override
+            protected void markParsedDeltaLogsAsExtracted() {
+                markParsedDeltaLogsAsExtracted(deltaLogRoot);
+            }
+            @Override
+            protected void markProcessedDlogDirsAsDone() {
+                markProcessedDlogDirsAsDone(deltaLogRoot);
+            }
+        };
+        IngestPipeline.Stage verificationStage = new IngestPipeline.Stage() {
+            public void start() {
+            }
+            public void finish(boolean upstreamSucceeded) {
+                verificationer.finishPipelined(upstreamSucceeded);
+            }
+        };
+        QueueStage pushStage = new QueueStage("push", events, deltaLogQueue, null);
+        FakeRsyncStage rsyncStage = new FakeRsyncStage(events, deltaLogQueue, Arrays.asList("t-0-0.txt"), failRsync);
+
+        new IngestPipeline(true, false, 2).runStages(rsyncStage, pushStage, verificationStage);
+    }
+
+    @Test
+    public void testProcessedDeltaLogDirVerifiedWhenUpstreamSucceeds() throws IOException, IngestException {
+        File deltaLogRoot = TempFiles.createTempDir("pipeline");
+        try {
+            File processedDir = new File(deltaLogRoot, "_PROCESSED_dlog-20130101-000000000");
+            processedDir.mkdir();
+            TempFiles.writeFile(new File(processedDir, "_PARSED_t-0-0.txt"), "");
+
+            runWithProcessedDeltaLogDir(deltaLogRoot, false);
+
+            File verifiedDir = new File(deltaLogRoot, "_VERIFIED_dlog-20130101-000000000");
+            Assert.assertTrue("processed delta log directory should be marked as verified", verifiedDir.isDirectory());
+            Assert.assertTrue("parsed delta log should be marked as extracted", new File(verifiedDir, "_XTRACTED_t-0-0.txt").isFile());
+        } finally {
+            TempFiles.delete(deltaLogRoot);
+        }
+    }
+
+    @Test
+    public void testProcessedDeltaLogDirLeftWhenRsyncFails() throws IOException {
+        File deltaLogRoot = TempFiles.createTempDir("pipeline");
+        try {
+            File processedDir = new File(deltaLogRoot, "_PROCESSED_dlog-20130101-000000000");
+            processedDir.mkdir();
+            TempFiles.writeFile(new File(processedDir, "_PARSED_t-0-0.txt"), "");
+
+            try {
+                runWithProcessedDeltaLogDir(deltaLogRoot, true);
+                Assert.fail("rsync failure should be thrown");
+            } catch (IngestException e) {
+                Assert.assertEquals("exception mismatch", "rsync stage failed", e.getMessage());
+            }
+
+            Assert.assertFalse("nothing should be marked as verified after the failed run", new File(deltaLogRoot, "_VERIFIED_dlog-20130101-000000000").exists());
+            Assert.assertTrue("processed delta log directory should stay in place", processedDir.isDirectory());
+            Assert.assertTrue("parsed delta log should stay in place", new File(processedDir, "_PARSED_t-0-0.txt").isFile());
+        } finally {
+            TempFiles.delete(deltaLogRoot);
+        }
+    }
+
+    @Test
+    public void testLedgerTracksDeltaLogsWithoutRenames() throws IOException {
+        File deltaLogRoot = TempFiles.createTempDir("pipeline");
+        IngestLedger ledger = new IngestLedger(new File(deltaLogRoot, "ingest-ledger.txt"));
+        try {
+            File dlogDir = new File(deltaLogRoot, "dlog-20130101-000000000");
+            dlogDir.mkdir();
+            File parsedFile = new File(dlogDir, "t-0-0.txt");
+            TempFiles.writeFile(parsedFile, "");
+            TempFiles.writeFile(new File(dlogDir, "t-1-0.txt"), "");
+
+            Assert.assertEquals(1, PairtreeToCassandraDataSyncker.listUnprocessedDeltaLogDirs(deltaLogRoot, ledger).length);
+            ledger.recordDeltaLog(parsedFile.getPath(), IngestLedger.State.PARSED);
+            Assert.assertEquals("the parsed delta log should not be listed again", 1, PairtreeToCassandraDataSyncker.listUnparsedDeltaLogFiles(dlogDir, ledger).length);
+
+            PairtreeToCassandraDataSyncker.markDlogDirsAsDone(new File[] {dlogDir}, ledger);
+            Assert.assertTrue("delta log directory should keep its name", dlogDir.isDirectory());
+            Assert.assertEquals(IngestLedger.State.PARSED, ledger.getDeltaLogDirState(dlogDir.getName()));
+            Assert.assertEquals(0, PairtreeToCassandraDataSyncker.listUnprocessedDeltaLogDirs(deltaLogRoot, ledger).length);
+            Assert.assertEquals(Arrays.asList(parsedFile), ProcessedDeltaLogLister.listParsedDeltaLogs(deltaLogRoot, ledger));
+
+            Verificationer.markParsedDeltaLogsAsExtracted(deltaLogRoot, ledger);
+            Verificationer.markProcessedDlogDirsAsDone(deltaLogRoot, ledger);
+            Assert.assertTrue("parsed delta log should keep its name", parsedFile.isFile());
+            Assert.assertTrue("delta log directory should keep its name", dlogDir.isDirectory());
+            Assert.assertEquals(IngestLedger.State.VERIFIED, ledger.getDeltaLogDirState(dlogDir.getName()));
+            Assert.assertEquals(0, ProcessedDeltaLogLister.listParsedDeltaLogs(deltaLogRoot, ledger).size());
+        } finally {
+            ledger.close();
+            TempFiles.delete(deltaLogRoot);
+        }
+    }
+}
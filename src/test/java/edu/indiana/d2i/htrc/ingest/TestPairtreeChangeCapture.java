@@ -0,0 +1,118 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestPairtreeChangeCapture.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPairtreeChangeCapture {
+    private File rootDir;
+    private File pairtreeRoot;
+    private File deltaLogRoot;
+    private File stateDir;
+
+    @Before
+    public void setUp() throws IOException {
+        rootDir = TempFiles.createTempDir("capture");
+        pairtreeRoot = new File(rootDir, "dest/mdp/pairtree_root");
+        new File(pairtreeRoot, "ab/vol1").mkdirs();
+        new File(pairtreeRoot, "ab/vol2").mkdirs();
+        new File(pairtreeRoot, "cd/vol3").mkdirs();
+        deltaLogRoot = new File(rootDir, "dlogs");
+        deltaLogRoot.mkdirs();
+        stateDir = new File(rootDir, "state");
+        TempFiles.writeFile(new File(pairtreeRoot, "ab/vol1/vol1.zip"), "old zip");
+        TempFiles.writeFile(new File(pairtreeRoot, "ab/vol1/vol1.mets.xml"), "<mets/>");
+        TempFiles.writeFile(new File(pairtreeRoot, "ab/vol2/vol2.zip"), "unchanged");
+        TempFiles.writeFile(new File(pairtreeRoot, "cd/vol3/vol3.zip"), "gone");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(rootDir);
+    }
+
+    private String readDeltaLogs(File dlogDir) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        File[] files = dlogDir.listFiles();
+        for (File file : files) {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    builder.append(line).append('\n');
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testCapturesChangesPerVolume() throws Exception {
+        PairtreeChangeCapture capture = new PairtreeChangeCapture(new File(rootDir, "dest").getPath(), deltaLogRoot.getPath(), stateDir.getPath(), 2);
+        Assert.assertEquals("the first scan should only record the state", 0, capture.capture());
+        Assert.assertFalse(capture.getDeltaLogDir().exists());
+
+        TempFiles.writeFile(new File(pairtreeRoot, "ab/vol1/vol1.zip"), "new and longer zip");
+        new File(pairtreeRoot, "ab/vol2/vol2.zip").delete();
+        TempFiles.delete(new File(pairtreeRoot, "cd"));
+        new File(pairtreeRoot, "ab/vol4").mkdirs();
+        TempFiles.writeFile(new File(pairtreeRoot, "ab/vol4/vol4.zip"), "rsynced");
+        new File(pairtreeRoot, "ef/vol5").mkdirs();
+        TempFiles.writeFile(new File(pairtreeRoot, "ef/vol5/vol5.mets.xml"), "<mets/>");
+        File rsyncDlogDir = new File(deltaLogRoot, "_PROCESSED_dlog-29991231-000000000");
+        rsyncDlogDir.mkdirs();
+        TempFiles.writeFile(new File(rsyncDlogDir, "t-0-0.txt"), "DEST_ROOT=" + pairtreeRoot.getPath() + "/ab/\nPREFIX=mdp.\nCOPYRIGHT=PUBLIC_DOMAIN\nvol4/vol4.zip\n");
+
+        Assert.assertEquals(4, capture.capture());
+        String deltaLogs = readDeltaLogs(capture.getDeltaLogDir());
+        Assert.assertTrue(deltaLogs.contains("DEST_ROOT=" + pairtreeRoot.getAbsolutePath() + "/\n"));
+        Assert.assertTrue(deltaLogs.contains("PREFIX=mdp.\n"));
+        Assert.assertTrue(deltaLogs.contains("\nab/vol1/vol1.zip\n"));
+        Assert.assertFalse("unchanged files should not be logged", deltaLogs.contains("vol1.mets.xml"));
+        Assert.assertTrue(deltaLogs.contains("\ndeleting ab/vol2/vol2.zip\n"));
+        Assert.assertTrue("a removed branch should be logged as deleted", deltaLogs.contains("\ndeleting cd/vol3/vol3.zip\n"));
+        Assert.assertTrue("a new branch should be logged in full", deltaLogs.contains("\nef/vol5/vol5.mets.xml\n"));
+        Assert.assertFalse("files rsync already logged should be left out", deltaLogs.contains("vol4"));
+
+        Assert.assertEquals(0, capture.capture());
+    }
+}
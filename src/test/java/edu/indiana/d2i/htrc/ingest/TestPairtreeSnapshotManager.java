@@ -0,0 +1,99 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestPairtreeSnapshotManager.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPairtreeSnapshotManager {
+    private static final String DLOG_NAME = "dlog-20130101-000000000";
+
+    private File rootDir;
+    private File destDir;
+    private File deltaLogRoot;
+    private File snapshotRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        rootDir = TempFiles.createTempDir("snapshot");
+        destDir = new File(rootDir, "pairtree");
+        new File(destDir, "ab/vol1").mkdirs();
+        new File(destDir, "ab/vol2").mkdirs();
+        deltaLogRoot = new File(rootDir, "dlogs");
+        new File(deltaLogRoot, DLOG_NAME).mkdirs();
+        snapshotRoot = new File(rootDir, "snapshots");
+        TempFiles.writeFile(new File(destDir, "ab/vol1/vol1.zip"), "old zip");
+        TempFiles.writeFile(new File(destDir, "ab/vol1/vol1.mets.xml"), "<mets/>");
+        TempFiles.writeFile(new File(destDir, "ab/vol2/vol2.zip"), "unchanged");
+        TempFiles.writeFile(new File(deltaLogRoot, DLOG_NAME + "/t-1-0.txt"), "DEST_ROOT=" + destDir.getPath() + "/\nPREFIX=ab.\nCOPYRIGHT=PUBLIC_DOMAIN\n"
+                + "receiving incremental file list\nab/vol1/\nab/vol1/vol1.zip\ndeleting ab/vol3/vol3.zip\n\nsent 0 bytes  received 7 bytes\ntotal size is 7\n");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(rootDir);
+    }
+
+    @Test
+    public void testSnapshotSurvivesNextRsync() throws Exception {
+        PairtreeSnapshotManager manager = new PairtreeSnapshotManager(snapshotRoot.getPath());
+        manager.snapshotPending(deltaLogRoot.getPath());
+        File dlogDir = new File(deltaLogRoot, DLOG_NAME);
+        Assert.assertTrue(PairtreeSnapshotManager.isSnapshotted(dlogDir));
+        String snapshotPath = PairtreeSnapshotManager.readSnapshotPath(dlogDir);
+        Assert.assertNotNull(snapshotPath);
+
+        File snapshotZip = new File(PairtreeSnapshotManager.getSnapshotPath(snapshotPath, new File(destDir, "ab/vol1").getPath()), "vol1.zip");
+        File snapshotMets = new File(PairtreeSnapshotManager.getSnapshotPath(snapshotPath, new File(destDir, "ab/vol1").getPath()), "vol1.mets.xml");
+        Assert.assertTrue(snapshotZip.isFile());
+        Assert.assertTrue("the whole volume directory should be linked", snapshotMets.isFile());
+        Assert.assertFalse("unchanged volumes should not be linked", new File(PairtreeSnapshotManager.getSnapshotPath(snapshotPath, new File(destDir, "ab/vol2").getPath())).exists());
+
+        // the next rsync replaces the file by renaming a new one over it
+        File tempFile = new File(destDir, "ab/vol1/.vol1.zip.tmp");
+        TempFiles.writeFile(tempFile, "new zip");
+        Assert.assertTrue(tempFile.renameTo(new File(destDir, "ab/vol1/vol1.zip")));
+        Assert.assertEquals("old zip", TempFiles.readFirstLine(snapshotZip));
+
+        manager.collect(deltaLogRoot.getPath(), "_VERIFIED_");
+        Assert.assertTrue("snapshot should be kept until verified", new File(snapshotPath).isDirectory());
+        Assert.assertTrue(dlogDir.renameTo(new File(deltaLogRoot, "_VERIFIED_" + DLOG_NAME)));
+        manager.collect(deltaLogRoot.getPath(), "_VERIFIED_");
+        Assert.assertFalse(new File(snapshotPath).exists());
+        Assert.assertEquals("the pairtree should be untouched", "new zip", TempFiles.readFirstLine(new File(destDir, "ab/vol1/vol1.zip")));
+    }
+}
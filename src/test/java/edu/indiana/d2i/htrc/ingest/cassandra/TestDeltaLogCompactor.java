@@ -0,0 +1,173 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or areed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestDeltaLogCompactor.java
+# Description:  
+#
+# -----------------------------------------------------------------
+# 
+*/
+
+
+
+/**
+ * 
+ */
+package edu.indiana.d2i.htrc.ingest.cassandra;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+import edu.indiana.d2i.htrc.ingest.TempFiles;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogCompactor.CompactedVolume;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeDeletionInfo;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeUpdateInfo;
+
+public class TestDeltaLogCompactor {
+    private File dlogDir;
+    private File olderLog;
+    private File newerLog;
+
+    @Before
+    public void setUp() throws IOException {
+        dlogDir = TempFiles.createTempDir("compact");
+        olderLog = new File(dlogDir, "t-0-0.txt");
+        newerLog = new File(dlogDir, "t-0-1.txt");
+        olderLog.createNewFile();
+        newerLog.createNewFile();
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(dlogDir);
+    }
+
+    private static VolumeUpdateInfo update(String volumeID, String volumePath) {
+        return new VolumeUpdateInfo(volumeID, volumeID.substring(volumeID.indexOf('.') + 1), volumePath);
+    }
+
+    private static VolumeDeletionInfo deletion(String volumeID) {
+        VolumeDeletionInfo volumeDeletionInfo = new VolumeDeletionInfo(volumeID, CopyrightEnum.PUBLIC_DOMAIN);
+        volumeDeletionInfo.setIsDeleteVolume(true);
+        return volumeDeletionInfo;
+    }
+
+    private static List<VolumeDeletionInfo> deletions(VolumeDeletionInfo... volumeDeletionInfos) {
+        List<VolumeDeletionInfo> list = new ArrayList<VolumeDeletionInfo>();
+        Collections.addAll(list, volumeDeletionInfos);
+        return list;
+    }
+
+    private static List<VolumeUpdateInfo> updates(VolumeUpdateInfo... volumeUpdateInfos) {
+        List<VolumeUpdateInfo> list = new ArrayList<VolumeUpdateInfo>();
+        Collections.addAll(list, volumeUpdateInfos);
+        return list;
+    }
+
+    @Test
+    public void testMergeRules() {
+        DeltaLogCompactor compactor = new DeltaLogCompactor();
+        compactor.add(olderLog.getPath(), deletions(deletion("t.deleted-then-updated")),
+                updates(update("t.updated-twice", "/old/"), update("t.updated-then-deleted", "/old/")));
+        compactor.add(newerLog.getPath(), deletions(deletion("t.updated-then-deleted")),
+                updates(update("t.updated-twice", "/new/"), update("t.deleted-then-updated", "/new/")));
+
+        Assert.assertEquals(6, compactor.getActionCount());
+        Assert.assertEquals(3, compactor.getVolumeCount());
+        for (CompactedVolume volume : compactor.getVolumes()) {
+            VolumeDeletionInfo volumeDeletionInfo = volume.getVolumeDeletionInfo();
+            VolumeUpdateInfo volumeUpdateInfo = volume.getVolumeUpdateInfo();
+            String volumeID = (volumeUpdateInfo != null) ? volumeUpdateInfo.getVolumeID() : volumeDeletionInfo.getVolumeID();
+            if (volumeID.equals("t.updated-twice")) {
+                Assert.assertNull(volumeDeletionInfo);
+                Assert.assertEquals("the last update should win", "/new/", volumeUpdateInfo.getVolumePath());
+            } else if (volumeID.equals("t.updated-then-deleted")) {
+                Assert.assertNull("a deletion should drop earlier updates", volumeUpdateInfo);
+                Assert.assertTrue(volumeDeletionInfo.getIsDeleteVolume());
+            } else {
+                Assert.assertEquals("t.deleted-then-updated", volumeID);
+                Assert.assertNotNull("an update after a deletion should re-create the volume", volumeDeletionInfo);
+                Assert.assertEquals("/new/", volumeUpdateInfo.getVolumePath());
+            }
+        }
+    }
+
+    @Test
+    public void testMETSDeletionKeepsEarlierUpdate() {
+        VolumeDeletionInfo metsDeletion = new VolumeDeletionInfo("t.zip-updated-then-mets-deleted", CopyrightEnum.PUBLIC_DOMAIN);
+        metsDeletion.setIsDeleteMETS(true);
+
+        DeltaLogCompactor compactor = new DeltaLogCompactor();
+        compactor.add(olderLog.getPath(), deletions(), updates(update("t.zip-updated-then-mets-deleted", "/old/")));
+        compactor.add(newerLog.getPath(), deletions(metsDeletion), updates());
+
+        Assert.assertEquals(1, compactor.getVolumeCount());
+        CompactedVolume volume = compactor.getVolumes().get(0);
+        Assert.assertNotNull("a METS deletion should keep the earlier update", volume.getVolumeUpdateInfo());
+        Assert.assertEquals("/old/", volume.getVolumeUpdateInfo().getVolumePath());
+        Assert.assertTrue(volume.getVolumeDeletionInfo().getIsDeleteMETS());
+        Assert.assertFalse(volume.getVolumeDeletionInfo().getIsDeleteVolume());
+
+        // a later deletion of the whole volume still drops the update and merges with the METS deletion
+        File newestLog = new File(dlogDir, "t-0-2.txt");
+        compactor.add(newestLog.getPath(), deletions(deletion("t.zip-updated-then-mets-deleted")), updates());
+        volume = compactor.getVolumes().get(0);
+        Assert.assertNull("a volume deletion should drop the earlier update", volume.getVolumeUpdateInfo());
+        Assert.assertTrue(volume.getVolumeDeletionInfo().getIsDeleteMETS());
+        Assert.assertTrue(volume.getVolumeDeletionInfo().getIsDeleteVolume());
+    }
+
+    @Test
+    public void testDeltaLogsMarkedOncePushed() throws Exception {
+        DeltaLogCompactor compactor = new DeltaLogCompactor();
+        compactor.add(olderLog.getPath(), deletions(), updates(update("t.a", "/a/"), update("t.b", "/b/")));
+        compactor.add(newerLog.getPath(), deletions(), updates(update("t.b", "/b/")));
+        BoundedJobQueue<VolumeEvent> queue = new BoundedJobQueue<VolumeEvent>("TestQueue", 8);
+        compactor.publish(queue);
+        queue.close();
+
+        List<VolumeEvent> events = new ArrayList<VolumeEvent>();
+        queue.drainTo(events, 8);
+        Assert.assertEquals("each volume should be published once", 2, events.size());
+
+        events.get(1).done(false);
+        events.get(0).done(true);
+        Assert.assertTrue("a delta log with a failed volume should be left unparsed", olderLog.exists());
+        Assert.assertTrue(newerLog.exists());
+
+        // the volumes pushed fine on the next attempt
+        compactor = new DeltaLogCompactor();
+        compactor.add(olderLog.getPath(), deletions(), updates(update("t.a", "/a/")));
+        queue = new BoundedJobQueue<VolumeEvent>("TestQueue", 8);
+        compactor.publish(queue);
+        queue.take().done(true);
+        Assert.assertFalse(olderLog.exists());
+        Assert.assertTrue(new File(dlogDir, "_PARSED_t-0-0.txt").exists());
+    }
+}
@@ -35,6 +35,7 @@ package edu.indiana.d2i.htrc.ingest.cassandra;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -43,6 +44,9 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import edu.indiana.d2i.htrc.ingest.BinaryDeltaLog;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeDeletionInfo;
+import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeHandler;
 import edu.indiana.d2i.htrc.ingest.cassandra.DeltaLogParser.VolumeUpdateInfo;
 
 /**
@@ -122,6 +126,58 @@ public class TestDeltaLogParser {
         
         Assert.assertEquals("volumeIDs mismatch", "test.nosuchvolume", volumeUpdateInfo.getVolumeID());
     }
+    
+    @Test
+    public void testBinaryDeltaLogParsesLikeText() throws IOException {
+        BinaryDeltaLog.convertInPlace(deltalogFile);
+        DeltaLogParser parser = new DeltaLogParser(deltalogFile.getPath());
+        parser.parse();
+        List<VolumeUpdateInfo> volumeUpdateList = parser.getVolumeUpdateList();
+        
+        Assert.assertEquals(1, volumeUpdateList.size());
+        Assert.assertEquals("volumeIDs mismatch", "test.nosuchvolume", volumeUpdateList.get(0).getVolumeID());
+        Assert.assertEquals(COPYRIGHT, volumeUpdateList.get(0).getCopyright().toString());
+        Assert.assertEquals(DEST_ROOT + "ch/vo/lu/me/nosuchvolume/", volumeUpdateList.get(0).getVolumePath());
+    }
+    
+    @Test
+    public void testBoundedParseHandsOverVolumesAsItGoes() throws IOException, InterruptedException {
+        FileWriter writer = new FileWriter(deltalogFile);
+        writer.write("DEST_ROOT=" + DEST_ROOT + "\n");
+        writer.write("PREFIX=" + PREFIX + "\n");
+        writer.write("COPYRIGHT=" + COPYRIGHT + "\n");
+        writer.write("receiving incremental file list\n");
+        int volumeCount = DeltaLogParser.VOLUME_WINDOW_SIZE * 3;
+        for (int i = 0; i < volumeCount; i++) {
+            writer.write("ch/vo/lu/me/volume" + i + "/\n");
+            writer.write("ch/vo/lu/me/volume" + i + "/volume" + i + ".mets.xml\n");
+            writer.write("ch/vo/lu/me/volume" + i + "/volume" + i + ".zip\n");
+            if (i == 1) {
+                // rsync comes back to a directory within the window
+                writer.write("deleting ch/vo/lu/me/volume0/volume0.mets.xml\n");
+            }
+        }
+        writer.close();
+        
+        final List<String> handledVolumeIDs = new ArrayList<String>();
+        final List<Integer> pendingCounts = new ArrayList<Integer>();
+        final DeltaLogParser parser = new DeltaLogParser(deltalogFile.getPath());
+        parser.parse(new VolumeHandler() {
+            public void handleVolume(VolumeDeletionInfo volumeDeletionInfo, VolumeUpdateInfo volumeUpdateInfo) {
+                if (volumeUpdateInfo.getVolumeID().equals("test.volume0")) {
+                    Assert.assertNotNull("deletion should be merged into the same volume", volumeDeletionInfo);
+                }
+                handledVolumeIDs.add(volumeUpdateInfo.getVolumeID());
+                pendingCounts.add(parser.getVolumeUpdateList().size());
+            }
+        });
+        
+        Assert.assertEquals("each volume should be handed over once", volumeCount, handledVolumeIDs.size());
+        Assert.assertEquals("a revisited directory should be held back longer", "test.volume1", handledVolumeIDs.get(0));
+        Assert.assertEquals("volumes should be handed over in order", "test.volume0", handledVolumeIDs.get(1));
+        Assert.assertTrue("memory should be bounded by the window", pendingCounts.get(0) <= DeltaLogParser.VOLUME_WINDOW_SIZE);
+        Assert.assertEquals("nothing should be left over", 0, parser.getVolumeUpdateList().size());
+    }
 
 }
 
@@ -0,0 +1,177 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestStreamingDeltaLogParser.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.cassandra;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+
+public class TestStreamingDeltaLogParser {
+    private File deltalogFile = null;
+    private File parsedFile = null;
+    private BoundedJobQueue<VolumeEvent> eventQueue = null;
+    private StreamingDeltaLogParser parser = null;
+
+    private static final String PREFIX = "test.";
+    private static final String DEST_ROOT = "/no/such/dest/test/pairtree_root/no/su/";
+    private static final String COPYRIGHT = "PUBLIC_DOMAIN";
+
+    @Before
+    public void setupParser() throws IOException {
+        Random random = new Random();
+        String filename = Integer.toString(random.nextInt());
+        deltalogFile = new File(filename);
+        parsedFile = new File("_PARSED_" + filename);
+        FileWriter writer = new FileWriter(deltalogFile);
+        writer.close();
+
+        eventQueue = new BoundedJobQueue<VolumeEvent>("VolumeEventQueue", 16);
+        parser = new StreamingDeltaLogParser(eventQueue);
+        parser.start(deltalogFile.getPath());
+    }
+
+    @After
+    public void teardownFiles() {
+        File[] files = {deltalogFile, parsedFile};
+        for (File file : files) {
+            if (file.exists()) {
+                boolean deleted = file.delete();
+                if (!deleted) {
+                    System.err.println("failed to delete temp file " + file.getAbsolutePath());
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    private void feedHeader() throws InterruptedException {
+        parser.line("DEST_ROOT=" + DEST_ROOT);
+        parser.line("PREFIX=" + PREFIX);
+        parser.line("COPYRIGHT=" + COPYRIGHT);
+        parser.line("receiving incremental file list");
+    }
+
+    @Test
+    public void testVolumePublishedWhenDirectoryChanges() throws InterruptedException {
+        feedHeader();
+        parser.line("ch/vo/lu/me/volumeone/");
+        parser.line("ch/vo/lu/me/volumeone/volumeone.mets.xml");
+        parser.line("ch/vo/lu/me/volumeone/volumeone.zip");
+        Assert.assertEquals("volume should not be published before its directory is done", 0, eventQueue.size());
+
+        parser.line("ch/vo/lu/me/volumetwo/");
+        parser.line("ch/vo/lu/me/volumetwo/volumetwo.zip");
+        Assert.assertEquals("first volume should be published", 1, eventQueue.size());
+
+        VolumeEvent event = eventQueue.poll(1, TimeUnit.SECONDS);
+        Assert.assertEquals("volumeIDs mismatch", "test.volumeone", event.getVolumeUpdateInfo().getVolumeID());
+        Assert.assertEquals("volume path mismatch", DEST_ROOT + "ch/vo/lu/me/volumeone/", event.getVolumeUpdateInfo().getVolumePath());
+        Assert.assertNull("nothing should be deleted", event.getVolumeDeletionInfo());
+
+        parser.line("");
+        parser.line("sent 12345 bytes  received 54321 bytes  3600.12 bytes/sec");
+        parser.finish(true);
+        event = eventQueue.poll(1, TimeUnit.SECONDS);
+        Assert.assertEquals("volumeIDs mismatch", "test.volumetwo", event.getVolumeUpdateInfo().getVolumeID());
+    }
+
+    @Test
+    public void testDeletionAndUpdateInOneEvent() throws InterruptedException {
+        feedHeader();
+        parser.line("deleting ch/vo/lu/me/volumeone/volumeone.mets.xml");
+        parser.line("ch/vo/lu/me/volumeone/volumeone.zip");
+        parser.finish(true);
+
+        Assert.assertEquals("deletion and update of a volume should be one event", 1, eventQueue.size());
+        VolumeEvent event = eventQueue.poll(1, TimeUnit.SECONDS);
+        Assert.assertNotNull("deletion missing", event.getVolumeDeletionInfo());
+        Assert.assertNotNull("update missing", event.getVolumeUpdateInfo());
+    }
+
+    @Test
+    public void testDeltaLogMarkedParsedAfterLastEvent() throws InterruptedException {
+        feedHeader();
+        parser.line("ch/vo/lu/me/volumeone/volumeone.zip");
+        parser.line("ch/vo/lu/me/volumetwo/volumetwo.zip");
+        parser.finish(true);
+
+        VolumeEvent first = eventQueue.poll(1, TimeUnit.SECONDS);
+        VolumeEvent second = eventQueue.poll(1, TimeUnit.SECONDS);
+        first.done(true);
+        Assert.assertTrue("delta log should not be marked before all events are done", deltalogFile.exists());
+        second.done(true);
+        Assert.assertTrue("delta log should be marked as parsed", parsedFile.exists());
+    }
+
+    @Test
+    public void testDeltaLogNotMarkedAfterFailure() throws InterruptedException {
+        feedHeader();
+        parser.line("ch/vo/lu/me/volumeone/volumeone.zip");
+        parser.finish(true);
+
+        VolumeEvent event = eventQueue.poll(1, TimeUnit.SECONDS);
+        event.done(false);
+        Assert.assertTrue("delta log should be left for the next run", deltalogFile.exists());
+        Assert.assertFalse("delta log should not be marked as parsed", parsedFile.exists());
+    }
+
+    @Test
+    public void testItemizedAttributeOnlyChangeSkipped() throws InterruptedException {
+        parser.line("DEST_ROOT=" + DEST_ROOT);
+        parser.line("PREFIX=" + PREFIX);
+        parser.line("COPYRIGHT=" + COPYRIGHT);
+        parser.line("FORMAT=ITEMIZED");
+        parser.line("receiving incremental file list");
+        parser.line("cd+++++++++\t4096\t2013/01/31-12:00:00\tch/vo/lu/me/volumeone/");
+        parser.line(".f...p.....\t1024\t2013/01/31-12:00:00\tch/vo/lu/me/volumeone/volumeone.mets.xml");
+        parser.line(">f.st......\t2048\t2013/01/31-12:00:00\tch/vo/lu/me/volumetwo/volumetwo.zip");
+        parser.line("*deleting  \t0\t1970/01/01-00:00:00\tch/vo/lu/me/volumethree/volumethree.zip");
+        parser.finish(true);
+
+        Assert.assertEquals("attribute-only change should not be published", 2, eventQueue.size());
+        VolumeEvent event = eventQueue.poll(1, TimeUnit.SECONDS);
+        Assert.assertEquals("volumeIDs mismatch", "test.volumetwo", event.getVolumeUpdateInfo().getVolumeID());
+        Assert.assertEquals("byte count mismatch", 2048L, event.getVolumeUpdateInfo().getByteCount());
+        event = eventQueue.poll(1, TimeUnit.SECONDS);
+        Assert.assertNull("deleted volume should not be updated", event.getVolumeUpdateInfo());
+        Assert.assertEquals("volumeIDs mismatch", "test.volumethree", event.getVolumeDeletionInfo().getVolumeID());
+    }
+}
@@ -0,0 +1,56 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestAdaptiveConcurrencyController.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestAdaptiveConcurrencyController {
+
+    @Test
+    public void testAdditiveIncreaseWhileThroughputHolds() {
+        Assert.assertEquals("first sample should increase", 5, AdaptiveConcurrencyController.adjust(4, 1, 8, -1.0, -1.0, 1000.0, 100.0));
+        Assert.assertEquals("steady throughput should increase", 5, AdaptiveConcurrencyController.adjust(4, 1, 8, 1000.0, 100.0, 1000.0, 150.0));
+        Assert.assertEquals("should not exceed upper bound", 8, AdaptiveConcurrencyController.adjust(8, 1, 8, 1000.0, 100.0, 2000.0, 100.0));
+    }
+
+    @Test
+    public void testMultiplicativeDecreaseWhenSaturated() {
+        Assert.assertEquals("should halve", 4, AdaptiveConcurrencyController.adjust(8, 1, 8, 1000.0, 100.0, 500.0, 200.0));
+        Assert.assertEquals("should not go below lower bound", 3, AdaptiveConcurrencyController.adjust(4, 3, 8, 1000.0, 100.0, 500.0, 200.0));
+    }
+
+    @Test
+    public void testHoldWhenOnlyThroughputDrops() {
+        Assert.assertEquals("smaller jobs should not change the limit", 6, AdaptiveConcurrencyController.adjust(6, 1, 8, 1000.0, 100.0, 500.0, 50.0));
+    }
+}
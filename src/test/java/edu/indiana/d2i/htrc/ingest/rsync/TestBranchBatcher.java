@@ -0,0 +1,86 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestBranchBatcher.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+
+public class TestBranchBatcher {
+
+    private RsyncJobDescriptor createBranchJob(String sourcePath, String prefix) {
+        return new RsyncJobDescriptor(sourcePath, "/dest/" + sourcePath, prefix, CopyrightEnum.PUBLIC_DOMAIN, null, null, "host", "::", "/dlog", false);
+    }
+
+    @Test
+    public void testGetParent() {
+        Assert.assertEquals("parent mismatch", "src/mdp/pairtree_root/", BranchBatcher.getParent("src/mdp/pairtree_root/39/"));
+        Assert.assertNull("top level directory has no parent", BranchBatcher.getParent("src/"));
+    }
+
+    @Test
+    public void testBatchSiblingsWithSamePrefix() {
+        List<RsyncJobDescriptor> jobs = new ArrayList<RsyncJobDescriptor>();
+        jobs.add(createBranchJob("src/mdp/pairtree_root/39/", "mdp."));
+        jobs.add(createBranchJob("src/mdp/pairtree_root/40/", "mdp."));
+        jobs.add(createBranchJob("src/mdp/pairtree_root/41/", "mdp."));
+        jobs.add(createBranchJob("src/uc2/pairtree_root/ark/", "uc2."));
+
+        List<RsyncJobDescriptor> batchedJobs = new BranchBatcher(2, 0, null).batch(jobs);
+
+        Assert.assertEquals("should be one batch and two single branches", 3, batchedJobs.size());
+        RsyncJobDescriptor batch = batchedJobs.get(0);
+        Assert.assertTrue("first job should be a batch", batch instanceof BatchRsyncJobDescriptor);
+        Assert.assertEquals("batch source mismatch", "src/mdp/pairtree_root/", batch.getSourceRoot());
+        Assert.assertEquals("batch dest mismatch", "/dest/src/mdp/pairtree_root/", batch.getDestRoot());
+        Assert.assertEquals("batch should keep the branch prefix", "mdp.", batch.getPrefix());
+        Assert.assertEquals("relative paths mismatch", Arrays.asList("39/", "40/"), ((BatchRsyncJobDescriptor)batch).getRelativePaths());
+        Assert.assertEquals("batch should journal its branches", 2, batch.getBranchJobs().size());
+
+        Assert.assertSame("remainder should not be batched", jobs.get(2), batchedJobs.get(1));
+        Assert.assertSame("lone branch should not be batched", jobs.get(3), batchedJobs.get(2));
+    }
+
+    @Test
+    public void testBatchSizeOneDisablesBatching() {
+        List<RsyncJobDescriptor> jobs = new ArrayList<RsyncJobDescriptor>();
+        jobs.add(createBranchJob("src/mdp/pairtree_root/39/", "mdp."));
+        jobs.add(createBranchJob("src/mdp/pairtree_root/40/", "mdp."));
+
+        Assert.assertEquals("jobs should be returned as they are", jobs, new BranchBatcher(1, 0, null).batch(jobs));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestBranchCostHistory.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+
+public class TestBranchCostHistory {
+    private File costFile = null;
+
+    @Before
+    public void setupCostFile() {
+        Random random = new Random();
+        costFile = new File("cost-" + random.nextInt() + ".txt");
+    }
+
+    @After
+    public void teardownCostFile() {
+        if (costFile.exists()) {
+            boolean deleted = costFile.delete();
+            if (!deleted) {
+                System.err.println("failed to delete temp file " + costFile.getAbsolutePath());
+                costFile.deleteOnExit();
+            }
+        }
+    }
+
+    private RsyncJobDescriptor createJob(String sourceRoot) {
+        return new RsyncJobDescriptor(sourceRoot, "/dest/", "", CopyrightEnum.PUBLIC_DOMAIN, null, null, "host", "::", null, false);
+    }
+
+    private RsyncJobStats createStats(long duration, String summaryLine) {
+        RsyncJobStats stats = new RsyncJobStats();
+        stats.setDuration(duration);
+        stats.observe(summaryLine);
+        return stats;
+    }
+
+    @Test
+    public void testStatsFromOutput() {
+        RsyncJobStats stats = new RsyncJobStats();
+        String[] lines = {"receiving incremental file list", "ab/cd/", "ab/cd/abcd/", "ab/cd/abcd/abcd.zip", "ab/cd/abcd/abcd.mets.xml",
+                "deleting ab/ef/abef/abef.zip", "", "sent 1,234 bytes  received 56,789 bytes  3,456.78 bytes/sec", "total size is 987,654  speedup is 12.34"};
+        for (String line : lines) {
+            stats.observe(line);
+        }
+        Assert.assertEquals("file count mismatch", 2, stats.getFileCount());
+        Assert.assertEquals("bytes received mismatch", 56789, stats.getBytesReceived());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        BranchCostHistory history = new BranchCostHistory(costFile.getPath());
+        history.load();
+        history.record("src/a/", createStats(1000, "sent 10 bytes  received 2000 bytes  100.00 bytes/sec"));
+        history.save();
+
+        BranchCostHistory reloaded = new BranchCostHistory(costFile.getPath());
+        reloaded.load();
+        BranchCostHistory.BranchCost cost = reloaded.getCost("src/a/");
+        Assert.assertNotNull("cost should be reloaded", cost);
+        Assert.assertEquals("duration mismatch", 1000, cost.getDuration());
+        Assert.assertEquals("bytes mismatch", 2000, cost.getBytes());
+    }
+
+    @Test
+    public void testSortLongestFirst() {
+        BranchCostHistory history = new BranchCostHistory(costFile.getPath());
+        history.record("src/small/", createStats(10, ""));
+        history.record("src/huge/", createStats(1000, ""));
+        history.record("src/medium/", createStats(100, ""));
+
+        List<RsyncJobDescriptor> jobs = new ArrayList<RsyncJobDescriptor>();
+        jobs.add(createJob("src/small/"));
+        jobs.add(createJob("src/new/"));
+        jobs.add(createJob("src/medium/"));
+        jobs.add(createJob("src/huge/"));
+        history.sortByDescendingCost(jobs);
+
+        Assert.assertEquals("longest branch should be first", "src/huge/", jobs.get(0).getSourceRoot());
+        Assert.assertEquals("unknown branch should expect the mean cost", "src/new/", jobs.get(1).getSourceRoot());
+        Assert.assertEquals("shortest branch should be last", "src/small/", jobs.get(3).getSourceRoot());
+    }
+
+    @Test
+    public void testPredictMakespan() {
+        List<Long> longestLast = Arrays.asList(1L, 1L, 1L, 1L, 4L);
+        List<Long> longestFirst = Arrays.asList(4L, 1L, 1L, 1L, 1L);
+        Assert.assertEquals("makespan mismatch", 6, BranchCostHistory.predictMakespan(longestLast, 2));
+        Assert.assertEquals("makespan mismatch", 4, BranchCostHistory.predictMakespan(longestFirst, 2));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestBranchLeaseManager.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+import edu.indiana.d2i.htrc.ingest.TempFiles;
+
+public class TestBranchLeaseManager {
+    private static final String BRANCH = "uc1/pairtree_root/b1/";
+    private static final long TIMEOUT = 10000L;
+
+    private File leaseDir;
+
+    @Before
+    public void setUp() throws IOException {
+        leaseDir = TempFiles.createTempDir("leases");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(leaseDir);
+    }
+
+    private BranchLeaseManager createManager(String nodeId) {
+        return createManager(nodeId, "dlog-20130101-000000000");
+    }
+
+    private BranchLeaseManager createManager(String nodeId, String roundId) {
+        BranchLeaseManager manager = new BranchLeaseManager(leaseDir.getPath(), TIMEOUT, nodeId);
+        manager.setRoundId(roundId);
+        manager.share(BRANCH);
+        return manager;
+    }
+
+    private RsyncJobDescriptor createJob(String sourcePath) {
+        return new RsyncJobDescriptor(sourcePath, "/dest/" + sourcePath, "uc1.", CopyrightEnum.PUBLIC_DOMAIN, null, null, "host", "::", "/dlog", false);
+    }
+
+    @Test
+    public void testClaimIsExclusive() {
+        BranchLeaseManager node1 = createManager("1@host");
+        BranchLeaseManager node2 = createManager("2@host");
+        RsyncJobDescriptor job = createJob(BRANCH);
+
+        Assert.assertTrue("first node should claim the branch", node1.claim(job));
+        Assert.assertFalse("live lease should not be claimed again", node2.claim(job));
+
+        node1.release(job, false);
+        Assert.assertTrue("failed branch should be claimable again", node2.claim(job));
+        Assert.assertTrue("unshared job should always be claimed", node2.claim(createJob("extra/file.txt")));
+    }
+
+    @Test
+    public void testExpiredLeaseStolen() {
+        BranchLeaseManager node1 = createManager("1@host");
+        BranchLeaseManager node2 = createManager("2@host");
+        RsyncJobDescriptor job = createJob(BRANCH);
+
+        Assert.assertTrue(node1.claim(job));
+        File leaseFile = new File(leaseDir, BranchLeaseManager.getKey(job) + BranchLeaseManager.LEASE_SUFFIX);
+        leaseFile.setLastModified(System.currentTimeMillis() - 2 * TIMEOUT);
+
+        Assert.assertTrue("expired lease should be stolen", node2.claim(job));
+        Assert.assertEquals("only the stolen lease should be left", 1, leaseDir.listFiles().length);
+    }
+
+    @Test
+    public void testDoneBranchSkippedInRound() {
+        BranchLeaseManager node1 = createManager("1@host");
+        BranchLeaseManager node2 = createManager("2@host");
+        RsyncJobDescriptor job = createJob(BRANCH);
+
+        Assert.assertTrue(node1.claim(job));
+        node1.release(job, true);
+        Assert.assertFalse("branch done in this round should be skipped", node2.claim(job));
+
+        BranchLeaseManager nextRoundNode = createManager("2@host", "dlog-20130102-000000000");
+        Assert.assertTrue("branch done in an earlier round should be claimed", nextRoundNode.claim(job));
+    }
+
+    @Test
+    public void testDoneMarkerIgnoresClocks() {
+        BranchLeaseManager node1 = createManager("1@host");
+        BranchLeaseManager node2 = createManager("2@host");
+        RsyncJobDescriptor job = createJob(BRANCH);
+
+        Assert.assertTrue(node1.claim(job));
+        node1.release(job, true);
+        // a done marker whose time looks far off, e.g. from a skewed file server, still counts for its round
+        File doneFile = new File(leaseDir, BranchLeaseManager.getKey(job) + BranchLeaseManager.DONE_SUFFIX);
+        doneFile.setLastModified(System.currentTimeMillis() - 100 * TIMEOUT);
+        Assert.assertFalse("branch done in this round should be skipped whatever its time", node2.claim(job));
+    }
+
+    @Test
+    public void testStolenLeaseLeftToThief() {
+        BranchLeaseManager node1 = createManager("1@host");
+        BranchLeaseManager node2 = createManager("2@host");
+        RsyncJobDescriptor job = createJob(BRANCH);
+
+        Assert.assertTrue(node1.claim(job));
+        File leaseFile = new File(leaseDir, BranchLeaseManager.getKey(job) + BranchLeaseManager.LEASE_SUFFIX);
+        leaseFile.setLastModified(System.currentTimeMillis() - 2 * TIMEOUT);
+        Assert.assertTrue(node2.claim(job));
+
+        Assert.assertFalse("a stolen lease should be reported as lost", node1.release(job, true));
+        Assert.assertTrue("the thief's lease should be left in place", leaseFile.exists());
+        File doneFile = new File(leaseDir, BranchLeaseManager.getKey(job) + BranchLeaseManager.DONE_SUFFIX);
+        Assert.assertFalse("a lost lease should not mark the branch as done", doneFile.exists());
+        BranchLeaseManager node3 = createManager("3@host");
+        Assert.assertFalse("the branch is still leased by the thief", node3.claim(job));
+
+        Assert.assertTrue("the thief still holds the lease", node2.release(job, true));
+        Assert.assertFalse(leaseFile.exists());
+    }
+
+    @Test
+    public void testHeartbeatStopsTouchingStolenLease() throws InterruptedException {
+        BranchLeaseManager node1 = createManager("1@host");
+        BranchLeaseManager node2 = createManager("2@host");
+        RsyncJobDescriptor job = createJob(BRANCH);
+
+        Assert.assertTrue(node1.claim(job));
+        File leaseFile = new File(leaseDir, BranchLeaseManager.getKey(job) + BranchLeaseManager.LEASE_SUFFIX);
+        leaseFile.setLastModified(System.currentTimeMillis() - 2 * TIMEOUT);
+        Assert.assertTrue(node2.claim(job));
+        long stolenTime = System.currentTimeMillis() - 3 * TIMEOUT;
+        leaseFile.setLastModified(stolenTime);
+
+        Thread heartbeatThread = new Thread(node1);
+        heartbeatThread.start();
+        Thread.sleep(200L);
+        node1.stop();
+        heartbeatThread.join();
+
+        Assert.assertTrue("the former owner should not keep the stolen lease alive", Math.abs(leaseFile.lastModified() - stolenTime) < 2000L);
+        Assert.assertFalse("the lost lease should be reported on release", node1.release(job, true));
+    }
+}
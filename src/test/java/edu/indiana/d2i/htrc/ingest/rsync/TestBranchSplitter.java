@@ -0,0 +1,96 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestBranchSplitter.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+
+public class TestBranchSplitter {
+
+    private static class FixedListBranchSplitter extends BranchSplitter {
+        private final List<String> children;
+
+        FixedListBranchSplitter(List<String> children) {
+            this.children = children;
+        }
+
+        @Override
+        protected List<String> listChildDirectories(RsyncJobDescriptor job) throws IOException, InterruptedException {
+            return children;
+        }
+    }
+
+    private RsyncJobDescriptor createBranchJob() {
+        return new RsyncJobDescriptor("src/mdp/pairtree_root/39/", "/dest/src/mdp/pairtree_root/39/", "mdp.", CopyrightEnum.PUBLIC_DOMAIN, null, null, "host", "::", "/dlog", false);
+    }
+
+    @Test
+    public void testParseChildDirectory() {
+        Assert.assertEquals("child mismatch", "01", BranchSplitter.parseChildDirectory("drwxr-xr-x          4,096 2013/01/31 12:00:00 01"));
+        Assert.assertNull("current directory is not a child", BranchSplitter.parseChildDirectory("drwxr-xr-x          4,096 2013/01/31 12:00:00 ."));
+        Assert.assertNull("file is not a child directory", BranchSplitter.parseChildDirectory("-rw-r--r--         12,345 2013/01/31 12:00:00 pairtree_prefix"));
+    }
+
+    @Test
+    public void testSplitIntoChildrenAndParent() throws InterruptedException {
+        BranchSplitter splitter = new FixedListBranchSplitter(Arrays.asList("01", "02"));
+        List<RsyncJobDescriptor> jobs = splitter.split(createBranchJob());
+
+        Assert.assertEquals("should be one job per child plus the parent", 3, jobs.size());
+        RsyncJobDescriptor child = jobs.get(1);
+        Assert.assertEquals("child source mismatch", "src/mdp/pairtree_root/39/02/", child.getSourceRoot());
+        Assert.assertEquals("child dest mismatch", "/dest/src/mdp/pairtree_root/39/02/", child.getDestRoot());
+        Assert.assertEquals("child should keep the branch prefix", "mdp.", child.getPrefix());
+        Assert.assertTrue("child should not exclude anything", child.getExcludes().isEmpty());
+
+        RsyncJobDescriptor parent = jobs.get(2);
+        Assert.assertEquals("parent source mismatch", "src/mdp/pairtree_root/39/", parent.getSourceRoot());
+        Assert.assertEquals("parent should exclude the children", Arrays.asList("/01/", "/02/"), parent.getExcludes());
+    }
+
+    @Test
+    public void testNoChildrenNoSplit() throws InterruptedException {
+        RsyncJobDescriptor job = createBranchJob();
+        BranchSplitter splitter = new FixedListBranchSplitter(Collections.<String>emptyList());
+        List<RsyncJobDescriptor> jobs = splitter.split(job);
+
+        Assert.assertEquals("should not be split", 1, jobs.size());
+        Assert.assertSame("original job should be kept", job, jobs.get(0));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestJobRetryTracker.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+
+public class TestJobRetryTracker {
+
+    private RsyncJobDescriptor createJob(String sourcePath) {
+        return new RsyncJobDescriptor(sourcePath, "/dest/" + sourcePath, "uc1.", CopyrightEnum.PUBLIC_DOMAIN, null, null, "host", "::", "/dlog", false);
+    }
+
+    @Test
+    public void testTimedOutJobRequeuedThenGivenUp() throws InterruptedException {
+        BoundedJobQueue<RsyncJobDescriptor> jobQueue = new BoundedJobQueue<RsyncJobDescriptor>("TestJobQueue", 4);
+        JobRetryTracker tracker = new JobRetryTracker(jobQueue, 1, 10L);
+        RsyncJobDescriptor job = createJob("uc1/pairtree_root/b1/");
+        tracker.queued();
+
+        Assert.assertTrue("first timeout should be retried", tracker.finished(job, true));
+        Assert.assertSame("job should be back in the queue after the backoff", job, jobQueue.poll(5, TimeUnit.SECONDS));
+        Assert.assertFalse("second timeout should give up", tracker.finished(job, true));
+
+        tracker.awaitSettled();
+        Assert.assertEquals("timed out 2 times, given up", tracker.getTimedOutBranches().get("uc1/pairtree_root/b1/"));
+    }
+
+    @Test
+    public void testSettledOnceAllJobsFinish() throws InterruptedException {
+        BoundedJobQueue<RsyncJobDescriptor> jobQueue = new BoundedJobQueue<RsyncJobDescriptor>("TestJobQueue", 4);
+        JobRetryTracker tracker = new JobRetryTracker(jobQueue, 2, 10L);
+        RsyncJobDescriptor job1 = createJob("uc1/pairtree_root/b1/");
+        RsyncJobDescriptor job2 = createJob("uc1/pairtree_root/b2/");
+        tracker.queued();
+        tracker.queued();
+
+        Assert.assertFalse(tracker.finished(job1, false));
+        Assert.assertTrue(tracker.finished(job2, true));
+        Assert.assertSame(job2, jobQueue.poll(5, TimeUnit.SECONDS));
+        Assert.assertFalse(tracker.finished(job2, false));
+
+        tracker.awaitSettled();
+        Assert.assertEquals(1, tracker.getTimedOutBranches().size());
+        Assert.assertEquals("timed out 1 times, then finished", tracker.getTimedOutBranches().get("uc1/pairtree_root/b2/"));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestLandingMover.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+import edu.indiana.d2i.htrc.ingest.TempFiles;
+
+public class TestLandingMover {
+
+    private File rootDir;
+    private File landingDir;
+    private File destDir;
+
+    @Before
+    public void setUp() throws IOException {
+        rootDir = TempFiles.createTempDir("landingmover");
+        landingDir = new File(rootDir, "landing");
+        destDir = new File(rootDir, "dest");
+        new File(landingDir, "ab/vol1").mkdirs();
+        new File(destDir, "ab/vol1").mkdirs();
+        TempFiles.writeFile(new File(landingDir, "ab/vol1/vol1.zip"), "new zip content");
+        TempFiles.writeFile(new File(landingDir, "ab/vol1/.vol1.mets.xml.Xy12Ab"), "partial");
+        TempFiles.writeFile(new File(destDir, "ab/vol1/vol1.mets.xml"), "<mets/>");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(rootDir);
+    }
+
+    @Test
+    public void testLandedBranchIsMigratedAndKept() throws Exception {
+        LandingMover mover = new LandingMover(landingDir.getPath(), destDir.getPath(), 2);
+        String destRoot = destDir.getPath() + "/ab/";
+        Assert.assertEquals(landingDir.getPath() + "/ab/", mover.getLandingPath(destRoot));
+        Assert.assertNull(mover.getLandingPath("/elsewhere/ab/"));
+
+        mover.start();
+        mover.landed(new RsyncJobDescriptor("pd/pairtree_root/ab/", destRoot, "pd.", CopyrightEnum.PUBLIC_DOMAIN, null, null, "host", "::", null, false));
+        mover.finish();
+
+        File migrated = new File(destDir, "ab/vol1/vol1.zip");
+        Assert.assertEquals("landed file should be migrated", 15L, migrated.length());
+        Assert.assertEquals(new File(landingDir, "ab/vol1/vol1.zip").lastModified() / 1000, migrated.lastModified() / 1000);
+        Assert.assertTrue("untouched file should stay", new File(destDir, "ab/vol1/vol1.mets.xml").isFile());
+        Assert.assertFalse("rsync temporary file should not be migrated", new File(destDir, "ab/vol1/.vol1.mets.xml.Xy12Ab").exists());
+        Assert.assertTrue("landed file should be kept for the push", new File(landingDir, "ab/vol1/vol1.zip").isFile());
+        Assert.assertEquals(1L, mover.getMigratedFileCount());
+    }
+
+    @Test
+    public void testPurgeMigratesLeftoversAndEmptiesLanding() throws Exception {
+        LandingMover mover = new LandingMover(landingDir.getPath(), destDir.getPath(), 1);
+        mover.purge();
+        Assert.assertEquals(15L, new File(destDir, "ab/vol1/vol1.zip").length());
+        Assert.assertTrue(landingDir.isDirectory());
+        Assert.assertEquals("landing directory should be emptied", 0, landingDir.list().length);
+
+        LandingTransferEngine engine = new LandingTransferEngine(new RsyncTransferEngine(), mover);
+        String[] command = {"rsync", "--delete", "--verbose", "host::pd/", destDir.getPath() + "/ab/"};
+        String[] deletionCommand = engine.buildDeletionCommandArray(command);
+        Assert.assertEquals("--existing", deletionCommand[1]);
+        Assert.assertEquals(destDir.getPath() + "/ab/", deletionCommand[deletionCommand.length - 1]);
+        String[] landingCommand = engine.buildLandingCommandArray(command, command[4], mover.getLandingPath(command[4]));
+        Assert.assertEquals("--compare-dest=" + destDir.getAbsolutePath() + "/ab/", landingCommand[1]);
+        Assert.assertFalse(Arrays.asList(landingCommand).contains("--delete"));
+        Assert.assertEquals(landingDir.getPath() + "/ab/", landingCommand[landingCommand.length - 1]);
+    }
+}
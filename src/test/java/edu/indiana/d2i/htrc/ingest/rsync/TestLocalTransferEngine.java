@@ -0,0 +1,137 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestLocalTransferEngine.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+import edu.indiana.d2i.htrc.ingest.DeltaLogEntry;
+import edu.indiana.d2i.htrc.ingest.TempFiles;
+
+public class TestLocalTransferEngine {
+    private static final String SOURCE_ROOT = "module/pairtree_root/ab/";
+
+    private File rootDir;
+    private File sourceDir;
+    private File destDir;
+
+    @Before
+    public void setUp() throws IOException {
+        rootDir = TempFiles.createTempDir("localtransfer");
+        sourceDir = new File(rootDir, "source/" + SOURCE_ROOT + "vol1");
+        sourceDir.mkdirs();
+        destDir = new File(rootDir, "dest/ab");
+        TempFiles.writeFile(new File(sourceDir, "vol1.zip"), "zip content");
+        TempFiles.writeFile(new File(sourceDir, "vol1.mets.xml"), "<mets/>");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(rootDir);
+    }
+
+    private List<String> transfer(boolean itemizeChanges) throws Exception {
+        LocalTransferEngine engine = new LocalTransferEngine(new File(rootDir, "source").getPath());
+        RsyncJobDescriptor job = new RsyncJobDescriptor(SOURCE_ROOT, destDir.getPath() + "/", "ab.", CopyrightEnum.PUBLIC_DOMAIN, null, null, "host", "::", null, false);
+        Process process = engine.start(job, new String[0], itemizeChanges);
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line = null;
+        do {
+            line = reader.readLine();
+            if (line != null) {
+                lines.add(line);
+            }
+        } while (line != null);
+        reader.close();
+        Assert.assertEquals("transfer should succeed", 0, process.waitFor());
+        return lines;
+    }
+
+    @Test
+    public void testMirrorPrintsPlainDeltaLog() throws Exception {
+        List<String> lines = transfer(false);
+        Assert.assertTrue(lines.contains("vol1/"));
+        Assert.assertTrue(lines.contains("vol1/vol1.zip"));
+        Assert.assertTrue(lines.contains("vol1/vol1.mets.xml"));
+        Assert.assertEquals("content should be copied", 11L, new File(destDir, "vol1/vol1.zip").length());
+
+        RsyncJobStats stats = new RsyncJobStats();
+        for (String line : lines) {
+            stats.observe(line);
+        }
+        Assert.assertEquals(2L, stats.getFileCount());
+        Assert.assertEquals(18L, stats.getBytesReceived());
+
+        lines = transfer(false);
+        Assert.assertFalse("unchanged files should not be transferred again", lines.contains("vol1/vol1.zip"));
+
+        new File(sourceDir, "vol1.mets.xml").delete();
+        lines = transfer(false);
+        Assert.assertTrue(lines.contains("deleting vol1/vol1.mets.xml"));
+        Assert.assertFalse(new File(destDir, "vol1/vol1.mets.xml").exists());
+    }
+
+    @Test
+    public void testMirrorPrintsItemizedDeltaLog() throws Exception {
+        transfer(true);
+        TempFiles.writeFile(new File(sourceDir, "vol1.zip"), "new zip content");
+        new File(sourceDir, "vol1.mets.xml").delete();
+
+        DeltaLogEntry changed = null;
+        DeltaLogEntry deleted = null;
+        for (String line : transfer(true)) {
+            DeltaLogEntry entry = DeltaLogEntry.parse(line);
+            if (entry != null && entry.getPath().equals("vol1/vol1.zip")) {
+                changed = entry;
+            } else if (entry != null && entry.getPath().equals("vol1/vol1.mets.xml")) {
+                deleted = entry;
+            }
+        }
+        Assert.assertNotNull(changed);
+        Assert.assertTrue(changed.isFile());
+        Assert.assertFalse(changed.isAttributeOnly());
+        Assert.assertEquals(15L, changed.getSize());
+        Assert.assertNotNull(deleted);
+        Assert.assertTrue(deleted.isDeletion());
+    }
+}
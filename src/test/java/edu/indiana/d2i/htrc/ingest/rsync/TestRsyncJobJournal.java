@@ -0,0 +1,193 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestRsyncJobJournal.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+import edu.indiana.d2i.htrc.ingest.TempFiles;
+import edu.indiana.d2i.htrc.ingest.cassandra.PairtreeToCassandraDataSyncker;
+
+public class TestRsyncJobJournal {
+    private File deltaLogRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        deltaLogRoot = TempFiles.createTempDir("journal");
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(deltaLogRoot);
+    }
+
+    private RsyncJobDescriptor createJob(String sourceRoot) {
+        return new RsyncJobDescriptor(sourceRoot, "/dest/", "", CopyrightEnum.PUBLIC_DOMAIN, null, null, "host", "::", null, false);
+    }
+
+    private File createRunDir(String name) {
+        File dir = new File(deltaLogRoot, name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private void appendRaw(File dir, String text) throws IOException {
+        FileWriter writer = new FileWriter(new File(dir, RsyncJobJournal.JOURNAL_FILENAME), true);
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testResumeSkipsJobsThatExitedZero() throws IOException {
+        File dir = createRunDir("dlog-20130101-000000000");
+        RsyncJobDescriptor done = createJob("src/ab/");
+        RsyncJobDescriptor failed = createJob("src/cd/");
+        RsyncJobDescriptor retried = createJob("src/ef/");
+        RsyncJobDescriptor unstarted = createJob("src/gh/");
+
+        RsyncJobJournal journal = new RsyncJobJournal(dir.getPath());
+        journal.open();
+        for (RsyncJobDescriptor job : new RsyncJobDescriptor[] {done, failed, retried, unstarted}) {
+            journal.queued(job);
+        }
+        journal.running("0", 0, done);
+        journal.completed(done, 0);
+        journal.running("1", 0, failed);
+        journal.completed(failed, 23);
+        journal.running("0", 1, retried);
+        journal.completed(retried, 0);
+        journal.running("0", 2, retried);
+        journal.completed(retried, 12);
+        journal.close();
+
+        RsyncJobJournal loaded = new RsyncJobJournal(dir.getPath());
+        loaded.load();
+        Assert.assertFalse(loaded.isRunCompleted());
+        Assert.assertTrue(loaded.isCompleted(done));
+        Assert.assertFalse("rsync failed", loaded.isCompleted(failed));
+        Assert.assertFalse("the last attempt failed", loaded.isCompleted(retried));
+        Assert.assertFalse("never started", loaded.isCompleted(unstarted));
+    }
+
+    @Test
+    public void testTornLastLineIsIgnored() throws IOException {
+        File dir = createRunDir("dlog-20130101-000000000");
+        appendRaw(dir, "QUEUED\tsrc/ab/\nRUNNING\t0\t4\tsrc/ab/\nCOMPLETED\tsrc/ab/\t0\nRUNNING\t1\t5\tsrc/cd/\nCOMPLETED\tsrc/cd/");
+
+        RsyncJobJournal loaded = new RsyncJobJournal(dir.getPath());
+        loaded.load();
+        Assert.assertTrue(loaded.isCompleted(createJob("src/ab/")));
+        Assert.assertFalse("the exit value was torn off", loaded.isCompleted(createJob("src/cd/")));
+        Assert.assertFalse(loaded.isRunCompleted());
+
+        File tornRunDir = createRunDir("dlog-20130102-000000000");
+        appendRaw(tornRunDir, "RUNNING\t0\t7\tsrc/ab/\nRUN_COMPL");
+        loaded = new RsyncJobJournal(tornRunDir.getPath());
+        loaded.load();
+        Assert.assertFalse("a torn RUN_COMPLETED does not complete the run", loaded.isRunCompleted());
+    }
+
+    @Test
+    public void testFirstIterationIsNotReused() throws IOException {
+        File dir = createRunDir("dlog-20130101-000000000");
+        RsyncJobJournal empty = new RsyncJobJournal(dir.getPath());
+        appendRaw(dir, "");
+        empty.load();
+        Assert.assertEquals(0, empty.getFirstIteration());
+
+        appendRaw(dir, "RUNNING\t0\t3\tsrc/ab/\nRUNNING\t1\t7\tsrc/cd/\nRUNNING\t2\t5\tsrc/ef/\nRUNNING\t3\t9");
+        RsyncJobJournal loaded = new RsyncJobJournal(dir.getPath());
+        loaded.load();
+        Assert.assertEquals("one past the highest complete RUNNING entry", 8, loaded.getFirstIteration());
+    }
+
+    @Test
+    public void testFindIncompleteRun() throws IOException {
+        Assert.assertNull("nothing journaled", RsyncJobJournal.findIncompleteRun(deltaLogRoot.getPath()));
+
+        File older = createRunDir("dlog-20130101-000000000");
+        appendRaw(older, "QUEUED\tsrc/ab/\n");
+        File newer = createRunDir("dlog-20130102-000000000");
+        appendRaw(newer, "QUEUED\tsrc/ab/\n");
+        // neither of these is a journaled run directory
+        createRunDir("dlog-20130103-000000000");
+        appendRaw(createRunDir("_PROCESSED_dlog-20130104-000000000"), "QUEUED\tsrc/ab/\n");
+
+        Assert.assertEquals("the oldest incomplete run is resumed first", older.getPath(), RsyncJobJournal.findIncompleteRun(deltaLogRoot.getPath()));
+
+        appendRaw(older, "RUN_COMPLETED\n");
+        Assert.assertEquals(newer.getPath(), RsyncJobJournal.findIncompleteRun(deltaLogRoot.getPath()));
+
+        appendRaw(newer, "RUN_COMPLETED\n");
+        Assert.assertNull("every run completed", RsyncJobJournal.findIncompleteRun(deltaLogRoot.getPath()));
+    }
+
+    @Test
+    public void testIncompleteRunBeforeCompletedRunIsFound() throws IOException {
+        File incomplete = createRunDir("dlog-20130101-000000000");
+        appendRaw(incomplete, "QUEUED\tsrc/ab/\n");
+        File completed = createRunDir("dlog-20130102-000000000");
+        appendRaw(completed, "QUEUED\tsrc/ab/\nRUN_COMPLETED\n");
+
+        Assert.assertEquals("an incomplete run is not hidden by a later one", incomplete.getPath(), RsyncJobJournal.findIncompleteRun(deltaLogRoot.getPath()));
+    }
+
+    @Test
+    public void testIncompleteRunIsNotMarkedAsProcessed() throws IOException {
+        File incomplete = createRunDir("dlog-20130101-000000000");
+        appendRaw(incomplete, "QUEUED\tsrc/ab/\n");
+        File completed = createRunDir("dlog-20130102-000000000");
+        appendRaw(completed, "QUEUED\tsrc/ab/\nRUN_COMPLETED\n");
+        File unjournaled = createRunDir("dlog-20130103-000000000");
+
+        Assert.assertTrue(RsyncJobJournal.isIncompleteRun(incomplete));
+        Assert.assertFalse(RsyncJobJournal.isIncompleteRun(completed));
+        Assert.assertFalse("no journal", RsyncJobJournal.isIncompleteRun(unjournaled));
+
+        PairtreeToCassandraDataSyncker.markDlogDirsAsDone(new File[] {incomplete, completed, unjournaled});
+
+        Assert.assertTrue("the incomplete run should be left to be resumed", incomplete.isDirectory());
+        Assert.assertEquals(incomplete.getPath(), RsyncJobJournal.findIncompleteRun(deltaLogRoot.getPath()));
+        Assert.assertTrue(new File(deltaLogRoot, "_PROCESSED_dlog-20130102-000000000").isDirectory());
+        Assert.assertTrue(new File(deltaLogRoot, "_PROCESSED_dlog-20130103-000000000").isDirectory());
+    }
+}
@@ -0,0 +1,275 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestRsyncker.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.BoundedJobQueue;
+import edu.indiana.d2i.htrc.ingest.Constants.CopyrightEnum;
+import edu.indiana.d2i.htrc.ingest.TempFiles;
+
+public class TestRsyncker {
+    private static final String PARENT_SOURCE_ROOT = "module/pairtree_root/ab/";
+
+    /**
+     * A TransferEngine that transfers each job from the local mirror named in the rsync command
+     */
+    private static class LocalMirrorTransferEngine implements TransferEngine {
+        private final List<File> mirrorDirs;
+
+        LocalMirrorTransferEngine(List<File> mirrorDirs) {
+            this.mirrorDirs = mirrorDirs;
+        }
+
+        public Process start(RsyncJobDescriptor job, String[] commandArray, boolean itemizeChanges) throws IOException {
+            for (String argument : commandArray) {
+                for (File mirrorDir : mirrorDirs) {
+                    if (argument.startsWith(mirrorDir.getPath() + "/")) {
+                        return new LocalTransferEngine(mirrorDir.getPath()).start(job, commandArray, itemizeChanges);
+                    }
+                }
+            }
+            throw new IOException("no mirror in the command");
+        }
+
+        public boolean isOutputRedirectable() {
+            return false;
+        }
+
+        public Process startRedirected(RsyncJobDescriptor job, String[] commandArray, File outputFile, File errorFile) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private File rootDir;
+    private File deltaLogDir;
+    private File destDir;
+
+    @Before
+    public void setUp() throws IOException {
+        rootDir = TempFiles.createTempDir("rsyncker");
+        deltaLogDir = new File(rootDir, "dlog-20130101-000000000");
+        deltaLogDir.mkdirs();
+        destDir = new File(rootDir, "dest/ab");
+        destDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        TempFiles.delete(rootDir);
+    }
+
+    private List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line = null;
+            do {
+                line = reader.readLine();
+                if (line != null) {
+                    lines.add(line);
+                }
+            } while (line != null);
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private void writeVolume(File mirrorDir, String volume, String content, long lastModified) throws IOException {
+        File file = new File(mirrorDir, PARENT_SOURCE_ROOT + volume + "/" + volume + ".zip");
+        file.getParentFile().mkdirs();
+        TempFiles.writeFile(file, content);
+        file.setLastModified(lastModified);
+    }
+
+    /**
+     * Method to create a Rsyncker that runs a shell script in place of rsync. The rsync options added by Rsyncker are
+     * passed to the script as its arguments
+     * @param script the shell script
+     * @return a Rsyncker object
+     * @throws IOException thrown if the script could not be written
+     */
+    private Rsyncker createScriptRsyncker(String script) throws IOException {
+        final File scriptFile = new File(rootDir, "rsync.sh");
+        TempFiles.writeFile(scriptFile, "#!/bin/sh" + System.getProperty("line.separator") + script);
+        scriptFile.setExecutable(true);
+        RsynckerSettings settings = new RsynckerSettings();
+        settings.setRedirectOutput(true);
+        BoundedJobQueue<RsyncJobDescriptor> jobQueue = new BoundedJobQueue<RsyncJobDescriptor>("JobQueue", 1);
+        return new Rsyncker("t-0", jobQueue, settings) {
+            @Override
+            protected String[] buildCommandArray(RsyncJobDescriptor job) {
+                return new String[] {scriptFile.getPath()};
+            }
+        };
+    }
+
+    private RsyncJobDescriptor createJob() {
+        return new RsyncJobDescriptor(PARENT_SOURCE_ROOT + "vol1/", destDir.getPath() + "/", "ab.", CopyrightEnum.PUBLIC_DOMAIN, null, null, "host", "::", deltaLogDir.getPath(), false);
+    }
+
+    @Test
+    public void testRedirectedCommandSendsOutputToFiles() throws Exception {
+        File dlogFile = new File(deltaLogDir, "t-0-0.txt");
+        File errorFile = new File(deltaLogDir, "t-0-0.err");
+        TempFiles.writeFile(dlogFile, "HEADER" + System.getProperty("line.separator"));
+
+        String[] commandArray = new RsyncTransferEngine().buildRedirectedCommandArray(new String[] {"sh", "-c", "echo vol1/vol1.zip; echo \"file vanished\" >&2; exit 24"},
+                dlogFile, errorFile);
+        Assert.assertEquals("sh", commandArray[0]);
+        Assert.assertEquals("dlog file should be the first argument of the script", dlogFile.getPath(), commandArray[4]);
+        Assert.assertEquals("error file should be the second argument of the script", errorFile.getPath(), commandArray[5]);
+
+        Process process = Runtime.getRuntime().exec(commandArray);
+        Assert.assertEquals("exit value of the command should be passed through", 24, process.waitFor());
+        Assert.assertEquals("output should be appended after what the file held", Arrays.asList("HEADER", "vol1/vol1.zip"), readLines(dlogFile));
+        Assert.assertEquals("errors should go to the error file", Arrays.asList("file vanished"), readLines(errorFile));
+    }
+
+    @Test
+    public void testRunJobRedirectedWritesHeaderFirst() throws Exception {
+        Rsyncker rsyncker = createScriptRsyncker("echo receiving incremental file list; echo vol1/; echo vol1/vol1.zip; echo \"some warning\" >&2");
+        RsyncJobDescriptor job = createJob();
+
+        Assert.assertEquals("script should succeed", 0, rsyncker.runJobRedirected(job, 3));
+
+        File dlogFile = new File(deltaLogDir, "t-0-3.txt");
+        Assert.assertEquals("delta log path should be recorded", dlogFile.getPath(), rsyncker.deltaLogPath);
+        List<String> expected = new ArrayList<String>(rsyncker.buildHeaderLines(job));
+        expected.addAll(Arrays.asList("receiving incremental file list", "vol1/", "vol1/vol1.zip"));
+        Assert.assertEquals("header should come first, followed by the output only", expected, readLines(dlogFile));
+        Assert.assertFalse("error file should be removed once logged", new File(deltaLogDir, "t-0-3.err").exists());
+    }
+
+    @Test
+    public void testRunJobRedirectedPassesFailureThrough() throws Exception {
+        Rsyncker rsyncker = createScriptRsyncker("echo vol1/vol1.zip; echo \"rsync error: some files could not be transferred (code 23)\" >&2; exit 23");
+        RsyncJobDescriptor job = createJob();
+
+        Assert.assertEquals("exit value should be passed through", 23, rsyncker.runJobRedirected(job, 0));
+
+        List<String> lines = readLines(new File(deltaLogDir, "t-0-0.txt"));
+        Assert.assertEquals("output of the failed run should be kept", "vol1/vol1.zip", lines.get(lines.size() - 1));
+        Assert.assertFalse("errors should not be written to the delta log", lines.contains("rsync error: some files could not be transferred (code 23)"));
+        Assert.assertFalse("error file should be removed once logged", new File(deltaLogDir, "t-0-0.err").exists());
+    }
+
+    @Test
+    public void testRunJobRedirectedReadsStatsFromTail() throws Exception {
+        // many more file lines than fit in the tail, followed by the --stats summary
+        Rsyncker rsyncker = createScriptRsyncker("[ \"$1\" = --stats ] || exit 1; i=0; while [ $i -lt 1000 ]; do echo vol$i/vol$i.zip; i=$((i+1)); done; "
+                + "echo; echo \"Number of files: 2,001 (reg: 1,000, dir: 1,001)\"; echo \"Number of regular files transferred: 1,000\"; "
+                + "echo \"Total bytes received: 56,789\"; echo; echo \"sent 1,234 bytes  received 56,789 bytes  1,234.50 bytes/sec\"; echo \"total size is 56,000  speedup is 1.00\"");
+        RsyncJobDescriptor job = createJob();
+
+        Assert.assertEquals("script should be run with --stats", 0, rsyncker.runJobRedirected(job, 0));
+
+        File dlogFile = new File(deltaLogDir, "t-0-0.txt");
+        Assert.assertTrue("file list should not fit in the tail", dlogFile.length() > Rsyncker.STATS_TAIL_SIZE);
+        RsyncJobStats stats = new RsyncJobStats();
+        rsyncker.collectStats(dlogFile, stats);
+        Assert.assertEquals("file count should come from the stats", 1000L, stats.getFileCount());
+        Assert.assertEquals("bytes received should come from the summary line", 56789L, stats.getBytesReceived());
+    }
+
+    @Test
+    public void testEveryMirrorAttemptKeepsItsDeltaLog() throws Exception {
+        long lastModified = 1357000000000L;
+        // the first mirror lags behind and does not have vol2 yet, so its attempt fails partway after vol1 is transferred
+        File laggingMirror = new File(rootDir, "mirror1");
+        writeVolume(laggingMirror, "vol1", "vol1 zip", lastModified);
+        new File(laggingMirror, PARENT_SOURCE_ROOT).mkdirs();
+        File currentMirror = new File(rootDir, "mirror2");
+        writeVolume(currentMirror, "vol1", "vol1 zip", lastModified);
+        writeVolume(currentMirror, "vol2", "vol2 zip", lastModified);
+
+        List<RsyncJobDescriptor> branchJobs = new ArrayList<RsyncJobDescriptor>();
+        for (String volume : Arrays.asList("vol1", "vol2")) {
+            branchJobs.add(new RsyncJobDescriptor(PARENT_SOURCE_ROOT + volume + "/", destDir.getPath() + "/" + volume + "/", "ab.", CopyrightEnum.PUBLIC_DOMAIN,
+                    null, null, "host", "::", deltaLogDir.getPath(), false));
+        }
+        RsyncJobDescriptor job = new BatchRsyncJobDescriptor(PARENT_SOURCE_ROOT, destDir.getPath() + "/", branchJobs);
+
+        List<SourceMirrorPool.Mirror> mirrors = new ArrayList<SourceMirrorPool.Mirror>();
+        mirrors.add(new SourceMirrorPool.Mirror(laggingMirror.getPath(), 1));
+        mirrors.add(new SourceMirrorPool.Mirror(currentMirror.getPath(), 1));
+
+        RsyncJobJournal journal = new RsyncJobJournal(deltaLogDir.getPath());
+        journal.open();
+        BoundedJobQueue<RsyncJobDescriptor> jobQueue = new BoundedJobQueue<RsyncJobDescriptor>("JobQueue", 2);
+        BoundedJobQueue<String> deltaLogQueue = new BoundedJobQueue<String>("DeltaLogQueue", 4);
+
+        RsynckerSettings settings = new RsynckerSettings();
+        settings.setDeltaLogQueue(deltaLogQueue);
+        settings.setJournal(journal);
+        settings.setMirrorPool(new SourceMirrorPool(mirrors));
+        settings.setTransferEngine(new LocalMirrorTransferEngine(Arrays.asList(laggingMirror, currentMirror)));
+
+        jobQueue.put(job);
+        jobQueue.close();
+        new Rsyncker("t-0", jobQueue, settings).run();
+        journal.close();
+        deltaLogQueue.close();
+
+        Assert.assertEquals("vol1 should be transferred", "vol1 zip", TempFiles.readFirstLine(new File(destDir, "vol1/vol1.zip")));
+        Assert.assertEquals("vol2 should be transferred", "vol2 zip", TempFiles.readFirstLine(new File(destDir, "vol2/vol2.zip")));
+
+        File failedDeltaLog = new File(deltaLogDir, "t-0-0.txt");
+        File successfulDeltaLog = new File(deltaLogDir, "t-0-1.txt");
+        Assert.assertEquals("the delta log of the failed attempt should be handed over first", failedDeltaLog.getPath(), deltaLogQueue.take());
+        Assert.assertEquals("the delta log of the successful attempt should be handed over too", successfulDeltaLog.getPath(), deltaLogQueue.take());
+        Assert.assertNull("no other delta log should be handed over", deltaLogQueue.take());
+
+        // vol1 is unchanged by the time the second mirror is tried, so only the failed attempt lists it
+        Assert.assertTrue("failed attempt should list vol1", readLines(failedDeltaLog).contains("vol1/vol1.zip"));
+        Assert.assertFalse("failed attempt should not list vol2", readLines(failedDeltaLog).contains("vol2/vol2.zip"));
+        Assert.assertFalse("successful attempt should not list vol1 again", readLines(successfulDeltaLog).contains("vol1/vol1.zip"));
+        Assert.assertTrue("successful attempt should list vol2", readLines(successfulDeltaLog).contains("vol2/vol2.zip"));
+
+        RsyncJobJournal reloaded = new RsyncJobJournal(deltaLogDir.getPath());
+        reloaded.load();
+        Assert.assertEquals("both attempts should be journaled", 2, reloaded.getFirstIteration());
+        Assert.assertTrue("job should be journaled as completed", reloaded.isCompleted(branchJobs.get(1)));
+    }
+}
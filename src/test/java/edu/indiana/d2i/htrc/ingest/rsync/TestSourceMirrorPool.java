@@ -0,0 +1,98 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestSourceMirrorPool.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSourceMirrorPool {
+
+    private RsyncJobStats createStats(long bytes, long duration) {
+        RsyncJobStats stats = new RsyncJobStats();
+        stats.observe("sent 100 bytes  received " + bytes + " bytes  1000.00 bytes/sec");
+        stats.setDuration(duration);
+        return stats;
+    }
+
+    @Test
+    public void testParse() {
+        SourceMirrorPool pool = SourceMirrorPool.parse("hostA=2, /mnt/mirror ,hostB=x", 4);
+        Assert.assertEquals(3, pool.size());
+        SourceMirrorPool.Mirror local = pool.getMirrors().get(1);
+        Assert.assertTrue(local.isLocal());
+        Assert.assertEquals("/mnt/mirror/pd/pairtree_root/", local.getSource("::", "pd/pairtree_root/"));
+        Assert.assertEquals("hostA::pd/", pool.getMirrors().get(0).getSource("::", "pd/"));
+        Assert.assertNull(SourceMirrorPool.parse(" ", 4));
+    }
+
+    @Test
+    public void testFasterMirrorGetsMoreJobs() throws InterruptedException {
+        SourceMirrorPool pool = SourceMirrorPool.parse("slow=4,fast=4", 4);
+        Set<SourceMirrorPool.Mirror> none = new HashSet<SourceMirrorPool.Mirror>();
+        SourceMirrorPool.Mirror slow = pool.getMirrors().get(0);
+        SourceMirrorPool.Mirror fast = pool.getMirrors().get(1);
+
+        Assert.assertSame(slow, pool.acquire(none));
+        pool.release(slow, createStats(1000, 1000), true);
+        Set<SourceMirrorPool.Mirror> notSlow = new HashSet<SourceMirrorPool.Mirror>();
+        notSlow.add(slow);
+        Assert.assertSame(fast, pool.acquire(notSlow));
+        pool.release(fast, createStats(4000, 1000), true);
+
+        int fastCount = 0;
+        for (int i = 0; i < 5; i++) {
+            if (pool.acquire(none) == fast) {
+                fastCount++;
+            }
+        }
+        Assert.assertEquals("four times the throughput should take four of five jobs", 4, fastCount);
+        Assert.assertSame("the limit of the fast mirror is reached", slow, pool.acquire(none));
+    }
+
+    @Test
+    public void testFailover() throws InterruptedException {
+        SourceMirrorPool pool = SourceMirrorPool.parse("hostA=1,hostB=1", 1);
+        Set<SourceMirrorPool.Mirror> failed = new HashSet<SourceMirrorPool.Mirror>();
+        SourceMirrorPool.Mirror first = pool.acquire(failed);
+        pool.release(first, null, false);
+        failed.add(first);
+
+        SourceMirrorPool.Mirror second = pool.acquire(failed);
+        Assert.assertNotSame("should fail over to the other mirror", first, second);
+        pool.release(second, null, false);
+        failed.add(second);
+        Assert.assertNull("no mirror left to fail over to", pool.acquire(failed));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestTransferWatchdog.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTransferWatchdog {
+
+    @Test
+    public void testHungProcessKilled() throws Exception {
+        Process process = Runtime.getRuntime().exec(new String[] {"sleep", "30"});
+        TransferWatchdog watchdog = new TransferWatchdog(process, new RsyncJobStats(), null, 0L, 200L);
+        Thread thread = new Thread(watchdog);
+        thread.start();
+        long startTime = System.currentTimeMillis();
+        process.waitFor();
+        watchdog.stop();
+        thread.join();
+
+        Assert.assertTrue("process printing nothing should be killed", watchdog.isTimedOut());
+        Assert.assertTrue("process should be killed long before it exits by itself", System.currentTimeMillis() - startTime < 10000L);
+    }
+
+    @Test
+    public void testFinishedProcessNotKilled() throws Exception {
+        Process process = Runtime.getRuntime().exec(new String[] {"true"});
+        TransferWatchdog watchdog = new TransferWatchdog(process, new RsyncJobStats(), null, 5000L, 5000L);
+        Thread thread = new Thread(watchdog);
+        thread.start();
+        Assert.assertEquals(0, process.waitFor());
+        watchdog.stop();
+        thread.join();
+
+        Assert.assertFalse(watchdog.isTimedOut());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestFileListEntry.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestFileListEntry {
+    private FileListEntry dir(String path) {
+        return new FileListEntry(path, 4096L, 0L, FileListEntry.S_IFDIR | 0755, false);
+    }
+
+    private FileListEntry file(String path) {
+        return new FileListEntry(path, 1L, 0L, FileListEntry.S_IFREG | 0644, false);
+    }
+
+    @Test
+    public void testRsyncFileListOrder() {
+        List<FileListEntry> entries = new ArrayList<FileListEntry>();
+        entries.add(dir("b"));
+        entries.add(file("b/z.txt"));
+        entries.add(dir("b/a"));
+        entries.add(file("b/a/x"));
+        entries.add(file("c"));
+        entries.add(dir("a-b"));
+        entries.add(dir("a"));
+        entries.add(file("a.txt"));
+        entries.add(dir("."));
+        Collections.sort(entries, FileListEntry.NAME_ORDER);
+
+        List<String> paths = new ArrayList<String>();
+        for (FileListEntry entry : entries) {
+            paths.add(entry.getPath());
+        }
+        // files before directories at each level, "a/" compared with its slash sorts after "a-b/"
+        String[] expected = {".", "a.txt", "c", "a-b", "a", "b", "b/z.txt", "b/a", "b/a/x"};
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals("entry " + i, expected[i], paths.get(i));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestMD4.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMD4 {
+    private String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+
+    private String digest(String text) throws Exception {
+        MD4 md4 = new MD4();
+        md4.update(text.getBytes("US-ASCII"));
+        return hex(md4.digest());
+    }
+
+    @Test
+    public void testRfc1320Vectors() throws Exception {
+        Assert.assertEquals("31d6cfe0d16ae931b73c59d7e0c089c0", digest(""));
+        Assert.assertEquals("bde52cb31de33e46245e05fbdbd6fb24", digest("a"));
+        Assert.assertEquals("a448017aaf21d8525fc10ae87aa6729d", digest("abc"));
+        Assert.assertEquals("d9130a8164549fe818874806e1c7014b", digest("message digest"));
+        Assert.assertEquals("043f8582f241db351ce627e153e7f0e4", digest("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"));
+        Assert.assertEquals("e33b4ddc9c38f2199c3e7b164fcc0536", digest("12345678901234567890123456789012345678901234567890123456789012345678901234567890"));
+    }
+
+    @Test
+    public void testUpdateInPieces() throws Exception {
+        String text = "12345678901234567890123456789012345678901234567890123456789012345678901234567890";
+        byte[] bytes = text.getBytes("US-ASCII");
+        MD4 md4 = new MD4();
+        md4.update(bytes, 0, 7);
+        md4.update(bytes, 7, 60);
+        md4.update(bytes, 67, bytes.length - 67);
+        Assert.assertEquals(digest(text), hex(md4.digest()));
+        Assert.assertEquals("digest should reset", "31d6cfe0d16ae931b73c59d7e0c089c0", hex(md4.digest()));
+    }
+}
@@ -0,0 +1,324 @@
+/*
+#
+# Copyright 2013 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# -----------------------------------------------------------------
+#
+# Project: HTRC-Ingester
+# File:  TestRsyncDaemonClient.java
+# Description:
+#
+# -----------------------------------------------------------------
+#
+*/
+
+
+
+/**
+ *
+ */
+package edu.indiana.d2i.htrc.ingest.rsync.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.indiana.d2i.htrc.ingest.DeltaLogEntry;
+import edu.indiana.d2i.htrc.ingest.TempFiles;
+
+public class TestRsyncDaemonClient {
+    private static final int SEED = 0x12345678;
+    private static final long MOD_TIME = 1300000000L;
+
+    private File destDir;
+    private ServerSocket serverSocket;
+    private volatile Throwable daemonFailure;
+
+    @Before
+    public void setUp() throws IOException {
+        destDir = TempFiles.createTempDir("daemonclient");
+        serverSocket = new ServerSocket(0);
+        daemonFailure = null;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverSocket.close();
+        TempFiles.delete(destDir);
+    }
+
+    private static class RecordingListener implements RsyncDaemonClient.TransferListener {
+        private final List<DeltaLogEntry> entries = new ArrayList<DeltaLogEntry>();
+        private final List<String> messages = new ArrayList<String>();
+
+        public void changed(DeltaLogEntry entry) {
+            entries.add(entry);
+        }
+
+        public void message(String text, boolean error) {
+            messages.add(text);
+        }
+
+        DeltaLogEntry find(String path) {
+            for (DeltaLogEntry entry : entries) {
+                if (entry.getPath().equals(path)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A scripted rsync daemon serving one session of protocol 29 with a fixed file list
+     */
+    private class FakeDaemon implements Runnable {
+        private final List<FileListEntry> fileList;
+        private final byte[][] contents;
+        private final List<String> arguments = new ArrayList<String>();
+        private final List<String> filterRules = new ArrayList<String>();
+        private DataInputStream in;
+        private OutputStream out;
+
+        FakeDaemon(List<FileListEntry> fileList, byte[][] contents) {
+            this.fileList = fileList;
+            this.contents = contents;
+        }
+
+        public void run() {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    out = socket.getOutputStream();
+                    serve();
+                } finally {
+                    socket.close();
+                }
+            } catch (Throwable t) {
+                daemonFailure = t;
+            }
+        }
+
+        private void serve() throws IOException {
+            Assert.assertEquals("@RSYNCD: 29.0", readLine());
+            out.write("@RSYNCD: 30.0\n".getBytes("UTF-8"));
+            Assert.assertEquals("module", readLine());
+            out.write("Welcome\n@RSYNCD: AUTHREQD challenge\n".getBytes("UTF-8"));
+            Assert.assertEquals("htrc " + RsyncDaemonClient.generateAuthResponse("secret", "challenge"), readLine());
+            out.write("@RSYNCD: OK\n".getBytes("UTF-8"));
+            String argument = null;
+            while (!(argument = readLine()).equals("")) {
+                arguments.add(argument);
+            }
+            out.write(ints(SEED));
+            out.flush();
+
+            int length = 0;
+            while ((length = readInt()) != 0) {
+                byte[] rule = new byte[length];
+                in.readFully(rule);
+                filterRules.add(new String(rule, "UTF-8"));
+            }
+
+            ByteArrayOutputStream list = new ByteArrayOutputStream();
+            for (FileListEntry entry : fileList) {
+                byte[] name = entry.getPath().getBytes("UTF-8");
+                list.write(0x40);
+                list.write(ints(name.length));
+                list.write(name);
+                list.write(ints((int)entry.getLength(), (int)entry.getModTime(), entry.getMode()));
+            }
+            list.write(0);
+            list.write(ints(0));
+            sendMessage(MultiplexInputStream.MSG_INFO, "file list sent\n".getBytes("UTF-8"));
+            sendData(list.toByteArray());
+
+            List<FileListEntry> sorted = new ArrayList<FileListEntry>(fileList);
+            Collections.sort(sorted, FileListEntry.NAME_ORDER);
+            List<Integer> requests = new ArrayList<Integer>();
+            int index = 0;
+            while ((index = readInt()) != -1) {
+                readShortInt();
+                for (int i = 0; i < 4; i++) {
+                    Assert.assertEquals("whole file transfers send no blocks", 0, readInt());
+                }
+                requests.add(Integer.valueOf(index));
+            }
+            for (Integer request : requests) {
+                byte[] content = contents[fileList.indexOf(sorted.get(request.intValue()))];
+                MD4 md4 = new MD4();
+                md4.update(new byte[] {0x78, 0x56, 0x34, 0x12});
+                md4.update(content);
+                ByteArrayOutputStream file = new ByteArrayOutputStream();
+                file.write(ints(request.intValue()));
+                file.write(new byte[] {0x00, (byte)0x80});
+                file.write(ints(0, 0, 0, 0, content.length));
+                file.write(content);
+                file.write(ints(0));
+                file.write(md4.digest());
+                sendData(file.toByteArray());
+            }
+            for (int phase = 0; phase < 2; phase++) {
+                sendData(ints(-1));
+                Assert.assertEquals(-1, readInt());
+            }
+            sendData(ints(-1, 0, 0, 42, 0, 0));
+            Assert.assertEquals(-1, readInt());
+        }
+
+        private byte[] ints(int... values) {
+            byte[] bytes = new byte[values.length * 4];
+            for (int i = 0; i < values.length; i++) {
+                for (int j = 0; j < 4; j++) {
+                    bytes[i * 4 + j] = (byte)(values[i] >>> (8 * j));
+                }
+            }
+            return bytes;
+        }
+
+        private void sendData(byte[] payload) throws IOException {
+            sendMessage(MultiplexInputStream.MSG_DATA, payload);
+        }
+
+        private void sendMessage(int tag, byte[] payload) throws IOException {
+            out.write(ints(((tag + MultiplexInputStream.MPLEX_BASE) << 24) | payload.length));
+            out.write(payload);
+            out.flush();
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b = 0;
+            while ((b = in.read()) != '\n') {
+                line.write(b);
+            }
+            return line.toString("UTF-8");
+        }
+
+        private int readInt() throws IOException {
+            return Integer.reverseBytes(in.readInt());
+        }
+
+        private int readShortInt() throws IOException {
+            return Short.reverseBytes(in.readShort()) & 0xffff;
+        }
+    }
+
+    @Test
+    public void testBase64WithoutPadding() throws Exception {
+        Assert.assertEquals("TWFu", RsyncDaemonClient.encodeBase64("Man".getBytes("US-ASCII")));
+        Assert.assertEquals("TWE", RsyncDaemonClient.encodeBase64("Ma".getBytes("US-ASCII")));
+        Assert.assertEquals("TQ", RsyncDaemonClient.encodeBase64("M".getBytes("US-ASCII")));
+        Assert.assertEquals("auth response is 16 bytes in base64", 22, RsyncDaemonClient.generateAuthResponse("secret", "challenge").length());
+    }
+
+    @Test
+    public void testTransferFromDaemon() throws Exception {
+        TempFiles.writeFile(new File(destDir, "same.txt"), "same");
+        new File(destDir, "same.txt").setLastModified(MOD_TIME * 1000);
+        TempFiles.writeFile(new File(destDir, "old.txt"), "old");
+        TempFiles.writeFile(new File(destDir, "keep.txt"), "keep");
+
+        int dirMode = FileListEntry.S_IFDIR | 0755;
+        int fileMode = FileListEntry.S_IFREG | 0644;
+        List<FileListEntry> fileList = Arrays.asList(
+                new FileListEntry("sub/b.txt", 5L, MOD_TIME, fileMode, false),
+                new FileListEntry(".", 4096L, MOD_TIME, dirMode, true),
+                new FileListEntry("sub", 4096L, MOD_TIME, dirMode, false),
+                new FileListEntry("same.txt", 4L, MOD_TIME, fileMode, false),
+                new FileListEntry("new.txt", 3L, MOD_TIME, fileMode, false));
+        byte[][] contents = {"bbbbb".getBytes("UTF-8"), null, null, "same".getBytes("UTF-8"), "new".getBytes("UTF-8")};
+        FakeDaemon daemon = new FakeDaemon(fileList, contents);
+        Thread daemonThread = new Thread(daemon);
+        daemonThread.start();
+
+        RecordingListener listener = new RecordingListener();
+        RsyncDaemonClient client = new RsyncDaemonClient(new Socket("localhost", serverSocket.getLocalPort()), Arrays.asList("/keep.txt"), false);
+        boolean complete = client.transfer("module", "htrc", "secret", Arrays.asList("pairtree_root/ab/"), destDir, listener);
+        daemonThread.join();
+        if (daemonFailure != null) {
+            throw new AssertionError(daemonFailure);
+        }
+
+        Assert.assertTrue(complete);
+        Assert.assertEquals(Arrays.asList("--server", "--sender", "-rptL", ".", "module/pairtree_root/ab/"), daemon.arguments);
+        Assert.assertEquals(Arrays.asList("- /keep.txt"), daemon.filterRules);
+        Assert.assertTrue(listener.messages.contains("Welcome"));
+        Assert.assertTrue(listener.messages.contains("file list sent"));
+
+        Assert.assertTrue(listener.find("old.txt").isDeletion());
+        Assert.assertFalse(new File(destDir, "old.txt").exists());
+        Assert.assertTrue("excluded files should not be deleted", new File(destDir, "keep.txt").exists());
+        Assert.assertEquals("cd+++++++++", listener.find("sub/").getItemFlags());
+        Assert.assertEquals(">f+++++++++", listener.find("new.txt").getItemFlags());
+        Assert.assertEquals(">f+++++++++", listener.find("sub/b.txt").getItemFlags());
+        Assert.assertNull("unchanged files should not be transferred", listener.find("same.txt"));
+
+        Assert.assertEquals(5L, new File(destDir, "sub/b.txt").length());
+        Assert.assertEquals(MOD_TIME * 1000, new File(destDir, "new.txt").lastModified());
+        Assert.assertEquals(8L, client.getBytesReceived());
+        Assert.assertEquals(42L, client.getTotalSize());
+    }
+
+    /**
+     * Runs against a real rsync daemon when -Drsync.daemon.url=rsync://[user:password@]host[:port]/module/path/ is given,
+     * e.g. one started with <code>rsync --daemon --no-detach --port=8873 --config=rsyncd.conf</code>
+     */
+    @Test
+    public void testTransferFromRsyncDaemon() throws Exception {
+        String url = System.getProperty("rsync.daemon.url");
+        Assume.assumeTrue(url != null && url.length() > 0);
+        URI uri = new URI(url);
+        String path = uri.getPath().substring(1);
+        int index = path.indexOf('/');
+        String module = (index < 0) ? path : path.substring(0, index);
+        String modulePath = (index < 0) ? "" : path.substring(index + 1);
+        String username = null;
+        String password = null;
+        if (uri.getUserInfo() != null) {
+            String[] userInfo = uri.getUserInfo().split(":", 2);
+            username = userInfo[0];
+            password = (userInfo.length > 1) ? userInfo[1] : "";
+        }
+        int port = (uri.getPort() < 0) ? RsyncDaemonClient.DEFAULT_PORT : uri.getPort();
+
+        RecordingListener listener = new RecordingListener();
+        RsyncDaemonClient client = new RsyncDaemonClient(new Socket(uri.getHost(), port), new ArrayList<String>(), false);
+        Assert.assertTrue(client.transfer(module, username, password, Arrays.asList(modulePath), destDir, listener));
+        Assert.assertFalse("first transfer should change something", listener.entries.isEmpty());
+
+        listener = new RecordingListener();
+        client = new RsyncDaemonClient(new Socket(uri.getHost(), port), new ArrayList<String>(), false);
+        Assert.assertTrue(client.transfer(module, username, password, Arrays.asList(modulePath), destDir, listener));
+        Assert.assertTrue("second transfer should change nothing", listener.entries.isEmpty());
+    }
+}